@@ -17,21 +17,81 @@ package com.fastbootmobile.encore.api.common;
 
 import android.util.Log;
 
-import org.apache.http.util.ByteArrayBuffer;
-
-import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
 
 /**
- * HTTP GET helper
+ * HTTP GET helper. Responses are read in bulk into pooled buffers, or streamed straight from the
+ * connection with {@link #openStream(String, String, boolean)}. Connections are returned to the
+ * platform keep-alive pool once the response is fully read, and the number of concurrent requests
+ * to a single host is limited below the idle connections that pool keeps per host (5 by default),
+ * so that they can all be reused. Cached requests go through the HttpResponseCache installed by
+ * the application.
  */
 public class HttpGet {
 
     private static final String TAG = "HttpGet";
 
+    private static final String USER_AGENT = "OmniMusic/1.0-dev (http://www.omnirom.org)";
+    private static final int MAX_STALE = 60 * 60 * 24 * 28; // tolerate 4-weeks stale
+    private static final int MAX_REDIRECTS = 5;
+    private static final int MAX_REQUESTS_PER_HOST = 4;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 8;
+    private static final int MAX_DISCARDED_BYTES = 64 * 1024;
+
+    private static final Map<String, Semaphore> sHostLimits = new HashMap<>();
+    private static final ArrayDeque<byte[]> sBufferPool = new ArrayDeque<>();
+
+    /**
+     * Body of a successful response, read straight from the connection. Closing the stream
+     * releases the host slot and, if the body was fully read, lets the connection be reused.
+     */
+    public static class ResponseStream extends FilterInputStream {
+        private final int mContentLength;
+        private final Semaphore mHostLimit;
+        private boolean mClosed;
+
+        private ResponseStream(InputStream in, int contentLength, Semaphore hostLimit) {
+            super(in);
+            mContentLength = contentLength;
+            mHostLimit = hostLimit;
+        }
+
+        /**
+         * @return The length of the body, or -1 if unknown
+         */
+        public int getContentLength() {
+            return mContentLength;
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+            }
+
+            try {
+                super.close();
+            } finally {
+                mHostLimit.release();
+            }
+        }
+    }
+
     /**
      * Downloads the data from the provided URL.
      * @param inUrl The URL to get from
@@ -53,56 +113,188 @@ public class HttpGet {
      */
     public static byte[] getBytes(String inUrl, String query, boolean cached)
             throws IOException, RateLimitException {
-        final String formattedUrl = inUrl + (query.isEmpty() ? "" : ("?" + query));
+        final ResponseStream stream = openStream(inUrl, query, cached);
+        if (stream == null) {
+            return new byte[]{};
+        }
+
+        try {
+            return readFully(stream, stream.getContentLength());
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Opens the response body of the provided URL, so that it can be consumed (e.g. decoded)
+     * while it is being received. The stream MUST be closed once done.
+     * @param inUrl The URL to get from
+     * @param query The query field. '?' + query will be appended automatically, and the query data
+     *              MUST be encoded properly.
+     * @return The response body, or null if the server returned an error
+     */
+    public static ResponseStream openStream(String inUrl, String query, boolean cached)
+            throws IOException, RateLimitException {
+        String formattedUrl = inUrl + (query.isEmpty() ? "" : ("?" + query));
 
         Log.d(TAG, "Formatted URL: " + formattedUrl);
 
-        URL url = new URL(formattedUrl);
-        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-        urlConnection.setRequestProperty("User-Agent","OmniMusic/1.0-dev (http://www.omnirom.org)");
-        urlConnection.setUseCaches(cached);
-        urlConnection.setInstanceFollowRedirects(true);
-        int maxStale = 60 * 60 * 24 * 28; // tolerate 4-weeks stale
-        urlConnection.addRequestProperty("Cache-Control", "max-stale=" + maxStale);
-        try {
-            final int status = urlConnection.getResponseCode();
-            // MusicBrainz returns 503 Unavailable on rate limit errors. Parse the JSON anyway.
-            if (status == HttpURLConnection.HTTP_OK) {
-                InputStream in = new BufferedInputStream(urlConnection.getInputStream());
-                int contentLength = urlConnection.getContentLength();
-                if (contentLength <= 0) {
-                    // No length? Let's allocate 100KB.
-                    contentLength = 100 * 1024;
+        for (int redirects = 0; redirects <= MAX_REDIRECTS; ++redirects) {
+            final URL url = new URL(formattedUrl);
+            final Semaphore hostLimit = getHostLimit(url.getHost());
+            try {
+                hostLimit.acquire();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for " + url.getHost());
+            }
+
+            HttpURLConnection urlConnection = null;
+            boolean handedOff = false;
+            try {
+                urlConnection = (HttpURLConnection) url.openConnection();
+                urlConnection.setRequestProperty("User-Agent", USER_AGENT);
+                urlConnection.setUseCaches(cached);
+                urlConnection.setInstanceFollowRedirects(true);
+                urlConnection.addRequestProperty("Cache-Control", "max-stale=" + MAX_STALE);
+
+                final int status = urlConnection.getResponseCode();
+                // MusicBrainz returns 503 Unavailable on rate limit errors. Parse the JSON anyway.
+                if (status == HttpURLConnection.HTTP_OK) {
+                    final ResponseStream stream = new ResponseStream(urlConnection.getInputStream(),
+                            urlConnection.getContentLength(), hostLimit);
+                    handedOff = true;
+                    return stream;
+                } else if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+                    // 404
+                    return null;
+                } else if (status == HttpURLConnection.HTTP_FORBIDDEN) {
+                    return null;
+                } else if (status == HttpURLConnection.HTTP_UNAVAILABLE) {
+                    throw new RateLimitException();
+                } else if (status == HttpURLConnection.HTTP_MOVED_TEMP
+                        || status == HttpURLConnection.HTTP_MOVED_PERM
+                        || status == 307 /* HTTP/1.1 TEMPORARY REDIRECT */
+                        || status == HttpURLConnection.HTTP_SEE_OTHER) {
+                    // We've been redirected (likely across protocols), follow the new URL
+                    final String followUrl = urlConnection.getHeaderField("Location");
+                    Log.e(TAG, "Redirected to: " + followUrl);
+                    if (followUrl == null) {
+                        return null;
+                    }
+                    formattedUrl = new URL(url, followUrl).toString();
+                } else {
+                    Log.e(TAG, "Error when fetching: " + formattedUrl + " (" + status + ")");
+                    return null;
                 }
-                ByteArrayBuffer bab = new ByteArrayBuffer(contentLength);
-                BufferedInputStream bis = new BufferedInputStream(in);
-                int character;
+            } finally {
+                if (!handedOff) {
+                    if (urlConnection != null) {
+                        discardBody(urlConnection);
+                    }
+                    hostLimit.release();
+                }
+            }
+        }
+
+        Log.e(TAG, "Too many redirects when fetching: " + inUrl);
+        return null;
+    }
+
+    private static Semaphore getHostLimit(String host) {
+        synchronized (sHostLimits) {
+            Semaphore semaphore = sHostLimits.get(host);
+            if (semaphore == null) {
+                semaphore = new Semaphore(MAX_REQUESTS_PER_HOST, true);
+                sHostLimits.put(host, semaphore);
+            }
+            return semaphore;
+        }
+    }
 
-                while ((character = bis.read()) != -1) {
-                    bab.append(character);
+    /**
+     * Reads the whole stream
+     * @param in The stream to read
+     * @param contentLength The expected length, or a negative value if unknown
+     * @return The data read
+     */
+    private static byte[] readFully(InputStream in, int contentLength) throws IOException {
+        if (contentLength > 0) {
+            // Read straight into the final array
+            byte[] data = new byte[contentLength];
+            int offset = 0;
+            int read;
+            while (offset < contentLength
+                    && (read = in.read(data, offset, contentLength - offset)) != -1) {
+                offset += read;
+            }
+
+            if (offset < contentLength) {
+                byte[] truncated = new byte[offset];
+                System.arraycopy(data, 0, truncated, 0, offset);
+                return truncated;
+            }
+            return data;
+        } else {
+            final byte[] buffer = obtainBuffer();
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
                 }
-                return bab.toByteArray();
-            } else if (status == HttpURLConnection.HTTP_NOT_FOUND) {
-                // 404
-                return new byte[]{};
-            } else if (status == HttpURLConnection.HTTP_FORBIDDEN) {
-                return new byte[]{};
-            } else if (status == HttpURLConnection.HTTP_UNAVAILABLE) {
-                throw new RateLimitException();
-            } else if (status == HttpURLConnection.HTTP_MOVED_TEMP
-                    || status == HttpURLConnection.HTTP_MOVED_PERM
-                    || status == 307 /* HTTP/1.1 TEMPORARY REDIRECT */
-                    || status == HttpURLConnection.HTTP_SEE_OTHER) {
-                // We've been redirected, follow the new URL
-                final String followUrl = urlConnection.getHeaderField("Location");
-                Log.e(TAG, "Redirected to: " +  followUrl);
-                return getBytes(followUrl, "", cached);
-            } else {
-                Log.e(TAG, "Error when fetching: " + formattedUrl + " (" + urlConnection.getResponseCode() + ")");
-                return new byte[]{};
+                return out.toByteArray();
+            } finally {
+                recycleBuffer(buffer);
             }
-        } finally {
+        }
+    }
+
+    /**
+     * Consumes a small error or redirect body so that the connection can be reused, or drops
+     * the connection otherwise
+     */
+    private static void discardBody(HttpURLConnection urlConnection) {
+        InputStream in = urlConnection.getErrorStream();
+        final byte[] buffer = obtainBuffer();
+        try {
+            if (in == null) {
+                in = urlConnection.getInputStream();
+            }
+
+            int total = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+                if (total > MAX_DISCARDED_BYTES) {
+                    urlConnection.disconnect();
+                    break;
+                }
+            }
+        } catch (IOException e) {
             urlConnection.disconnect();
+        } finally {
+            recycleBuffer(buffer);
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    private static byte[] obtainBuffer() {
+        synchronized (sBufferPool) {
+            final byte[] buffer = sBufferPool.pollFirst();
+            return buffer != null ? buffer : new byte[BUFFER_SIZE];
+        }
+    }
+
+    private static void recycleBuffer(byte[] buffer) {
+        synchronized (sBufferPool) {
+            if (sBufferPool.size() < MAX_POOLED_BUFFERS) {
+                sBufferPool.addFirst(buffer);
+            }
         }
     }
 }
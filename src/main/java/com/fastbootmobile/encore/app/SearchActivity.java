@@ -107,7 +107,8 @@ public class SearchActivity extends AppActivity {
                     public void run() {
                         mActiveFragment.resetResults();
                         mActiveFragment.setArguments(query);
-                        ProviderAggregator.getDefault().startSearch(query);
+                        mActiveFragment.showKnownResults(
+                                ProviderAggregator.getDefault().startSearch(query));
                     }
                 }, 200);
 
@@ -24,6 +24,7 @@ import com.fastbootmobile.encore.framework.PluginsLookup;
 import com.fastbootmobile.encore.model.Playlist;
 import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.IMusicProvider;
+import com.fastbootmobile.encore.providers.MultiProviderPlaylistProvider;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
 import com.fastbootmobile.encore.providers.ProviderConnection;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
@@ -72,7 +73,11 @@ public class PlaylistAdapter extends SongsListAdapter {
             ProviderConnection connection = PluginsLookup.getDefault().getProvider(providerIdentifier);
             if (connection != null) {
                 IMusicProvider binder = connection.getBinder();
-                if (binder != null) {
+                if (binder instanceof MultiProviderPlaylistProvider) {
+                    // The dragged item was moved, not swapped with the one it was dropped on
+                    ((MultiProviderPlaylistProvider) binder).movePlaylistItem(oldPosition,
+                            newPosition, mPlaylist.getRef());
+                } else if (binder != null) {
                     binder.onUserSwapPlaylistItem(oldPosition, newPosition, mPlaylist.getRef());
                 }
             }
@@ -54,8 +54,10 @@ import com.fastbootmobile.encore.utils.Utils;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Adapter that displays Search results in an Expandable ListView
@@ -77,6 +79,12 @@ public class SearchAdapter extends BaseExpandableListAdapter {
     private List<SearchEntry> mAllPlaylists;
     private List<SearchEntry> mAllAlbums;
 
+    // Same entries as the lists above, to check for duplicates in constant time
+    private Set<SearchEntry> mSongEntries;
+    private Set<SearchEntry> mArtistEntries;
+    private Set<SearchEntry> mPlaylistEntries;
+    private Set<SearchEntry> mAlbumEntries;
+
     private List<SearchEntry> mSortedSongs;
     private List<SearchEntry> mSortedArtists;
     private List<SearchEntry> mSortedPlaylists;
@@ -145,6 +153,11 @@ public class SearchAdapter extends BaseExpandableListAdapter {
 
             return false;
         }
+
+        @Override
+        public int hashCode() {
+            return ref.hashCode();
+        }
     }
 
     /**
@@ -158,6 +171,11 @@ public class SearchAdapter extends BaseExpandableListAdapter {
         mAllPlaylists = new ArrayList<>();
         mAllAlbums = new ArrayList<>();
 
+        mSongEntries = new HashSet<>();
+        mArtistEntries = new HashSet<>();
+        mPlaylistEntries = new HashSet<>();
+        mAlbumEntries = new HashSet<>();
+
         mSortedSongs = new ArrayList<>();
         mSortedArtists = new ArrayList<>();
         mSortedPlaylists = new ArrayList<>();
@@ -177,6 +195,10 @@ public class SearchAdapter extends BaseExpandableListAdapter {
         mAllArtists.clear();
         mAllPlaylists.clear();
         mAllAlbums.clear();
+        mSongEntries.clear();
+        mArtistEntries.clear();
+        mPlaylistEntries.clear();
+        mAlbumEntries.clear();
         mSortedSongs.clear();
         mSortedArtists.clear();
         mSortedPlaylists.clear();
@@ -224,28 +246,28 @@ public class SearchAdapter extends BaseExpandableListAdapter {
 
             for (String song : songs) {
                 SearchEntry entry = new SearchEntry(song, id);
-                if (!mAllSongs.contains(entry)) {
+                if (mSongEntries.add(entry)) {
                     mAllSongs.add(entry);
                 }
             }
 
             for (String artist : artists) {
                 SearchEntry entry = new SearchEntry(artist, id);
-                if (!mAllArtists.contains(entry)) {
+                if (mArtistEntries.add(entry)) {
                     mAllArtists.add(entry);
                 }
             }
 
             for (String playlist : playlists) {
                 SearchEntry entry = new SearchEntry(playlist, id);
-                if (!mAllPlaylists.contains(entry)) {
+                if (mPlaylistEntries.add(entry)) {
                     mAllPlaylists.add(entry);
                 }
             }
 
             for (String album : albums) {
                 SearchEntry entry = new SearchEntry(album, id);
-                if (!mAllAlbums.contains(entry)) {
+                if (mAlbumEntries.add(entry)) {
                     mAllAlbums.add(entry);
                 }
             }
@@ -316,13 +338,13 @@ public class SearchAdapter extends BaseExpandableListAdapter {
         SearchEntry compare = new SearchEntry(ent.getRef(), ent.getProvider());
 
         if (ent instanceof Song) {
-            return mAllSongs.contains(compare);
+            return mSongEntries.contains(compare);
         } else if (ent instanceof Artist) {
-            return mAllArtists.contains(compare);
+            return mArtistEntries.contains(compare);
         } else if (ent instanceof Album) {
-            return mAllAlbums.contains(compare);
+            return mAlbumEntries.contains(compare);
         } else if (ent instanceof Playlist) {
-            return mAllPlaylists.contains(compare);
+            return mPlaylistEntries.contains(compare);
         }
 
         return false;
@@ -63,6 +63,7 @@ public class SongsListAdapter extends BaseAdapter {
     }
 
     protected List<Song> mSongs;
+    private SortedSongList mSortedSongs;
     private boolean mShowAlbumArt;
     private RotateAnimation mSyncRotateAnimation;
 
@@ -91,7 +92,22 @@ public class SongsListAdapter extends BaseAdapter {
      * @param showAlbumArt Whether or not to show album art in front of each item
      */
     public SongsListAdapter(boolean showAlbumArt) {
-        mSongs = new ArrayList<>();
+        this(showAlbumArt, false);
+    }
+
+    /**
+     * Constructor
+     * @param showAlbumArt Whether or not to show album art in front of each item
+     * @param sorted Whether the songs are kept sorted alphabetically as they are added, instead
+     *               of in insertion order
+     */
+    public SongsListAdapter(boolean showAlbumArt, boolean sorted) {
+        if (sorted) {
+            mSortedSongs = new SortedSongList();
+            mSongs = mSortedSongs;
+        } else {
+            mSongs = new ArrayList<>();
+        }
         mShowAlbumArt = showAlbumArt;
     }
 
@@ -117,16 +133,34 @@ public class SongsListAdapter extends BaseAdapter {
     }
 
     public void putAll(Collection<Song> songs) {
-        for (Song song : songs) {
-            put(song);
+        if (mSortedSongs != null) {
+            mSortedSongs.merge(songs);
+        } else {
+            for (Song song : songs) {
+                put(song);
+            }
         }
     }
 
+    /**
+     * Merges songs into a sorted adapter, skipping the ones already there
+     * @param songs The songs to add
+     * @return The positions, in ascending order, at which the new songs have been inserted
+     */
+    public int[] mergeAll(Collection<Song> songs) {
+        if (mSortedSongs == null) {
+            throw new IllegalStateException("The adapter isn't sorted");
+        }
+        return mSortedSongs.merge(songs);
+    }
+
     /**
      * Sorts songs alphabetically
      */
     public void sortAll() {
-        Collections.sort(mSongs, mComparator);
+        if (mSortedSongs == null) {
+            Collections.sort(mSongs, mComparator);
+        }
     }
 
     /**
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.app.adapters;
+
+import com.fastbootmobile.encore.model.Song;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * List of songs that is always sorted alphabetically (loaded songs by title, then songs that
+ * aren't loaded yet by reference), and that contains each song only once. Lookups are O(1), and
+ * a page of songs is merged in O(n + p log p) instead of appending and re-sorting the whole list.
+ * The sort key of a song is computed when it is inserted.
+ */
+public class SortedSongList extends AbstractList<Song> implements RandomAccess {
+    private ArrayList<Entry> mEntries = new ArrayList<>();
+    private final HashSet<String> mIdentities = new HashSet<>();
+
+    private static class Entry {
+        final Song mSong;
+        final boolean mLoaded;
+        final String mKey;
+        final String mIdentity;
+
+        Entry(Song song) {
+            mSong = song;
+            mLoaded = song.isLoaded() && song.getTitle() != null;
+            mKey = mLoaded ? song.getTitle() : song.getRef();
+            mIdentity = getIdentity(song);
+        }
+    }
+
+    private static final Comparator<Entry> COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.mLoaded != rhs.mLoaded) {
+                return lhs.mLoaded ? -1 : 1;
+            }
+
+            final int result = lhs.mKey.compareTo(rhs.mKey);
+            if (result != 0) {
+                return result;
+            } else {
+                return lhs.mIdentity.compareTo(rhs.mIdentity);
+            }
+        }
+    };
+
+    /**
+     * Merges songs into the list, skipping the ones already there
+     * @param songs The songs to add. The collection doesn't need to be sorted, but sorting it
+     *              beforehand (e.g. on a background thread) avoids doing it here.
+     * @return The positions, in ascending order, at which the new songs have been inserted
+     */
+    public int[] merge(Collection<Song> songs) {
+        final List<Entry> page = new ArrayList<>(songs.size());
+        final HashSet<String> pageIdentities = new HashSet<>();
+        for (Song song : songs) {
+            if (song == null || song.getRef() == null) {
+                continue;
+            }
+
+            final Entry entry = new Entry(song);
+            if (!mIdentities.contains(entry.mIdentity) && pageIdentities.add(entry.mIdentity)) {
+                page.add(entry);
+            }
+        }
+
+        if (page.isEmpty()) {
+            return new int[0];
+        }
+
+        if (!isSorted(page)) {
+            Collections.sort(page, COMPARATOR);
+        }
+
+        final int[] positions = new int[page.size()];
+        final ArrayList<Entry> merged = new ArrayList<>(mEntries.size() + page.size());
+        int existing = 0;
+        int inserted = 0;
+
+        while (existing < mEntries.size() || inserted < page.size()) {
+            if (inserted < page.size() && (existing == mEntries.size()
+                    || COMPARATOR.compare(page.get(inserted), mEntries.get(existing)) < 0)) {
+                positions[inserted] = merged.size();
+                merged.add(page.get(inserted));
+                ++inserted;
+            } else {
+                merged.add(mEntries.get(existing));
+                ++existing;
+            }
+        }
+
+        mEntries = merged;
+        mIdentities.addAll(pageIdentities);
+        modCount++;
+        return positions;
+    }
+
+    /**
+     * Sorts songs in the order of this list, so that they can be merged faster
+     * @param songs The songs to sort
+     */
+    public static void sort(List<Song> songs) {
+        final List<Entry> entries = new ArrayList<>(songs.size());
+        for (Song song : songs) {
+            if (song != null && song.getRef() != null) {
+                entries.add(new Entry(song));
+            }
+        }
+        Collections.sort(entries, COMPARATOR);
+
+        songs.clear();
+        for (Entry entry : entries) {
+            songs.add(entry.mSong);
+        }
+    }
+
+    /**
+     * Inserts the song at its sorted position, unless it is already in the list
+     * @param song The song to add
+     * @return true if the song has been added
+     */
+    @Override
+    public boolean add(Song song) {
+        if (song == null || song.getRef() == null) {
+            return false;
+        }
+
+        final Entry entry = new Entry(song);
+        if (!mIdentities.add(entry.mIdentity)) {
+            return false;
+        }
+
+        int position = Collections.binarySearch(mEntries, entry, COMPARATOR);
+        if (position < 0) {
+            position = -position - 1;
+        }
+        mEntries.add(position, entry);
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Song> songs) {
+        return merge(new ArrayList<Song>(songs)).length > 0;
+    }
+
+    @Override
+    public Song get(int location) {
+        return mEntries.get(location).mSong;
+    }
+
+    @Override
+    public Song remove(int location) {
+        final Entry entry = mEntries.remove(location);
+        mIdentities.remove(entry.mIdentity);
+        modCount++;
+        return entry.mSong;
+    }
+
+    @Override
+    public boolean contains(Object object) {
+        return object instanceof Song && ((Song) object).getRef() != null
+                && mIdentities.contains(getIdentity((Song) object));
+    }
+
+    @Override
+    public void clear() {
+        mEntries.clear();
+        mIdentities.clear();
+        modCount++;
+    }
+
+    @Override
+    public int size() {
+        return mEntries.size();
+    }
+
+    private static boolean isSorted(List<Entry> entries) {
+        for (int i = 1; i < entries.size(); ++i) {
+            if (COMPARATOR.compare(entries.get(i - 1), entries.get(i)) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String getIdentity(Song song) {
+        if (song.getProvider() != null) {
+            return song.getProvider().serialize() + "/" + song.getRef();
+        } else {
+            return song.getRef();
+        }
+    }
+}
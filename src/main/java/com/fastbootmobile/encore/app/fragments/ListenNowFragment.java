@@ -384,7 +384,7 @@ public class ListenNowFragment extends Fragment implements ILocalCallback {
 
                 // Add the "Recently played" section if we have recent tracks
                 final ListenLogger logger = new ListenLogger(context);
-                List<ListenLogger.LogEntry> logEntries = logger.getEntries(50);
+                List<ListenLogger.LogEntry> logEntries = logger.getRecentlyPlayed(50);
 
                 if (logEntries.size() > 0 && !isDetached()) {
                     items.add(new ListenNowAdapter.SectionHeaderItem(getString(R.string.ln_section_recents),
@@ -34,12 +34,11 @@ import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Playlist;
 import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.IMusicProvider;
+import com.fastbootmobile.encore.providers.MultiProviderPlaylistProvider;
 import com.fastbootmobile.encore.providers.ProviderConnection;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
 import com.fastbootmobile.encore.utils.Utils;
 
-import java.util.Iterator;
-
 /**
  * Dialog Fragment allowing creation of a new playlist
  */
@@ -159,17 +158,13 @@ public class NewPlaylistFragment extends DialogFragment {
                                     if (mSong != null) {
                                         binder.addSongToPlaylist(mSong.getRef(), playlistRef, mSong.getProvider());
                                     } else if (mAlbum != null) {
-                                        Iterator<String> songs = mAlbum.songs();
-                                        while (songs.hasNext()) {
-                                            binder.addSongToPlaylist(songs.next(), playlistRef, mAlbum.getProvider());
-                                        }
+                                        MultiProviderPlaylistProvider.addSongsToPlaylist(binder,
+                                                Utils.refIteratorToList(mAlbum.songs()), playlistRef, mAlbum.getProvider());
                                     } else if (mPlaylist != null) {
-                                        Iterator<String> songs = mPlaylist.songs();
-                                        while (songs.hasNext()) {
-                                            // TODO: This might cause issues if we add a playlist
-                                            // from a multi-provider playlist to another one
-                                            binder.addSongToPlaylist(songs.next(), playlistRef, mPlaylist.getProvider());
-                                        }
+                                        // TODO: This might cause issues if we add a playlist
+                                        // from a multi-provider playlist to another one
+                                        MultiProviderPlaylistProvider.addSongsToPlaylist(binder,
+                                                Utils.refIteratorToList(mPlaylist.songs()), playlistRef, mPlaylist.getProvider());
                                     }
                                 } else {
                                     throw new IllegalStateException("Playlist reference returned by the provider is null!");
@@ -26,7 +26,6 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.RemoteException;
-import android.support.v7.graphics.Palette;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -48,6 +47,8 @@ import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.app.adapters.PlaybackQueueAdapter;
 import com.fastbootmobile.encore.app.ui.MaterialTransitionDrawable;
 import com.fastbootmobile.encore.app.ui.PlayPauseDrawable;
+import com.fastbootmobile.encore.art.AlbumArtCache;
+import com.fastbootmobile.encore.art.ArtPalette;
 import com.fastbootmobile.encore.framework.ListenLogger;
 import com.fastbootmobile.encore.framework.PlaybackProxy;
 import com.fastbootmobile.encore.model.Album;
@@ -78,22 +79,14 @@ public class PlaybackQueueFragment extends Fragment {
         public void onClick(View view) {
             Bitmap hero = ((MaterialTransitionDrawable) ((ImageView) view).getDrawable())
                     .getFinalDrawable().getBitmap();
-            Palette palette = Palette.from(hero).generate();
-
-            Palette.Swatch darkVibrantColor = palette.getDarkVibrantSwatch();
-            Palette.Swatch darkMutedColor = palette.getDarkMutedSwatch();
+            Song song = (Song) view.getTag();
+            ArtPalette palette = AlbumArtCache.getDefault().getPalette(song);
 
-            int color;
-            if (darkVibrantColor != null) {
-                color = darkVibrantColor.getRgb();
-            } else if (darkMutedColor != null) {
-                color = darkMutedColor.getRgb();
-            } else {
-                color = getResources().getColor(R.color.default_album_art_background);
+            int color = getResources().getColor(R.color.default_album_art_background);
+            if (palette != null) {
+                color = palette.getDarkColor(color);
             }
 
-            Song song = (Song) view.getTag();
-
             Intent intent = AlbumActivity.craftIntent(getActivity(), hero,
                     song.getAlbum(), song.getProvider(), color);
 
@@ -31,14 +31,15 @@ import com.fastbootmobile.encore.model.BoundEntity;
 import com.fastbootmobile.encore.model.Playlist;
 import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.IMusicProvider;
+import com.fastbootmobile.encore.providers.MultiProviderPlaylistProvider;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
 import com.fastbootmobile.encore.providers.ProviderConnection;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
+import com.fastbootmobile.encore.utils.Utils;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -208,23 +209,17 @@ public class PlaylistChooserFragment extends DialogFragment {
                                         ++successCount;
                                     }
                                 } else if (mAlbum != null) {
-                                    Iterator<String> songs = mAlbum.songs();
-                                    while (songs.hasNext()) {
-                                        if (provider.addSongToPlaylist(songs.next(), playlistChosen.getRef(), mAlbum.getProvider())) {
-                                            ++successCount;
-                                        }
-                                        ++totalCount;
-                                    }
+                                    List<String> songs = Utils.refIteratorToList(mAlbum.songs());
+                                    totalCount += songs.size();
+                                    successCount += MultiProviderPlaylistProvider.addSongsToPlaylist(provider,
+                                            songs, playlistChosen.getRef(), mAlbum.getProvider());
                                 } else if (mPlaylist != null) {
-                                    Iterator<String> songs = mPlaylist.songs();
-                                    while (songs.hasNext()) {
-                                        // TODO: This might cause issues if we add a playlist
-                                        // from a multi-provider playlist to another one
-                                        ++totalCount;
-                                        if (provider.addSongToPlaylist(songs.next(), playlistChosen.getRef(), mPlaylist.getProvider())) {
-                                            ++successCount;
-                                        }
-                                    }
+                                    // TODO: This might cause issues if we add a playlist
+                                    // from a multi-provider playlist to another one
+                                    List<String> songs = Utils.refIteratorToList(mPlaylist.songs());
+                                    totalCount += songs.size();
+                                    successCount += MultiProviderPlaylistProvider.addSongsToPlaylist(provider,
+                                            songs, playlistChosen.getRef(), mPlaylist.getProvider());
                                 }
 
                                 if (totalCount == successCount) {
@@ -25,7 +25,6 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.support.v4.app.Fragment;
-import android.support.v7.graphics.Palette;
 import android.util.Log;
 import android.util.Pair;
 import android.view.LayoutInflater;
@@ -41,6 +40,8 @@ import com.fastbootmobile.encore.app.PlaylistActivity;
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.app.adapters.SearchAdapter;
 import com.fastbootmobile.encore.app.ui.MaterialTransitionDrawable;
+import com.fastbootmobile.encore.art.ArtPalette;
+import com.fastbootmobile.encore.art.ImageCache;
 import com.fastbootmobile.encore.framework.PlaybackProxy;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
@@ -53,6 +54,7 @@ import com.fastbootmobile.encore.providers.ProviderAggregator;
 import com.fastbootmobile.encore.utils.Utils;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -68,7 +70,8 @@ public class SearchFragment extends Fragment implements ILocalCallback {
 
     private SearchAdapter mAdapter;
     private Handler mHandler;
-    private List<SearchResult> mSearchResults;
+    private final List<SearchResult> mSearchResults = new ArrayList<>();
+    private final List<SearchResult> mPendingResults = new ArrayList<>();
     private String mQuery;
     private ProgressBar mLoadingBar;
     private int mNumProvidersResponse;
@@ -123,7 +126,7 @@ public class SearchFragment extends Fragment implements ILocalCallback {
         listView.setOnChildClickListener(new ExpandableListView.OnChildClickListener() {
             @Override
             public boolean onChildClick(ExpandableListView expandableListView, View view, int i, int i2, long l) {
-                if (mSearchResults != null) {
+                if (!mSearchResults.isEmpty()) {
                     switch (i) {
                         case SearchAdapter.ARTIST:
                             onArtistClick(i2, view);
@@ -154,7 +157,7 @@ public class SearchFragment extends Fragment implements ILocalCallback {
         });
 
         // Restore previous search results, in case we're rotating
-        if (mSearchResults != null) {
+        if (!mSearchResults.isEmpty()) {
             mAdapter.appendResults(mSearchResults);
             mAdapter.notifyDataSetChanged();
         }
@@ -174,7 +177,27 @@ public class SearchFragment extends Fragment implements ILocalCallback {
         ProviderAggregator.getDefault().removeUpdateCallback(this);
     }
 
+    /**
+     * Shows the results already known for the query while the providers search. Unlike the
+     * results notified by the providers, they don't count as a provider response.
+     * @param results The known results, or null if there is none
+     */
+    public void showKnownResults(List<SearchResult> results) {
+        if (results != null && !results.isEmpty()) {
+            synchronized (mPendingResults) {
+                mPendingResults.addAll(results);
+            }
+            mHandler.sendEmptyMessage(MSG_UPDATE_RESULTS);
+        }
+    }
+
     public void resetResults() {
+        mSearchResults.clear();
+        synchronized (mPendingResults) {
+            mPendingResults.clear();
+        }
+        mNumProvidersResponse = 0;
+
         if (mAdapter != null) {
             mAdapter.clear();
         }
@@ -207,16 +230,10 @@ public class SearchFragment extends Fragment implements ILocalCallback {
                 Bitmap hero = ((MaterialTransitionDrawable) holder.albumArtImageView.getDrawable()).getFinalDrawable().getBitmap();
                 int color = 0xffffff;
                 if (hero != null) {
-                    Palette palette = Palette.generate(hero);
-                    Palette.Swatch darkVibrantColor = palette.getDarkVibrantSwatch();
-                    Palette.Swatch darkMutedColor = palette.getDarkMutedSwatch();
-
-                    if (darkVibrantColor != null) {
-                        color = darkVibrantColor.getRgb();
-                    } else if (darkMutedColor != null) {
-                        color = darkMutedColor.getRgb();
-                    } else {
-                        color = getResources().getColor(R.color.default_album_art_background);
+                    ArtPalette palette = ImageCache.getDefault().getPalette(entry.ref);
+                    color = getResources().getColor(R.color.default_album_art_background);
+                    if (palette != null) {
+                        color = palette.getDarkColor(color);
                     }
                 }
 
@@ -248,16 +265,10 @@ public class SearchFragment extends Fragment implements ILocalCallback {
                 Bitmap hero = ((MaterialTransitionDrawable) ivCover.getDrawable()).getFinalDrawable().getBitmap();
                 int color = 0xffffff;
                 if (hero != null) {
-                    Palette palette = Palette.generate(hero);
-                    Palette.Swatch darkVibrantColor = palette.getDarkVibrantSwatch();
-                    Palette.Swatch darkMutedColor = palette.getDarkMutedSwatch();
-
-                    if (darkVibrantColor != null) {
-                        color = darkVibrantColor.getRgb();
-                    } else if (darkMutedColor != null) {
-                        color = darkMutedColor.getRgb();
-                    } else {
-                        color = getResources().getColor(R.color.default_album_art_background);
+                    ArtPalette palette = ImageCache.getDefault().getPalette(entry.ref);
+                    color = getResources().getColor(R.color.default_album_art_background);
+                    if (palette != null) {
+                        color = palette.getDarkColor(color);
                     }
                 }
                 Intent intent = new Intent(getActivity(), ArtistActivity.class);
@@ -367,7 +378,10 @@ public class SearchFragment extends Fragment implements ILocalCallback {
     public void onSearchResult(final List<SearchResult> searchResults) {
         for (SearchResult searchResult : searchResults) {
             if (searchResult.getQuery().equals(mQuery)) {
-                mSearchResults = searchResults;
+                // Results only contain new hits, queue them until the handler appends them
+                synchronized (mPendingResults) {
+                    mPendingResults.addAll(searchResults);
+                }
                 mHandler.sendEmptyMessage(MSG_UPDATE_RESULTS);
                 mNumProvidersResponse++;
                 break;
@@ -376,10 +390,20 @@ public class SearchFragment extends Fragment implements ILocalCallback {
     }
 
     private void updateSearchResults() {
+        final List<SearchResult> newResults;
+        synchronized (mPendingResults) {
+            newResults = new ArrayList<>(mPendingResults);
+            mPendingResults.clear();
+        }
+        if (newResults.isEmpty()) {
+            return;
+        }
+        mSearchResults.addAll(newResults);
+
         final Activity act = getActivity();
 
         if (act != null) {
-            getActivity().setTitle("'" + mSearchResults.get(0).getQuery() + "'");
+            getActivity().setTitle("'" + newResults.get(0).getQuery() + "'");
             getActivity().setProgressBarIndeterminateVisibility(false);
 
             if (mNumProvidersResponse >= 2) {
@@ -390,7 +414,7 @@ public class SearchFragment extends Fragment implements ILocalCallback {
         }
 
         if (mAdapter != null) {
-            mAdapter.appendResults(mSearchResults);
+            mAdapter.appendResults(newResults);
             mAdapter.notifyDataSetChanged();
         }
     }
@@ -36,6 +36,7 @@ import android.widget.Toast;
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.app.WelcomeActivity;
 import com.fastbootmobile.encore.art.AlbumArtCache;
+import com.fastbootmobile.encore.framework.PlaybackProxy;
 import com.fastbootmobile.encore.utils.SettingsKeys;
 
 import java.util.Set;
@@ -78,6 +79,16 @@ public class SettingsFragment extends PreferenceFragment {
         // Load the preferences from an XML resource
         addPreferencesFromResource(R.xml.settings);
 
+        // The playback service runs in its own process, so it is told about crossfade changes
+        findPreference(SettingsKeys.KEY_CROSSFADE_DURATION).setOnPreferenceChangeListener(
+                new Preference.OnPreferenceChangeListener() {
+                    @Override
+                    public boolean onPreferenceChange(Preference preference, Object newValue) {
+                        PlaybackProxy.setCrossfadeDuration(Integer.parseInt((String) newValue));
+                        return true;
+                    }
+                });
+
         // Load Bluetooth paired devices
         final ListPreference btNameList = (ListPreference) findPreference(SettingsKeys.KEY_BLUETOOTH_AUTOCONNECT_NAME);
         BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
@@ -34,6 +34,7 @@ import android.widget.ListView;
 
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.app.adapters.SongsListAdapter;
+import com.fastbootmobile.encore.app.adapters.SortedSongList;
 import com.fastbootmobile.encore.framework.PlaybackProxy;
 import com.fastbootmobile.encore.framework.PluginsLookup;
 import com.fastbootmobile.encore.model.Song;
@@ -51,6 +52,11 @@ import java.util.List;
 public class SongsFragment extends Fragment {
     private static final String TAG = "SongsFragment";
 
+    /**
+     * Minimum delay between two updates of the list while songs are loading, in milliseconds
+     */
+    private static final long PUBLISH_INTERVAL = 250;
+
     private SongsListAdapter mSongsListAdapter;
     private Handler mHandler;
     private boolean mAdapterSet = false;
@@ -108,7 +114,7 @@ public class SongsFragment extends Fragment {
         mListView = (ListView) root.findViewById(R.id.songsList);
         mListView.setFastScrollEnabled(true);
 
-        mSongsListAdapter = new SongsListAdapter(true);
+        mSongsListAdapter = new SongsListAdapter(true, true);
 
         new GetAllSongsTask().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
 
@@ -135,6 +141,7 @@ public class SongsFragment extends Fragment {
 
             List<ProviderConnection> providers = PluginsLookup.getDefault().getAvailableProviders();
             final List<Song> songsToAdd = new ArrayList<>();
+            long lastPublish = 0;
             for (ProviderConnection providerConnection : providers) {
                 try {
                     IMusicProvider provider = providerConnection.getBinder();
@@ -157,8 +164,16 @@ public class SongsFragment extends Fragment {
                                     }
                                 }
 
-                                publishProgress(new ArrayList<>(songsToAdd));
-                                songsToAdd.clear();
+                                // Pages are grouped so that the list isn't updated faster than
+                                // it can be redrawn, and sorted here so that the UI thread only
+                                // has to merge them
+                                final long now = System.currentTimeMillis();
+                                if (now - lastPublish >= PUBLISH_INTERVAL) {
+                                    SortedSongList.sort(songsToAdd);
+                                    publishProgress(new ArrayList<>(songsToAdd));
+                                    songsToAdd.clear();
+                                    lastPublish = now;
+                                }
 
                                 if (songs.size() < limit) {
                                     // Less songs than requested, assume we're at the end
@@ -187,6 +202,7 @@ public class SongsFragment extends Fragment {
                 }
             }
 
+            SortedSongList.sort(songsToAdd);
             return songsToAdd;
         }
 
@@ -201,11 +217,33 @@ public class SongsFragment extends Fragment {
 
         @Override
         protected void onPostExecute(List<Song> songs) {
-            mSongsListAdapter.putAll(songs);
-            mSongsListAdapter.sortAll();
+            // Remember which song is at the top of the list before merging
+            final int firstVisible = mListView.getFirstVisiblePosition();
+            final View firstChild = mListView.getChildAt(0);
+            final int top = (firstChild != null ? firstChild.getTop() : 0);
+
+            final int[] inserted = mSongsListAdapter.mergeAll(songs);
 
             if (mAdapterSet) {
+                if (inserted.length == 0) {
+                    return;
+                }
+
                 mSongsListAdapter.notifyDataSetChanged();
+
+                // Keep that song at the same place, so that the list doesn't jump while songs
+                // are inserted above it
+                int anchor = firstVisible;
+                for (int position : inserted) {
+                    if (position <= anchor) {
+                        ++anchor;
+                    } else {
+                        break;
+                    }
+                }
+                if (anchor != firstVisible && firstChild != null) {
+                    mListView.setSelectionFromTop(anchor, top);
+                }
             } else {
                 mListView.setAdapter(mSongsListAdapter);
 
@@ -34,12 +34,12 @@ import android.support.v17.leanback.widget.Presenter;
 import android.support.v17.leanback.widget.Row;
 import android.support.v17.leanback.widget.RowPresenter;
 import android.support.v4.app.ActivityOptionsCompat;
-import android.support.v7.graphics.Palette;
 import android.view.View;
 
 import com.fastbootmobile.encore.api.common.Pair;
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.app.adapters.HistoryAdapter;
+import com.fastbootmobile.encore.art.ArtPalette;
 import com.fastbootmobile.encore.framework.ListenLogger;
 import com.fastbootmobile.encore.framework.PluginsLookup;
 import com.fastbootmobile.encore.model.Album;
@@ -125,8 +125,8 @@ public class TvActivity extends Activity {
                 if (item instanceof Album) {
                     Album album = (Album) item;
                     int color = getResources().getColor(R.color.primary);
-                    if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof Palette) {
-                        color = ((Palette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
+                    if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof ArtPalette) {
+                        color = ((ArtPalette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
                     }
 
                     Intent intent = new Intent(TvActivity.this, TvAlbumDetailsActivity.class);
@@ -141,8 +141,8 @@ public class TvActivity extends Activity {
                 } else if (item instanceof Artist) {
                     Artist artist = (Artist) item;
                     int color = getResources().getColor(R.color.primary);
-                    if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof Palette) {
-                        color = ((Palette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
+                    if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof ArtPalette) {
+                        color = ((ArtPalette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
                     }
 
                     Intent intent = new Intent(TvActivity.this, TvArtistDetailsActivity.class);
@@ -157,8 +157,8 @@ public class TvActivity extends Activity {
                 } else if (item instanceof Playlist) {
                     Playlist playlist = (Playlist) item;
                     int color = getResources().getColor(R.color.primary);
-                    if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof Palette) {
-                        color = ((Palette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
+                    if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof ArtPalette) {
+                        color = ((ArtPalette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
                     }
 
                     Intent intent = new Intent(TvActivity.this, TvPlaylistDetailsActivity.class);
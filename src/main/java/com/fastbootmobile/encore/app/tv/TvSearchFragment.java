@@ -37,12 +37,12 @@ import android.support.v17.leanback.widget.Row;
 import android.support.v17.leanback.widget.RowPresenter;
 import android.support.v17.leanback.widget.SpeechRecognitionCallback;
 import android.support.v4.app.ActivityOptionsCompat;
-import android.support.v7.graphics.Palette;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.fastbootmobile.encore.app.BuildConfig;
 import com.fastbootmobile.encore.app.R;
+import com.fastbootmobile.encore.art.ArtPalette;
 import com.fastbootmobile.encore.framework.PlaybackProxy;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
@@ -98,8 +98,8 @@ public class TvSearchFragment extends SearchFragment
                 if (item instanceof Album) {
                     Album album = (Album) item;
                     int color = getResources().getColor(R.color.primary);
-                    if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof Palette) {
-                        color = ((Palette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
+                    if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof ArtPalette) {
+                        color = ((ArtPalette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
                     }
 
                     Intent intent = new Intent(getActivity(), TvAlbumDetailsActivity.class);
@@ -114,8 +114,8 @@ public class TvSearchFragment extends SearchFragment
                 } else if (item instanceof Artist) {
                     Artist artist = (Artist) item;
                     int color = getResources().getColor(R.color.primary);
-                    if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof Palette) {
-                        color = ((Palette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
+                    if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof ArtPalette) {
+                        color = ((ArtPalette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
                     }
 
                     Intent intent = new Intent(getActivity(), TvArtistDetailsActivity.class);
@@ -130,8 +130,8 @@ public class TvSearchFragment extends SearchFragment
                 } else if (item instanceof Playlist) {
                     Playlist playlist = (Playlist) item;
                     int color = getResources().getColor(R.color.primary);
-                    if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof Palette) {
-                        color = ((Palette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
+                    if (itemViewHolder.view.getTag() != null && itemViewHolder.view.getTag() instanceof ArtPalette) {
+                        color = ((ArtPalette) itemViewHolder.view.getTag()).getDarkVibrantColor(color);
                     }
 
                     Intent intent = new Intent(getActivity(), TvPlaylistDetailsActivity.class);
@@ -305,6 +305,15 @@ public class TvSearchFragment extends SearchFragment
 
         @Override
         public void onSearchResult(List<SearchResult> searchResult) {
+            // Notifications only carry the new hits, the rows are rebuilt with all the results
+            if (!searchResult.isEmpty()) {
+                final List<SearchResult> allResults = ProviderAggregator.getDefault()
+                        .getCachedSearch(searchResult.get(0).getQuery());
+                if (allResults != null) {
+                    searchResult = allResults;
+                }
+            }
+
             final ArrayObjectAdapter artistRowAdapter = new ArrayObjectAdapter(new CardPresenter());
             final ArrayObjectAdapter albumRowAdapter = new ArrayObjectAdapter(new CardPresenter());
             final ArrayObjectAdapter songsRowAdapter = new ArrayObjectAdapter(new CardPresenter());
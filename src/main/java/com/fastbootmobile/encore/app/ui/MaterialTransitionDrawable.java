@@ -15,6 +15,7 @@
 
 package com.fastbootmobile.encore.app.ui;
 
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.ColorFilter;
 import android.graphics.ColorMatrix;
@@ -88,9 +89,17 @@ public class MaterialTransitionDrawable extends Drawable {
 
     public void setImmediateTo(BitmapDrawable drawable) {
         synchronized (mDrawLock) {
+            // Count the new drawable first, in case it's the one we're already showing
+            if (drawable instanceof RecyclingBitmapDrawable) {
+                ((RecyclingBitmapDrawable) drawable).setIsDisplayed(true);
+            }
+
             // Cancel animation
             mAnimating = false;
-            mTargetDrawable = null;
+            if (mTargetDrawable != null) {
+                mTargetDrawable.setIsDisplayed(false);
+                mTargetDrawable = null;
+            }
             mShowOfflineOverdraw = false;
 
             // Set new drawable as base and draw it
@@ -100,17 +109,21 @@ public class MaterialTransitionDrawable extends Drawable {
 
             mBaseDrawable = drawable;
             mBaseDrawable.setBounds(getBounds());
-
-            if (mBaseDrawable instanceof RecyclingBitmapDrawable) {
-                ((RecyclingBitmapDrawable) mBaseDrawable).setIsDisplayed(true);
-            }
         }
         invalidateSelf();
     }
 
     public void transitionTo(final RecyclingBitmapDrawable drawable) {
         synchronized (mDrawLock) {
-            if (drawable != mTargetDrawable) {
+            // The target counts as displayed from now on: the count is handed over to the base
+            // once the transition is over, or released if the target is replaced before that.
+            if (drawable != mTargetDrawable
+                    && (mTargetDrawable != null || drawable != mBaseDrawable)) {
+                drawable.setIsDisplayed(true);
+                if (mTargetDrawable != null) {
+                    mTargetDrawable.setIsDisplayed(false);
+                }
+
                 mTargetDrawable = drawable;
                 mTargetDrawable.setBounds(getBounds());
 
@@ -178,9 +191,9 @@ public class MaterialTransitionDrawable extends Drawable {
                     mPaint.setColorFilter(mExtColorFilter);
                 }
 
-                if (!mTargetDrawable.getBitmap().isRecycled()) {
+                if (!mTargetDrawable.peekBitmap().isRecycled()) {
                     try {
-                        canvas.drawBitmap(mTargetDrawable.getBitmap(), 0, 0, mPaint);
+                        canvas.drawBitmap(mTargetDrawable.peekBitmap(), 0, 0, mPaint);
                     } catch (RuntimeException e) {
                         Log.w(TAG, "Couldn't write target bitmap!");
                     }
@@ -192,11 +205,12 @@ public class MaterialTransitionDrawable extends Drawable {
                         ((RecyclingBitmapDrawable) mBaseDrawable).setIsDisplayed(false);
                     }
                     mBaseDrawable = mTargetDrawable;
+                    mTargetDrawable = null;
                 } else {
                     invalidateSelf();
                 }
             } else if (mBaseDrawable != null) {
-                if (!mBaseDrawable.getBitmap().isRecycled()) {
+                if (!peekBitmap(mBaseDrawable).isRecycled()) {
                     try {
                         mBaseDrawable.draw(canvas);
                     } catch (Exception e) {
@@ -247,12 +261,24 @@ public class MaterialTransitionDrawable extends Drawable {
                 (targetHeight - scaledBaseHeight) * 0.5f);
         canvas.scale(scaling, scaling);
 
-        if (!mBaseDrawable.getBitmap().isRecycled()) {
+        if (!peekBitmap(mBaseDrawable).isRecycled()) {
             mBaseDrawable.draw(canvas);
         }
         canvas.restore();
     }
 
+    /**
+     * Reads the bitmap of a drawable without sharing it, so that drawing doesn't keep the bitmap
+     * from going back to the pool
+     */
+    private static Bitmap peekBitmap(BitmapDrawable drawable) {
+        if (drawable instanceof RecyclingBitmapDrawable) {
+            return ((RecyclingBitmapDrawable) drawable).peekBitmap();
+        } else {
+            return drawable.getBitmap();
+        }
+    }
+
     @Override
     public int getIntrinsicHeight() {
         if (mAnimating && mTargetDrawable != null) {
@@ -27,7 +27,6 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.RemoteException;
 import android.support.annotation.NonNull;
-import android.support.v7.graphics.Palette;
 import android.util.AttributeSet;
 import android.view.GestureDetector;
 import android.view.LayoutInflater;
@@ -44,6 +43,8 @@ import android.widget.Toast;
 import com.fastbootmobile.encore.app.AlbumActivity;
 import com.fastbootmobile.encore.app.PlaybackQueueActivity;
 import com.fastbootmobile.encore.app.R;
+import com.fastbootmobile.encore.art.AlbumArtCache;
+import com.fastbootmobile.encore.art.ArtPalette;
 import com.fastbootmobile.encore.framework.PlaybackProxy;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
@@ -497,8 +498,6 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
 
                 // Set album art click listener
                 ivAlbumArt.setOnClickListener(new View.OnClickListener() {
-                    Palette mPalette;
-
                     @Override
                     public void onClick(View view) {
                         if (song == null || song.getAlbum() == null) {
@@ -509,19 +508,11 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
 
 
                         Bitmap hero = ((MaterialTransitionDrawable) ((ImageView) view).getDrawable()).getFinalDrawable().getBitmap();
-                        if (mPalette == null) {
-                            mPalette = Palette.from(hero).generate();
-                        }
-                        Palette.Swatch darkVibrantColor = mPalette.getDarkVibrantSwatch();
-                        Palette.Swatch darkMutedColor = mPalette.getDarkMutedSwatch();
-
-                        int color;
-                        if (darkVibrantColor != null) {
-                            color = darkVibrantColor.getRgb();
-                        } else if (darkMutedColor != null) {
-                            color = darkMutedColor.getRgb();
-                        } else {
-                            color = getResources().getColor(R.color.default_album_art_background);
+                        ArtPalette palette = AlbumArtCache.getDefault().getPalette(song);
+
+                        int color = getResources().getColor(R.color.default_album_art_background);
+                        if (palette != null) {
+                            color = palette.getDarkColor(color);
                         }
 
 
@@ -44,8 +44,6 @@ import org.json.JSONException;
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
-import java.util.ArrayList;
-import java.util.List;
 
 /**
  * Cache downloading and handling album art
@@ -55,8 +53,6 @@ public class AlbumArtCache {
     private static final AlbumArtCache INSTANCE = new AlbumArtCache();
     public static boolean CREATIVE_COMMONS = true;
 
-    private final List<BoundEntity> mRunningQueries = new ArrayList<>();
-
     /**
      * The art is not in the cache
      */
@@ -120,6 +116,16 @@ public class AlbumArtCache {
         return ent.getRef();
     }
 
+    /**
+     * Returns the colors of the art of the entity, if it was loaded already. This doesn't block
+     * and can be called from the main thread.
+     * @param ent The entity
+     * @return The colors of the art, or null if they are not available
+     */
+    public ArtPalette getPalette(BoundEntity ent) {
+        return ent != null ? ImageCache.getDefault().getPalette(getEntityArtKey(ent)) : null;
+    }
+
     /**
      * Returns the art associated with the entity
      * @param ent The entity
@@ -131,7 +137,11 @@ public class AlbumArtCache {
         boolean result = false;
 
         if (cache.hasInMemory(key) || cache.hasOnDisk(key)) {
-            listener.onArtLoaded(ent, cache.get(res, key, requestedSize));
+            final RecyclingBitmapDrawable art = cache.get(res, key, requestedSize);
+            if (art != null) {
+                cache.loadPalette(key, art.peekBitmap());
+            }
+            listener.onArtLoaded(ent, art);
             result = true;
         } else {
             if (CREATIVE_COMMONS) {
@@ -165,21 +175,31 @@ public class AlbumArtCache {
         return result;
     }
 
+    /**
+     * Stores the art of an entity in the image cache, along with its colors. This is slow and
+     * must run on the art workers.
+     * @param ent The entity
+     * @param bitmap The art of the entity
+     * @return The cached art
+     */
+    private RecyclingBitmapDrawable putArt(final Resources res, final BoundEntity ent,
+                                           final Bitmap bitmap) {
+        final String key = getEntityArtKey(ent);
+        final ImageCache cache = ImageCache.getDefault();
+        final RecyclingBitmapDrawable rcb = cache.put(res, key, bitmap);
+        cache.putPalette(key, ArtPalette.generate(bitmap));
+        return rcb;
+    }
+
     private boolean getFreeArt(final Resources res, final BoundEntity ent,
                                final IAlbumArtCacheListener listener) {
-        new Thread() {
+        ArtFetchScheduler.getDefault().runInBackground(new Runnable() {
             public void run() {
                 try {
-                    byte[] bytes = HttpGet.getBytes("http://lorempixel.com/600/600/abstract/", "", false);
-                    if (bytes != null) {
-                        Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
-                        if (bitmap != null) {
-                            RecyclingBitmapDrawable rbd = ImageCache.getDefault()
-                                    .put(res, getEntityArtKey(ent), bitmap);
-                            listener.onArtLoaded(ent, rbd);
-                        } else {
-                            listener.onArtLoaded(ent, null);
-                        }
+                    Bitmap bitmap = downloadBitmap("http://lorempixel.com/600/600/abstract/", false);
+                    if (bitmap != null) {
+                        RecyclingBitmapDrawable rbd = putArt(res, ent, bitmap);
+                        listener.onArtLoaded(ent, rbd);
                     } else {
                         listener.onArtLoaded(ent, null);
                     }
@@ -187,7 +207,7 @@ public class AlbumArtCache {
                     listener.onArtLoaded(ent, null);
                 }
             }
-        }.start();
+        });
 
         return true;
     }
@@ -204,17 +224,16 @@ public class AlbumArtCache {
             providerprovides = result = binder.getSongArt(song, new IArtCallback.Stub() {
                 @Override
                 public void onArtLoaded(final Bitmap bitmap) throws RemoteException {
-                    new Thread() {
+                    ArtFetchScheduler.getDefault().runInBackground(new Runnable() {
                         public void run() {
                             if (bitmap != null) {
-                                RecyclingBitmapDrawable rfb
-                                        = ImageCache.getDefault().put(res, getEntityArtKey(song), bitmap);
+                                RecyclingBitmapDrawable rfb = putArt(res, song, bitmap);
                                 listener.onArtLoaded(song, rfb);
                             } else {
                                 listener.onArtLoaded(song, null);
                             }
                         }
-                    }.start();
+                    });
                 }
             });
         }
@@ -264,17 +283,16 @@ public class AlbumArtCache {
             providerprovides = result = binder.getAlbumArt(album, new IArtCallback.Stub() {
                 @Override
                 public void onArtLoaded(final Bitmap bitmap) throws RemoteException {
-                    new Thread() {
+                    ArtFetchScheduler.getDefault().runInBackground(new Runnable() {
                         public void run() {
                             if (bitmap != null) {
-                                RecyclingBitmapDrawable rcb
-                                        = ImageCache.getDefault().put(res, getEntityArtKey(album), bitmap);
+                                RecyclingBitmapDrawable rcb = putArt(res, album, bitmap);
                                 listener.onArtLoaded(album, rcb);
                             } else {
                                 listener.onArtLoaded(album, null);
                             }
                         }
-                    }.start();
+                    });
                 }
             });
         }
@@ -354,13 +372,10 @@ public class AlbumArtCache {
             if (url != null) {
                 // Download it
                 try {
-                    byte[] imageData = HttpGet.getBytes(url, "", true);
-                    BitmapFactory.Options opts = new BitmapFactory.Options();
-                    opts.inMutable = true;
-                    Bitmap bitmap = BitmapFactory.decodeByteArray(imageData, 0, imageData.length, opts);
+                    Bitmap bitmap = downloadBitmap(url, true);
                     if (bitmap != null) {
                         result = true;
-                        RecyclingBitmapDrawable rcb = ImageCache.getDefault().put(res, getEntityArtKey(listenerRef), bitmap);
+                        RecyclingBitmapDrawable rcb = putArt(res, listenerRef, bitmap);
                         listener.onArtLoaded(listenerRef, rcb);
                     }
                 } catch (IOException e) {
@@ -390,16 +405,16 @@ public class AlbumArtCache {
             providerprovides = result = binder.getArtistArt(artist, new IArtCallback.Stub() {
                 @Override
                 public void onArtLoaded(final Bitmap bitmap) throws RemoteException {
-                    new Thread() {
+                    ArtFetchScheduler.getDefault().runInBackground(new Runnable() {
                         public void run() {
                             if (bitmap != null) {
-                                RecyclingBitmapDrawable rcb = ImageCache.getDefault().put(res, getEntityArtKey(artist), bitmap);
+                                RecyclingBitmapDrawable rcb = putArt(res, artist, bitmap);
                                 listener.onArtLoaded(artist, rcb);
                             } else {
                                 listener.onArtLoaded(artist, null);
                             }
                         }
-                    }.start();
+                    });
                 }
             });
         }
@@ -440,13 +455,10 @@ public class AlbumArtCache {
 
             if (url != null) {
                 try {
-                    byte[] imageData = HttpGet.getBytes(url, "", true);
-                    BitmapFactory.Options opts = new BitmapFactory.Options();
-                    opts.inMutable = true;
-                    Bitmap image = BitmapFactory.decodeByteArray(imageData, 0, imageData.length, opts);
+                    Bitmap image = downloadBitmap(url, true);
                     if (image != null) {
                         result = true;
-                        RecyclingBitmapDrawable rcb = ImageCache.getDefault().put(res, getEntityArtKey(artist), image);
+                        RecyclingBitmapDrawable rcb = putArt(res, artist, image);
                         listener.onArtLoaded(artist, rcb);
                     }
                 } catch (InterruptedIOException ignore) {
@@ -477,16 +489,16 @@ public class AlbumArtCache {
             providerprovides = binder.getPlaylistArt(playlist, new IArtCallback.Stub() {
                 @Override
                 public void onArtLoaded(final Bitmap bitmap) throws RemoteException {
-                    new Thread() {
+                    ArtFetchScheduler.getDefault().runInBackground(new Runnable() {
                         public void run() {
                             if (bitmap != null) {
-                                RecyclingBitmapDrawable rcb = ImageCache.getDefault().put(res, getEntityArtKey(playlist), bitmap);
+                                RecyclingBitmapDrawable rcb = putArt(res, playlist, bitmap);
                                 listener.onArtLoaded(playlist, rcb);
                             } else {
                                 listener.onArtLoaded(playlist, null);
                             }
                         }
-                    }.start();
+                    });
                 }
             });
             result = providerprovides;
@@ -498,15 +510,19 @@ public class AlbumArtCache {
             builder.start(res, playlist, new IArtCallback.Stub() {
                 @Override
                 public void onArtLoaded(final Bitmap bitmap) throws RemoteException {
-                    if (bitmap == null) return;
+                    if (bitmap == null) {
+                        listener.onArtLoaded(playlist, null);
+                        builder.freeMemory();
+                        return;
+                    }
 
-                    new Thread() {
+                    ArtFetchScheduler.getDefault().runInBackground(new Runnable() {
                         public void run() {
-                            RecyclingBitmapDrawable rcb = ImageCache.getDefault().put(res, getEntityArtKey(playlist), bitmap);
+                            RecyclingBitmapDrawable rcb = putArt(res, playlist, bitmap);
                             listener.onArtLoaded(playlist, rcb);
                             builder.freeMemory();
                         }
-                    }.start();
+                    });
                 }
             });
             result = true;
@@ -515,44 +531,34 @@ public class AlbumArtCache {
         return result;
     }
 
-    private IMusicProvider safeGetBinder(final ProviderIdentifier id) {
-        final ProviderConnection conn = PluginsLookup.getDefault().getProvider(id);
-        if (conn != null) {
-            return conn.getBinder();
-        } else {
-            return null;
-        }
-    }
-
     /**
-     * Returns whether or not a query is currently running for the provided song
-     * @param song The song for which we need the album art
-     * @return true if a request is currently running, false if nothing is currently looking for
-     * that song's art
+     * Downloads and decodes an image, straight from the connection
+     * @param url The URL of the image
+     * @param cached Whether or not the HTTP cache may be used
+     * @return The decoded bitmap, or null if the server returned an error or invalid data
      */
-    public boolean isQueryRunning(final BoundEntity song) {
-        synchronized (mRunningQueries) {
-            return mRunningQueries.contains(song);
+    private static Bitmap downloadBitmap(final String url, final boolean cached)
+            throws IOException, RateLimitException {
+        final HttpGet.ResponseStream stream = HttpGet.openStream(url, "", cached);
+        if (stream == null) {
+            return null;
         }
-    }
 
-    /**
-     * Notifies an async task has started processing the art for the provided entity
-     * @param song The song for which we need the album art
-     */
-    public void notifyQueryRunning(final BoundEntity song) {
-        synchronized (mRunningQueries) {
-            mRunningQueries.add(song);
+        try {
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inMutable = true;
+            return BitmapFactory.decodeStream(stream, null, opts);
+        } finally {
+            stream.close();
         }
     }
 
-    /**
-     * Notifies that the async task that started processing the art for the entity has done
-     * @param song The song for which we need the album art
-     */
-    public void notifyQueryStopped(final BoundEntity song) {
-        synchronized (mRunningQueries) {
-            mRunningQueries.remove(song);
+    private IMusicProvider safeGetBinder(final ProviderIdentifier id) {
+        final ProviderConnection conn = PluginsLookup.getDefault().getProvider(id);
+        if (conn != null) {
+            return conn.getBinder();
+        } else {
+            return null;
         }
     }
 
@@ -16,145 +16,61 @@
 package com.fastbootmobile.encore.art;
 
 import android.content.res.Resources;
-import android.os.AsyncTask;
-import android.os.Process;
-import android.util.Log;
 
 import com.fastbootmobile.encore.model.BoundEntity;
 
-import java.util.concurrent.RejectedExecutionException;
-
 /**
- * AsyncTask downloading the album art
+ * Pending album art request, as queued in the {@link ArtFetchScheduler}
  */
-public class AlbumArtTask extends AsyncTask<AlbumArtHelper.AlbumArtRequest, Void, AlbumArtHelper.BackgroundResult> {
-    private static final String TAG = "AlbumArtTask";
-
-    private static final int DELAY_BEFORE_RETRY = 500;
-    private static final Object sPauseWorkLock = new Object();
-    private static boolean sPauseWork = false;
-
-    private RecyclingBitmapDrawable mArtBitmap;
-    private AlbumArtCache.IAlbumArtCacheListener mCacheListener = new AlbumArtCache.IAlbumArtCacheListener() {
-        @Override
-        public void onArtLoaded(BoundEntity ent, RecyclingBitmapDrawable result) {
-            synchronized (AlbumArtTask.this) {
-                if (!isCancelled()) {
-                    mArtBitmap = result;
-                }
-                AlbumArtTask.this.notify();
-            }
-        }
-    };
-
-    @Override
-    protected AlbumArtHelper.BackgroundResult doInBackground(AlbumArtHelper.AlbumArtRequest... params) {
-        android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
-        AlbumArtHelper.AlbumArtRequest request = params[0];
-
-        // Wait here if work is paused and the task is not cancelled
-        synchronized (sPauseWorkLock) {
-            while (sPauseWork && !isCancelled()) {
-                try {
-                    sPauseWorkLock.wait();
-                } catch (InterruptedException ignored) {}
-            }
-        }
-
-        if (request.entity == null || isCancelled()) {
-            return null;
-        }
-
-        AlbumArtHelper.BackgroundResult output = new AlbumArtHelper.BackgroundResult();
-        output.request = request.entity;
-        output.listener = request.listener;
-        output.size = request.requestedSize;
-
-        final AlbumArtCache artCache = AlbumArtCache.getDefault();
-
-        if (artCache.isQueryRunning(request.entity)) {
-            output.retry = true;
-        } else {
-            // Notify other potential tasks we're processing this entity
-            artCache.notifyQueryRunning(request.entity);
-
-            // Get from the cache
-            synchronized (this) {
-                if (AlbumArtCache.getDefault().getArt(request.res, request.entity,
-                        request.requestedSize, mCacheListener)) {
-                    // Wait for the result
-                    if (mArtBitmap == null) {
-                        try {
-                            wait(6000);
-                        } catch (InterruptedException e) {
-                            // Interrupted, cancel
-                            cancel(true);
-                            return output;
-                        }
-                    }
-                }
-            }
-
-            // In all cases, we tell that this entity is loaded
-            artCache.notifyQueryStopped(request.entity);
-
-            // We now have a bitmap to display, so let's put it!
-            if (mArtBitmap != null) {
-                output.bitmap = mArtBitmap;
-                output.retry = false;
-            } else {
-                output.bitmap = null;
-                output.retry = false;
-            }
-        }
-
-        return output;
+public class AlbumArtTask {
+    final Resources mRes;
+    final AlbumArtHelper.AlbumArtListener mListener;
+    final BoundEntity mEntity;
+    final int mSize;
+    ArtFetchScheduler.Job mJob;
+
+    private volatile boolean mCancelled;
+
+    AlbumArtTask(Resources res, AlbumArtHelper.AlbumArtListener listener, BoundEntity entity,
+                 int size) {
+        mRes = res;
+        mListener = listener;
+        mEntity = entity;
+        mSize = size;
     }
 
-    @Override
-    protected void onCancelled(AlbumArtHelper.BackgroundResult result) {
-        final AlbumArtCache artCache = AlbumArtCache.getDefault();
-        if (result != null) {
-            artCache.notifyQueryStopped(result.request);
-
-            if (result.listener != null) {
-                result.listener.onArtLoaded(null, result.request);
-            }
-        }
+    /**
+     * Cancels the request: the listener won't be called. If no other request is waiting for the
+     * same entity, the art isn't loaded at all, unless loading already started.
+     * @param mayInterruptIfRunning Unused, loading that already started always completes so that
+     *                              its result gets cached
+     * @return false if the request was already cancelled
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return ArtFetchScheduler.getDefault().cancel(this);
     }
 
-    @Override
-    protected void onPostExecute(final AlbumArtHelper.BackgroundResult result) {
-        super.onPostExecute(result);
+    /**
+     * @return true if the request has been cancelled
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
 
-        if (!isCancelled() && result != null && result.listener != null) {
-            if (result.retry) {
-                // We retry to get it in a bit
-                final AlbumArtTask task = new AlbumArtTask();
-                AlbumArtHelper.AlbumArtRequest request = new AlbumArtHelper.AlbumArtRequest();
-                request.listener = result.listener;
-                request.entity = result.request;
-                request.requestedSize = result.size;
-                request.res = Resources.getSystem();
+    void setCancelled() {
+        mCancelled = true;
+    }
 
-                try {
-                    task.executeOnExecutor(AlbumArtHelper.ART_POOL_EXECUTOR, request);
-                } catch (RejectedExecutionException e) {
-                    Log.w(TAG, "Request restart has been denied", e);
-                }
-            } else {
-                result.listener.onArtLoaded(result.bitmap, result.request);
-            }
+    /**
+     * Called on the main thread when the art is loaded
+     */
+    void deliver(RecyclingBitmapDrawable output) {
+        if (!mCancelled && mListener != null) {
+            mListener.onArtLoaded(output, mEntity);
         }
     }
 
-
     public static void setPauseWork(boolean pause) {
-        synchronized (sPauseWorkLock) {
-            sPauseWork = pause;
-            if (!sPauseWork) {
-                sPauseWorkLock.notifyAll();
-            }
-        }
+        ArtFetchScheduler.getDefault().setPauseWork(pause);
     }
 }
@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.art;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Size-bounded LRU cache of files on disk. The list of entries, their size and their access
+ * order are kept in an append-only journal, so opening the cache doesn't need to list or stat
+ * the directory. Files are written to a temporary location then renamed into place, and the
+ * least recently used entries are evicted in the background once the byte budget is exceeded.
+ */
+public class ArtDiskCache {
+    private static final String TAG = "ArtDiskCache";
+
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+    private static final String TMP_DIRECTORY = "tmp";
+    private static final String MAGIC = "encore.artcache";
+    private static final String VERSION = "1";
+
+    private static final String OP_PUT = "P";
+    private static final String OP_READ = "R";
+    private static final String OP_DELETE = "D";
+
+    private static final int REDUNDANT_OPS_COMPACT_THRESHOLD = 2000;
+
+    private final File mDirectory;
+    private final File mTmpDirectory;
+    private final long mMaxSize;
+    private final LinkedHashMap<String, Entry> mEntries;
+    private final ExecutorService mExecutor;
+    private Writer mJournal;
+    private long mSize;
+    private int mRedundantOps;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    private final Runnable mCleanupRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ArtDiskCache.this) {
+                trimToSize();
+                if (shouldCompactJournal()) {
+                    compactJournal();
+                }
+            }
+        }
+    };
+
+    private static class Entry {
+        final String key;
+        final long size;
+        final long time;
+
+        Entry(String key, long size, long time) {
+            this.key = key;
+            this.size = size;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Constructor
+     * @param directory The directory in which the files are stored
+     * @param maxSize The maximum number of bytes the cache may use on disk
+     */
+    public ArtDiskCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mTmpDirectory = new File(directory, TMP_DIRECTORY);
+        mMaxSize = maxSize;
+        mEntries = new LinkedHashMap<>(0, 0.75f, true);
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Opens the cache, reading the journal or rebuilding it from the directory contents if it
+     * doesn't exist yet
+     */
+    public synchronized void open() {
+        if (!mTmpDirectory.exists() && !mTmpDirectory.mkdirs()) {
+            Log.e(TAG, "Cannot mkdir the cache dir " + mTmpDirectory.getPath());
+        }
+
+        // Drop writes that were interrupted by a process death
+        File[] tmpFiles = mTmpDirectory.listFiles();
+        if (tmpFiles != null) {
+            for (File file : tmpFiles) {
+                file.delete();
+            }
+        }
+
+        final File journal = new File(mDirectory, JOURNAL_FILE);
+        if (!journal.exists() || !readJournal(journal)) {
+            rebuildFromDirectory();
+            compactJournal();
+        } else {
+            openJournalWriter();
+        }
+
+        Log.i(TAG, "Opened art cache: " + mEntries.size() + " entries, " + (mSize / 1024) + " KB");
+
+        if (mSize > mMaxSize || shouldCompactJournal()) {
+            mExecutor.execute(mCleanupRunnable);
+        }
+    }
+
+    private boolean readJournal(File journal) {
+        mEntries.clear();
+        mSize = 0;
+        mRedundantOps = 0;
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(journal));
+            if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+                Log.w(TAG, "Unknown journal format, rebuilding");
+                return false;
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] parts = line.split(" ");
+                if (parts.length < 2) {
+                    // Truncated line from an interrupted write, skip it
+                    continue;
+                }
+
+                final String key = parts[1];
+                if (OP_PUT.equals(parts[0]) && parts.length == 4) {
+                    Entry previous = mEntries.put(key, new Entry(key, Long.parseLong(parts[2]),
+                            Long.parseLong(parts[3])));
+                    mSize += Long.parseLong(parts[2]);
+                    if (previous != null) {
+                        mSize -= previous.size;
+                        mRedundantOps++;
+                    }
+                } else if (OP_READ.equals(parts[0])) {
+                    mEntries.get(key);
+                    mRedundantOps++;
+                } else if (OP_DELETE.equals(parts[0])) {
+                    Entry previous = mEntries.remove(key);
+                    if (previous != null) {
+                        mSize -= previous.size;
+                    }
+                    mRedundantOps += 2;
+                }
+            }
+            return true;
+        } catch (IOException | NumberFormatException e) {
+            Log.e(TAG, "Cannot read the journal, rebuilding", e);
+            return false;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    private void rebuildFromDirectory() {
+        mEntries.clear();
+        mSize = 0;
+        mRedundantOps = 0;
+
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                if (file.isFile() && !JOURNAL_FILE.equals(name) && !JOURNAL_FILE_TMP.equals(name)) {
+                    mEntries.put(name, new Entry(name, file.length(), file.lastModified()));
+                    mSize += file.length();
+                }
+            }
+        }
+    }
+
+    private void openJournalWriter() {
+        try {
+            mJournal = new BufferedWriter(new FileWriter(new File(mDirectory, JOURNAL_FILE), true));
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open the journal", e);
+            mJournal = null;
+        }
+    }
+
+    private boolean shouldCompactJournal() {
+        return mRedundantOps >= REDUNDANT_OPS_COMPACT_THRESHOLD
+                && mRedundantOps >= mEntries.size();
+    }
+
+    /**
+     * Rewrites the journal with only the current entries, in access order
+     */
+    private void compactJournal() {
+        if (mJournal != null) {
+            try {
+                mJournal.close();
+            } catch (IOException ignore) {
+            }
+            mJournal = null;
+        }
+
+        final File tmpJournal = new File(mDirectory, JOURNAL_FILE_TMP);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(tmpJournal));
+            writer.write(MAGIC + "\n" + VERSION + "\n");
+            for (Entry entry : mEntries.values()) {
+                writer.write(OP_PUT + " " + entry.key + " " + entry.size + " " + entry.time + "\n");
+            }
+            writer.close();
+            writer = null;
+
+            if (!tmpJournal.renameTo(new File(mDirectory, JOURNAL_FILE))) {
+                Log.e(TAG, "Cannot replace the journal");
+            }
+            mRedundantOps = 0;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot compact the journal", e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        openJournalWriter();
+    }
+
+    private void appendJournal(String op, String key, Entry entry, boolean flush) {
+        if (mJournal == null) {
+            return;
+        }
+
+        try {
+            if (entry != null) {
+                mJournal.write(op + " " + key + " " + entry.size + " " + entry.time + "\n");
+            } else {
+                mJournal.write(op + " " + key + "\n");
+            }
+
+            if (flush) {
+                mJournal.flush();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write to the journal", e);
+        }
+    }
+
+    /**
+     * Returns whether or not the provided key is in the cache. This doesn't count as an access.
+     * @param key The key of the entry
+     * @return true if the entry is in the cache
+     */
+    public synchronized boolean contains(String key) {
+        return mEntries.containsKey(key);
+    }
+
+    /**
+     * Returns the file of the provided entry, and marks it as recently used
+     * @param key The key of the entry
+     * @return The file of the entry, or null if the entry isn't in the cache
+     */
+    public synchronized File get(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            mMissCount++;
+            return null;
+        }
+
+        mHitCount++;
+        mRedundantOps++;
+        appendJournal(OP_READ, key, null, false);
+        return new File(mDirectory, key);
+    }
+
+    /**
+     * @param key The key of the entry
+     * @return The time at which the entry was written, or -1 if it isn't in the cache
+     */
+    public synchronized long getTimestamp(String key) {
+        Entry entry = mEntries.get(key);
+        return entry != null ? entry.time : -1;
+    }
+
+    /**
+     * Creates a temporary file in which a new entry can be written. Once written, the file must
+     * be passed to {@link #commit(String, File)}, or deleted on failure.
+     * @return A temporary file
+     * @throws IOException If the file cannot be created
+     */
+    public File createTempFile() throws IOException {
+        return File.createTempFile("art", ".tmp", mTmpDirectory);
+    }
+
+    /**
+     * Atomically moves the provided temporary file into the cache under the provided key
+     * @param key The key of the entry
+     * @param tmpFile The file written from {@link #createTempFile()}
+     * @return true if the entry was stored
+     */
+    public synchronized boolean commit(String key, File tmpFile) {
+        final File target = new File(mDirectory, key);
+        if (!tmpFile.renameTo(target)) {
+            Log.e(TAG, "Cannot commit cache entry " + key);
+            tmpFile.delete();
+            return false;
+        }
+
+        final Entry entry = new Entry(key, target.length(), System.currentTimeMillis());
+        final Entry previous = mEntries.put(key, entry);
+        mSize += entry.size;
+        if (previous != null) {
+            mSize -= previous.size;
+            mRedundantOps++;
+        }
+        mPutCount++;
+        appendJournal(OP_PUT, key, entry, true);
+
+        if (mSize > mMaxSize || shouldCompactJournal()) {
+            mExecutor.execute(mCleanupRunnable);
+        }
+        return true;
+    }
+
+    /**
+     * Removes an entry from the cache
+     * @param key The key of the entry
+     */
+    public synchronized void remove(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            mSize -= entry.size;
+            mRedundantOps += 2;
+            appendJournal(OP_DELETE, key, null, true);
+
+            File file = new File(mDirectory, key);
+            if (file.exists() && !file.delete()) {
+                Log.e(TAG, "Cannot delete " + file.getPath());
+            }
+        }
+    }
+
+    /**
+     * Returns the keys of the entries, from least to most recently used
+     * @return A copy of the keys
+     */
+    public synchronized List<String> getKeys() {
+        return new ArrayList<>(mEntries.keySet());
+    }
+
+    /**
+     * Removes all the entries from the cache
+     */
+    public synchronized void clear() {
+        for (String key : new ArrayList<>(mEntries.keySet())) {
+            File file = new File(mDirectory, key);
+            if (file.exists() && !file.delete()) {
+                Log.e(TAG, "Cannot delete " + file.getPath());
+            }
+        }
+        mEntries.clear();
+        mSize = 0;
+        compactJournal();
+    }
+
+    private void trimToSize() {
+        final Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            final Entry entry = it.next().getValue();
+            it.remove();
+
+            File file = new File(mDirectory, entry.key);
+            if (file.exists() && !file.delete()) {
+                Log.e(TAG, "Cannot delete " + file.getPath());
+            }
+
+            mSize -= entry.size;
+            mEvictionCount++;
+            mRedundantOps += 2;
+            appendJournal(OP_DELETE, entry.key, null, false);
+        }
+
+        if (mJournal != null) {
+            try {
+                mJournal.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot flush the journal", e);
+            }
+        }
+    }
+
+    /**
+     * @return The number of bytes currently used on disk
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return The maximum number of bytes the cache may use on disk
+     */
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getPutCount() {
+        return mPutCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ArtDiskCache[entries=" + mEntries.size() + ", size=" + (mSize / 1024) + "KB/"
+                + (mMaxSize / 1024) + "KB, hits=" + mHitCount + ", misses=" + mMissCount
+                + ", puts=" + mPutCount + ", evictions=" + mEvictionCount + "]";
+    }
+}
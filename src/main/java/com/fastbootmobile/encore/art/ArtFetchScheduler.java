@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.art;
+
+import android.content.res.Resources;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.fastbootmobile.encore.model.BoundEntity;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Schedules the loading of album, artist, song and playlist arts. Concurrent requests for the
+ * same entity are merged into a single job. Jobs for visible views run before prefetch jobs, and
+ * a queued job is dropped once all its requests are cancelled (e.g. when the views are
+ * recycled). Workers never wait for a provider: a job that needs a provider callback returns its
+ * worker to the pool, and is completed from the callback (or by a timeout).
+ */
+public class ArtFetchScheduler {
+    private static final String TAG = "ArtFetchScheduler";
+    private static final ArtFetchScheduler INSTANCE = new ArtFetchScheduler();
+
+    private static final int WORKER_COUNT = 3;
+    private static final long CALLBACK_TIMEOUT = 10000;
+
+    /**
+     * Storing art received from a provider, which completes running jobs
+     */
+    private static final int PRIORITY_STORE = 0;
+
+    /**
+     * Loading art for a view that is on screen
+     */
+    private static final int PRIORITY_VISIBLE = 1;
+
+    /**
+     * Loading art ahead of time, or for a view that may be flinged away
+     */
+    private static final int PRIORITY_PREFETCH = 2;
+
+    private static final int STATE_QUEUED = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_DONE = 2;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainHandler;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    // Guarded by this
+    private final Map<String, Job> mJobs = new HashMap<>();
+    private final List<Job> mPausedJobs = new ArrayList<>();
+    private boolean mPaused;
+    private int mRequestCount;
+    private int mMergedCount;
+    private int mCancelledCount;
+
+    /**
+     * @return The default instance
+     */
+    public static ArtFetchScheduler getDefault() {
+        return INSTANCE;
+    }
+
+    private ArtFetchScheduler() {
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mExecutor = new ThreadPoolExecutor(WORKER_COUNT, WORKER_COUNT, 0, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(@NonNull final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "Art worker #" + mCount.getAndIncrement());
+            }
+        });
+    }
+
+    /**
+     * Requests the art of the provided entity. The listener is called on the main thread, unless
+     * the returned task is cancelled before.
+     * @param res The resources used to build the drawable
+     * @param listener The listener to notify
+     * @param entity The entity for which the art is loaded
+     * @param size The requested size of the art
+     * @param immediate true if the art is for a visible view, false to prefetch it
+     * @return The task, which can be cancelled
+     */
+    public AlbumArtTask request(Resources res, AlbumArtHelper.AlbumArtListener listener,
+                                BoundEntity entity, int size, boolean immediate) {
+        final AlbumArtTask task = new AlbumArtTask(res, listener, entity, size);
+        if (entity == null || entity.getRef() == null) {
+            task.setCancelled();
+            return task;
+        }
+
+        final String key = AlbumArtCache.getDefault().getEntityArtKey(entity);
+        final int priority = immediate ? PRIORITY_VISIBLE : PRIORITY_PREFETCH;
+
+        synchronized (this) {
+            mRequestCount++;
+
+            Job job = mJobs.get(key);
+            if (job == null) {
+                job = new Job(key, res, entity, size, priority);
+                mJobs.put(key, job);
+                job.mTasks.add(task);
+                task.mJob = job;
+                mExecutor.execute(job);
+            } else {
+                mMergedCount++;
+                job.mTasks.add(task);
+                task.mJob = job;
+
+                if (priority < job.mPriority) {
+                    // A view needs it now: move the job to the visible lane
+                    if (job.mState == STATE_QUEUED && mExecutor.remove(job)) {
+                        job.mPriority = priority;
+                        mExecutor.execute(job);
+                    } else {
+                        job.mPriority = priority;
+                    }
+                }
+            }
+        }
+
+        return task;
+    }
+
+    /**
+     * Runs work related to art loading (decoding and storing provider results) on the art
+     * workers, ahead of any queued request
+     * @param runnable The work to run
+     */
+    public void runInBackground(final Runnable runnable) {
+        mExecutor.execute(new Task(PRIORITY_STORE) {
+            @Override
+            public void run() {
+                runnable.run();
+            }
+        });
+    }
+
+    /**
+     * Detaches the task from its job. If the job has no other task and didn't start yet, it is
+     * dropped.
+     * @param task The task to cancel
+     * @return false if the task was already cancelled or delivered
+     */
+    synchronized boolean cancel(AlbumArtTask task) {
+        if (task.isCancelled()) {
+            return false;
+        }
+        task.setCancelled();
+
+        final Job job = task.mJob;
+        if (job == null) {
+            return false;
+        }
+
+        job.mTasks.remove(task);
+        if (job.mTasks.isEmpty() && job.mState == STATE_QUEUED) {
+            dropJob(job);
+        }
+        return true;
+    }
+
+    /**
+     * Cancels all the requests that didn't start yet
+     */
+    public synchronized void cancelQueued() {
+        for (Job job : new ArrayList<>(mJobs.values())) {
+            if (job.mState == STATE_QUEUED) {
+                for (AlbumArtTask task : job.mTasks) {
+                    task.setCancelled();
+                }
+                job.mTasks.clear();
+                dropJob(job);
+            }
+        }
+    }
+
+    /**
+     * Pauses or resumes the processing of new requests, for instance while a list is flinged.
+     * Paused jobs don't hold any worker.
+     * @param pause true to pause, false to resume
+     */
+    public synchronized void setPauseWork(boolean pause) {
+        mPaused = pause;
+        if (!pause) {
+            for (Job job : mPausedJobs) {
+                mExecutor.execute(job);
+            }
+            mPausedJobs.clear();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ArtFetchScheduler[pending=" + mJobs.size() + ", requests=" + mRequestCount
+                + ", merged=" + mMergedCount + ", cancelled=" + mCancelledCount + "]";
+    }
+
+    private void dropJob(Job job) {
+        job.mState = STATE_DONE;
+        mJobs.remove(job.mKey);
+        mExecutor.remove(job);
+        mPausedJobs.remove(job);
+        mCancelledCount++;
+    }
+
+    private abstract class Task implements Runnable, Comparable<Task> {
+        volatile int mPriority;
+        final long mSequence;
+
+        Task(int priority) {
+            mPriority = priority;
+            mSequence = ArtFetchScheduler.this.mSequence.getAndIncrement();
+        }
+
+        @Override
+        public int compareTo(@NonNull Task another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            } else if (mPriority == PRIORITY_VISIBLE) {
+                // The latest visible request is likely the one the user is looking at
+                return mSequence > another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+            } else {
+                return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+            }
+        }
+    }
+
+    /**
+     * Loading of the art of one entity, shared by all the tasks requesting it
+     */
+    class Job extends Task implements AlbumArtCache.IAlbumArtCacheListener {
+        final String mKey;
+        final Resources mRes;
+        final BoundEntity mEntity;
+        final int mSize;
+        final List<AlbumArtTask> mTasks = new ArrayList<>();
+        int mState = STATE_QUEUED;
+
+        private final Runnable mTimeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                Log.w(TAG, "Timed out waiting for the art of " + mKey);
+                complete(null);
+            }
+        };
+
+        Job(String key, Resources res, BoundEntity entity, int size, int priority) {
+            super(priority);
+            mKey = key;
+            mRes = res;
+            mEntity = entity;
+            mSize = size;
+        }
+
+        @Override
+        public void run() {
+            synchronized (ArtFetchScheduler.this) {
+                if (mState != STATE_QUEUED) {
+                    return;
+                } else if (mPaused) {
+                    mPausedJobs.add(this);
+                    return;
+                }
+                mState = STATE_RUNNING;
+            }
+
+            // The art may come from a provider callback, after this worker moved on
+            mMainHandler.postDelayed(mTimeoutRunnable, CALLBACK_TIMEOUT);
+
+            boolean pending = false;
+            try {
+                pending = AlbumArtCache.getDefault().getArt(mRes, mEntity, mSize, this);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Error while loading the art of " + mKey, e);
+            }
+
+            if (!pending) {
+                complete(null);
+            }
+        }
+
+        @Override
+        public void onArtLoaded(BoundEntity ent, RecyclingBitmapDrawable result) {
+            complete(result);
+        }
+
+        private void complete(final RecyclingBitmapDrawable result) {
+            final List<AlbumArtTask> tasks;
+            synchronized (ArtFetchScheduler.this) {
+                if (mState == STATE_DONE) {
+                    return;
+                }
+                mState = STATE_DONE;
+                if (mJobs.get(mKey) == this) {
+                    mJobs.remove(mKey);
+                }
+                tasks = new ArrayList<>(mTasks);
+                mTasks.clear();
+            }
+
+            mMainHandler.removeCallbacks(mTimeoutRunnable);
+
+            boolean needsLargerSize = false;
+            if (result != null) {
+                for (AlbumArtTask task : tasks) {
+                    if (task.mSize > mSize) {
+                        needsLargerSize = true;
+                        break;
+                    }
+                }
+            }
+
+            if (needsLargerSize) {
+                // Merged tasks asked for a larger art than the one decoded for the job
+                runInBackground(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(tasks, result);
+                    }
+                });
+            } else {
+                deliver(tasks, result);
+            }
+        }
+
+        private void deliver(List<AlbumArtTask> tasks, RecyclingBitmapDrawable result) {
+            for (final AlbumArtTask task : tasks) {
+                RecyclingBitmapDrawable output = result;
+                if (result != null && task.mSize > mSize) {
+                    RecyclingBitmapDrawable larger = ImageCache.getDefault().get(task.mRes,
+                            mKey, task.mSize);
+                    if (larger != null) {
+                        output = larger;
+                    }
+                }
+
+                final RecyclingBitmapDrawable finalOutput = output;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        task.deliver(finalOutput);
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.art;
+
+import android.graphics.Bitmap;
+import android.support.v7.graphics.Palette;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The colors extracted from an art, as used by the UI. They are extracted once when the art is
+ * cached, and kept by the {@link ImageCache} next to the image.
+ */
+public class ArtPalette {
+    private static final int VERSION = 1;
+
+    // Swatches are opaque, so a transparent color means the art has no such swatch
+    private static final int NO_COLOR = 0;
+
+    private final int mVibrant;
+    private final int mDarkVibrant;
+    private final int mMuted;
+    private final int mDarkMuted;
+
+    private ArtPalette(int vibrant, int darkVibrant, int muted, int darkMuted) {
+        mVibrant = vibrant;
+        mDarkVibrant = darkVibrant;
+        mMuted = muted;
+        mDarkMuted = darkMuted;
+    }
+
+    /**
+     * Extracts the colors of a bitmap. This is slow and must not run on the main thread.
+     * @param bitmap The bitmap to analyze
+     * @return The colors of the bitmap
+     */
+    public static ArtPalette generate(Bitmap bitmap) {
+        final Palette palette = Palette.from(bitmap).generate();
+        return new ArtPalette(palette.getVibrantColor(NO_COLOR),
+                palette.getDarkVibrantColor(NO_COLOR), palette.getMutedColor(NO_COLOR),
+                palette.getDarkMutedColor(NO_COLOR));
+    }
+
+    /**
+     * Reads colors written by {@link #writeTo(DataOutputStream)}
+     * @param in The stream to read from
+     * @return The colors, or null if they were written by another version
+     */
+    static ArtPalette readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != VERSION) {
+            return null;
+        }
+        return new ArtPalette(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(VERSION);
+        out.writeInt(mVibrant);
+        out.writeInt(mDarkVibrant);
+        out.writeInt(mMuted);
+        out.writeInt(mDarkMuted);
+    }
+
+    public int getVibrantColor(int defaultColor) {
+        return mVibrant != NO_COLOR ? mVibrant : defaultColor;
+    }
+
+    public int getDarkVibrantColor(int defaultColor) {
+        return mDarkVibrant != NO_COLOR ? mDarkVibrant : defaultColor;
+    }
+
+    public int getMutedColor(int defaultColor) {
+        return mMuted != NO_COLOR ? mMuted : defaultColor;
+    }
+
+    public int getDarkMutedColor(int defaultColor) {
+        return mDarkMuted != NO_COLOR ? mDarkMuted : defaultColor;
+    }
+
+    /**
+     * @return The dark vibrant color, or the dark muted one if there is none, or the provided
+     * color if there is neither
+     */
+    public int getDarkColor(int defaultColor) {
+        return getDarkVibrantColor(getDarkMutedColor(defaultColor));
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.art;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.fastbootmobile.encore.utils.ImageUtils;
+import com.fastbootmobile.encore.utils.Utils;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Bounded pool of bitmaps that can be reused through BitmapFactory.Options.inBitmap. Bitmaps
+ * are bucketed by size class, so acquiring and releasing a bitmap only looks at one or two
+ * buckets. From KitKat, a size class is the power of two just above the allocation size, and a
+ * bitmap can be reused for any smaller decode. Before KitKat, reuse requires the exact same
+ * dimensions, so bitmaps are bucketed by dimensions instead.
+ */
+public class BitmapPool {
+    private final int mMaxSize;
+    private final HashMap<Long, ArrayDeque<Bitmap>> mBuckets;
+    private int mSize;
+
+    private int mRequestCount;
+    private int mReuseCount;
+    private int mReleaseCount;
+    private int mEvictionCount;
+
+    /**
+     * Constructor
+     * @param maxSize The maximum number of bytes held by the pool
+     */
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+        mBuckets = new HashMap<>();
+    }
+
+    /**
+     * Finds a bitmap in which the image described by the options can be decoded
+     * @param options BitmapFactory.Options with the out* values and inSampleSize populated
+     * @return A bitmap to use as inBitmap, or null if none is available
+     */
+    public synchronized Bitmap acquire(BitmapFactory.Options options) {
+        mRequestCount++;
+
+        final int sampleSize = Math.max(1, options.inSampleSize);
+        final int width = options.outWidth / sampleSize;
+        final int height = options.outHeight / sampleSize;
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+
+        Bitmap bitmap;
+        if (Utils.hasKitKat()) {
+            final long sizeClass = getSizeClass(width * height * getBytesPerPixel(options.inPreferredConfig));
+
+            // The bucket of the size class may hold slightly smaller bitmaps, while the next one
+            // always holds bitmaps that are large enough
+            bitmap = poll(sizeClass, options);
+            if (bitmap == null) {
+                bitmap = poll(sizeClass + 1, options);
+            }
+        } else {
+            bitmap = poll(getDimensionsKey(options.outWidth, options.outHeight), options);
+        }
+
+        if (bitmap != null) {
+            mReuseCount++;
+            mSize -= getSize(bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Gives a bitmap that is no longer displayed nor cached back to the pool
+     * @param bitmap The bitmap to release
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+
+        final int size = getSize(bitmap);
+        if (size > mMaxSize) {
+            return;
+        }
+
+        final long key = Utils.hasKitKat() ? getSizeClass(size)
+                : getDimensionsKey(bitmap.getWidth(), bitmap.getHeight());
+        ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            mBuckets.put(key, bucket);
+        }
+
+        bucket.addLast(bitmap);
+        mSize += size;
+        mReleaseCount++;
+
+        trimToSize(bucket);
+    }
+
+    /**
+     * Drops all the bitmaps of the pool
+     */
+    public synchronized void clear() {
+        mBuckets.clear();
+        mSize = 0;
+    }
+
+    /**
+     * @return The ratio of decodes that could reuse a pooled bitmap, between 0 and 1
+     */
+    public synchronized float getReuseRate() {
+        return mRequestCount == 0 ? 0 : (float) mReuseCount / mRequestCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool[size=" + (mSize / 1024) + "KB/" + (mMaxSize / 1024) + "KB, requests="
+                + mRequestCount + ", reused=" + mReuseCount + ", released=" + mReleaseCount
+                + ", evicted=" + mEvictionCount + "]";
+    }
+
+    private Bitmap poll(long key, BitmapFactory.Options options) {
+        final ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            return null;
+        }
+
+        final Iterator<Bitmap> it = bucket.iterator();
+        while (it.hasNext()) {
+            final Bitmap candidate = it.next();
+            if (candidate.isRecycled()) {
+                it.remove();
+                mSize -= getSize(candidate);
+            } else if (ImageUtils.canUseForInBitmap(candidate, options)) {
+                it.remove();
+                return candidate;
+            } else {
+                // Bitmaps of a bucket are interchangeable, so if the first doesn't fit, the
+                // others are unlikely to
+                break;
+            }
+        }
+
+        return null;
+    }
+
+    private void trimToSize(ArrayDeque<Bitmap> preferredBucket) {
+        // Evict the oldest bitmaps, starting with the bucket that just grew
+        while (mSize > mMaxSize && !preferredBucket.isEmpty()) {
+            evict(preferredBucket.pollFirst());
+        }
+
+        final Iterator<ArrayDeque<Bitmap>> buckets = mBuckets.values().iterator();
+        while (mSize > mMaxSize && buckets.hasNext()) {
+            final ArrayDeque<Bitmap> bucket = buckets.next();
+            while (mSize > mMaxSize && !bucket.isEmpty()) {
+                evict(bucket.pollFirst());
+            }
+        }
+    }
+
+    private void evict(Bitmap bitmap) {
+        mSize -= getSize(bitmap);
+        mEvictionCount++;
+    }
+
+    private static long getDimensionsKey(int width, int height) {
+        return ((long) width << 32) | height;
+    }
+
+    /**
+     * @return The exponent of the smallest power of two greater than or equal to the size
+     */
+    private static long getSizeClass(int size) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1);
+    }
+
+    private static int getSize(Bitmap bitmap) {
+        if (Utils.hasKitKat()) {
+            return bitmap.getAllocationByteCount();
+        } else {
+            return bitmap.getByteCount();
+        }
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == null || config == Bitmap.Config.ARGB_8888) {
+            return 4;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else {
+            return 2;
+        }
+    }
+}
@@ -28,15 +28,15 @@ import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.utils.ImageUtils;
 import com.fastbootmobile.encore.utils.SettingsKeys;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.ref.SoftReference;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -47,15 +47,32 @@ public class ImageCache {
     private static final String TAG = "ImageCache";
     private static final ImageCache INSTANCE = new ImageCache();
     private static final long EXPIRATION_TIME = TimeUnit.DAYS.toMillis(7);
+    private static final long DISK_CACHE_SIZE = 128 * 1024 * 1024; // 128 MiB
+
+    /**
+     * Size of the smallest side of the full-size image stored on disk
+     */
+    private static final int FULL_SIZE = 800;
+
+    /**
+     * Sizes of the pre-scaled variants stored next to the full-size image, in ascending order.
+     * Lists and grids can then decode a small file instead of the full cover.
+     */
+    private static final int[] VARIANT_SIZES = {160, 400};
 
     private static final boolean USE_MEMORY_CACHE = true;
 
-    private final ArrayList<String> mEntries;
-    private File mCacheDir;
+    /**
+     * Number of palettes kept in memory. They only hold a few colors each.
+     */
+    private static final int PALETTE_CACHE_SIZE = 1024;
+
+    private ArtDiskCache mDiskCache;
     private Bitmap mDefaultArt;
 
     private final LruCache<String, RecyclingBitmapDrawable> mMemoryCache;
-    private Set<SoftReference<Bitmap>> mReusableBitmaps;
+    private final LruCache<String, ArtPalette> mPalettes = new LruCache<>(PALETTE_CACHE_SIZE);
+    private final BitmapPool mBitmapPool;
 
     /**
      * @return The default instance
@@ -68,25 +85,15 @@ public class ImageCache {
      * Default constructor, creates an LRU cache of the specified size
      */
     public ImageCache() {
-        mEntries = new ArrayList<>();
-
         // A third of the max heap memory, or 39MB, whichever is lowest
         final int memoryCacheSize = Math.min(30000,
                 (int) (Runtime.getRuntime().maxMemory() / 1024 / 3));
         Log.d(TAG, "Maximum image cache memory: " + memoryCacheSize + " KB (maxMemory=" + (Runtime.getRuntime().maxMemory() / 1024) + "KB)");
 
-        // We create a set of reusable bitmaps that can be
-        // populated into the inBitmap field of BitmapFactory.Options. Note that the set is
-        // of SoftReferences which will actually not be very effective due to the garbage
-        // collector being aggressive clearing Soft/SoftReferences. A better approach
-        // would be to use a strongly references bitmaps, however this would require some
-        // balancing of memory usage between this set and the bitmap LruCache. It would also
-        // require knowledge of the expected size of the bitmaps. From Honeycomb to JellyBean
-        // the size would need to be precise, from KitKat onward the size would just need to
-        // be the upper bound (due to changes in how inBitmap can re-use bitmaps).
-        mReusableBitmaps =
-                Collections.synchronizedSet(new HashSet<SoftReference<Bitmap>>());
-
+        // Bitmaps that are neither cached nor displayed anymore go to a strongly referenced
+        // pool, from which they are populated into the inBitmap field of BitmapFactory.Options.
+        // The pool gets a quarter of the memory cache budget on top of it.
+        mBitmapPool = new BitmapPool(memoryCacheSize / 4 * 1024);
 
         if (USE_MEMORY_CACHE) {
             mMemoryCache = new LruCache<String, RecyclingBitmapDrawable>(memoryCacheSize) {
@@ -99,15 +106,9 @@ public class ImageCache {
                 @Override
                 protected void entryRemoved(boolean evicted, String key,
                                             final RecyclingBitmapDrawable oldBitmap, RecyclingBitmapDrawable newBitmap) {
-                    if (newBitmap != null) {
-                        newBitmap.setIsCached(true);
-                    }
-
+                    // The drawable gives its bitmap back to the pool once it is no longer
+                    // displayed either
                     oldBitmap.setIsCached(false);
-
-                    synchronized (mReusableBitmaps) {
-                        mReusableBitmaps.add(new SoftReference<>(oldBitmap.getBitmap()));
-                    }
                 }
             };
         } else {
@@ -120,24 +121,19 @@ public class ImageCache {
      * @param ctx A valid context
      */
     public void initialize(Context ctx) {
-        mCacheDir = new File(ctx.getCacheDir(), "albumart");
-        if (!mCacheDir.exists() && !mCacheDir.mkdir()) {
-            Log.e(TAG, "Cannot mkdir the cache dir " + mCacheDir.getPath());
+        final File cacheDir = new File(ctx.getCacheDir(), "albumart");
+        if (!cacheDir.exists() && !cacheDir.mkdir()) {
+            Log.e(TAG, "Cannot mkdir the cache dir " + cacheDir.getPath());
         }
 
-        File[] entries = mCacheDir.listFiles();
-        if (entries != null) {
-            for (File entry : entries) {
-                if (System.currentTimeMillis() - entry.lastModified() > EXPIRATION_TIME
-                        && entry.getName().contains("playlist")) {
-                    // Expire playlist art regularly
-                    if (!entry.delete()) {
-                        // Couldn't delete the art... Let's load it anyway then
-                        mEntries.add(entry.getName());
-                    }
-                } else {
-                    mEntries.add(entry.getName());
-                }
+        mDiskCache = new ArtDiskCache(cacheDir, DISK_CACHE_SIZE);
+        mDiskCache.open();
+
+        // Expire playlist art regularly
+        for (String key : mDiskCache.getKeys()) {
+            if (key.contains("playlist")
+                    && System.currentTimeMillis() - mDiskCache.getTimestamp(key) > EXPIRATION_TIME) {
+                mDiskCache.remove(key);
             }
         }
 
@@ -158,16 +154,8 @@ public class ImageCache {
             }
         }
 
-        synchronized (mEntries) {
-            mEntries.clear();
-        }
-
-        File[] cacheFiles = mCacheDir.listFiles();
-        for (File file : cacheFiles) {
-            if (!file.delete()) {
-                Log.e(TAG, "Cannot delete " + file.getPath());
-            }
-        }
+        mPalettes.evictAll();
+        mDiskCache.clear();
     }
 
     /**
@@ -180,7 +168,8 @@ public class ImageCache {
                 mMemoryCache.evictAll();
             }
         }
-        mReusableBitmaps.clear();
+        Log.d(TAG, "Clearing " + mBitmapPool + ", reuse rate " + mBitmapPool.getReuseRate());
+        mBitmapPool.clear();
     }
 
     /**
@@ -204,9 +193,21 @@ public class ImageCache {
      * @return true if the image is cached on the disk (well, flash storage)
      */
     public boolean hasOnDisk(final String key) {
-        synchronized (mEntries) {
-            return mEntries.contains(sanitizeKey(key));
-        }
+        return getBestVariantKey(sanitizeKey(key), 0) != null;
+    }
+
+    /**
+     * @return The pool of bitmaps reused for decoding, which holds the reuse statistics
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * @return The disk cache, which holds the hit, miss and eviction statistics
+     */
+    public ArtDiskCache getDiskCache() {
+        return mDiskCache;
     }
 
     /**
@@ -220,21 +221,18 @@ public class ImageCache {
         }
 
         final String cleanKey = sanitizeKey(key);
+        final String diskKey = getBestVariantKey(cleanKey, reqSz);
 
-        boolean contains;
-        synchronized (mEntries) {
-            contains = mEntries.contains(cleanKey);
-        }
-
-        if (contains) {
+        if (diskKey != null) {
             RecyclingBitmapDrawable item;
             synchronized (mMemoryCache) {
                 // Check if we have it in memory
                 item = USE_MEMORY_CACHE ? mMemoryCache.get(cleanKey + '_' + reqSz) : null;
             }
 
-            if (item == null) {
-                final String filePath = mCacheDir.getAbsolutePath() + "/" + cleanKey;
+            final File file = (item == null ? mDiskCache.get(diskKey) : null);
+            if (file != null) {
+                final String filePath = file.getAbsolutePath();
 
                 BitmapFactory.Options opts = new BitmapFactory.Options();
                 opts.inJustDecodeBounds = true;
@@ -249,14 +247,11 @@ public class ImageCache {
                         item = new RecyclingBitmapDrawable(res, bmp);
 
                         if (USE_MEMORY_CACHE) {
-                            mMemoryCache.put(cleanKey + '_' + reqSz, item);
+                            putInMemory(cleanKey + '_' + reqSz, item);
                         }
                     } else {
-                        mEntries.remove(cleanKey);
-                        File f = new File(filePath);
-                        if (!f.delete()) {
-                            Log.e(TAG, "Cannot delete corrupted art at " + filePath);
-                        }
+                        Log.e(TAG, "Removing corrupted art at " + filePath);
+                        mDiskCache.remove(diskKey);
                     }
                 } catch (OutOfMemoryError e) {
                     Log.e(TAG, "OutOfMemory when decoding input file", e);
@@ -271,38 +266,72 @@ public class ImageCache {
     }
 
     /**
-     * @param options - BitmapFactory.Options with out* options populated
-     * @return Bitmap that case be used for inBitmap
+     * Returns the colors of a cached image. Only the memory is looked up, so this can be called
+     * from the main thread: the colors are there once the image was stored or read by the art
+     * workers.
+     * @param key The key of the image
+     * @return The colors of the image, or null if they are not available
      */
-    public Bitmap getBitmapFromReusableSet(BitmapFactory.Options options) {
-        Bitmap bitmap = null;
-
-        if (mReusableBitmaps != null && !mReusableBitmaps.isEmpty()) {
-            synchronized (mReusableBitmaps) {
-                final Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps.iterator();
-                Bitmap item;
+    public ArtPalette getPalette(final String key) {
+        return key != null ? mPalettes.get(sanitizeKey(key)) : null;
+    }
 
-                while (iterator.hasNext()) {
-                    item = iterator.next().get();
+    /**
+     * Returns the disk key of the smallest stored variant that is at least as large as the
+     * requested size. If none is large enough, the largest stored variant is returned.
+     * @param cleanKey The sanitized key of the image
+     * @param reqSz The requested size, or 0 for the full-size image
+     * @return The disk key to decode, or null if no variant of the image is on disk
+     */
+    private String getBestVariantKey(final String cleanKey, final int reqSz) {
+        if (reqSz > 0) {
+            for (int size : VARIANT_SIZES) {
+                if (size >= reqSz && mDiskCache.contains(getVariantKey(cleanKey, size))) {
+                    return getVariantKey(cleanKey, size);
+                }
+            }
+        }
 
-                    if (null != item && item.isMutable()) {
-                        // Check to see it the item can be used for inBitmap
-                        if (ImageUtils.canUseForInBitmap(item, options)) {
-                            bitmap = item;
+        if (mDiskCache.contains(cleanKey)) {
+            return cleanKey;
+        }
 
-                            // Remove from reusable set so it can't be used again
-                            iterator.remove();
-                            break;
-                        }
-                    } else {
-                        // Remove from the set if the reference has been cleared.
-                        iterator.remove();
-                    }
-                }
+        // The full-size image may have been evicted while smaller variants are still there
+        for (int i = VARIANT_SIZES.length - 1; i >= 0; --i) {
+            final String variantKey = getVariantKey(cleanKey, VARIANT_SIZES[i]);
+            if (mDiskCache.contains(variantKey)) {
+                return variantKey;
             }
         }
 
-        return bitmap;
+        return null;
+    }
+
+    private static String getVariantKey(final String cleanKey, final int size) {
+        return cleanKey + "__" + size;
+    }
+
+    private static String getPaletteKey(final String cleanKey) {
+        return cleanKey + "__palette";
+    }
+
+    /**
+     * @param options - BitmapFactory.Options with out* options populated
+     * @return Bitmap that case be used for inBitmap
+     */
+    public Bitmap getBitmapFromReusableSet(BitmapFactory.Options options) {
+        return mBitmapPool.acquire(options);
+    }
+
+    /**
+     * Puts the drawable in the memory cache and flags it as cached, so that its bitmap isn't
+     * pooled while the cache still references it
+     * @param key The memory cache key
+     * @param drawable The drawable to cache
+     */
+    private void putInMemory(final String key, final RecyclingBitmapDrawable drawable) {
+        drawable.setIsCached(true);
+        mMemoryCache.put(key, drawable);
     }
 
     /**
@@ -354,42 +383,146 @@ public class ImageCache {
         }
 
         if (USE_MEMORY_CACHE) {
-            mMemoryCache.put(cleanKey, bmp);
+            putInMemory(cleanKey, bmp);
         }
 
-        if (!isDefaultArt) {
-            try {
-                FileOutputStream out = new FileOutputStream(mCacheDir.getAbsolutePath() + "/" + cleanKey);
-                Bitmap bitmap = bmp.getBitmap();
+        if (isDefaultArt) {
+            mPalettes.remove(cleanKey);
+        } else {
+            final Bitmap source = bmp.peekBitmap();
 
-                boolean shouldRecycle = false;
-                final float maxSize = 800;
+            // Store the full-size image, then each smaller variant scaled from it
+            Bitmap full = scaleToSize(source, FULL_SIZE);
+            writeToDisk(cleanKey, full, asPNG);
 
-                if (bitmap.getWidth() > maxSize && bitmap.getHeight() > maxSize) {
-                    float ratio = (bitmap.getWidth() < bitmap.getHeight()) ?
-                            bitmap.getWidth() / maxSize : bitmap.getHeight() / maxSize;
-                    final int sWidth = (int) (bitmap.getWidth() / ratio);
-                    final int sHeight = (int) (bitmap.getHeight() / ratio);
+            for (int size : VARIANT_SIZES) {
+                if (Math.min(full.getWidth(), full.getHeight()) > size) {
+                    Bitmap variant = scaleToSize(full, size);
+                    writeToDisk(getVariantKey(cleanKey, size), variant, asPNG);
+                    mBitmapPool.release(variant);
+                }
+            }
 
-                    bitmap = Bitmap.createScaledBitmap(bitmap, sWidth, sHeight, true);
-                    shouldRecycle = true;
+            if (full != source) {
+                // Scaled image will be used on reload
+                mBitmapPool.release(full);
+            }
+        }
+    }
 
-                    Log.d(TAG, "Rescaled to " + sWidth + "x" + sHeight);
-                }
+    /**
+     * Scales the bitmap down so that its smallest side is the provided size
+     * @param bitmap The bitmap to scale
+     * @param size The maximum size of the smallest side
+     * @return A scaled copy of the bitmap, or the bitmap itself if it is small enough
+     */
+    private Bitmap scaleToSize(final Bitmap bitmap, final float size) {
+        if (bitmap.getWidth() > size && bitmap.getHeight() > size) {
+            float ratio = (bitmap.getWidth() < bitmap.getHeight()) ?
+                    bitmap.getWidth() / size : bitmap.getHeight() / size;
+            final int sWidth = (int) (bitmap.getWidth() / ratio);
+            final int sHeight = (int) (bitmap.getHeight() / ratio);
+
+            return Bitmap.createScaledBitmap(bitmap, sWidth, sHeight, true);
+        } else {
+            return bitmap;
+        }
+    }
 
-                bitmap.compress(asPNG ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, 90, out);
-                out.close();
+    /**
+     * Compresses the bitmap into the disk cache
+     * @param diskKey The key of the entry on disk
+     * @param bitmap The bitmap to write
+     * @param asPNG True to store as PNG, false to store as JPEG
+     */
+    private void writeToDisk(final String diskKey, final Bitmap bitmap, final boolean asPNG) {
+        File tmpFile = null;
+        try {
+            // Write to a temporary file first, so readers never see a partial image
+            tmpFile = mDiskCache.createTempFile();
+            FileOutputStream out = new FileOutputStream(tmpFile);
+            bitmap.compress(asPNG ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, 90, out);
+            out.close();
+
+            mDiskCache.commit(diskKey, tmpFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write the file to cache", e);
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+        }
+    }
 
-                if (shouldRecycle) {
-                    // Scaled image will be used on reload
-                    bitmap.recycle();
+    /**
+     * Reads the colors of a cached image from the disk into memory. Images cached before colors
+     * were stored with them get their colors extracted from the provided bitmap. This is slow
+     * and must run on the art workers.
+     * @param key The key of the image
+     * @param bitmap The decoded image
+     */
+    public void loadPalette(final String key, final Bitmap bitmap) {
+        final String cleanKey = sanitizeKey(key);
+        if (mPalettes.get(cleanKey) != null) {
+            return;
+        }
+
+        final File file = mDiskCache.get(getPaletteKey(cleanKey));
+        if (file != null) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                final ArtPalette palette = ArtPalette.readFrom(in);
+                if (palette != null) {
+                    mPalettes.put(cleanKey, palette);
+                    return;
                 }
             } catch (IOException e) {
-                Log.e(TAG, "Unable to write the file to cache", e);
+                Log.e(TAG, "Unable to read the palette of " + cleanKey, e);
+            } finally {
+                closeQuietly(in);
             }
+        }
+
+        storePalette(cleanKey, ArtPalette.generate(bitmap));
+    }
+
+    /**
+     * Keeps the colors of an image in memory, and stores them next to the image on disk
+     * @param key The key of the image
+     * @param palette The colors of the image
+     */
+    public void putPalette(final String key, final ArtPalette palette) {
+        storePalette(sanitizeKey(key), palette);
+    }
+
+    private void storePalette(final String cleanKey, final ArtPalette palette) {
+        mPalettes.put(cleanKey, palette);
+
+        File tmpFile = null;
+        DataOutputStream out = null;
+        try {
+            tmpFile = mDiskCache.createTempFile();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            palette.writeTo(out);
+            out.close();
+            out = null;
+
+            mDiskCache.commit(getPaletteKey(cleanKey), tmpFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write the palette to cache", e);
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+        } finally {
+            closeQuietly(out);
+        }
+    }
 
-            synchronized (mEntries) {
-                mEntries.add(cleanKey);
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignore) {
             }
         }
     }
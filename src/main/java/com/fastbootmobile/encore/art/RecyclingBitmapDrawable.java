@@ -24,8 +24,11 @@ import com.fastbootmobile.encore.app.BuildConfig;
 
 /**
  * A BitmapDrawable that keeps track of whether it is being displayed or cached.
- * When the drawable is no longer being displayed or cached,
- * {@link android.graphics.Bitmap#recycle() recycle()} will be called on this drawable's bitmap.
+ * When the drawable is no longer being displayed or cached, this drawable's bitmap is handed
+ * back to the {@link BitmapPool} of the {@link ImageCache} so that it can be reused for decoding.
+ * Bitmaps given out through {@link #getBitmap()} may be kept by their receiver (notification,
+ * lock screen, hero images), so they are never pooled; the art code that only reads the bitmap
+ * while it holds the drawable uses {@link #peekBitmap()} instead.
  */
 public class RecyclingBitmapDrawable extends BitmapDrawable {
     static final String TAG = "RecyclingBitmapDrawable";
@@ -34,11 +37,33 @@ public class RecyclingBitmapDrawable extends BitmapDrawable {
     private int mDisplayRefCount = 0;
 
     private boolean mHasBeenDisplayed;
+    private boolean mReleased;
+    private boolean mBitmapShared;
 
     public RecyclingBitmapDrawable(Resources res, Bitmap bitmap) {
         super(res, bitmap);
     }
 
+    /**
+     * Returns the bitmap of the drawable. The caller may keep it beyond the lifetime of the
+     * drawable, so the bitmap won't be handed back to the pool.
+     */
+    @Override
+    public Bitmap getBitmap() {
+        synchronized (this) {
+            mBitmapShared = true;
+        }
+        return super.getBitmap();
+    }
+
+    /**
+     * Returns the bitmap of the drawable without sharing it. The bitmap must not be kept once
+     * the drawable is no longer displayed or cached.
+     */
+    public Bitmap peekBitmap() {
+        return super.getBitmap();
+    }
+
     /**
      * Notify the drawable that the displayed state has changed. Internally a
      * count is kept so that the drawable knows when it is no longer being
@@ -49,6 +74,9 @@ public class RecyclingBitmapDrawable extends BitmapDrawable {
     public void setIsDisplayed(boolean isDisplayed) {
         synchronized (this) {
             if (isDisplayed) {
+                if (mReleased && BuildConfig.DEBUG) {
+                    Log.w(TAG, "Displaying a drawable whose bitmap went back to the pool");
+                }
                 mDisplayRefCount++;
                 mHasBeenDisplayed = true;
             } else {
@@ -80,25 +108,24 @@ public class RecyclingBitmapDrawable extends BitmapDrawable {
     }
 
     private synchronized void checkState() {
-        // DISABLED FOR NOW - LEAVING DEFAULT BITMAPDRAWABLE BEHAVIOR, SINCE AS OF
-        // HONEYCOMB THIS SHOULD BE RECYCLED AUTOMATICALLY (SHOULD)
-        if (false) {
-            // If the drawable cache and display ref counts = 0, and this drawable
-            // has been displayed, then recycle
-            if (mCacheRefCount <= 0 && mDisplayRefCount <= 0 && mHasBeenDisplayed
-                    && hasValidBitmap()) {
-                if (BuildConfig.DEBUG) {
-                    Log.d(TAG, "No longer being used or cached so recycling. "
-                            + toString());
-                }
-
-                getBitmap().recycle();
+        // If the drawable cache and display ref counts = 0, and this drawable
+        // has been displayed, then release the bitmap to the pool. Drawables that were never
+        // displayed through setIsDisplayed may still be shown elsewhere, and shared bitmaps may
+        // still be held by their receiver, so they are left to the garbage collector.
+        if (mCacheRefCount <= 0 && mDisplayRefCount <= 0 && mHasBeenDisplayed
+                && !mReleased && !mBitmapShared && hasValidBitmap()) {
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "No longer being used or cached so releasing to the pool. "
+                        + toString());
             }
+
+            mReleased = true;
+            ImageCache.getDefault().getBitmapPool().release(peekBitmap());
         }
     }
 
     private synchronized boolean hasValidBitmap() {
-        Bitmap bitmap = getBitmap();
+        Bitmap bitmap = peekBitmap();
         return bitmap != null && !bitmap.isRecycled();
     }
 
@@ -23,20 +23,32 @@ import org.java_websocket.drafts.Draft_10;
 import org.java_websocket.drafts.Draft_17;
 import org.java_websocket.drafts.Draft_75;
 import org.java_websocket.drafts.Draft_76;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
 import org.java_websocket.handshake.ClientHandshake;
 import org.java_websocket.server.WebSocketServer;
 
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
- * WebSocket Streaming server class to stream audio to Chromecast and webcast
+ * WebSocket Streaming server class to stream audio to Chromecast and webcast.
+ * Audio is sent straight from the audio mirror buffer, without an intermediate copy. The audio
+ * queued for each client is bounded: a client that can't keep up skips audio until its queue
+ * drained, instead of growing its queue forever.
+ * Audio is written from the audio thread only.
  */
 public class WSStreamer extends WebSocketServer {
     private static final String TAG = "WSStreamer";
 
+    // About 1.5 seconds of 44.1kHz stereo audio
+    private static final int MAX_QUEUED_BYTES = 256 * 1024;
+
     private static final List<Draft> sWSSDrafts = new ArrayList<>();
 
     static {
@@ -46,6 +58,18 @@ public class WSStreamer extends WebSocketServer {
         sWSSDrafts.add(new Draft_76());
     }
 
+    // Audio thread only
+    private final Map<WebSocket, ClientState> mClients = new HashMap<>();
+
+    /**
+     * Audio sent to a client since its queue was last seen empty. The socket only tells whether
+     * data is still buffered, so this is an upper bound of what the client didn't receive yet.
+     */
+    private static class ClientState {
+        int mPendingBytes;
+        int mDroppedBytes;
+    }
+
     public WSStreamer(int port) {
         super(new InetSocketAddress(port), sWSSDrafts);
     }
@@ -76,16 +100,60 @@ public class WSStreamer extends WebSocketServer {
         Log.e(TAG, "Error occurred on socket", e);
     }
 
-    public void write(byte[] frames, int numframes) {
+    /**
+     * @return true if at least one client is connected
+     */
+    public boolean hasClients() {
+        return !connections().isEmpty();
+    }
+
+    /**
+     * Sends audio to all the connected clients. Audio thread only.
+     * @param data The audio data
+     * @param len The number of bytes
+     */
+    public void write(byte[] data, int len) {
+        // Forget the clients that went away
+        final Iterator<WebSocket> it = mClients.keySet().iterator();
+        while (it.hasNext()) {
+            if (!it.next().isOpen()) {
+                it.remove();
+            }
+        }
+
+        final ByteBuffer payload = ByteBuffer.wrap(data, 0, len);
         final Collection<WebSocket> clients = connections();
-        if (clients.size() > 0) {
-            byte[] specificFrames = new byte[numframes];
-            System.arraycopy(frames, 0, specificFrames, 0, numframes);
+        for (WebSocket client : clients) {
+            // The Hixie drafts can't carry binary frames
+            if (!client.isOpen() || !(client.getDraft() instanceof Draft_10)) {
+                continue;
+            }
 
-            for (WebSocket client : clients) {
-                if (client.isOpen()) {
-                    client.send(specificFrames);
+            ClientState state = mClients.get(client);
+            if (state == null) {
+                state = new ClientState();
+                mClients.put(client, state);
+            }
+
+            if (!client.hasBufferedData()) {
+                if (state.mDroppedBytes > 0) {
+                    Log.w(TAG, "Client caught up, " + state.mDroppedBytes + " bytes were dropped");
+                    state.mDroppedBytes = 0;
                 }
+                state.mPendingBytes = 0;
+            } else if (state.mDroppedBytes > 0 || state.mPendingBytes >= MAX_QUEUED_BYTES) {
+                // Skip audio until the client received everything queued so far
+                state.mDroppedBytes += len;
+                continue;
+            }
+
+            try {
+                // The frame is built from the payload right away, each client reads it from
+                // its own view
+                client.send(payload.duplicate());
+                state.mPendingBytes += len;
+            } catch (WebsocketNotConnectedException e) {
+                // The client went away meanwhile
             }
         }
     }
@@ -21,13 +21,11 @@ import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.model.Playlist;
 import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
+import com.fastbootmobile.encore.providers.ProviderIdentifier;
 
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeMap;
 
 /**
  * This class generates automatic playlists from the listen logger
@@ -36,6 +34,11 @@ public class AutoPlaylistHelper {
     public static final String REF_SPECIAL_FAVORITES = "__omni:playlist:special:favorites";
     public static final String REF_SPECIAL_MOST_PLAYED = "__omni:playlist:special:mostplayed";
 
+    private static final int MOST_PLAYED_COUNT = 100;
+
+    // Number of play count entries read at most to fill the most played playlist
+    private static final int MOST_PLAYED_SCAN_LIMIT = MOST_PLAYED_COUNT * 5;
+
     /**
      * Generates and returns a playlist containing all the liked entries
      * @param ctx The context
@@ -53,9 +56,10 @@ public class AutoPlaylistHelper {
         playlist.setOfflineStatus(Playlist.OFFLINE_STATUS_NO);
         playlist.setIsLoaded(true);
 
+        // Ensure the songs are cached as they're coming from multiple providers
+        final Map<String, Song> songs = aggregator.retrieveSongs(getReferences(likes));
         for (ListenLogger.LogEntry like : likes) {
-            // Ensure the songs are cached as they're coming from multiple providers
-            if (aggregator.retrieveSong(like.getReference(), like.getIdentifier()) != null) {
+            if (songs.containsKey(like.getReference())) {
                 playlist.addSong(like.getReference());
             }
         }
@@ -69,68 +73,69 @@ public class AutoPlaylistHelper {
      * @return A playlist containing the most 100 played songs
      */
     public static Playlist getMostPlayedPlaylist(Context ctx) {
-        final ProviderAggregator aggregator = ProviderAggregator.getDefault();
         final ListenLogger logger = new ListenLogger(ctx);
 
-        List<ListenLogger.LogEntry> likes = logger.getEntries(0);
-
         Playlist playlist = new Playlist(REF_SPECIAL_MOST_PLAYED);
         playlist.setName(ctx.getString(R.string.most_played));
         playlist.setOfflineCapable(false);
         playlist.setOfflineStatus(Playlist.OFFLINE_STATUS_NO);
         playlist.setIsLoaded(true);
 
-        HashMap<String, Integer> occurrences = new HashMap<>();
-        for (ListenLogger.LogEntry like : likes) {
-            final String ref = like.getReference();
-
-            // Ensure the songs are cached as they're coming from multiple providers
-            Song song = aggregator.retrieveSong(ref, like.getIdentifier());
-
-            // A null song indicates either the song has gone unavailable or the provider has been
-            // removed. We should not add it.
-            if (song != null) {
-                if (occurrences.containsKey(like.getReference())) {
-                    occurrences.put(ref, occurrences.get(ref) + 1);
-                } else {
-                    occurrences.put(ref, 1);
+        // Read from the play count index, already sorted. The songs are retrieved when the
+        // playlist is displayed, so the unavailable ones are only skipped based on what we
+        // already know, and the index is read further until the playlist is full.
+        int offset = 0;
+        while (playlist.getSongsCount() < MOST_PLAYED_COUNT && offset < MOST_PLAYED_SCAN_LIMIT) {
+            final List<ListenLogger.LogEntry> entries =
+                    logger.getMostPlayed(offset, MOST_PLAYED_COUNT);
+            offset += entries.size();
+
+            for (ListenLogger.LogEntry entry : entries) {
+                if (playlist.getSongsCount() < MOST_PLAYED_COUNT && isAvailable(entry)) {
+                    playlist.addSong(entry.getReference());
                 }
             }
-        }
-
-        int number = 0;
-        TreeMap<String, Integer> sortedSongs = new TreeMap<>(new ValueComparator(occurrences));
-        sortedSongs.putAll(occurrences);
-
-        Set<String> references = sortedSongs.keySet();
-        for (String ref : references) {
-            if (ref != null) {
-                playlist.addSong(ref);
-                ++number;
 
-                if (number == 100) {
-                    break;
-                }
+            if (entries.size() < MOST_PLAYED_COUNT) {
+                // No more songs in the index
+                break;
             }
         }
 
         return playlist;
     }
 
-    private static class ValueComparator implements Comparator<String> {
-        private Map<String, Integer> mBase;
+    /**
+     * Checks whether the song of a listen log entry can likely be played, without calling its
+     * provider. Songs that the provider recently said it doesn't have are unavailable, as well as
+     * the songs that aren't cached from a provider that has been removed.
+     * @param entry The listen log entry
+     * @return true if the song is available, false otherwise
+     */
+    private static boolean isAvailable(ListenLogger.LogEntry entry) {
+        final ProviderAggregator aggregator = ProviderAggregator.getDefault();
+        final String ref = entry.getReference();
+        final ProviderIdentifier provider = entry.getIdentifier();
 
-        public ValueComparator(Map<String, Integer> base) {
-            mBase = base;
+        if (ref == null || provider == null
+                || aggregator.getNegativeCache().contains(provider, ref)) {
+            return false;
         }
 
-        // Note: this comparator imposes orderings that are inconsistent with equals.
-        public int compare(String a, String b) {
-            if (mBase.get(a) >= mBase.get(b)) {
-                return -1;
-            } else {
-                return 1;
-            } // returning 0 would merge keys
+        return aggregator.getCache().getRefProvider(ref) != null
+                || PluginsLookup.getDefault().getProvider(provider) != null;
+    }
+
+    /**
+     * Maps the references of the provided entries to their provider, for batched retrieval
+     * @param entries The listen log entries
+     * @return A map of song references to provider identifiers
+     */
+    private static Map<String, ProviderIdentifier> getReferences(List<ListenLogger.LogEntry> entries) {
+        Map<String, ProviderIdentifier> references = new HashMap<>();
+        for (ListenLogger.LogEntry entry : entries) {
+            references.put(entry.getReference(), entry.getIdentifier());
         }
+        return references;
     }
 }
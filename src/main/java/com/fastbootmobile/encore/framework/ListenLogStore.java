@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.framework;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SQLite store of the listening history and of the liked and disliked songs. History entries are
+ * only appended, and all tables are indexed on the columns they are looked up with.
+ * The play count and last play time of each song are kept up to date as history entries are
+ * added, in a table indexed for the most played and the recently played songs, so that those are
+ * read without going through the whole history.
+ * Writes are queued and applied in a single transaction on a background thread, a little while
+ * after the first one was queued. Reads apply the queued writes first, so that they are always
+ * visible to the process that made them.
+ */
+class ListenLogStore extends SQLiteOpenHelper {
+    private static final String TAG = "ListenLogStore";
+
+    private static final int DATABASE_VERSION = 2;
+    private static final String DATABASE_NAME = "listen_log";
+
+    static final String TABLE_HISTORY = "history";
+    static final String TABLE_LIKING = "liking";
+    static final String TABLE_PLAY_COUNT = "play_count";
+
+    static final String KEY_ID = "id";
+    static final String KEY_TIMESTAMP = "timestamp";
+    static final String KEY_SONG_REF = "song_ref";
+    static final String KEY_PROVIDER = "provider";
+    static final String KEY_LIKED = "liked";
+    static final String KEY_COUNT = "count";
+    static final String KEY_LAST_PLAYED = "last_played";
+
+    private static final String CREATE_TABLE_HISTORY = "CREATE TABLE IF NOT EXISTS "
+            + TABLE_HISTORY + "(" + KEY_ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+            + KEY_TIMESTAMP + " INTEGER NOT NULL," + KEY_SONG_REF + " TEXT NOT NULL,"
+            + KEY_PROVIDER + " TEXT NOT NULL)";
+    private static final String CREATE_INDEX_HISTORY_TIMESTAMP = "CREATE INDEX IF NOT EXISTS "
+            + TABLE_HISTORY + "_" + KEY_TIMESTAMP + " ON " + TABLE_HISTORY + "(" + KEY_TIMESTAMP + ")";
+    private static final String CREATE_INDEX_HISTORY_REF = "CREATE INDEX IF NOT EXISTS "
+            + TABLE_HISTORY + "_" + KEY_SONG_REF + " ON " + TABLE_HISTORY + "(" + KEY_SONG_REF + ")";
+    private static final String CREATE_TABLE_LIKING = "CREATE TABLE IF NOT EXISTS "
+            + TABLE_LIKING + "(" + KEY_SONG_REF + " TEXT NOT NULL," + KEY_LIKED + " INTEGER NOT NULL,"
+            + KEY_PROVIDER + " TEXT NOT NULL,"
+            + "PRIMARY KEY (" + KEY_SONG_REF + "," + KEY_LIKED + "," + KEY_PROVIDER + "))";
+    private static final String CREATE_TABLE_PLAY_COUNT = "CREATE TABLE IF NOT EXISTS "
+            + TABLE_PLAY_COUNT + "(" + KEY_SONG_REF + " TEXT NOT NULL," + KEY_PROVIDER + " TEXT NOT NULL,"
+            + KEY_COUNT + " INTEGER NOT NULL," + KEY_LAST_PLAYED + " INTEGER NOT NULL,"
+            + "PRIMARY KEY (" + KEY_SONG_REF + "," + KEY_PROVIDER + "))";
+    private static final String CREATE_INDEX_PLAY_COUNT_COUNT = "CREATE INDEX IF NOT EXISTS "
+            + TABLE_PLAY_COUNT + "_" + KEY_COUNT + " ON " + TABLE_PLAY_COUNT + "(" + KEY_COUNT
+            + " DESC," + KEY_LAST_PLAYED + " DESC)";
+    private static final String CREATE_INDEX_PLAY_COUNT_LAST_PLAYED = "CREATE INDEX IF NOT EXISTS "
+            + TABLE_PLAY_COUNT + "_" + KEY_LAST_PLAYED + " ON " + TABLE_PLAY_COUNT + "("
+            + KEY_LAST_PLAYED + " DESC)";
+    private static final String FILL_PLAY_COUNT = "INSERT OR REPLACE INTO " + TABLE_PLAY_COUNT
+            + " SELECT " + KEY_SONG_REF + "," + KEY_PROVIDER + ",COUNT(*),MAX(" + KEY_TIMESTAMP
+            + ") FROM " + TABLE_HISTORY + " GROUP BY " + KEY_SONG_REF + "," + KEY_PROVIDER;
+
+    private static final String INSERT_HISTORY = "INSERT INTO " + TABLE_HISTORY + "("
+            + KEY_TIMESTAMP + "," + KEY_SONG_REF + "," + KEY_PROVIDER + ") VALUES (?,?,?)";
+    private static final String INSERT_LIKING = "INSERT OR IGNORE INTO " + TABLE_LIKING + "("
+            + KEY_SONG_REF + "," + KEY_LIKED + "," + KEY_PROVIDER + ") VALUES (?,?,?)";
+    private static final String DELETE_LIKING = "DELETE FROM " + TABLE_LIKING + " WHERE "
+            + KEY_SONG_REF + "=? AND " + KEY_LIKED + "=? AND " + KEY_PROVIDER + "=?";
+    private static final String INSERT_PLAY_COUNT = "INSERT OR IGNORE INTO " + TABLE_PLAY_COUNT
+            + " VALUES (?,?,0,0)";
+    private static final String UPDATE_PLAY_COUNT = "UPDATE " + TABLE_PLAY_COUNT + " SET "
+            + KEY_COUNT + "=" + KEY_COUNT + "+1," + KEY_LAST_PLAYED + "=MAX(" + KEY_LAST_PLAYED
+            + ",?) WHERE " + KEY_SONG_REF + "=? AND " + KEY_PROVIDER + "=?";
+    private static final String DELETE_EXPIRED = "DELETE FROM " + TABLE_HISTORY + " WHERE "
+            + KEY_TIMESTAMP + "<?";
+
+    // History entries older than this are removed. Play counts are kept.
+    private static final long RETENTION = 2 * 365 * 24 * 3600 * 1000L;
+
+    // Delay during which writes are gathered before being applied
+    private static final long FLUSH_DELAY = 2000;
+
+    // Preferences the log used to be kept in, imported once
+    private static final String LEGACY_PREFS = "ListenLogger";
+    private static final String LEGACY_HISTORY_ENTRIES = "history_entries";
+    private static final String LEGACY_LIKED_ENTRIES = "liked_entries";
+    private static final String LEGACY_DISLIKED_ENTRIES = "disliked_entries";
+
+    private static final int OP_HISTORY = 0;
+    private static final int OP_ADD_LIKING = 1;
+    private static final int OP_REMOVE_LIKING = 2;
+
+    private static ListenLogStore sInstance;
+
+    private final Context mContext;
+    private final List<Op> mPendingOps = new ArrayList<>();
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+    private boolean mFlushScheduled;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private static class Op {
+        final int mType;
+        final String mSongRef;
+        final String mProvider;
+        final long mTimestamp;
+        final boolean mLiked;
+
+        Op(int type, String songRef, String provider, long timestamp, boolean liked) {
+            mType = type;
+            mSongRef = songRef;
+            mProvider = provider;
+            mTimestamp = timestamp;
+            mLiked = liked;
+        }
+    }
+
+    static synchronized ListenLogStore getInstance(Context ctx) {
+        if (sInstance == null) {
+            sInstance = new ListenLogStore(ctx.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ListenLogStore(Context ctx) {
+        super(ctx, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = ctx;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL(CREATE_TABLE_HISTORY);
+        db.execSQL(CREATE_INDEX_HISTORY_TIMESTAMP);
+        db.execSQL(CREATE_INDEX_HISTORY_REF);
+        db.execSQL(CREATE_TABLE_LIKING);
+        importLegacyPreferences(db);
+        createPlayCounts(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            createPlayCounts(db);
+        }
+    }
+
+    /**
+     * Creates the play count table, and fills it from the history
+     */
+    private void createPlayCounts(SQLiteDatabase db) {
+        db.execSQL(CREATE_TABLE_PLAY_COUNT);
+        db.execSQL(CREATE_INDEX_PLAY_COUNT_COUNT);
+        db.execSQL(CREATE_INDEX_PLAY_COUNT_LAST_PLAYED);
+        db.execSQL(FILL_PLAY_COUNT);
+    }
+
+    /**
+     * Queues a history entry
+     */
+    void addHistory(String songRef, String provider, long timestamp) {
+        queue(new Op(OP_HISTORY, songRef, provider, timestamp, false));
+    }
+
+    /**
+     * Queues the addition of a song to the liked or disliked songs
+     */
+    void addLiking(String songRef, String provider, boolean liked) {
+        queue(new Op(OP_ADD_LIKING, songRef, provider, 0, liked));
+    }
+
+    /**
+     * Queues the removal of a song from the liked or disliked songs
+     */
+    void removeLiking(String songRef, String provider, boolean liked) {
+        queue(new Op(OP_REMOVE_LIKING, songRef, provider, 0, liked));
+    }
+
+    /**
+     * Returns a readable database, once the queued writes were applied
+     * @return The database, or null if it cannot be opened
+     */
+    SQLiteDatabase getDatabase() {
+        flush();
+        try {
+            return getReadableDatabase();
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Cannot open listen log database", e);
+            return null;
+        }
+    }
+
+    private void queue(Op op) {
+        synchronized (mPendingOps) {
+            mPendingOps.add(op);
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mExecutor.schedule(mFlushRunnable, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Applies the queued writes in a single transaction
+     */
+    private synchronized void flush() {
+        final List<Op> ops;
+        synchronized (mPendingOps) {
+            mFlushScheduled = false;
+            if (mPendingOps.isEmpty()) {
+                return;
+            }
+            ops = new ArrayList<>(mPendingOps);
+            mPendingOps.clear();
+        }
+
+        final SQLiteDatabase db;
+        try {
+            db = getWritableDatabase();
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Cannot open listen log database, dropping " + ops.size() + " entries", e);
+            return;
+        }
+
+        final SQLiteStatement insertHistory = db.compileStatement(INSERT_HISTORY);
+        final SQLiteStatement insertLiking = db.compileStatement(INSERT_LIKING);
+        final SQLiteStatement deleteLiking = db.compileStatement(DELETE_LIKING);
+        final SQLiteStatement insertPlayCount = db.compileStatement(INSERT_PLAY_COUNT);
+        final SQLiteStatement updatePlayCount = db.compileStatement(UPDATE_PLAY_COUNT);
+        db.beginTransaction();
+        try {
+            boolean hasHistory = false;
+            for (Op op : ops) {
+                switch (op.mType) {
+                    case OP_HISTORY:
+                        insertHistory.bindLong(1, op.mTimestamp);
+                        insertHistory.bindString(2, op.mSongRef);
+                        insertHistory.bindString(3, op.mProvider);
+                        insertHistory.executeInsert();
+
+                        insertPlayCount.bindString(1, op.mSongRef);
+                        insertPlayCount.bindString(2, op.mProvider);
+                        insertPlayCount.executeInsert();
+                        updatePlayCount.bindLong(1, op.mTimestamp);
+                        updatePlayCount.bindString(2, op.mSongRef);
+                        updatePlayCount.bindString(3, op.mProvider);
+                        updatePlayCount.executeUpdateDelete();
+                        hasHistory = true;
+                        break;
+
+                    case OP_ADD_LIKING:
+                        bindLiking(insertLiking, op);
+                        insertLiking.executeInsert();
+                        break;
+
+                    case OP_REMOVE_LIKING:
+                        bindLiking(deleteLiking, op);
+                        deleteLiking.executeUpdateDelete();
+                        break;
+                }
+            }
+
+            if (hasHistory) {
+                final SQLiteStatement deleteExpired = db.compileStatement(DELETE_EXPIRED);
+                deleteExpired.bindLong(1, System.currentTimeMillis() - RETENTION);
+                deleteExpired.executeUpdateDelete();
+                deleteExpired.close();
+            }
+
+            db.setTransactionSuccessful();
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Cannot write listen log entries", e);
+        } finally {
+            db.endTransaction();
+            insertHistory.close();
+            insertLiking.close();
+            deleteLiking.close();
+            insertPlayCount.close();
+            updatePlayCount.close();
+        }
+    }
+
+    private static void bindLiking(SQLiteStatement statement, Op op) {
+        statement.bindString(1, op.mSongRef);
+        statement.bindLong(2, op.mLiked ? 1 : 0);
+        statement.bindString(3, op.mProvider);
+    }
+
+    /**
+     * Imports the entries that were kept as JSON strings in the shared preferences, then removes
+     * them from there
+     */
+    private void importLegacyPreferences(SQLiteDatabase db) {
+        final SharedPreferences prefs = mContext.getSharedPreferences(LEGACY_PREFS,
+                Context.MODE_PRIVATE);
+        final SQLiteStatement insertHistory = db.compileStatement(INSERT_HISTORY);
+        final SQLiteStatement insertLiking = db.compileStatement(INSERT_LIKING);
+
+        int count = 0;
+        for (String entry : getStringSet(prefs, LEGACY_HISTORY_ENTRIES)) {
+            try {
+                final JSONObject obj = new JSONObject(entry);
+                insertHistory.bindLong(1, obj.getLong(KEY_TIMESTAMP));
+                insertHistory.bindString(2, obj.getString(KEY_SONG_REF));
+                insertHistory.bindString(3, obj.getString(KEY_PROVIDER));
+                insertHistory.executeInsert();
+                ++count;
+            } catch (JSONException e) {
+                Log.w(TAG, "Cannot parse JSON", e);
+            }
+        }
+
+        count += importLegacyLiking(insertLiking, getStringSet(prefs, LEGACY_LIKED_ENTRIES), true);
+        count += importLegacyLiking(insertLiking, getStringSet(prefs, LEGACY_DISLIKED_ENTRIES),
+                false);
+        insertHistory.close();
+        insertLiking.close();
+
+        if (count > 0) {
+            Log.d(TAG, "Imported " + count + " entries from the preferences");
+            prefs.edit().clear().apply();
+        }
+    }
+
+    private static int importLegacyLiking(SQLiteStatement insertLiking, Set<String> entries,
+                                          boolean liked) {
+        int count = 0;
+        for (String entry : entries) {
+            try {
+                final JSONObject obj = new JSONObject(entry);
+                insertLiking.bindString(1, obj.getString(KEY_SONG_REF));
+                insertLiking.bindLong(2, liked ? 1 : 0);
+                insertLiking.bindString(3, obj.getString(KEY_PROVIDER));
+                insertLiking.executeInsert();
+                ++count;
+            } catch (JSONException e) {
+                Log.w(TAG, "Cannot parse JSON", e);
+            }
+        }
+        return count;
+    }
+
+    private static Set<String> getStringSet(SharedPreferences prefs, String key) {
+        final Set<String> set = prefs.getStringSet(key, null);
+        return set != null ? set : Collections.<String>emptySet();
+    }
+}
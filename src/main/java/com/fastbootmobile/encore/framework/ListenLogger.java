@@ -16,41 +16,34 @@
 package com.fastbootmobile.encore.framework;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.util.Log;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 
 import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
 
 /**
- * Class handling logging of played and liked songs
+ * Class handling logging of played and liked songs. Entries are kept in a {@link ListenLogStore},
+ * which writes them in the background.
  */
 public class ListenLogger {
     private static final String TAG = "ListenLogger";
-    private static final boolean DEBUG = true;
-
-    private static final String PREFS = "ListenLogger";
-    private static final String PREF_HISTORY_ENTRIES = "history_entries";
-    private static final String PREF_LIKED_ENTRIES = "liked_entries";
-    private static final String PREF_DISLIKED_ENTRIES = "disliked_entries";
 
-    private static final String KEY_TIMESTAMP = "timestamp";
-    private static final String KEY_SONG_REF = "song_ref";
-    private static final String KEY_PROVIDER = "provider";
+    private static final String[] ENTRY_COLUMNS = {ListenLogStore.KEY_SONG_REF,
+            ListenLogStore.KEY_PROVIDER, ListenLogStore.KEY_TIMESTAMP};
+    private static final String[] PLAY_COUNT_COLUMNS = {ListenLogStore.KEY_SONG_REF,
+            ListenLogStore.KEY_PROVIDER, ListenLogStore.KEY_LAST_PLAYED, ListenLogStore.KEY_COUNT};
+    private static final String[] LIKING_COLUMNS = {ListenLogStore.KEY_SONG_REF,
+            ListenLogStore.KEY_PROVIDER};
 
-    private SharedPreferences mPrefs;
+    private ListenLogStore mStore;
 
     public ListenLogger(Context ctx) {
-        mPrefs = ctx.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        mStore = ListenLogStore.getInstance(ctx);
     }
 
     /**
@@ -58,76 +51,72 @@ public class ListenLogger {
      * @param song The song to add
      */
     public void addEntry(Song song) {
-        SharedPreferences.Editor editor = mPrefs.edit();
-        Set<String> entries = new TreeSet<>(mPrefs.getStringSet(PREF_HISTORY_ENTRIES,
-                new TreeSet<String>()));
+        mStore.addHistory(song.getRef(), song.getProvider().serialize(), new Date().getTime());
+    }
 
-        JSONObject jsonRoot = new JSONObject();
-        try {
-            jsonRoot.put(KEY_TIMESTAMP, new Date().getTime());
-            jsonRoot.put(KEY_SONG_REF, song.getRef());
-            jsonRoot.put(KEY_PROVIDER, song.getProvider().serialize());
-        } catch (JSONException ignore) {}
-
-
-        entries.add(jsonRoot.toString());
-
-        // Remove old entries
-        final long now = new Date().getTime();
-        final long oneSec = 1000L;
-        final long oneMin = oneSec * 60;
-        final long oneHour = oneMin * 60;
-        final long oneDay = oneHour * 24;
-        final long oneMonth = oneDay * 31;
-
-        Set<String> removal = new TreeSet<>();
-        for (String entry : entries) {
-            try {
-                JSONObject obj = new JSONObject(entry);
-                long timestamp = obj.getLong(KEY_TIMESTAMP);
-                if (now - timestamp > oneMonth) {
-                    removal.add(entry);
-                }
-            } catch (JSONException e) {
-                Log.w(TAG, "Cannot parse JSON", e);
-            }
+    /**
+     * Fetches and builds a list of the most recent history entries
+     * @param limit The maximum number of entries, or 0 for all of them
+     * @return A list of entries, most recent first
+     */
+    public List<LogEntry> getEntries(int limit) {
+        final SQLiteDatabase db = mStore.getDatabase();
+        if (db == null) {
+            return new ArrayList<>();
         }
 
-        for (String entry : removal) {
-            entries.remove(entry);
+        final Cursor cursor = db.query(ListenLogStore.TABLE_HISTORY, ENTRY_COLUMNS, null, null,
+                null, null, ListenLogStore.KEY_TIMESTAMP + " DESC",
+                limit > 0 ? Integer.toString(limit) : null);
+        try {
+            return readEntries(cursor, true);
+        } finally {
+            cursor.close();
         }
+    }
 
-        editor.putStringSet(PREF_HISTORY_ENTRIES, entries);
-        editor.apply();
+    /**
+     * Returns the most played songs, in O(offset + count) from the play count index
+     * @param offset The number of most played songs to skip
+     * @param count The maximum number of songs
+     * @return A list of entries, most played first. The timestamp of the entries is the last
+     * time the song was played.
+     */
+    public List<LogEntry> getMostPlayed(int offset, int count) {
+        return getPlayCountsImpl(ListenLogStore.KEY_COUNT + " DESC,"
+                + ListenLogStore.KEY_LAST_PLAYED + " DESC", offset, count);
     }
 
     /**
-     * Fetches and builds a list of all the history entries
-     * @return A list of entries
+     * Returns the songs played most recently, each song appearing once
+     * @param count The maximum number of songs
+     * @return A list of entries, most recently played first. The timestamp of the entries is the
+     * last time the song was played.
      */
-    public List<LogEntry> getEntries(int limit) {
-        Set<String> entries = mPrefs.getStringSet(PREF_HISTORY_ENTRIES, null);
-        List<LogEntry> output = new ArrayList<>();
-        if (entries != null) {
-            for (String entry : entries) {
-                try {
-                    JSONObject jsonObj = new JSONObject(entry);
-                    String songRef = jsonObj.getString(KEY_SONG_REF);
-                    String providerSerialized = jsonObj.getString(KEY_PROVIDER);
-                    long timestamp = jsonObj.getLong(KEY_TIMESTAMP);
-
-                    output.add(new LogEntry(songRef, providerSerialized, timestamp));
-                } catch (JSONException e) {
-                    Log.e(TAG, "JSON Exception while trying to get log entry", e);
-                }
-
-                if (limit > 0 && output.size() == limit) {
-                    break;
-                }
-            }
+    public List<LogEntry> getRecentlyPlayed(int count) {
+        return getPlayCountsImpl(ListenLogStore.KEY_LAST_PLAYED + " DESC", 0, count);
+    }
+
+    private List<LogEntry> getPlayCountsImpl(String orderBy, int offset, int count) {
+        final SQLiteDatabase db = mStore.getDatabase();
+        if (db == null) {
+            return new ArrayList<>();
         }
 
-        return output;
+        final Cursor cursor = db.query(ListenLogStore.TABLE_PLAY_COUNT, PLAY_COUNT_COLUMNS, null,
+                null, null, null, orderBy, offset + "," + count);
+        try {
+            final List<LogEntry> output = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                final LogEntry entry = new LogEntry(cursor.getString(0), cursor.getString(1),
+                        cursor.getLong(2));
+                entry.mPlayCount = cursor.getInt(3);
+                output.add(entry);
+            }
+            return output;
+        } finally {
+            cursor.close();
+        }
     }
 
     /**
@@ -135,7 +124,7 @@ public class ListenLogger {
      * @param song The song to add
      */
     public void addLike(Song song) {
-        addLikingImpl(song, PREF_LIKED_ENTRIES);
+        mStore.addLiking(song.getRef(), song.getProvider().serialize(), true);
     }
 
     /**
@@ -143,23 +132,7 @@ public class ListenLogger {
      * @param song The song to add
      */
     public void addDislike(Song song) {
-        addLikingImpl(song, PREF_DISLIKED_ENTRIES);
-    }
-
-    private void addLikingImpl(Song song, String entrySet) {
-        SharedPreferences.Editor editor = mPrefs.edit();
-        Set<String> entries = new TreeSet<>(mPrefs.getStringSet(entrySet, new TreeSet<String>()));
-
-        JSONObject jsonRoot = new JSONObject();
-        try {
-            jsonRoot.put(KEY_SONG_REF, song.getRef());
-            jsonRoot.put(KEY_PROVIDER, song.getProvider().serialize());
-        } catch (JSONException ignore) {}
-
-        entries.add(jsonRoot.toString());
-
-        editor.putStringSet(entrySet, entries);
-        editor.apply();
+        mStore.addLiking(song.getRef(), song.getProvider().serialize(), false);
     }
 
     /**
@@ -167,7 +140,7 @@ public class ListenLogger {
      * @param song The song to remove
      */
     public void removeLike(Song song) {
-        removeLikingImpl(song, PREF_LIKED_ENTRIES);
+        mStore.removeLiking(song.getRef(), song.getProvider().serialize(), true);
     }
 
     /**
@@ -175,66 +148,45 @@ public class ListenLogger {
      * @param song The song to remove
      */
     public void removeDislike(Song song) {
-        removeLikingImpl(song, PREF_DISLIKED_ENTRIES);
-    }
-
-    private void removeLikingImpl(Song song, String entrySet) {
-        SharedPreferences.Editor editor = mPrefs.edit();
-        Set<String> entries = new TreeSet<>(mPrefs.getStringSet(entrySet, new TreeSet<String>()));
-
-        JSONObject jsonRoot = new JSONObject();
-        try {
-            jsonRoot.put(KEY_SONG_REF, song.getRef());
-            jsonRoot.put(KEY_PROVIDER, song.getProvider().serialize());
-        } catch (JSONException ignore) {}
-
-        entries.remove(jsonRoot.toString());
-        editor.putStringSet(entrySet, entries);
-        editor.apply();
+        mStore.removeLiking(song.getRef(), song.getProvider().serialize(), false);
     }
 
     /**
      * @return a list of all the liked entries
      */
     public List<LogEntry> getLikedEntries() {
-        return getLikingEntriesImpl(PREF_LIKED_ENTRIES);
+        return getLikingEntriesImpl(true);
     }
     /**
      * @return a list of all the disliked entries
      */
     public List<LogEntry> getDislikedEntries() {
-        return getLikingEntriesImpl(PREF_DISLIKED_ENTRIES);
+        return getLikingEntriesImpl(false);
     }
 
-
-    public List<LogEntry> getLikingEntriesImpl(String entrySet) {
-        Set<String> entries = mPrefs.getStringSet(entrySet, null);
-        List<LogEntry> output = new ArrayList<>();
-        if (entries != null) {
-            for (String entry : entries) {
-                try {
-                    JSONObject jsonObj = new JSONObject(entry);
-                    String songRef = jsonObj.getString(KEY_SONG_REF);
-                    String providerSerialized = jsonObj.getString(KEY_PROVIDER);
-
-                    output.add(new LogEntry(songRef, providerSerialized, 0));
-                } catch (JSONException e) {
-                    Log.e(TAG, "JSON Exception while trying to get liked entries", e);
-                }
-            }
+    private List<LogEntry> getLikingEntriesImpl(boolean liked) {
+        final SQLiteDatabase db = mStore.getDatabase();
+        if (db == null) {
+            return new ArrayList<>();
         }
 
-        return output;
+        final Cursor cursor = db.query(ListenLogStore.TABLE_LIKING, LIKING_COLUMNS,
+                ListenLogStore.KEY_LIKED + "=?", new String[]{liked ? "1" : "0"},
+                null, null, null);
+        try {
+            return readEntries(cursor, false);
+        } finally {
+            cursor.close();
+        }
     }
 
-
     /**
      * Returns whether or not the song reference provided is in the list of liked songs or not
      * @param ref The reference of the song
      * @return true if the song is liked
      */
     public boolean isLiked(String ref) {
-        return getLikingImpl(ref, PREF_LIKED_ENTRIES);
+        return getLikingImpl(ref, true);
     }
 
     /**
@@ -243,27 +195,38 @@ public class ListenLogger {
      * @return true if the song is disliked
      */
     public boolean isDisliked(String ref) {
-        return getLikingImpl(ref, PREF_DISLIKED_ENTRIES);
+        return getLikingImpl(ref, false);
     }
 
-    private boolean getLikingImpl(String ref, String entrySet) {
-        Set<String> entries = mPrefs.getStringSet(entrySet, null);
-        if (entries != null) {
-            for (String entry : entries) {
-                try {
-                    JSONObject jsonObj = new JSONObject(entry);
-                    String songRef = jsonObj.getString(KEY_SONG_REF);
-                    if (songRef.equals(ref)) {
-                        return true;
-                    }
-                } catch (JSONException ignore) {
-                }
-            }
-
-            return false;
-        } else {
+    private boolean getLikingImpl(String ref, boolean liked) {
+        final SQLiteDatabase db = mStore.getDatabase();
+        if (db == null || ref == null) {
             return false;
         }
+
+        // Uses the primary key, which starts with the reference and the liking
+        final Cursor cursor = db.query(ListenLogStore.TABLE_LIKING, LIKING_COLUMNS,
+                ListenLogStore.KEY_SONG_REF + "=? AND " + ListenLogStore.KEY_LIKED + "=?",
+                new String[]{ref, liked ? "1" : "0"}, null, null, null, "1");
+        try {
+            return cursor.getCount() > 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static List<LogEntry> readEntries(Cursor cursor, boolean withTimestamp) {
+        final List<LogEntry> output = new ArrayList<>(cursor.getCount());
+        final int colRef = cursor.getColumnIndex(ListenLogStore.KEY_SONG_REF);
+        final int colProvider = cursor.getColumnIndex(ListenLogStore.KEY_PROVIDER);
+        final int colTimestamp = withTimestamp
+                ? cursor.getColumnIndex(ListenLogStore.KEY_TIMESTAMP) : -1;
+
+        while (cursor.moveToNext()) {
+            output.add(new LogEntry(cursor.getString(colRef), cursor.getString(colProvider),
+                    colTimestamp >= 0 ? cursor.getLong(colTimestamp) : 0));
+        }
+        return output;
     }
 
     /**
@@ -273,6 +236,7 @@ public class ListenLogger {
         private Date mTimestamp;
         private String mSongRef;
         private ProviderIdentifier mIdentifier;
+        private int mPlayCount;
 
         private LogEntry(String songRef, String serializedProviderIdentifier, long timestamp) {
             mSongRef = songRef;
@@ -300,5 +264,12 @@ public class ListenLogger {
         public Date getTimestamp() {
             return mTimestamp;
         }
+
+        /**
+         * @return The number of times the song was played (valid only for play counts)
+         */
+        public int getPlayCount() {
+            return mPlayCount;
+        }
     }
 }
@@ -26,6 +26,7 @@ import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Playlist;
 import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
+import com.fastbootmobile.encore.service.IMeterCallback;
 import com.fastbootmobile.encore.service.IPlaybackCallback;
 import com.fastbootmobile.encore.service.IPlaybackService;
 import com.fastbootmobile.encore.service.PlaybackService;
@@ -63,6 +64,9 @@ public class PlaybackProxy {
     private static final int MSG_SET_SHUFFLE_MODE   = 19;
     private static final int MSG_PLAY_NEXT          = 20;
     private static final int MSG_SLEEP_TIMER        = 21;
+    private static final int MSG_SET_CROSSFADE      = 22;
+    private static final int MSG_ADD_METER_CALLBACK = 23;
+    private static final int MSG_REMOVE_METER_CALLBACK = 24;
 
     private static class PlaybackProxyHandler extends Handler {
         public PlaybackProxyHandler(Looper looper) {
@@ -167,6 +171,21 @@ public class PlaybackProxy {
                     case MSG_SLEEP_TIMER:
                         getPlayback().setSleepTimer((Long) msg.obj);
                         break;
+
+                    case MSG_SET_CROSSFADE:
+                        getPlayback().setCrossfadeDuration(msg.arg1);
+                        break;
+
+                    case MSG_ADD_METER_CALLBACK:
+                        getPlayback().addMeterCallback((IMeterCallback) msg.obj);
+                        break;
+
+                    case MSG_REMOVE_METER_CALLBACK:
+                        IPlaybackService meterService = getPlayback(false);
+                        if (meterService != null) {
+                            meterService.removeMeterCallback((IMeterCallback) msg.obj);
+                        }
+                        break;
                 }
             } catch (RemoteException e) {
                 Log.e(TAG, "Cannot run remote method", e);
@@ -274,6 +293,14 @@ public class PlaybackProxy {
         Message.obtain(sHandler, MSG_REMOVE_CALLBACK, callback).sendToTarget();
     }
 
+    public static void addMeterCallback(IMeterCallback callback) {
+        Message.obtain(sHandler, MSG_ADD_METER_CALLBACK, callback).sendToTarget();
+    }
+
+    public static void removeMeterCallback(IMeterCallback callback) {
+        Message.obtain(sHandler, MSG_REMOVE_METER_CALLBACK, callback).sendToTarget();
+    }
+
     public static List<Song> getCurrentPlaybackQueue() {
         try {
             return getPlayback().getCurrentPlaybackQueue();
@@ -362,6 +389,18 @@ public class PlaybackProxy {
         Message.obtain(sHandler, MSG_QUEUE_PLAYLIST, top ? 1 : 0, 0, p).sendToTarget();
     }
 
+    public static int getCrossfadeDuration() {
+        try {
+            return getPlayback().getCrossfadeDuration();
+        } catch (RemoteException e) {
+            return 0;
+        }
+    }
+
+    public static void setCrossfadeDuration(int durationMs) {
+        Message.obtain(sHandler, MSG_SET_CROSSFADE, durationMs, 0).sendToTarget();
+    }
+
     public static void setSleepTimer(long uptime) {
         Message.obtain(sHandler, MSG_SLEEP_TIMER, uptime).sendToTarget();
     }
@@ -26,6 +26,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 /**
@@ -57,18 +58,28 @@ public class Suggestor {
 
         // List all tracks from all albums, get 100 random
         final List<String> albumReferences = artist.getAlbums();
+        final Map<String, Album> albums = aggregator.retrieveAlbums(albumReferences,
+                artist.getProvider());
+        final List<String> songReferences = new ArrayList<>();
         for (String albumRef : albumReferences) {
-            Album album = aggregator.retrieveAlbum(albumRef, artist.getProvider());
+            Album album = albums.get(albumRef);
             if (album != null && album.isLoaded()) {
                 Iterator<String> songsIt = album.songs();
                 while (songsIt.hasNext()) {
-                    String songRef = songsIt.next();
-                    Song song = aggregator.retrieveSong(songRef, artist.getProvider());
-                    allSongs.add(song);
+                    songReferences.add(songsIt.next());
                 }
             }
         }
 
+        final Map<String, Song> songs = aggregator.retrieveSongs(songReferences,
+                artist.getProvider());
+        for (String songRef : songReferences) {
+            Song song = songs.get(songRef);
+            if (song != null) {
+                allSongs.add(song);
+            }
+        }
+
         long seed = System.nanoTime();
         Collections.shuffle(allSongs, new Random(seed));
 
@@ -49,8 +49,10 @@ public interface ILocalCallback {
     void onProviderConnected(IMusicProvider provider);
 
     /**
-     * Called when a provider returns a search result
-     * @param searchResult The result
+     * Called when a provider returns a search result. The results only contain the hits that
+     * weren't notified before for this query, all of them are available through
+     * {@link ProviderAggregator#getCachedSearch(String)}.
+     * @param searchResult The new results
      */
     void onSearchResult(List<SearchResult> searchResult);
 }
@@ -19,7 +19,9 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.RemoteException;
 import android.util.Log;
 
@@ -29,16 +31,17 @@ import com.fastbootmobile.encore.model.SearchResult;
 import com.fastbootmobile.encore.model.Song;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.regex.Pattern;
 
 /**
  * Created by h4o on 01/07/2014.
  */
 public class MultiProviderDatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = "MultiProviderDBHelper";
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 3;
 
     private static final String DATABASE_NAME = "multiprovider_playlists";
 
@@ -62,14 +65,35 @@ public class MultiProviderDatabaseHelper extends SQLiteOpenHelper {
             TABLE_SONGS + "(" + KEY_ID + " INTEGER PRIMARY KEY AUTOINCREMENT," + KEY_PLAYLIST_ID + " INTEGER,"
             + KEY_SONG_REF + " TEXT," + KEY_PACKAGE_NAME + " TEXT," + KEY_SERVICE + " TEXT,"
             + KEY_POSITION + " INTEGER," + KEY_PROVIDER + " TEXT)";
+    private static final String CREATE_INDEX_SONGS = "CREATE INDEX IF NOT EXISTS song_position ON "
+            + TABLE_SONGS + "(" + KEY_PLAYLIST_ID + "," + KEY_POSITION + ")";
+
+    private static final String INSERT_SONG = "INSERT INTO " + TABLE_SONGS + "(" + KEY_PLAYLIST_ID
+            + "," + KEY_SONG_REF + "," + KEY_PACKAGE_NAME + "," + KEY_SERVICE + "," + KEY_PROVIDER
+            + "," + KEY_POSITION + ") VALUES (?,?,?,?,?,?)";
+    private static final String DELETE_SONG = "DELETE FROM " + TABLE_SONGS + " WHERE " + KEY_ID + "=?";
+    private static final String UPDATE_POSITION = "UPDATE " + TABLE_SONGS + " SET " + KEY_POSITION
+            + "=? WHERE " + KEY_ID + "=?";
+
+    // Space left between the positions of consecutive songs, so that a song can be moved by
+    // updating its own position only. The playlist is renumbered once there is no room left.
+    private static final long POSITION_SPACING = 1 << 16;
+
+    /**
+     * Rows of the songs of a playlist, in the same order as the playlist songs
+     */
+    private static class PlaylistRows {
+        final List<Long> ids = new ArrayList<>();
+        final List<Long> positions = new ArrayList<>();
+    }
 
     private HashMap<String, Long> mPlayListRefID;
-    private HashMap<String, Long> mSongRefID;
+    private HashMap<String, PlaylistRows> mPlaylistRows;
     private HashMap<String, Playlist> mPlaylists;
     private HashMap<String, ProviderIdentifier> mRefProviderId;
     private SQLiteDatabase mDatabase;
     private LocalCallback mCallback;
-    private SearchResult mSearchResult;
+    private final SearchIndex mSearchIndex = new SearchIndex();
     private ProviderIdentifier mProviderIdentifier;
     private boolean mFetched;
 
@@ -82,7 +106,7 @@ public class MultiProviderDatabaseHelper extends SQLiteOpenHelper {
     public MultiProviderDatabaseHelper(Context ctx, LocalCallback localCallback) {
         super(ctx, DATABASE_NAME, null, DATABASE_VERSION);
         mCallback = localCallback;
-        mSongRefID = new HashMap<>();
+        mPlaylistRows = new HashMap<>();
         mPlaylists = new HashMap<>();
         mPlayListRefID = new HashMap<>();
         mRefProviderId = new HashMap<>();
@@ -125,7 +149,7 @@ public class MultiProviderDatabaseHelper extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(CREATE_TABLE_PLAYLIST);
         db.execSQL(CREATE_TABLE_SONGS);
-
+        db.execSQL(CREATE_INDEX_SONGS);
     }
 
     private void fetchPlaylists() {
@@ -151,6 +175,7 @@ public class MultiProviderDatabaseHelper extends SQLiteOpenHelper {
                 // Cache it
                 mPlaylists.put(pl.getRef(), pl);
                 mPlayListRefID.put(pl.getRef(), playlist_id);
+                mSearchIndex.put(SearchIndex.TYPE_PLAYLIST, pl.getRef(), pl.getName());
 
                 // Notify the app
                 mCallback.playlistUpdated(pl);
@@ -163,28 +188,53 @@ public class MultiProviderDatabaseHelper extends SQLiteOpenHelper {
     }
 
     private void fetchSongs(Playlist playlist, long playlist_id, SQLiteDatabase database) {
-        Cursor c = database.query(TABLE_SONGS, null, KEY_PLAYLIST_ID + "=?", new String[]{Long.toString(playlist_id)}, null, null, KEY_POSITION);
+        Cursor c = database.query(TABLE_SONGS, null, KEY_PLAYLIST_ID + "=?", new String[]{Long.toString(playlist_id)}, null, null, KEY_POSITION + "," + KEY_ID);
+        PlaylistRows rows = new PlaylistRows();
+        boolean needsRenumber = false;
 
         final int ci_id = c.getColumnIndex(KEY_ID);
         final int ci_ref = c.getColumnIndex(KEY_SONG_REF);
         final int ci_pck = c.getColumnIndex(KEY_PACKAGE_NAME);
         final int ci_service = c.getColumnIndex(KEY_SERVICE);
         final int ci_provider = c.getColumnIndex(KEY_PROVIDER);
+        final int ci_position = c.getColumnIndex(KEY_POSITION);
 
         if (c.moveToFirst()) {
             do {
                 final long song_id = c.getLong(ci_id);
+                final long position = c.getLong(ci_position);
                 String song = c.getString(ci_ref);
 
                 playlist.addSong(song);
 
+                // Previous versions could give the same position to several songs
+                final int count = rows.positions.size();
+                needsRenumber = needsRenumber
+                        || (count > 0 && rows.positions.get(count - 1) >= position);
+                rows.ids.add(song_id);
+                rows.positions.add(position);
+
                 ProviderIdentifier providerIdentifier = new ProviderIdentifier(c.getString(ci_pck), c.getString(ci_service), c.getString(ci_provider));
-                mSongRefID.put(playlist.getRef() + ":" + song, song_id);
                 mRefProviderId.put(song, providerIdentifier);
             } while (c.moveToNext());
         }
 
         c.close();
+        mPlaylistRows.put(playlist.getRef(), rows);
+
+        if (needsRenumber) {
+            final SQLiteStatement updatePosition = database.compileStatement(UPDATE_POSITION);
+            database.beginTransaction();
+            try {
+                renumber(rows, updatePosition);
+                database.setTransactionSuccessful();
+            } catch (SQLiteException e) {
+                Log.e(TAG, "Cannot renumber playlist " + playlist.getRef(), e);
+            } finally {
+                database.endTransaction();
+                updatePosition.close();
+            }
+        }
     }
 
     @Override
@@ -197,6 +247,12 @@ public class MultiProviderDatabaseHelper extends SQLiteOpenHelper {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion == 2) {
+            // Positions are respaced when the playlists are fetched
+            db.execSQL(CREATE_INDEX_SONGS);
+            return;
+        }
+
         // We have no migrating plan for now
         db.execSQL("DROP TABLE IF EXISTS " + TABLE_PLAYLIST);
         db.execSQL("DROP TABLE IF EXISTS " + TABLE_SONGS);
@@ -207,7 +263,7 @@ public class MultiProviderDatabaseHelper extends SQLiteOpenHelper {
         return new ArrayList<>(mPlaylists.values());
     }
 
-    public String addPlaylist(String playlist_name) {
+    public synchronized String addPlaylist(String playlist_name) {
         ContentValues cv = new ContentValues();
         cv.put(KEY_PLAYLIST_NAME, playlist_name);
         long playlist_id = mDatabase.insert(TABLE_PLAYLIST, null, cv);
@@ -221,6 +277,8 @@ public class MultiProviderDatabaseHelper extends SQLiteOpenHelper {
 
         mPlaylists.put(pl.getRef(), pl);
         mPlayListRefID.put(pl.getRef(), playlist_id);
+        mPlaylistRows.put(pl.getRef(), new PlaylistRows());
+        mSearchIndex.put(SearchIndex.TYPE_PLAYLIST, pl.getRef(), playlist_name);
 
         mCallback.playlistUpdated(pl);
 
@@ -228,38 +286,81 @@ public class MultiProviderDatabaseHelper extends SQLiteOpenHelper {
     }
 
     public boolean addSongToPlaylist(String songref, String playlistref, ProviderIdentifier providerIdentifier) {
-        final long playlist_id = Long.parseLong(playlistref.substring(playlistref.lastIndexOf(':') + 1));
-
-        Playlist p = mPlaylists.get(playlistref);
+        return addSongsToPlaylist(Collections.singletonList(songref), playlistref, providerIdentifier);
+    }
 
-        ContentValues cv = new ContentValues();
-        cv.put(KEY_PLAYLIST_ID, playlist_id);
-        cv.put(KEY_SONG_REF, songref);
-        cv.put(KEY_PACKAGE_NAME, providerIdentifier.mPackage);
-        cv.put(KEY_SERVICE, providerIdentifier.mService);
-        cv.put(KEY_PROVIDER, providerIdentifier.mName);
-        cv.put(KEY_POSITION, mPlaylists.get(playlistref).songsList().size());
+    /**
+     * Appends songs to a playlist, in a single transaction
+     * @param songRefs The references of the songs to add
+     * @param playlistRef The reference of the playlist
+     * @param providerIdentifier The provider of the songs
+     * @return true if the songs were added
+     */
+    public synchronized boolean addSongsToPlaylist(List<String> songRefs, String playlistRef,
+                                                   ProviderIdentifier providerIdentifier) {
+        final Playlist p = mPlaylists.get(playlistRef);
+        final PlaylistRows rows = mPlaylistRows.get(playlistRef);
+        if (p == null || rows == null) {
+            return false;
+        }
 
-        p.addSong(songref);
+        final long playlist_id = mPlayListRefID.get(playlistRef);
+        final int count = rows.positions.size();
+        long position = count > 0 ? rows.positions.get(count - 1) + POSITION_SPACING : 0;
+        final List<Long> ids = new ArrayList<>(songRefs.size());
+        final List<Long> positions = new ArrayList<>(songRefs.size());
 
-        final long song_id = mDatabase.insert(TABLE_SONGS, null, cv);
+        final SQLiteStatement insertSong = mDatabase.compileStatement(INSERT_SONG);
+        mDatabase.beginTransaction();
+        try {
+            for (String songRef : songRefs) {
+                insertSong.bindLong(1, playlist_id);
+                insertSong.bindString(2, songRef);
+                bindStringOrNull(insertSong, 3, providerIdentifier.mPackage);
+                bindStringOrNull(insertSong, 4, providerIdentifier.mService);
+                bindStringOrNull(insertSong, 5, providerIdentifier.mName);
+                insertSong.bindLong(6, position);
+                ids.add(insertSong.executeInsert());
+                positions.add(position);
+                position += POSITION_SPACING;
+            }
+            mDatabase.setTransactionSuccessful();
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Cannot add songs to playlist " + playlistRef, e);
+            return false;
+        } finally {
+            mDatabase.endTransaction();
+            insertSong.close();
+        }
 
-        mSongRefID.put(playlistref + ":" + songref, song_id);
+        rows.ids.addAll(ids);
+        rows.positions.addAll(positions);
+        for (String songRef : songRefs) {
+            p.addSong(songRef);
+            mRefProviderId.put(songRef, providerIdentifier);
+        }
         mCallback.playlistUpdated(p);
-        mRefProviderId.put(songref, providerIdentifier);
 
         return true;
     }
 
-    public boolean deletePlaylist(String playlistref) {
+    public synchronized boolean deletePlaylist(String playlistref) {
         if (mPlayListRefID.containsKey(playlistref)) {
             long playlist_id = mPlayListRefID.get(playlistref);
-            mDatabase.delete(TABLE_PLAYLIST, KEY_ID + " = ?",
-                    new String[]{String.valueOf(playlist_id)});
-            mDatabase.delete(TABLE_SONGS, KEY_PLAYLIST_ID + " = ?",
-                    new String[]{String.valueOf(playlist_id)});
+            mDatabase.beginTransaction();
+            try {
+                mDatabase.delete(TABLE_PLAYLIST, KEY_ID + " = ?",
+                        new String[]{String.valueOf(playlist_id)});
+                mDatabase.delete(TABLE_SONGS, KEY_PLAYLIST_ID + " = ?",
+                        new String[]{String.valueOf(playlist_id)});
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
             mPlaylists.remove(playlistref);
             mPlayListRefID.remove(playlistref);
+            mPlaylistRows.remove(playlistref);
+            mSearchIndex.remove(SearchIndex.TYPE_PLAYLIST, playlistref);
             mCallback.playlistRemoved(playlistref);
             return true;
         }
@@ -272,73 +373,211 @@ public class MultiProviderDatabaseHelper extends SQLiteOpenHelper {
             ContentValues cv = new ContentValues(1);
             cv.put(KEY_PLAYLIST_NAME, title);
             mDatabase.update(TABLE_PLAYLIST, cv, KEY_PLAYLIST_ID + " = ?", new String[]{String.valueOf(playlist_id)});
+            mSearchIndex.put(SearchIndex.TYPE_PLAYLIST, playlistRef, title);
             return true;
         }
         return false;
     }
 
     public boolean deleteSongFromPlaylist(int songPosition, String playlistRef) {
-        String songRef = mPlaylists.get(playlistRef).songsList().get(songPosition);
-        if (mSongRefID.containsKey(playlistRef + ":" + songRef)) {
-            long song_id = mSongRefID.get(playlistRef + ":" + songRef);
-            mDatabase.delete(TABLE_SONGS, KEY_ID + " = ?",
-                    new String[]{String.valueOf(song_id)});
-            mPlaylists.get(playlistRef).songsList().remove(songPosition);
-            mCallback.playlistUpdated(mPlaylists.get(playlistRef));
+        return deleteSongsFromPlaylist(new int[]{songPosition}, playlistRef);
+    }
+
+    /**
+     * Removes songs from a playlist, in a single transaction. The other songs keep their position.
+     * @param songPositions The indexes of the songs to remove
+     * @param playlistRef The reference of the playlist
+     * @return true if the songs were removed
+     */
+    public synchronized boolean deleteSongsFromPlaylist(int[] songPositions, String playlistRef) {
+        final Playlist p = mPlaylists.get(playlistRef);
+        final PlaylistRows rows = mPlaylistRows.get(playlistRef);
+        if (p == null || rows == null) {
+            return false;
         }
-        return false;
+
+        // Remove from the end so that the indexes left stay valid
+        final int[] sorted = songPositions.clone();
+        Arrays.sort(sorted);
+        for (int index : sorted) {
+            if (index < 0 || index >= rows.ids.size()) {
+                return false;
+            }
+        }
+
+        final SQLiteStatement deleteSong = mDatabase.compileStatement(DELETE_SONG);
+        mDatabase.beginTransaction();
+        try {
+            for (int i = sorted.length - 1; i >= 0; --i) {
+                if (i < sorted.length - 1 && sorted[i] == sorted[i + 1]) {
+                    continue;
+                }
+                deleteSong.bindLong(1, rows.ids.get(sorted[i]));
+                deleteSong.executeUpdateDelete();
+            }
+            mDatabase.setTransactionSuccessful();
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Cannot remove songs from playlist " + playlistRef, e);
+            return false;
+        } finally {
+            mDatabase.endTransaction();
+            deleteSong.close();
+        }
+
+        for (int i = sorted.length - 1; i >= 0; --i) {
+            if (i < sorted.length - 1 && sorted[i] == sorted[i + 1]) {
+                continue;
+            }
+            rows.ids.remove(sorted[i]);
+            rows.positions.remove(sorted[i]);
+            p.songsList().remove(sorted[i]);
+        }
+        mCallback.playlistUpdated(p);
+
+        return true;
     }
 
-    public boolean swapPlaylistItem(int oldPosition, int newPosition, String playlistRef) {
-        String oldSongRef = playlistRef + ":" + mPlaylists.get(playlistRef).songsList().get(oldPosition);
-        String newSongRef = playlistRef + ":" + mPlaylists.get(playlistRef).songsList().get(newPosition);
-        if (mSongRefID.containsKey(oldSongRef) && mSongRefID.containsKey(newSongRef)) {
-            String query = "UPDATE " + TABLE_SONGS + " SET " + KEY_POSITION + "=" + newPosition + " WHERE " + KEY_ID + " = " + mSongRefID.get(oldSongRef);
-            mDatabase.rawQuery(query, null);
-            query = "UPDATE " + TABLE_SONGS + " SET " + KEY_POSITION + "=" + oldPosition + " WHERE " + KEY_ID + " = " + mSongRefID.get(newSongRef);
-            mDatabase.rawQuery(query, null);
-            String oldRef = mPlaylists.get(playlistRef).songsList().get(oldPosition);
-            String newRef = mPlaylists.get(playlistRef).songsList().get(newPosition);
-            mPlaylists.get(playlistRef).songsList().set(oldPosition, newRef);
-            mPlaylists.get(playlistRef).songsList().set(newPosition, oldRef);
-            mCallback.playlistUpdated(mPlaylists.get(playlistRef));
-            return true;
+    /**
+     * Moves a song of a playlist to another index, shifting the songs in between. Only the position
+     * of the moved song is updated, unless the playlist has to be renumbered.
+     * @param oldPosition The current index of the song
+     * @param newPosition The index of the song once moved
+     * @param playlistRef The reference of the playlist
+     * @return true if the song was moved
+     */
+    public synchronized boolean movePlaylistItem(int oldPosition, int newPosition, String playlistRef) {
+        final Playlist p = mPlaylists.get(playlistRef);
+        final PlaylistRows rows = mPlaylistRows.get(playlistRef);
+        if (p == null || rows == null || !isValidIndex(rows, oldPosition)
+                || !isValidIndex(rows, newPosition)) {
+            return false;
         }
-        return false;
+
+        final List<Long> ids = new ArrayList<>(rows.ids);
+        final List<Long> positions = new ArrayList<>(rows.positions);
+        final long id = ids.remove(oldPosition);
+        positions.remove(oldPosition);
+        ids.add(newPosition, id);
+
+        // Take the middle of the neighbours, or renumber if they are contiguous
+        final int count = ids.size();
+        final Long before = newPosition > 0 ? positions.get(newPosition - 1) : null;
+        final Long after = newPosition < count - 1 ? positions.get(newPosition) : null;
+        final boolean renumber = before != null && after != null && after - before < 2;
+        long position = 0;
+        if (before != null && after != null) {
+            position = before + (after - before) / 2;
+        } else if (before != null) {
+            position = before + POSITION_SPACING;
+        } else if (after != null) {
+            position = after - POSITION_SPACING;
+        }
+        positions.add(newPosition, position);
+
+        final PlaylistRows moved = new PlaylistRows();
+        moved.ids.addAll(ids);
+        moved.positions.addAll(positions);
+
+        final SQLiteStatement updatePosition = mDatabase.compileStatement(UPDATE_POSITION);
+        mDatabase.beginTransaction();
+        try {
+            if (renumber) {
+                renumber(moved, updatePosition);
+            } else {
+                updatePosition(updatePosition, id, position);
+            }
+            mDatabase.setTransactionSuccessful();
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Cannot move song in playlist " + playlistRef, e);
+            return false;
+        } finally {
+            mDatabase.endTransaction();
+            updatePosition.close();
+        }
+
+        mPlaylistRows.put(playlistRef, moved);
+        p.songsList().add(newPosition, p.songsList().remove(oldPosition));
+        mCallback.playlistUpdated(p);
+
+        return true;
     }
 
-    public void startSearch(final String query) {
-        if (mSearchResult != null && mSearchResult.getQuery().hashCode() != query.hashCode() || mSearchResult == null) {
-            mSearchResult = new SearchResult(query);
-            final String regex = ".*" + query + ".*";
-            Thread searchThread = new Thread() {
-                public void run() {
-                    Log.d(TAG, "Searching for '" + query + "'");
-                    Pattern p;
-                    try {
-                        p = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
-                    } catch (Exception e) {
-                        return;
-                    }
-
-                    // MultiProvider only handles playlists, so we only search for that
-                    List<String> playlistList = new ArrayList<>();
-
-                    for (Playlist playlist : mPlaylists.values()) {
-                        if (p.matcher(playlist.getName()).matches()) {
-                            playlistList.add(playlist.getRef());
-                        }
-                    }
-                    if (mSearchResult.getQuery().hashCode() == query.hashCode()) {
-                        mSearchResult.setPlaylistList(playlistList);
-                        mCallback.searchFinished(mSearchResult);
-                    }
-                    mSearchResult = null;
-                }
+    public synchronized boolean swapPlaylistItem(int oldPosition, int newPosition, String playlistRef) {
+        final Playlist p = mPlaylists.get(playlistRef);
+        final PlaylistRows rows = mPlaylistRows.get(playlistRef);
+        if (p == null || rows == null || !isValidIndex(rows, oldPosition)
+                || !isValidIndex(rows, newPosition)) {
+            return false;
+        }
+
+        // The songs exchange their positions
+        final long oldId = rows.ids.get(oldPosition);
+        final long newId = rows.ids.get(newPosition);
+        final SQLiteStatement updatePosition = mDatabase.compileStatement(UPDATE_POSITION);
+        mDatabase.beginTransaction();
+        try {
+            updatePosition(updatePosition, oldId, rows.positions.get(newPosition));
+            updatePosition(updatePosition, newId, rows.positions.get(oldPosition));
+            mDatabase.setTransactionSuccessful();
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Cannot swap songs in playlist " + playlistRef, e);
+            return false;
+        } finally {
+            mDatabase.endTransaction();
+            updatePosition.close();
+        }
+
+        rows.ids.set(oldPosition, newId);
+        rows.ids.set(newPosition, oldId);
 
-            };
-            searchThread.start();
+        final List<String> songs = p.songsList();
+        songs.set(oldPosition, songs.set(newPosition, songs.get(oldPosition)));
+        mCallback.playlistUpdated(p);
+        return true;
+    }
+
+    private static boolean isValidIndex(PlaylistRows rows, int index) {
+        return index >= 0 && index < rows.ids.size();
+    }
+
+    /**
+     * Spreads the positions of the songs of a playlist again. Must be called in a transaction.
+     */
+    private static void renumber(PlaylistRows rows, SQLiteStatement updatePosition) {
+        final int count = rows.ids.size();
+        for (int i = 0; i < count; ++i) {
+            final long position = i * POSITION_SPACING;
+            rows.positions.set(i, position);
+            updatePosition(updatePosition, rows.ids.get(i), position);
         }
     }
 
+    private static void updatePosition(SQLiteStatement updatePosition, long id, long position) {
+        updatePosition.bindLong(1, position);
+        updatePosition.bindLong(2, id);
+        updatePosition.executeUpdateDelete();
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    public void startSearch(final String query) {
+        Log.d(TAG, "Searching for '" + query + "'");
+
+        // MultiProvider only handles playlists, so we only search for that
+        mSearchIndex.searchAsync(query, new SearchIndex.SearchListener() {
+            @Override
+            public void onSearchFinished(String query, SearchIndex.Results results) {
+                SearchResult searchResult = new SearchResult(query);
+                searchResult.setPlaylistList(results.getRefs(SearchIndex.TYPE_PLAYLIST));
+                mCallback.searchFinished(searchResult);
+            }
+        });
+    }
+
 }
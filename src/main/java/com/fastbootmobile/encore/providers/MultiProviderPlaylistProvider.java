@@ -247,6 +247,39 @@ public class MultiProviderPlaylistProvider extends IMusicProvider.Stub {
         return mMultiProviderDatabaseHelper.addPlaylist(playlistName);
     }
 
+    /**
+     * Moves a song of a playlist to another index, shifting the songs in between
+     */
+    public boolean movePlaylistItem(int oldPosition, int newPosition, String playlistRef) {
+        return mMultiProviderDatabaseHelper.movePlaylistItem(oldPosition, newPosition, playlistRef);
+    }
+
+    /**
+     * Adds songs to a playlist of a provider. As this provider runs in the app process, the songs
+     * are added to its playlists in a single transaction. Other providers get them one by one.
+     * @param provider The provider of the playlist
+     * @param songRefs The references of the songs to add
+     * @param playlistRef The reference of the playlist
+     * @param providerIdentifier The provider of the songs
+     * @return The number of songs added
+     */
+    public static int addSongsToPlaylist(IMusicProvider provider, List<String> songRefs,
+                                         String playlistRef, ProviderIdentifier providerIdentifier)
+            throws RemoteException {
+        if (provider instanceof MultiProviderPlaylistProvider) {
+            return mMultiProviderDatabaseHelper.addSongsToPlaylist(songRefs, playlistRef,
+                    providerIdentifier) ? songRefs.size() : 0;
+        }
+
+        int count = 0;
+        for (String songRef : songRefs) {
+            if (provider.addSongToPlaylist(songRef, playlistRef, providerIdentifier)) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
     @Override
     public List<Genre> getGenres() {
         return null;
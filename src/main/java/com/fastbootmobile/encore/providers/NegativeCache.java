@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the references a provider failed to return. This avoids calling the provider
+ * again for dead references (in queues, playlists or the listen history) on every render, until
+ * the entry expires or the provider sends an update for that reference.
+ */
+public class NegativeCache {
+    private static final int MAX_ENTRIES = 2000;
+    private static final long TTL = 5 * 60 * 1000;
+
+    private final LinkedHashMap<String, Long> mEntries;
+
+    public NegativeCache() {
+        mEntries = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    /**
+     * Records that the provider returned nothing for the provided reference
+     * @param provider The provider identifier
+     * @param ref The reference of the entity
+     */
+    public synchronized void put(ProviderIdentifier provider, String ref) {
+        mEntries.put(getKey(provider.serialize(), ref), SystemClock.elapsedRealtime() + TTL);
+    }
+
+    /**
+     * @param provider The provider identifier
+     * @param ref The reference of the entity
+     * @return true if the provider recently returned nothing for this reference
+     */
+    public synchronized boolean contains(ProviderIdentifier provider, String ref) {
+        final String key = getKey(provider.serialize(), ref);
+        final Long expiry = mEntries.get(key);
+
+        if (expiry == null) {
+            return false;
+        } else if (expiry < SystemClock.elapsedRealtime()) {
+            mEntries.remove(key);
+            return false;
+        } else {
+            return true;
+        }
+    }
+
+    /**
+     * Forgets the failure recorded for the provided reference
+     * @param provider The provider identifier
+     * @param ref The reference of the entity
+     */
+    public synchronized void remove(ProviderIdentifier provider, String ref) {
+        if (provider != null && ref != null) {
+            mEntries.remove(getKey(provider.serialize(), ref));
+        }
+    }
+
+    /**
+     * Forgets all the failures recorded for the provided provider
+     * @param provider The provider identifier
+     */
+    public synchronized void removeProvider(ProviderIdentifier provider) {
+        final String prefix = getKey(provider.serialize(), "");
+        Iterator<String> it = mEntries.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    private static String getKey(String provider, String ref) {
+        return provider + "/" + ref;
+    }
+}
@@ -35,6 +35,7 @@ import com.fastbootmobile.encore.model.Playlist;
 import com.fastbootmobile.encore.model.SearchResult;
 import com.fastbootmobile.encore.model.Song;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -49,9 +50,10 @@ import java.util.concurrent.ThreadPoolExecutor;
 public class ProviderAggregator extends IProviderCallback.Stub {
     private static final String TAG = "ProviderAggregator";
     private static final int PROPAGATION_DELAY = 200;
+    private static final int SNAPSHOT_DELAY = 10000;
     private static final boolean DEBUG = false;
 
-    private final Map<String, List<SearchResult>> mCachedSearches;
+    private final SearchCache mSearchCache;
     private final List<ILocalCallback> mUpdateCallbacks;
     private final List<ProviderConnection> mProviders;
     private ProviderCache mCache;
@@ -68,6 +70,12 @@ public class ProviderAggregator extends IProviderCallback.Stub {
     private Context mContext;
     private boolean mIsOfflineMode = false;
     private List<OfflineModeListener> mOfflineModeListeners = new ArrayList<>();
+    private ProviderCacheStore mCacheStore;
+    private final Map<String, ProviderIdentifier> mDirtySnapshots = new HashMap<>();
+    private final RequestCoalescer<Song> mSongRequests = new RequestCoalescer<>();
+    private final RequestCoalescer<Album> mAlbumRequests = new RequestCoalescer<>();
+    private final RequestCoalescer<Artist> mArtistRequests = new RequestCoalescer<>();
+    private final NegativeCache mNegativeCache = new NegativeCache();
 
     private Runnable mPostSongsRunnable = new Runnable() {
         @Override
@@ -126,6 +134,29 @@ public class ProviderAggregator extends IProviderCallback.Stub {
     };
 
 
+    private Runnable mSaveSnapshotsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final List<ProviderIdentifier> providers;
+            synchronized (mDirtySnapshots) {
+                providers = new ArrayList<>(mDirtySnapshots.values());
+                mDirtySnapshots.clear();
+            }
+
+            final ProviderCacheStore store = mCacheStore;
+            if (store != null) {
+                for (final ProviderIdentifier id : providers) {
+                    mExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            store.save(id, mCache);
+                        }
+                    });
+                }
+            }
+        }
+    };
+
     private Runnable mUpdatePlaylistsRunnable = new Runnable() {
         @Override
         public void run() {
@@ -211,7 +242,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
         mProviders = new ArrayList<>();
         mCache = new ProviderCache();
         mMainHandler = new Handler();
-        mCachedSearches = new HashMap<>();
+        mSearchCache = new SearchCache();
         mBackHandlerThread = new HandlerThread("ProviderAggregator");
         mBackHandlerThread.start();
         mBackHandler = new Handler(mBackHandlerThread.getLooper());
@@ -225,6 +256,8 @@ public class ProviderAggregator extends IProviderCallback.Stub {
 
     public void setContext(Context ctx) {
         mContext = ctx;
+        mCacheStore = new ProviderCacheStore(new File(ctx.getCacheDir(), "providers"));
+        mCache.setStore(mCacheStore);
     }
 
     /**
@@ -266,6 +299,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                 for (Song song : songs) {
                     mCache.putSong(provider.getIdentifier(), song);
                 }
+                scheduleSnapshot(provider.getIdentifier());
             }
         });
     }
@@ -282,6 +316,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                     }
                     mCache.putAlbum(provider.getIdentifier(), album);
                 }
+                scheduleSnapshot(provider.getIdentifier());
             }
         });
     }
@@ -326,18 +361,48 @@ public class ProviderAggregator extends IProviderCallback.Stub {
         // Try from cache
         Song output = mCache.getSong(ref);
 
-        if (output == null && provider != null) {
+        if (output != null) {
+            mSongRequests.recordHit();
+            if (provider != null && mCache.clearStale(ref)) {
+                mExecutor.execute(new StaleRefresh(ref, provider) {
+                    @Override
+                    boolean refresh(IMusicProvider binder) throws RemoteException {
+                        final Song song = binder.getSong(mRef);
+                        if (song != null) {
+                            onSongUpdate(mProvider, song);
+                        }
+                        return song != null;
+                    }
+
+                    @Override
+                    void drop() {
+                        mCache.removeSong(mRef);
+                    }
+                });
+            }
+        } else if (provider != null && mNegativeCache.contains(provider, ref)) {
+            // The provider recently told us it doesn't have this song
+            return null;
+        } else if (provider != null) {
             // Get from provider then
             ProviderConnection pc = PluginsLookup.getDefault().getProvider(provider);
             if (pc != null) {
-                IMusicProvider binder = pc.getBinder();
+                final IMusicProvider binder = pc.getBinder();
 
                 if (binder != null) {
                     try {
-                        output = binder.getSong(ref);
-                        if (output != null) {
-                            onSongUpdate(provider, output);
-                        }
+                        output = mSongRequests.execute(provider, ref, new RequestCoalescer.Loader<Song>() {
+                            @Override
+                            public Song load() throws RemoteException {
+                                Song song = binder.getSong(ref);
+                                if (song != null) {
+                                    onSongUpdate(provider, song);
+                                } else {
+                                    mNegativeCache.put(provider, ref);
+                                }
+                                return song;
+                            }
+                        });
                     } catch (DeadObjectException e) {
                         Log.e(TAG, "Provider died while retrieving song");
                         return null;
@@ -380,15 +445,44 @@ public class ProviderAggregator extends IProviderCallback.Stub {
 
         // Try from cache
         Artist output = mCache.getArtist(ref);
-        if (output == null && provider != null) {
+        if (output != null) {
+            mArtistRequests.recordHit();
+            if (provider != null && mCache.clearStale(ref)) {
+                mExecutor.execute(new StaleRefresh(ref, provider) {
+                    @Override
+                    boolean refresh(IMusicProvider binder) throws RemoteException {
+                        final Artist artist = binder.getArtist(mRef);
+                        if (artist != null) {
+                            onArtistUpdate(mProvider, artist);
+                        }
+                        return artist != null;
+                    }
+
+                    @Override
+                    void drop() {
+                        mCache.removeArtist(mRef);
+                    }
+                });
+            }
+        } else if (provider != null && !mNegativeCache.contains(provider, ref)) {
             ProviderConnection pc = PluginsLookup.getDefault().getProvider(provider);
             if (pc != null) {
-                IMusicProvider binder = pc.getBinder();
+                final IMusicProvider binder = pc.getBinder();
 
                 if (binder != null) {
                     try {
-                        output = binder.getArtist(ref);
-                        onArtistUpdate(provider, output);
+                        output = mArtistRequests.execute(provider, ref, new RequestCoalescer.Loader<Artist>() {
+                            @Override
+                            public Artist load() throws RemoteException {
+                                Artist artist = binder.getArtist(ref);
+                                if (artist != null) {
+                                    onArtistUpdate(provider, artist);
+                                } else {
+                                    mNegativeCache.put(provider, ref);
+                                }
+                                return artist;
+                            }
+                        });
                     } catch (DeadObjectException e) {
                         Log.e(TAG, "Provider died while retrieving artist");
                         return null;
@@ -424,15 +518,44 @@ public class ProviderAggregator extends IProviderCallback.Stub {
         // Try from cache
         Album output = mCache.getAlbum(ref);
 
-        if (output == null && provider != null) {
+        if (output != null) {
+            mAlbumRequests.recordHit();
+            if (provider != null && mCache.clearStale(ref)) {
+                mExecutor.execute(new StaleRefresh(ref, provider) {
+                    @Override
+                    boolean refresh(IMusicProvider binder) throws RemoteException {
+                        final Album album = binder.getAlbum(mRef);
+                        if (album != null) {
+                            onAlbumUpdate(mProvider, album);
+                        }
+                        return album != null;
+                    }
+
+                    @Override
+                    void drop() {
+                        mCache.removeAlbum(mRef);
+                    }
+                });
+            }
+        } else if (provider != null && !mNegativeCache.contains(provider, ref)) {
             ProviderConnection pc = PluginsLookup.getDefault().getProvider(provider);
             if (pc != null) {
-                IMusicProvider binder = pc.getBinder();
+                final IMusicProvider binder = pc.getBinder();
 
                 if (binder != null) {
                     try {
-                        output = binder.getAlbum(ref);
-                        onAlbumUpdate(provider, output);
+                        output = mAlbumRequests.execute(provider, ref, new RequestCoalescer.Loader<Album>() {
+                            @Override
+                            public Album load() throws RemoteException {
+                                Album album = binder.getAlbum(ref);
+                                if (album != null) {
+                                    onAlbumUpdate(provider, album);
+                                } else {
+                                    mNegativeCache.put(provider, ref);
+                                }
+                                return album;
+                            }
+                        });
                     } catch (DeadObjectException e) {
                         Log.e(TAG, "Provider died while retrieving album");
                     } catch (RemoteException e) {
@@ -466,7 +589,23 @@ public class ProviderAggregator extends IProviderCallback.Stub {
         // Try from cache
         Playlist output = mCache.getPlaylist(ref);
 
-        if (output == null && provider != null) {
+        if (output != null && provider != null && mCache.clearStale(ref)) {
+            mExecutor.execute(new StaleRefresh(ref, provider) {
+                @Override
+                boolean refresh(IMusicProvider binder) throws RemoteException {
+                    final Playlist playlist = binder.getPlaylist(mRef);
+                    if (playlist != null) {
+                        onPlaylistAddedOrUpdated(mProvider, playlist);
+                    }
+                    return playlist != null;
+                }
+
+                @Override
+                void drop() {
+                    mCache.removePlaylist(mRef);
+                }
+            });
+        } else if (output == null && provider != null) {
             ProviderConnection pc = PluginsLookup.getDefault().getProvider(provider);
             if (pc != null) {
                 IMusicProvider binder = pc.getBinder();
@@ -485,6 +624,170 @@ public class ProviderAggregator extends IProviderCallback.Stub {
         return output;
     }
 
+    /**
+     * Fetches again an entity restored from a snapshot, once it is accessed. The cached copy is
+     * served meanwhile, and is dropped if the provider doesn't have the entity anymore.
+     */
+    private abstract class StaleRefresh implements Runnable {
+        final String mRef;
+        final ProviderIdentifier mProvider;
+
+        StaleRefresh(String ref, ProviderIdentifier provider) {
+            mRef = ref;
+            mProvider = provider;
+        }
+
+        /**
+         * Fetches the entity and updates the cache with it
+         * @return false if the provider doesn't have the entity anymore
+         */
+        abstract boolean refresh(IMusicProvider binder) throws RemoteException;
+
+        /**
+         * Removes the entity from the cache
+         */
+        abstract void drop();
+
+        @Override
+        public void run() {
+            final ProviderConnection pc = PluginsLookup.getDefault().getProvider(mProvider);
+            final IMusicProvider binder = pc != null ? pc.getBinder() : null;
+            if (binder == null) {
+                // Try again on the next access, once the provider is connected
+                mCache.markStale(mRef);
+                return;
+            }
+
+            try {
+                if (!refresh(binder)) {
+                    drop();
+                    mNegativeCache.put(mProvider, mRef);
+                    scheduleSnapshot(mProvider);
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "Unable to refresh restored entity " + mRef, e);
+                mCache.markStale(mRef);
+            }
+        }
+    }
+
+    /**
+     * @return The cache of the references providers failed to return
+     */
+    public NegativeCache getNegativeCache() {
+        return mNegativeCache;
+    }
+
+    /**
+     * @return The hit, miss and coalesced counters of the song lookups
+     */
+    public RequestCoalescer<Song> getSongRequests() {
+        return mSongRequests;
+    }
+
+    /**
+     * @return The hit, miss and coalesced counters of the album lookups
+     */
+    public RequestCoalescer<Album> getAlbumRequests() {
+        return mAlbumRequests;
+    }
+
+    /**
+     * @return The hit, miss and coalesced counters of the artist lookups
+     */
+    public RequestCoalescer<Artist> getArtistRequests() {
+        return mArtistRequests;
+    }
+
+    /**
+     * Retrieves a list of songs, serving the cached ones directly and fetching the missing ones
+     * from their provider. IMusicProvider only exposes single-item getters, so the missing songs
+     * are fetched one by one through {@link #retrieveSong(String, ProviderIdentifier)}.
+     *
+     * @param refs     The references of the songs
+     * @param provider The provider from which retrieve the songs. If null, the provider is
+     *                 looked up from the cache for each reference.
+     * @return A map of the songs that could be retrieved, keyed by reference
+     */
+    public Map<String, Song> retrieveSongs(final List<String> refs, final ProviderIdentifier provider) {
+        return retrieveSongs(mapProviders(refs, provider));
+    }
+
+    /**
+     * Retrieves a list of songs coming from multiple providers
+     *
+     * @param refs The references of the songs, mapped to the provider of each song
+     * @return A map of the songs that could be retrieved, keyed by reference
+     */
+    public Map<String, Song> retrieveSongs(final Map<String, ProviderIdentifier> refs) {
+        final Map<String, Song> output = new HashMap<>();
+        for (Map.Entry<String, ProviderIdentifier> entry : refs.entrySet()) {
+            if (entry.getKey() != null) {
+                final Song song = retrieveSong(entry.getKey(), entry.getValue());
+                if (song != null) {
+                    output.put(entry.getKey(), song);
+                }
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Retrieves a list of albums, serving the cached ones directly and fetching the missing ones
+     * from their provider one by one.
+     *
+     * @param refs     The references of the albums
+     * @param provider The provider from which retrieve the albums. If null, the provider is
+     *                 looked up from the cache for each reference.
+     * @return A map of the albums that could be retrieved, keyed by reference
+     */
+    public Map<String, Album> retrieveAlbums(final List<String> refs, final ProviderIdentifier provider) {
+        final Map<String, Album> output = new HashMap<>();
+        for (Map.Entry<String, ProviderIdentifier> entry : mapProviders(refs, provider).entrySet()) {
+            final Album album = retrieveAlbum(entry.getKey(), entry.getValue());
+            if (album != null) {
+                output.put(entry.getKey(), album);
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Retrieves a list of artists, serving the cached ones directly and fetching the missing
+     * ones from their provider one by one.
+     *
+     * @param refs     The references of the artists
+     * @param provider The provider from which retrieve the artists. If null, the provider is
+     *                 looked up from the cache for each reference.
+     * @return A map of the artists that could be retrieved, keyed by reference
+     */
+    public Map<String, Artist> retrieveArtists(final List<String> refs, final ProviderIdentifier provider) {
+        final Map<String, Artist> output = new HashMap<>();
+        for (Map.Entry<String, ProviderIdentifier> entry : mapProviders(refs, provider).entrySet()) {
+            final Artist artist = retrieveArtist(entry.getKey(), entry.getValue());
+            if (artist != null) {
+                output.put(entry.getKey(), artist);
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Maps each reference to the provided provider, or to the provider it is cached for
+     */
+    private Map<String, ProviderIdentifier> mapProviders(List<String> refs,
+                                                         ProviderIdentifier provider) {
+        final Map<String, ProviderIdentifier> providers = new HashMap<>();
+        if (refs != null) {
+            for (String ref : refs) {
+                if (ref != null) {
+                    providers.put(ref, provider != null ? provider : mCache.getRefProvider(ref));
+                }
+            }
+        }
+        return providers;
+    }
+
     /**
      * Queries in a thread the songs of the list of playlist passed in parameter, if needed
      * Note that this method is only valid for playlists that have been provided by a provider.
@@ -532,24 +835,16 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                             continue;
                         }
 
-                        // Get the song from the provider
-                        Song song = null;
+                        // Get the song from the provider. If it isn't loaded yet, we assume that
+                        // the provider will call songUpdated when it has the data for the track.
                         try {
-                            song = binder.getSong(songRef);
+                            Song song = binder.getSong(songRef);
+                            if (song != null) {
+                                onSongUpdate(provider.getIdentifier(), song);
+                            }
                         } catch (RemoteException e) {
                             // ignore, provider likely died, we just skip its song
                         }
-
-                        if (song != null) {
-                            mCache.putSong(provider.getIdentifier(), song);
-
-                            // We call the songUpdate callback only if the track has been loaded.
-                            // If it's not, we assume that the provider will call songUpdated
-                            // here when it has the data for the track.
-                            if (song.isLoaded()) {
-                                postSongForUpdate(song);
-                            }
-                        }
                     }
                 }
             }
@@ -569,6 +864,17 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                     mProviders.add(provider);
                 }
 
+                // Cached searches don't have the results of this provider
+                mSearchCache.clear();
+
+                // Restore the last known state of the provider library, if we have one
+                final ProviderIdentifier id = provider.getIdentifier();
+                final boolean restored = mCacheStore != null && !mCache.hasSongsForProvider(id)
+                        && mCacheStore.load(id, mCache);
+                if (restored) {
+                    postRestoredEntities(id);
+                }
+
                 try {
                     IMusicProvider binder = provider.getBinder();
 
@@ -594,6 +900,13 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                                 cb.onProviderConnected(binder);
                             }
                         }
+
+                        // Reconcile the restored library with the provider. The entities it
+                        // doesn't list are refreshed when they are accessed.
+                        if (restored) {
+                            mBackHandler.removeCallbacks(mUpdatePlaylistsRunnable);
+                            mBackHandler.post(mUpdatePlaylistsRunnable);
+                        }
                     }
                 } catch (RemoteException e) {
                     // Maybe the service died already?
@@ -625,11 +938,63 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                     }
                 }
 
-                mCache.purgeCacheForProvider(provider.getIdentifier());
+                // Flush pending changes to disk before dropping the provider from memory, the
+                // snapshot will be used when the provider connects again
+                final ProviderIdentifier id = provider.getIdentifier();
+                final boolean dirty;
+                synchronized (mDirtySnapshots) {
+                    dirty = mDirtySnapshots.remove(id.serialize()) != null;
+                }
+                if (dirty && mCacheStore != null) {
+                    mCacheStore.save(id, mCache);
+                }
+
+                mCache.purgeCacheForProvider(id, false);
+                mNegativeCache.removeProvider(id);
+                mSearchCache.clear();
             }
         });
     }
 
+    /**
+     * Notifies the callbacks of the entities that have been restored from the on-disk snapshot
+     * of the provided provider
+     *
+     * @param id The provider identifier
+     */
+    private void postRestoredEntities(ProviderIdentifier id) {
+        for (Song song : mCache.getSongsForProvider(id)) {
+            postSongForUpdate(song);
+        }
+        for (Album album : mCache.getAlbumsForProvider(id)) {
+            postAlbumForUpdate(album);
+        }
+        for (Artist artist : mCache.getArtistsForProvider(id)) {
+            postArtistForUpdate(artist);
+        }
+        for (Playlist playlist : mCache.getPlaylistsForProvider(id)) {
+            postPlaylistForUpdate(playlist);
+        }
+    }
+
+    /**
+     * Schedules a write of the on-disk snapshot of the provided provider. Writes are delayed
+     * so that bursts of updates only cause one write.
+     *
+     * @param id The provider identifier
+     */
+    private void scheduleSnapshot(ProviderIdentifier id) {
+        if (id == null || mCacheStore == null) {
+            return;
+        }
+
+        synchronized (mDirtySnapshots) {
+            mDirtySnapshots.put(id.serialize(), id);
+        }
+        mBackHandler.removeCallbacks(mSaveSnapshotsRunnable);
+        mBackHandler.postDelayed(mSaveSnapshotsRunnable, SNAPSHOT_DELAY);
+    }
+
     /**
      * Notify the providers that the offline mode has changed. Unlike isOfflineMode, this method
      * is only called when the user toggles Offline mode in the main activity overflow menu.
@@ -692,10 +1057,18 @@ public class ProviderAggregator extends IProviderCallback.Stub {
     }
 
     /**
-     * Starts a search. Results will be given in onSearchResults
+     * Starts a search. Results will be given in onSearchResults.
      * @param query The terms to look for
+     * @return The results already known for this query, or narrowed from a shorter query it starts
+     * with, to show while the providers search. They aren't given to the callbacks, as they are
+     * not a provider response. Null if there is none.
      */
-    public void startSearch(final String query) {
+    public List<SearchResult> startSearch(final String query) {
+        List<SearchResult> known = mSearchCache.get(query);
+        if (known == null) {
+            known = getPrefixSearchResults(query);
+        }
+
         List<ProviderConnection> providers = PluginsLookup.getDefault().getAvailableProviders();
         for (ProviderConnection providerConnection : providers) {
             try {
@@ -709,6 +1082,88 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                 Log.e(TAG, "Cannot run search on a provider", e);
             }
         }
+
+        return known;
+    }
+
+    /**
+     * @param query The terms searched
+     * @return All the results of the query received so far, one per provider, or null if the query
+     * isn't cached
+     */
+    public List<SearchResult> getCachedSearch(final String query) {
+        return mSearchCache.get(query);
+    }
+
+    /**
+     * Narrows the cached results of the longest cached prefix of the query (e.g. "beat" while
+     * typing "beatles") to the entities whose name contains the query. They are not cached for
+     * the query, as only the providers know what actually matches it.
+     * @return The narrowed results, or null if no prefix of the query is cached
+     */
+    private List<SearchResult> getPrefixSearchResults(final String query) {
+        final String prefix = mSearchCache.getLongestPrefix(query);
+        final List<SearchResult> prefixResults = prefix != null ? mSearchCache.get(prefix) : null;
+        if (prefixResults == null) {
+            return null;
+        }
+
+        final String foldedQuery = SearchIndex.fold(query);
+        final List<SearchResult> results = new ArrayList<>(prefixResults.size());
+        for (SearchResult prefixResult : prefixResults) {
+            final List<String> songs = new ArrayList<>();
+            for (String ref : prefixResult.getSongsList()) {
+                final Song song = mCache.getSong(ref);
+                if (song != null && matchesName(song.getTitle(), foldedQuery)) {
+                    songs.add(ref);
+                }
+            }
+
+            final List<String> albums = new ArrayList<>();
+            for (String ref : prefixResult.getAlbumsList()) {
+                final Album album = mCache.getAlbum(ref);
+                if (album != null && matchesName(album.getName(), foldedQuery)) {
+                    albums.add(ref);
+                }
+            }
+
+            final List<String> artists = new ArrayList<>();
+            for (String ref : prefixResult.getArtistList()) {
+                final Artist artist = mCache.getArtist(ref);
+                if (artist != null && matchesName(artist.getName(), foldedQuery)) {
+                    artists.add(ref);
+                }
+            }
+
+            final List<String> playlists = new ArrayList<>();
+            for (String ref : prefixResult.getPlaylistList()) {
+                final Playlist playlist = mCache.getPlaylist(ref);
+                if (playlist != null && matchesName(playlist.getName(), foldedQuery)) {
+                    playlists.add(ref);
+                }
+            }
+
+            SearchResult result = new SearchResult(query);
+            result.setIdentifier(prefixResult.getIdentifier());
+            result.setSongsList(songs);
+            result.setAlbumsList(albums);
+            result.setArtistList(artists);
+            result.setPlaylistList(playlists);
+            results.add(result);
+        }
+        return results;
+    }
+
+    private static boolean matchesName(String name, String foldedQuery) {
+        return name != null && SearchIndex.fold(name).contains(foldedQuery);
+    }
+
+    private void notifySearchResults(List<SearchResult> results) {
+        synchronized (mUpdateCallbacks) {
+            for (ILocalCallback cb : mUpdateCallbacks) {
+                cb.onSearchResult(results);
+            }
+        }
     }
 
     /**
@@ -793,6 +1248,9 @@ public class ProviderAggregator extends IProviderCallback.Stub {
         // Request playlists if we logged in
         Log.d(TAG, "onLoggedIn(" + success + ")");
         if (success) {
+            // References may have become available with the new session
+            mNegativeCache.removeProvider(provider);
+
             // Cache data
             mBackHandler.removeCallbacks(mUpdatePlaylistsRunnable);
             mBackHandler.post(mUpdatePlaylistsRunnable);
@@ -828,6 +1286,8 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             return;
         }
 
+        mCache.clearStale(p.getRef());
+
         try {
             // We compare the provided copy with the one we have in cache. We only notify the callbacks
             // if it indeed changed.
@@ -873,6 +1333,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
 
             // If something has actually changed
             if (notify) {
+                scheduleSnapshot(provider);
                 mExecutor.execute(new Runnable() {
                     @Override
                     public void run() {
@@ -904,6 +1365,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
     public void onPlaylistRemoved(ProviderIdentifier provider, String ref) throws RemoteException {
         if (ref != null) {
             mCache.removePlaylist(ref);
+            scheduleSnapshot(provider);
         }
 
         synchronized (mUpdateCallbacks) {
@@ -923,6 +1385,9 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             return;
         }
 
+        mNegativeCache.remove(provider, s.getRef());
+        mCache.clearStale(s.getRef());
+
         try {
             Song cached = mCache.getSong(s.getRef());
             boolean wasLoaded = false;
@@ -968,6 +1433,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             }
 
             if (changed) {
+                scheduleSnapshot(provider);
                 postSongForUpdate(cached);
             }
         } catch (Exception e) {
@@ -990,6 +1456,9 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             return;
         }
 
+        mNegativeCache.remove(provider, a.getRef());
+        mCache.clearStale(a.getRef());
+
         Album cached = mCache.getAlbum(a.getRef());
         boolean modified = false;
 
@@ -1044,6 +1513,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                 }
             }
 
+            scheduleSnapshot(provider);
             postAlbumForUpdate(cached);
         }
     }
@@ -1058,10 +1528,14 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             return;
         }
 
+        mNegativeCache.remove(provider, a.getRef());
+        mCache.clearStale(a.getRef());
+
         Artist cached = mCache.getArtist(a.getRef());
 
         if (cached == null) {
             mCache.putArtist(provider, a);
+            scheduleSnapshot(provider);
             postArtistForUpdate(a);
         } else if (!cached.isIdentical(a)) {
             cached.setName(a.getName());
@@ -1070,6 +1544,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                 cached.addAlbum(it.next());
             }
             cached.setIsLoaded(a.isLoaded());
+            scheduleSnapshot(provider);
             postArtistForUpdate(a);
         }
     }
@@ -1102,67 +1577,12 @@ public class ProviderAggregator extends IProviderCallback.Stub {
         Log.d(TAG, "Got new search results for '" + searchResult.getQuery()
                 + "' from " + searchResult.getIdentifier().mName);
 
-        final String query = searchResult.getQuery();
-
-        if (!mCachedSearches.containsKey(query)) {
-            // No cached results for this query, add this one
-            Log.d(TAG, "New search cache for '" + query + "'");
-            List<SearchResult> results = new ArrayList<>();
-            results.add(searchResult);
-            mCachedSearches.put(query, results);
-
-            // Feed results to the callback
-            synchronized (mUpdateCallbacks) {
-                for (ILocalCallback cb : mUpdateCallbacks) {
-                    cb.onSearchResult(results);
-                }
-            }
-        } else {
-            // We already have cached results for this query, add new results
-            Log.d(TAG, "Updating search result for '" + query + "'");
-            List<SearchResult> cachedResults = mCachedSearches.get(query);
-
-            SearchResult cachedResult = null;
-            for (SearchResult tmpResult : cachedResults) {
-                if (tmpResult.getIdentifier().equals(searchResult.getIdentifier())) {
-                    cachedResult = tmpResult;
-                }
-            }
-
-            if (cachedResult == null) {
-                cachedResults.add(searchResult);
-            } else {
-                cachedResult.setIdentifier(searchResult.getIdentifier());
-                for (String song : searchResult.getSongsList()) {
-                    if (!cachedResult.getSongsList().contains(song)) {
-                        cachedResult.getSongsList().add(song);
-                    }
-                }
-                for (String artist : searchResult.getArtistList()) {
-                    if (!cachedResult.getArtistList().contains(artist)) {
-                        cachedResult.getArtistList().add(artist);
-                    }
-                }
-                for (String album : searchResult.getAlbumsList()) {
-                    if (!cachedResult.getAlbumsList().contains(album)) {
-                        cachedResult.getAlbumsList().add(album);
-                    }
-                }
-                for (String playlist : searchResult.getPlaylistList()) {
-                    if (!cachedResult.getPlaylistList().contains(playlist)) {
-                        cachedResult.getPlaylistList().add(playlist);
-                    }
-                }
-            }
-
-            // Feed updated results to the callbacks
-            synchronized (mUpdateCallbacks) {
-                for (ILocalCallback cb : mUpdateCallbacks) {
-                    cb.onSearchResult(cachedResults);
-                }
-            }
-        }
-
+        // Only the hits that are new for this query are given to the callbacks. The notification
+        // is sent even if there is none, so that callbacks know the provider answered.
+        final SearchResult newResults = mSearchCache.merge(searchResult);
+        final List<SearchResult> results = new ArrayList<>(1);
+        results.add(newResults);
+        notifySearchResults(results);
     }
 
     /**
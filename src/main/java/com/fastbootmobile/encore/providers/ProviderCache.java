@@ -6,13 +6,17 @@ import com.fastbootmobile.encore.model.Playlist;
 import com.fastbootmobile.encore.model.Song;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
- * Caches information gotten by providers
+ * Caches information gotten by providers. All the maps are concurrent, so lookups never block,
+ * and each entity type keeps a reverse index of the references owned by each provider so that
+ * purging a provider only walks that provider's entries.
  */
 public class ProviderCache {
     private final Map<String, Playlist> mPlaylists;
@@ -22,100 +26,163 @@ public class ProviderCache {
     private final Map<String, Artist> mArtists;
     private final List<Playlist> mMultiProviderPlaylists;
 
+    private final ProviderIndex mPlaylistsIndex;
+    private final ProviderIndex mSongsIndex;
+    private final ProviderIndex mAlbumsIndex;
+    private final ProviderIndex mArtistsIndex;
+
+    // References of the entities restored from a snapshot that the provider didn't return since
+    private final Set<String> mStaleRefs;
+
+    private ProviderCacheStore mStore;
+
     /**
      * Default constructor
      */
     public ProviderCache() {
-        mPlaylists = new HashMap<>();
-        mSongs = new HashMap<>();
-        mRefProvider = new HashMap<>();
-        mAlbums = new HashMap<>();
-        mArtists = new HashMap<>();
-        mMultiProviderPlaylists = new ArrayList<>();
+        mPlaylists = new ConcurrentHashMap<>();
+        mSongs = new ConcurrentHashMap<>();
+        mRefProvider = new ConcurrentHashMap<>();
+        mAlbums = new ConcurrentHashMap<>();
+        mArtists = new ConcurrentHashMap<>();
+        mMultiProviderPlaylists = new CopyOnWriteArrayList<>();
+
+        mPlaylistsIndex = new ProviderIndex();
+        mSongsIndex = new ProviderIndex();
+        mAlbumsIndex = new ProviderIndex();
+        mArtistsIndex = new ProviderIndex();
+
+        mStaleRefs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     }
 
     /**
-     * Purges the cache in case the provider may change for the specified provider
+     * Sets the on-disk store holding the snapshots of this cache
+     * @param store The store, or null to disable persistence
+     */
+    public void setStore(ProviderCacheStore store) {
+        mStore = store;
+    }
+
+    /**
+     * Purges the cache in case the provider may change for the specified provider. The on-disk
+     * snapshot of the provider is invalidated as well.
      */
     public void purgeCacheForProvider(ProviderIdentifier id) {
-        List<String> keysToRemove;
+        purgeCacheForProvider(id, true);
+    }
 
-        // Playlists
-        synchronized (mPlaylists) {
-            Set<Map.Entry<String, Playlist>> playlists = mPlaylists.entrySet();
-            keysToRemove = new ArrayList<>();
+    /**
+     * Purges the cache for the specified provider
+     * @param id The provider identifier
+     * @param invalidateSnapshot Whether or not the on-disk snapshot of the provider should be
+     *                           dropped as well. Pass false when the provider is only
+     *                           disconnecting, so that its data can be restored on next start.
+     */
+    public void purgeCacheForProvider(ProviderIdentifier id, boolean invalidateSnapshot) {
+        if (id == null) {
+            return;
+        }
 
-            for (Map.Entry<String, Playlist> item : playlists) {
-                if (item.getValue().getProvider().equals(id)) {
-                    keysToRemove.add(item.getKey());
-                }
-            }
+        purgeIndex(mPlaylistsIndex, mPlaylists, id);
+        purgeIndex(mSongsIndex, mSongs, id);
+        purgeIndex(mAlbumsIndex, mAlbums, id);
+        purgeIndex(mArtistsIndex, mArtists, id);
 
+        final ProviderCacheStore store = mStore;
+        if (invalidateSnapshot && store != null) {
+            store.invalidate(id);
+        }
+    }
 
-            for (String key : keysToRemove) {
-                mPlaylists.remove(key);
+    private void purgeIndex(ProviderIndex index, Map<String, ?> entries, ProviderIdentifier id) {
+        Set<String> refs = index.removeProvider(id);
+        if (refs != null) {
+            for (String ref : refs) {
+                entries.remove(ref);
+                mRefProvider.remove(ref);
+                mStaleRefs.remove(ref);
             }
         }
+    }
 
-        // Songs
-        synchronized (mSongs) {
-            Set<Map.Entry<String, Song>> songs = mSongs.entrySet();
-            keysToRemove.clear();
+    /**
+     * Marks an entity restored from a snapshot as stale: it may have changed or disappeared
+     * while the provider wasn't connected. The mark is cleared once the provider returns the
+     * entity again.
+     * @param ref The reference of the entity
+     */
+    public void markStale(final String ref) {
+        mStaleRefs.add(ref);
+    }
 
-            for (Map.Entry<String, Song> item : songs) {
-                if (item.getValue().getProvider() != null
-                        && item.getValue().getProvider().equals(id)) {
-                    keysToRemove.add(item.getKey());
-                }
-            }
+    /**
+     * Clears the stale mark of an entity
+     * @param ref The reference of the entity
+     * @return true if the entity was marked as stale, false otherwise
+     */
+    public boolean clearStale(final String ref) {
+        return mStaleRefs.remove(ref);
+    }
 
+    /**
+     * Returns the provider owning the entity with the provided reference
+     * @param ref The reference of the entity
+     * @return The identifier of the provider, or null if the reference isn't cached
+     */
+    public ProviderIdentifier getRefProvider(final String ref) {
+        return mRefProvider.get(ref);
+    }
 
-            for (String key : keysToRemove) {
-                mSongs.remove(key);
-            }
+    private void putRefProvider(final String ref, final ProviderIdentifier provider) {
+        // Concurrent maps don't accept null values
+        if (provider != null) {
+            mRefProvider.put(ref, provider);
         }
+    }
 
-        // Albums
-        synchronized (mAlbums) {
-            Set<Map.Entry<String, Album>> albums = mAlbums.entrySet();
-            keysToRemove.clear();
+    /**
+     * @param id The provider identifier
+     * @return true if at least one song is cached for the provided provider
+     */
+    public boolean hasSongsForProvider(final ProviderIdentifier id) {
+        return !mSongsIndex.getRefs(id).isEmpty();
+    }
 
-            for (Map.Entry<String, Album> item : albums) {
-                if (item.getValue().getProvider().equals(id)) {
-                    keysToRemove.add(item.getKey());
-                }
-            }
-            for (String key : keysToRemove) {
-                mAlbums.remove(key);
-            }
-        }
+    public List<Song> getSongsForProvider(final ProviderIdentifier id) {
+        return getEntitiesForProvider(mSongsIndex, mSongs, id);
+    }
 
-        // Artists
-        synchronized (mArtists) {
-            Set<Map.Entry<String, Artist>> artists = mArtists.entrySet();
-            keysToRemove.clear();
+    public List<Album> getAlbumsForProvider(final ProviderIdentifier id) {
+        return getEntitiesForProvider(mAlbumsIndex, mAlbums, id);
+    }
 
-            for (Map.Entry<String, Artist> item : artists) {
-                if (item.getValue().getProvider().equals(id)) {
-                    keysToRemove.add(item.getKey());
-                }
-            }
+    public List<Artist> getArtistsForProvider(final ProviderIdentifier id) {
+        return getEntitiesForProvider(mArtistsIndex, mArtists, id);
+    }
 
-            for (String key : keysToRemove) {
-                mArtists.remove(key);
-            }
-        }
+    public List<Playlist> getPlaylistsForProvider(final ProviderIdentifier id) {
+        return getEntitiesForProvider(mPlaylistsIndex, mPlaylists, id);
     }
 
-    public ProviderIdentifier getRefProvider(final String ref) {
-        return mRefProvider.get(ref);
+    private static <T> List<T> getEntitiesForProvider(ProviderIndex index, Map<String, T> entries,
+                                                      ProviderIdentifier id) {
+        List<String> refs = index.getRefs(id);
+        List<T> output = new ArrayList<>(refs.size());
+        for (String ref : refs) {
+            T entity = entries.get(ref);
+            if (entity != null) {
+                output.add(entity);
+            }
+        }
+        return output;
     }
 
     public void putPlaylist(final ProviderIdentifier provider, final Playlist pl) {
-        synchronized (mPlaylists) {
-            mPlaylists.put(pl.getRef(), pl);
-        }
-        mRefProvider.put(pl.getRef(), provider);
+        mStaleRefs.remove(pl.getRef());
+        Playlist previous = mPlaylists.put(pl.getRef(), pl);
+        putRefProvider(pl.getRef(), provider);
+        mPlaylistsIndex.update(pl.getRef(), previous != null ? previous.getProvider() : null,
+                pl.getProvider() != null ? pl.getProvider() : provider);
     }
 
     public void putAllProviderPlaylist(List<Playlist> playlists) {
@@ -123,20 +190,17 @@ public class ProviderCache {
     }
 
     Playlist getPlaylist(final String ref) {
-        synchronized(mPlaylists) {
-            return mPlaylists.get(ref);
-        }
+        return mPlaylists.get(ref);
     }
 
     public List<Playlist> getAllPlaylists() {
-        synchronized (mPlaylists) {
-            return new ArrayList<>(mPlaylists.values());
-        }
+        return new ArrayList<>(mPlaylists.values());
     }
 
     public void removePlaylist(String ref) {
-        synchronized (mPlaylists) {
-            mPlaylists.remove(ref);
+        Playlist previous = mPlaylists.remove(ref);
+        if (previous != null) {
+            mPlaylistsIndex.remove(ref, previous.getProvider());
         }
     }
 
@@ -149,54 +213,119 @@ public class ProviderCache {
     }
 
     public List<Artist> getAllArtists() {
-        synchronized (mArtists) {
-            return new ArrayList<>(mArtists.values());
-        }
+        return new ArrayList<>(mArtists.values());
     }
 
     public List<Album> getAllAlbums() {
-        synchronized (mAlbums) {
-            return new ArrayList<>(mAlbums.values());
-        }
+        return new ArrayList<>(mAlbums.values());
     }
 
     public void putSong(final ProviderIdentifier provider, final Song song) {
-        synchronized (mSongs) {
-            mSongs.put(song.getRef(), song);
-        }
-        mRefProvider.put(song.getRef(), provider);
+        mStaleRefs.remove(song.getRef());
+        Song previous = mSongs.put(song.getRef(), song);
+        putRefProvider(song.getRef(), provider);
+        mSongsIndex.update(song.getRef(), previous != null ? previous.getProvider() : null,
+                song.getProvider() != null ? song.getProvider() : provider);
     }
 
     Song getSong(final String ref) {
-        synchronized (mSongs) {
-            return mSongs.get(ref);
+        return mSongs.get(ref);
+    }
+
+    public void removeSong(String ref) {
+        Song previous = mSongs.remove(ref);
+        if (previous != null) {
+            mSongsIndex.remove(ref, previous.getProvider());
         }
     }
 
     public void putAlbum(final ProviderIdentifier provider, final Album album) {
-        synchronized (mAlbums) {
-            mAlbums.put(album.getRef(), album);
-            mRefProvider.put(album.getRef(), provider);
-        }
+        mStaleRefs.remove(album.getRef());
+        Album previous = mAlbums.put(album.getRef(), album);
+        putRefProvider(album.getRef(), provider);
+        mAlbumsIndex.update(album.getRef(), previous != null ? previous.getProvider() : null,
+                album.getProvider() != null ? album.getProvider() : provider);
     }
 
     Album getAlbum(final String ref) {
-        synchronized (mAlbums) {
-            return mAlbums.get(ref);
+        return mAlbums.get(ref);
+    }
+
+    public void removeAlbum(String ref) {
+        Album previous = mAlbums.remove(ref);
+        if (previous != null) {
+            mAlbumsIndex.remove(ref, previous.getProvider());
         }
     }
 
     public void putArtist(final ProviderIdentifier provider, final Artist artist) {
-        synchronized (mArtists) {
-            mArtists.put(artist.getRef(), artist);
-            mRefProvider.put(artist.getRef(), provider);
-        }
+        mStaleRefs.remove(artist.getRef());
+        Artist previous = mArtists.put(artist.getRef(), artist);
+        putRefProvider(artist.getRef(), provider);
+        mArtistsIndex.update(artist.getRef(), previous != null ? previous.getProvider() : null,
+                artist.getProvider() != null ? artist.getProvider() : provider);
     }
 
     Artist getArtist(final String ref) {
-        synchronized (mArtists) {
-            return mArtists.get(ref);
+        return mArtists.get(ref);
+    }
+
+    public void removeArtist(String ref) {
+        Artist previous = mArtists.remove(ref);
+        if (previous != null) {
+            mArtistsIndex.remove(ref, previous.getProvider());
         }
     }
 
+    /**
+     * Reverse index mapping a provider to the references of the entities it owns. Providers are
+     * keyed by their serialized form, which is stable across Binder copies of the identifier.
+     */
+    private static class ProviderIndex {
+        private final ConcurrentHashMap<String, Set<String>> mRefs = new ConcurrentHashMap<>();
+
+        void update(String ref, ProviderIdentifier previous, ProviderIdentifier current) {
+            if (previous != null && !previous.equals(current)) {
+                remove(ref, previous);
+            }
+
+            if (current != null) {
+                getOrCreate(current.serialize()).add(ref);
+            }
+        }
+
+        void remove(String ref, ProviderIdentifier id) {
+            if (id != null) {
+                Set<String> refs = mRefs.get(id.serialize());
+                if (refs != null) {
+                    refs.remove(ref);
+                }
+            }
+        }
+
+        Set<String> removeProvider(ProviderIdentifier id) {
+            return mRefs.remove(id.serialize());
+        }
+
+        List<String> getRefs(ProviderIdentifier id) {
+            Set<String> refs = mRefs.get(id.serialize());
+            if (refs == null) {
+                return new ArrayList<>();
+            } else {
+                return new ArrayList<>(refs);
+            }
+        }
+
+        private Set<String> getOrCreate(String key) {
+            Set<String> refs = mRefs.get(key);
+            if (refs == null) {
+                Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                refs = mRefs.putIfAbsent(key, created);
+                if (refs == null) {
+                    refs = created;
+                }
+            }
+            return refs;
+        }
+    }
 }
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import android.util.Log;
+
+import com.fastbootmobile.encore.model.Album;
+import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.Playlist;
+import com.fastbootmobile.encore.model.Song;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * On-disk snapshot of the songs, albums, artists and playlists cached for each provider. This
+ * lets the {@link ProviderAggregator} populate the {@link ProviderCache} right away when a
+ * provider connects, instead of pulling the whole library again over Binder after each process
+ * death. Each provider has its own versioned file, which is dropped when the provider's cache
+ * is purged.
+ */
+public class ProviderCacheStore {
+    private static final String TAG = "ProviderCacheStore";
+
+    private static final int MAGIC = 0x454E4331; // "ENC1"
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File mDirectory;
+
+    /**
+     * Constructor
+     * @param directory The directory in which the snapshots are stored
+     */
+    public ProviderCacheStore(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Loads the snapshot of the provided provider into the cache
+     * @param id The provider identifier
+     * @param cache The cache in which the entities are put
+     * @return true if a valid snapshot was loaded, false otherwise
+     */
+    public synchronized boolean load(ProviderIdentifier id, ProviderCache cache) {
+        final File file = getFile(id);
+        if (!file.exists()) {
+            return false;
+        }
+
+        final long startTime = System.currentTimeMillis();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || !id.serialize().equals(in.readUTF())) {
+                Log.w(TAG, "Discarding outdated or foreign snapshot for " + id.mName);
+                file.delete();
+                return false;
+            }
+
+            // Read everything first, so that a truncated file doesn't leave half a library
+            final List<Song> songs = new ArrayList<>();
+            final List<Album> albums = new ArrayList<>();
+            final List<Artist> artists = new ArrayList<>();
+            final List<Playlist> playlists = new ArrayList<>();
+
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                songs.add(readSong(in, id));
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                albums.add(readAlbum(in, id));
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                artists.add(readArtist(in, id));
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                playlists.add(readPlaylist(in, id));
+            }
+
+            // The provider may have changed since the snapshot, the entities are stale until
+            // it returns them again
+            for (Song song : songs) {
+                cache.putSong(id, song);
+                cache.markStale(song.getRef());
+            }
+            for (Album album : albums) {
+                cache.putAlbum(id, album);
+                cache.markStale(album.getRef());
+            }
+            for (Artist artist : artists) {
+                cache.putArtist(id, artist);
+                cache.markStale(artist.getRef());
+            }
+            for (Playlist playlist : playlists) {
+                cache.putPlaylist(id, playlist);
+                cache.markStale(playlist.getRef());
+            }
+
+            Log.i(TAG, "Loaded " + songs.size() + " songs, " + albums.size() + " albums, "
+                    + artists.size() + " artists and " + playlists.size() + " playlists for "
+                    + id.mName + " in " + (System.currentTimeMillis() - startTime) + "ms");
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read snapshot for " + id.mName, e);
+            file.delete();
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes the entities currently cached for the provided provider to disk. The snapshot is
+     * written to a temporary file first, then renamed so that readers never see partial data.
+     * @param id The provider identifier
+     * @param cache The cache from which the entities are read
+     */
+    public synchronized void save(ProviderIdentifier id, ProviderCache cache) {
+        final List<Song> songs = cache.getSongsForProvider(id);
+        final List<Album> albums = cache.getAlbumsForProvider(id);
+        final List<Artist> artists = cache.getArtistsForProvider(id);
+        final List<Playlist> playlists = cache.getPlaylistsForProvider(id);
+
+        if (songs.isEmpty() && albums.isEmpty() && artists.isEmpty() && playlists.isEmpty()) {
+            invalidate(id);
+            return;
+        }
+
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "Unable to create snapshots directory " + mDirectory);
+            return;
+        }
+
+        final File file = getFile(id);
+        final File tmpFile = new File(mDirectory, file.getName() + ".tmp");
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(id.serialize());
+
+            out.writeInt(songs.size());
+            for (Song song : songs) {
+                writeSong(out, song);
+            }
+            out.writeInt(albums.size());
+            for (Album album : albums) {
+                writeAlbum(out, album);
+            }
+            out.writeInt(artists.size());
+            for (Artist artist : artists) {
+                writeArtist(out, artist);
+            }
+            out.writeInt(playlists.size());
+            for (Playlist playlist : playlists) {
+                writePlaylist(out, playlist);
+            }
+
+            out.close();
+            out = null;
+
+            if (!tmpFile.renameTo(file)) {
+                Log.e(TAG, "Unable to commit snapshot for " + id.mName);
+                tmpFile.delete();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write snapshot for " + id.mName, e);
+            tmpFile.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Removes the snapshot of the provided provider
+     * @param id The provider identifier
+     */
+    public synchronized void invalidate(ProviderIdentifier id) {
+        File file = getFile(id);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Unable to delete snapshot for " + id.mName);
+        }
+    }
+
+    private File getFile(ProviderIdentifier id) {
+        return new File(mDirectory, Integer.toHexString(id.serialize().hashCode()) + ".bin");
+    }
+
+    private static void writeSong(DataOutputStream out, Song song) throws IOException {
+        writeString(out, song.getRef());
+        writeString(out, song.getTitle());
+        writeString(out, song.getArtist());
+        writeString(out, song.getAlbum());
+        writeString(out, song.getLogo());
+        out.writeInt(song.getDuration());
+        out.writeInt(song.getYear());
+        out.writeInt(song.getOfflineStatus());
+        out.writeBoolean(song.isAvailable());
+        out.writeBoolean(song.isLoaded());
+    }
+
+    private static Song readSong(DataInputStream in, ProviderIdentifier id) throws IOException {
+        Song song = new Song(readString(in));
+        song.setTitle(readString(in));
+        song.setArtist(readString(in));
+        song.setAlbum(readString(in));
+        song.setSourceLogo(readString(in));
+        song.setDuration(in.readInt());
+        song.setYear(in.readInt());
+        song.setOfflineStatus(in.readInt());
+        song.setAvailable(in.readBoolean());
+        song.setIsLoaded(in.readBoolean());
+        song.setProvider(id);
+        return song;
+    }
+
+    private static void writeAlbum(DataOutputStream out, Album album) throws IOException {
+        writeString(out, album.getRef());
+        writeString(out, album.getName());
+        writeString(out, album.getLogo());
+        out.writeInt(album.getYear());
+        out.writeBoolean(album.isLoaded());
+        writeRefs(out, album.songs(), album.getSongsCount());
+    }
+
+    private static Album readAlbum(DataInputStream in, ProviderIdentifier id) throws IOException {
+        Album album = new Album(readString(in));
+        album.setName(readString(in));
+        album.setSourceLogo(readString(in));
+        album.setYear(in.readInt());
+        album.setIsLoaded(in.readBoolean());
+        int count = in.readInt();
+        for (int i = 0; i < count; ++i) {
+            String ref = readString(in);
+            if (ref != null) {
+                album.addSong(ref);
+            }
+        }
+        album.setProvider(id);
+        return album;
+    }
+
+    private static void writeArtist(DataOutputStream out, Artist artist) throws IOException {
+        writeString(out, artist.getRef());
+        writeString(out, artist.getName());
+        writeString(out, artist.getLogo());
+        out.writeBoolean(artist.isLoaded());
+
+        List<String> albums = new ArrayList<>();
+        Iterator<String> it = artist.albums();
+        while (it.hasNext()) {
+            albums.add(it.next());
+        }
+        writeRefs(out, albums.iterator(), albums.size());
+    }
+
+    private static Artist readArtist(DataInputStream in, ProviderIdentifier id) throws IOException {
+        Artist artist = new Artist(readString(in));
+        artist.setName(readString(in));
+        artist.setSourceLogo(readString(in));
+        artist.setIsLoaded(in.readBoolean());
+        int count = in.readInt();
+        for (int i = 0; i < count; ++i) {
+            String ref = readString(in);
+            if (ref != null) {
+                artist.addAlbum(ref);
+            }
+        }
+        artist.setProvider(id);
+        return artist;
+    }
+
+    private static void writePlaylist(DataOutputStream out, Playlist playlist) throws IOException {
+        writeString(out, playlist.getRef());
+        writeString(out, playlist.getName());
+        writeString(out, playlist.getLogo());
+        out.writeInt(playlist.getOfflineStatus());
+        out.writeBoolean(playlist.isOfflineCapable());
+        out.writeBoolean(playlist.isLoaded());
+        writeRefs(out, playlist.songs(), playlist.getSongsCount());
+    }
+
+    private static Playlist readPlaylist(DataInputStream in, ProviderIdentifier id) throws IOException {
+        Playlist playlist = new Playlist(readString(in));
+        playlist.setName(readString(in));
+        playlist.setSourceLogo(readString(in));
+        playlist.setOfflineStatus(in.readInt());
+        playlist.setOfflineCapable(in.readBoolean());
+        playlist.setIsLoaded(in.readBoolean());
+        int count = in.readInt();
+        for (int i = 0; i < count; ++i) {
+            String ref = readString(in);
+            if (ref != null) {
+                playlist.addSong(ref);
+            }
+        }
+        playlist.setProvider(id);
+        return playlist;
+    }
+
+    private static void writeRefs(DataOutputStream out, Iterator<String> refs, int count)
+            throws IOException {
+        out.writeInt(count);
+        int written = 0;
+        while (refs.hasNext() && written < count) {
+            writeString(out, refs.next());
+            ++written;
+        }
+
+        // Keep the record consistent if the entity changed while we were writing it
+        while (written < count) {
+            writeString(out, null);
+            ++written;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeBoolean(false);
+        } else {
+            out.writeBoolean(true);
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        if (in.readBoolean()) {
+            return in.readUTF();
+        } else {
+            return null;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import android.os.RemoteException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Table of the provider requests currently in flight, keyed by provider and reference. When
+ * several threads miss the cache for the same entity at the same time, only the first one calls
+ * the provider, and the others wait for and share its result.
+ */
+public class RequestCoalescer<T> {
+    private final ConcurrentHashMap<String, Call<T>> mCalls = new ConcurrentHashMap<>();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mCoalesced = new AtomicLong();
+
+    /**
+     * Loads an entity from a provider
+     */
+    public interface Loader<T> {
+        T load() throws RemoteException;
+    }
+
+    private static class Call<T> {
+        final CountDownLatch mLatch = new CountDownLatch(1);
+        T mResult;
+        RemoteException mError;
+    }
+
+    /**
+     * Records a cache hit, which didn't need any provider request
+     */
+    public void recordHit() {
+        mHits.incrementAndGet();
+    }
+
+    /**
+     * Runs the provided loader, unless a request for the same entity is already in flight, in
+     * which case this waits for it and returns its result.
+     *
+     * @param provider The provider of the entity
+     * @param ref      The reference of the entity
+     * @param loader   The loader doing the actual provider request
+     * @return The entity, or null if the provider didn't return it
+     * @throws RemoteException If the provider request failed
+     */
+    public T execute(ProviderIdentifier provider, String ref, Loader<T> loader)
+            throws RemoteException {
+        final String key = provider.serialize() + "/" + ref;
+        final Call<T> call = new Call<>();
+        final Call<T> existing = mCalls.putIfAbsent(key, call);
+
+        if (existing != null) {
+            mCoalesced.incrementAndGet();
+            try {
+                existing.mLatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+
+            if (existing.mError != null) {
+                throw existing.mError;
+            }
+            return existing.mResult;
+        }
+
+        mMisses.incrementAndGet();
+        try {
+            call.mResult = loader.load();
+            return call.mResult;
+        } catch (RemoteException e) {
+            call.mError = e;
+            throw e;
+        } finally {
+            mCalls.remove(key, call);
+            call.mLatch.countDown();
+        }
+    }
+
+    /**
+     * @return The number of lookups served from the cache
+     */
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    /**
+     * @return The number of lookups that resulted in a provider request
+     */
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * @return The number of lookups that shared the result of a request already in flight
+     */
+    public long getCoalescedCount() {
+        return mCoalesced.get();
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHitCount() + " misses=" + getMissCount()
+                + " coalesced=" + getCoalescedCount();
+    }
+}
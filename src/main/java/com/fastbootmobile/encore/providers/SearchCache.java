@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import android.os.SystemClock;
+
+import com.fastbootmobile.encore.model.SearchResult;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of the results of the latest searches. The number of queries and the age of their results
+ * are bounded. Results returned by the providers are merged per provider with set lookups, and
+ * merging returns only the hits that weren't known yet.
+ */
+public class SearchCache {
+    private static final int MAX_QUERIES = 32;
+    private static final long MAX_AGE = 5 * 60 * 1000;
+
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(MAX_QUERIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_QUERIES;
+                }
+            };
+
+    /**
+     * Results of a query for one provider
+     */
+    private static class Hits {
+        final ProviderIdentifier mIdentifier;
+        final LinkedHashSet<String> mSongs = new LinkedHashSet<>();
+        final LinkedHashSet<String> mAlbums = new LinkedHashSet<>();
+        final LinkedHashSet<String> mArtists = new LinkedHashSet<>();
+        final LinkedHashSet<String> mPlaylists = new LinkedHashSet<>();
+
+        Hits(ProviderIdentifier identifier) {
+            mIdentifier = identifier;
+        }
+
+        SearchResult toSearchResult(String query) {
+            SearchResult result = new SearchResult(query);
+            result.setIdentifier(mIdentifier);
+            result.setSongsList(new ArrayList<>(mSongs));
+            result.setAlbumsList(new ArrayList<>(mAlbums));
+            result.setArtistList(new ArrayList<>(mArtists));
+            result.setPlaylistList(new ArrayList<>(mPlaylists));
+            return result;
+        }
+    }
+
+    private static class Entry {
+        final LinkedHashMap<String, Hits> mProviders = new LinkedHashMap<>();
+        long mTimestamp = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Merges the results of a provider into the results of their query
+     * @param result The results returned by the provider
+     * @return The results that weren't in the cache yet. The lists may be empty if the provider
+     * returned only known results.
+     */
+    public synchronized SearchResult merge(SearchResult result) {
+        final String query = result.getQuery();
+        Entry entry = getEntry(query);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(query, entry);
+        }
+        entry.mTimestamp = SystemClock.elapsedRealtime();
+
+        final String key = result.getIdentifier().serialize();
+        Hits hits = entry.mProviders.get(key);
+        if (hits == null) {
+            hits = new Hits(result.getIdentifier());
+            entry.mProviders.put(key, hits);
+        }
+
+        SearchResult delta = new SearchResult(query);
+        delta.setIdentifier(result.getIdentifier());
+        delta.setSongsList(addAll(hits.mSongs, result.getSongsList()));
+        delta.setAlbumsList(addAll(hits.mAlbums, result.getAlbumsList()));
+        delta.setArtistList(addAll(hits.mArtists, result.getArtistList()));
+        delta.setPlaylistList(addAll(hits.mPlaylists, result.getPlaylistList()));
+        return delta;
+    }
+
+    /**
+     * @param query The query
+     * @return The cached results of the query, one per provider, or null if the query isn't cached
+     * or if its results expired
+     */
+    public synchronized List<SearchResult> get(String query) {
+        final Entry entry = getEntry(query);
+        if (entry == null) {
+            return null;
+        }
+
+        final List<SearchResult> results = new ArrayList<>(entry.mProviders.size());
+        for (Hits hits : entry.mProviders.values()) {
+            results.add(hits.toSearchResult(query));
+        }
+        return results;
+    }
+
+    /**
+     * Returns the longest cached query that the provided query starts with, e.g. "beat" for
+     * "beatles". As a longer query narrows a shorter one, its results can be used while the
+     * providers look for the longer one.
+     * @param query The query
+     * @return The longest cached prefix of the query, or null if there is none
+     */
+    public synchronized String getLongestPrefix(String query) {
+        String longest = null;
+        for (String cached : new ArrayList<>(mEntries.keySet())) {
+            if (cached.length() < query.length() && query.startsWith(cached)
+                    && (longest == null || cached.length() > longest.length())
+                    && getEntry(cached) != null) {
+                longest = cached;
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * Removes all the cached results
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    private Entry getEntry(String query) {
+        final Entry entry = mEntries.get(query);
+        if (entry != null && SystemClock.elapsedRealtime() - entry.mTimestamp > MAX_AGE) {
+            mEntries.remove(query);
+            return null;
+        }
+        return entry;
+    }
+
+    private static List<String> addAll(LinkedHashSet<String> known, Collection<String> refs) {
+        final List<String> added = new ArrayList<>();
+        if (refs != null) {
+            for (String ref : refs) {
+                if (known.add(ref)) {
+                    added.add(ref);
+                }
+            }
+        }
+        return added;
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Inverted index of entity names, used to search a provider's library without scanning it.
+ * Names are folded (case and accents) and split into tokens, and every token of the query matches
+ * the tokens of a name it is a prefix of, so that results are available while typing. The index is
+ * updated as entities are added, renamed and removed, and a search started while another one is
+ * running cancels it.
+ */
+public class SearchIndex {
+    private static final String TAG = "SearchIndex";
+
+    public static final int TYPE_SONG = 0;
+    public static final int TYPE_ALBUM = 1;
+    public static final int TYPE_ARTIST = 2;
+    public static final int TYPE_PLAYLIST = 3;
+    private static final int TYPE_COUNT = 4;
+
+    /**
+     * Number of candidates scored between two checks for a newer search
+     */
+    private static final int CANCEL_CHECK_INTERVAL = 256;
+
+    private static final String[] EMPTY_TOKENS = new String[0];
+
+    // Guarded by this
+    private final Map<String, Document> mDocuments = new HashMap<>();
+    private final TreeMap<String, Set<Document>> mPostings = new TreeMap<>();
+
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    private final ExecutorService mExecutor;
+
+    public interface SearchListener {
+        /**
+         * Called on the search thread when a search completes. Not called for cancelled searches.
+         * @param query The query
+         * @param results The results
+         */
+        void onSearchFinished(String query, Results results);
+    }
+
+    /**
+     * Ranked results of a search
+     */
+    public static class Results {
+        private final List<List<String>> mRefs;
+
+        Results() {
+            mRefs = new ArrayList<>(TYPE_COUNT);
+            for (int i = 0; i < TYPE_COUNT; ++i) {
+                mRefs.add(new ArrayList<String>());
+            }
+        }
+
+        /**
+         * @param type One of the TYPE_ constants
+         * @return The references of the matching entities of this type, best matches first
+         */
+        public List<String> getRefs(int type) {
+            return mRefs.get(type);
+        }
+    }
+
+    private static class Document {
+        final int mType;
+        final String mRef;
+        final String mText;
+        final String[] mTokens;
+
+        Document(int type, String ref, String text, String[] tokens) {
+            mType = type;
+            mRef = ref;
+            mText = text;
+            mTokens = tokens;
+        }
+    }
+
+    private static class ScoredDocument {
+        final Document mDocument;
+        final int mScore;
+
+        ScoredDocument(Document document, int score) {
+            mDocument = document;
+            mScore = score;
+        }
+    }
+
+    private static final Comparator<ScoredDocument> COMPARATOR = new Comparator<ScoredDocument>() {
+        @Override
+        public int compare(ScoredDocument lhs, ScoredDocument rhs) {
+            if (lhs.mScore != rhs.mScore) {
+                return lhs.mScore < rhs.mScore ? -1 : 1;
+            }
+
+            // Shorter names are closer to the query
+            final int lhsLength = lhs.mDocument.mText.length();
+            final int rhsLength = rhs.mDocument.mText.length();
+            if (lhsLength != rhsLength) {
+                return lhsLength < rhsLength ? -1 : 1;
+            }
+            return lhs.mDocument.mText.compareTo(rhs.mDocument.mText);
+        }
+    };
+
+    public SearchIndex() {
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                return new Thread(r, "SearchIndex");
+            }
+        });
+    }
+
+    /**
+     * Adds an entity to the index, or updates its name if it is already indexed
+     * @param type One of the TYPE_ constants
+     * @param ref The reference of the entity
+     * @param name The name of the entity. A null name removes the entity.
+     */
+    public synchronized void put(int type, String ref, String name) {
+        if (name == null) {
+            remove(type, ref);
+            return;
+        }
+
+        final String key = getKey(type, ref);
+        final String text = fold(name);
+        final Document previous = mDocuments.get(key);
+        if (previous != null && previous.mText.equals(text)) {
+            return;
+        } else if (previous != null) {
+            removeDocument(key, previous);
+        }
+
+        final Document document = new Document(type, ref, text, tokenize(text));
+        mDocuments.put(key, document);
+        for (String token : document.mTokens) {
+            Set<Document> postings = mPostings.get(token);
+            if (postings == null) {
+                postings = new HashSet<>();
+                mPostings.put(token, postings);
+            }
+            postings.add(document);
+        }
+    }
+
+    /**
+     * Removes an entity from the index
+     * @param type One of the TYPE_ constants
+     * @param ref The reference of the entity
+     */
+    public synchronized void remove(int type, String ref) {
+        final String key = getKey(type, ref);
+        final Document document = mDocuments.get(key);
+        if (document != null) {
+            removeDocument(key, document);
+        }
+    }
+
+    /**
+     * Removes all the entities of a type from the index
+     * @param type One of the TYPE_ constants
+     */
+    public synchronized void clear(int type) {
+        for (Map.Entry<String, Document> entry : new ArrayList<>(mDocuments.entrySet())) {
+            if (entry.getValue().mType == type) {
+                removeDocument(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Searches the index in the background. Searches that are still queued or running are
+     * cancelled, and their listener isn't called.
+     * @param query The query
+     * @param listener The listener to notify with the results
+     */
+    public void searchAsync(final String query, final SearchListener listener) {
+        final int generation = mGeneration.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mGeneration.get()) {
+                    return;
+                }
+
+                final long start = System.nanoTime();
+                final Results results = search(query, generation);
+                if (results != null) {
+                    Log.d(TAG, "Searched '" + query + "' in "
+                            + (System.nanoTime() - start) / 1000 + "us");
+                    listener.onSearchFinished(query, results);
+                }
+            }
+        });
+    }
+
+    /**
+     * Searches the index
+     * @param query The query
+     * @return The ranked results
+     */
+    public Results search(String query) {
+        return search(query, -1);
+    }
+
+    /**
+     * @return The results, or null if a newer search was started in the meantime
+     */
+    private Results search(String query, int generation) {
+        final Results results = new Results();
+        final String foldedQuery = fold(query);
+        final String[] queryTokens = tokenize(foldedQuery);
+        if (queryTokens.length == 0) {
+            return results;
+        }
+
+        // Documents having a token starting with each query token, smallest sets first. The
+        // candidates are copied under the lock, documents are immutable so they are scored
+        // without holding it.
+        final List<Set<Document>> matches = new ArrayList<>(queryTokens.length);
+        for (String queryToken : queryTokens) {
+            final Set<Document> tokenMatches;
+            synchronized (this) {
+                tokenMatches = getPrefixMatches(queryToken);
+            }
+            if (tokenMatches.isEmpty()) {
+                return results;
+            } else if (isCancelled(generation)) {
+                return null;
+            }
+            matches.add(tokenMatches);
+        }
+        Collections.sort(matches, new Comparator<Set<Document>>() {
+            @Override
+            public int compare(Set<Document> lhs, Set<Document> rhs) {
+                return lhs.size() < rhs.size() ? -1 : (lhs.size() == rhs.size() ? 0 : 1);
+            }
+        });
+
+        final List<ScoredDocument> scored = new ArrayList<>(matches.get(0).size());
+        int checked = 0;
+        for (Document document : matches.get(0)) {
+            if (++checked % CANCEL_CHECK_INTERVAL == 0 && isCancelled(generation)) {
+                return null;
+            }
+
+            boolean matchesAll = true;
+            for (int i = 1; i < matches.size() && matchesAll; ++i) {
+                matchesAll = matches.get(i).contains(document);
+            }
+            if (matchesAll) {
+                scored.add(new ScoredDocument(document, score(document, foldedQuery, queryTokens)));
+            }
+        }
+
+        Collections.sort(scored, COMPARATOR);
+        for (ScoredDocument match : scored) {
+            results.getRefs(match.mDocument.mType).add(match.mDocument.mRef);
+        }
+        return results;
+    }
+
+    private boolean isCancelled(int generation) {
+        return generation >= 0 && generation != mGeneration.get();
+    }
+
+    /**
+     * @return A copy of the documents having a token starting with the prefix
+     */
+    private Set<Document> getPrefixMatches(String prefix) {
+        final SortedMap<String, Set<Document>> tokens = mPostings.subMap(prefix, prefix + Character.MAX_VALUE);
+        if (tokens.size() == 1) {
+            return new HashSet<>(tokens.values().iterator().next());
+        }
+
+        final Set<Document> matches = new HashSet<>();
+        for (Set<Document> postings : tokens.values()) {
+            matches.addAll(postings);
+        }
+        return matches;
+    }
+
+    /**
+     * @return The rank of the document, lower is better
+     */
+    private static int score(Document document, String foldedQuery, String[] queryTokens) {
+        if (document.mText.equals(foldedQuery)) {
+            return 0;
+        } else if (document.mText.startsWith(foldedQuery)) {
+            return 1;
+        }
+
+        for (String queryToken : queryTokens) {
+            boolean found = false;
+            for (String token : document.mTokens) {
+                if (token.equals(queryToken)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return 3;
+            }
+        }
+
+        // Every word of the query is a whole word of the name
+        return 2;
+    }
+
+    private void removeDocument(String key, Document document) {
+        mDocuments.remove(key);
+        for (String token : document.mTokens) {
+            final Set<Document> postings = mPostings.get(token);
+            if (postings != null) {
+                postings.remove(document);
+                if (postings.isEmpty()) {
+                    mPostings.remove(token);
+                }
+            }
+        }
+    }
+
+    private static String getKey(int type, String ref) {
+        return type + ref;
+    }
+
+    /**
+     * Folds a name for indexing: lower case, without accents, and with anything that isn't a letter
+     * or a digit replaced by a single space
+     * @param name The name to fold
+     * @return The folded name
+     */
+    static String fold(String name) {
+        final String decomposed = Normalizer.normalize(name, Normalizer.Form.NFD);
+        final StringBuilder sb = new StringBuilder(decomposed.length());
+        boolean pendingSpace = false;
+
+        for (int i = 0; i < decomposed.length(); ++i) {
+            final char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+
+            if (Character.isLetterOrDigit(c)) {
+                if (pendingSpace && sb.length() > 0) {
+                    sb.append(' ');
+                }
+                pendingSpace = false;
+                sb.append(c);
+            } else {
+                pendingSpace = true;
+            }
+        }
+
+        return sb.toString().toLowerCase(Locale.ROOT);
+    }
+
+    private static String[] tokenize(String folded) {
+        if (folded.isEmpty()) {
+            return EMPTY_TOKENS;
+        }
+
+        final String[] tokens = folded.split(" ");
+        if (tokens.length == 1) {
+            return tokens;
+        }
+
+        // A name repeating a word is indexed once for it
+        final Set<String> unique = new HashSet<>(tokens.length);
+        Collections.addAll(unique, tokens);
+        return unique.size() == tokens.length ? tokens : unique.toArray(new String[unique.size()]);
+    }
+}
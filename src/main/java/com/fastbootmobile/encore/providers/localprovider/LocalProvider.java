@@ -8,13 +8,13 @@ import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.media.MediaCodec;
-import android.media.MediaExtractor;
-import android.media.MediaFormat;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.os.RemoteException;
 import android.provider.MediaStore;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.fastbootmobile.encore.model.Album;
@@ -26,16 +26,20 @@ import com.fastbootmobile.encore.model.SearchResult;
 import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.IArtCallback;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
+import com.fastbootmobile.encore.providers.SearchIndex;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class LocalProvider {
@@ -47,78 +51,227 @@ public class LocalProvider {
     private static final String PREFIX_PLAYLIST = "local:playlist:";
 
     private Uri mUri;
-    private HashMap<String, LocalSong> mSongs;
+    private LocalSongIndex mSongs;
     private ContentResolver mContentResolver;
-    private HashMap<String, Playlist> mPlaylists;
+    private Map<String, Playlist> mPlaylists;
     private LocalSong mCurrentSong;
-    private MediaCodec mDecoder;
-    private MediaExtractor mExtractor;
-    private boolean mChangeMusic;
-    private MediaCodec.BufferInfo mInfo;
-    private ByteBuffer[] mOutputBuffers;
-    private ByteBuffer[] mInputBuffers;
+    private TrackDecoder mDecoder;
+    private TrackDecoder mNextDecoder;
+    private TrackDecoder mDeliveringDecoder;
+    private boolean mReleaseAfterDelivery;
+    private long mPendingSeekMs = -1;
+    private boolean mSwitchedGapless;
     private Context mContext;
-    private MediaFormat mFormat;
     private LocalCallback mCallback;
 
-    private HashMap<String, Artist> mArtists;
-    private HashMap<String, Album> mAlbums;
-    private HashMap<String, Genre> mGenres;
-    private HashMap<String, Long> mAlbumsId;
-    private Handler mHandler = new Handler();
+    private Map<String, Artist> mArtists;
+    private Map<String, Album> mAlbums;
+    private Map<String, Genre> mGenres;
+    private Map<String, Long> mAlbumsId;
     private boolean mSetup;
     private boolean mPaused;
-    private SearchResult mSearchResult;
+    private final SearchIndex mSearchIndex = new SearchIndex();
     private boolean mIsEOS;
-    private int mPendingOutIndex = -1;
-    private int mPendingSize;
 
+    /**
+     * Delay during which change notifications are merged before syncing. The media scanner
+     * notifies once per file, so a scan results in a single sync instead of one per file.
+     */
+    private static final long SYNC_DELAY = 500;
+
+    private static final String[] SONG_PROJECTION = {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.TITLE_KEY,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.ARTIST_KEY,
+            MediaStore.Audio.Media.ALBUM_KEY,
+            MediaStore.Audio.Media.ALBUM_ID,
+            MediaStore.Audio.Media.DURATION,
+            MediaStore.Audio.Media.YEAR,
+            MediaStore.Audio.Media.DATE_MODIFIED
+    };
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_TITLE = 1;
+    private static final int COLUMN_TITLE_KEY = 2;
+    private static final int COLUMN_ARTIST = 3;
+    private static final int COLUMN_ARTIST_KEY = 4;
+    private static final int COLUMN_ALBUM_KEY = 5;
+    private static final int COLUMN_ALBUM_ID = 6;
+    private static final int COLUMN_DURATION = 7;
+    private static final int COLUMN_YEAR = 8;
+    private static final int COLUMN_DATE_MODIFIED = 9;
 
-    private final ContentObserver mAlbumContentObserver = new ContentObserver(mHandler) {
+    /**
+     * Members of all the genres in a single query. Not part of the public MediaStore API, so we
+     * fall back to one query per genre if the media provider doesn't support it.
+     */
+    private static final Uri GENRES_ALL_MEMBERS_URI =
+            Uri.parse("content://media/external/audio/genres/all/members");
+
+    private final HandlerThread mSyncThread = startSyncThread();
+    private final Handler mSyncHandler = new Handler(mSyncThread.getLooper());
+
+    // Changes waiting for the next sync, guarded by mPendingLock
+    private final Object mPendingLock = new Object();
+    private final Set<Long> mPendingSongIds = new HashSet<>();
+    private final Set<Long> mPendingPlaylistIds = new HashSet<>();
+    private final Set<Long> mPendingGenreIds = new HashSet<>();
+    private boolean mPendingAllSongs;
+    private boolean mPendingAllPlaylists;
+    private boolean mPendingAllGenres;
+    private boolean mPendingAlbums;
+
+    // Sync state, only accessed from the sync thread
+    private final HashMap<Long, String> mSongIdToRef = new HashMap<>();
+    private final HashMap<String, LinkedHashSet<String>> mAlbumSongs = new HashMap<>();
+    private final HashMap<String, LinkedHashMap<String, Integer>> mArtistAlbums = new HashMap<>();
+    private final HashMap<String, String> mArtistNames = new HashMap<>();
+    private final HashMap<Long, Long> mPlaylistDates = new HashMap<>();
+    private final HashMap<String, List<String>> mGenreSongs = new HashMap<>();
+    private long mSongWatermark;
+
+    private final ContentObserver mSongContentObserver = new ContentObserver(mSyncHandler) {
         @Override
         public void onChange(boolean self) {
-            try {
-                fetchAlbums();
-            } catch (SecurityException e) {
-                Log.e(TAG, "Cannot read albums because of a security exception", e);
-            }
+            onChange(self, null);
         }
 
         @Override
         public void onChange(boolean self, Uri uri) {
-            onChange(self);
+            final long id = getChangedId(uri, null);
+            synchronized (mPendingLock) {
+                if (id >= 0) {
+                    mPendingSongIds.add(id);
+                } else {
+                    mPendingAllSongs = true;
+                }
+            }
+            scheduleSync();
         }
     };
 
-    private final ContentObserver mArtistContentObserver = new ContentObserver(mHandler) {
+    private final ContentObserver mAlbumContentObserver = new ContentObserver(mSyncHandler) {
         @Override
         public void onChange(boolean self) {
-            try {
-                fetchArtists();
-            } catch (SecurityException e) {
-                Log.e(TAG, "Cannot read artists because of a security exception", e);
+            onChange(self, null);
+        }
+
+        @Override
+        public void onChange(boolean self, Uri uri) {
+            synchronized (mPendingLock) {
+                mPendingAlbums = true;
             }
+            scheduleSync();
+        }
+    };
+
+    private final ContentObserver mArtistContentObserver = new ContentObserver(mSyncHandler) {
+        @Override
+        public void onChange(boolean self) {
+            onChange(self, null);
         }
 
         @Override
         public void onChange(boolean self, Uri uri) {
-            onChange(self);
+            // Artists are built from the songs, so check the songs that changed since the last sync
+            synchronized (mPendingLock) {
+                mPendingAllSongs = true;
+            }
+            scheduleSync();
         }
     };
 
-    private final ContentObserver mGenreContentObserver = new ContentObserver(mHandler) {
+    private final ContentObserver mPlaylistContentObserver = new ContentObserver(mSyncHandler) {
         @Override
         public void onChange(boolean self) {
-            try {
-                fetchGenres(null);
-            } catch (SecurityException e) {
-                Log.e(TAG, "Cannot read genres because of a security exception", e);
+            onChange(self, null);
+        }
+
+        @Override
+        public void onChange(boolean self, Uri uri) {
+            final long id = getChangedId(uri, "playlists");
+            synchronized (mPendingLock) {
+                if (id >= 0) {
+                    mPendingPlaylistIds.add(id);
+                } else {
+                    mPendingAllPlaylists = true;
+                }
             }
+            scheduleSync();
+        }
+    };
+
+    private final ContentObserver mGenreContentObserver = new ContentObserver(mSyncHandler) {
+        @Override
+        public void onChange(boolean self) {
+            onChange(self, null);
         }
 
         @Override
         public void onChange(boolean self, Uri uri) {
-            onChange(self);
+            final long id = getChangedId(uri, "genres");
+            synchronized (mPendingLock) {
+                if (id >= 0) {
+                    mPendingGenreIds.add(id);
+                } else {
+                    mPendingAllGenres = true;
+                }
+            }
+            scheduleSync();
+        }
+    };
+
+    private final Runnable mSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final Set<Long> songIds;
+            final Set<Long> playlistIds;
+            final Set<Long> genreIds;
+            final boolean allSongs, allPlaylists, allGenres, albums;
+
+            synchronized (mPendingLock) {
+                songIds = new HashSet<>(mPendingSongIds);
+                playlistIds = new HashSet<>(mPendingPlaylistIds);
+                genreIds = new HashSet<>(mPendingGenreIds);
+                allSongs = mPendingAllSongs;
+                allPlaylists = mPendingAllPlaylists;
+                allGenres = mPendingAllGenres;
+                albums = mPendingAlbums;
+
+                mPendingSongIds.clear();
+                mPendingPlaylistIds.clear();
+                mPendingGenreIds.clear();
+                mPendingAllSongs = false;
+                mPendingAllPlaylists = false;
+                mPendingAllGenres = false;
+                mPendingAlbums = false;
+            }
+
+            try {
+                final Set<String> dirtyAlbums = new HashSet<>();
+                final Set<String> dirtyArtists = new HashSet<>();
+
+                if (albums) {
+                    syncAlbums(dirtyAlbums);
+                }
+                if (allSongs) {
+                    syncAllSongs(dirtyAlbums, dirtyArtists);
+                } else if (!songIds.isEmpty()) {
+                    syncSongs(songIds, dirtyAlbums, dirtyArtists);
+                }
+                publishAlbumsAndArtists(dirtyAlbums, dirtyArtists);
+
+                if (allPlaylists || !playlistIds.isEmpty()) {
+                    syncPlaylists(allPlaylists ? null : playlistIds);
+                }
+                if (allGenres || !genreIds.isEmpty()) {
+                    syncGenres(allGenres ? null : genreIds);
+                }
+            } catch (SecurityException e) {
+                // This happened once on a Nexus Player.
+                Log.e(TAG, "Security exception when fetching local provider data! " + e.getMessage());
+            }
         }
     };
 
@@ -126,28 +279,30 @@ public class LocalProvider {
         mCallback = cb;
         mContentResolver = cr;
         mUri = uri;
-        mSongs = new HashMap<>();
-        mAlbums = new HashMap<>();
-        mArtists = new HashMap<>();
-        mPlaylists = new HashMap<>();
-        mGenres = new HashMap<>();
-        mAlbumsId = new HashMap<>();
-        mChangeMusic = true;
+        mSongs = new LocalSongIndex();
+        mAlbums = new ConcurrentHashMap<>();
+        mArtists = new ConcurrentHashMap<>();
+        mPlaylists = new ConcurrentHashMap<>();
+        mGenres = new ConcurrentHashMap<>();
+        mAlbumsId = new ConcurrentHashMap<>();
         mContext = context;
         mAudioPushRunnable.start();
         mSetup = false;
     }
 
+    private static HandlerThread startSyncThread() {
+        final HandlerThread thread = new HandlerThread("LocalProvider sync",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        return thread;
+    }
+
     public void notifyIdentifier(final ProviderIdentifier id) {
-        Set<String> keys = mSongs.keySet();
-        for (String key : keys) {
-            LocalSong lSong = mSongs.get(key);
-            if (lSong != null) {
-                lSong.getSong().setProvider(id);
-            }
+        for (LocalSong lSong : mSongs.getAll()) {
+            lSong.getSong().setProvider(id);
         }
 
-        keys = mAlbums.keySet();
+        Set<String> keys = mAlbums.keySet();
         for (String key : keys) {
             mAlbums.get(key).setProvider(id);
         }
@@ -169,7 +324,10 @@ public class LocalProvider {
     }
 
     /**
-     * The main function to use for polling all the local content, use it in a thread so it doesn't slow down the whole application
+     * Registers the observers of the media store and starts the initial sync of the local content.
+     * Further changes are synced incrementally: only the songs, playlists and genres designated by
+     * the change notifications, or modified since the last sync, are read again and pushed to the
+     * app.
      */
     public void poll() {
         mSetup = false;
@@ -180,214 +338,534 @@ public class LocalProvider {
         mContentResolver.registerContentObserver(MediaStore.Audio.Artists.EXTERNAL_CONTENT_URI, true, mArtistContentObserver);
         mSetup = true;
 
+        synchronized (mPendingLock) {
+            mPendingAlbums = true;
+            mPendingAllSongs = true;
+            mPendingAllPlaylists = true;
+            mPendingAllGenres = true;
+        }
+        mSyncHandler.removeCallbacks(mSyncRunnable);
+        mSyncHandler.post(mSyncRunnable);
+    }
+
+    private void scheduleSync() {
+        mSyncHandler.removeCallbacks(mSyncRunnable);
+        mSyncHandler.postDelayed(mSyncRunnable, SYNC_DELAY);
+    }
+
+    /**
+     * Returns the id of the item designated by a change notification
+     * @param uri The Uri of the change
+     * @param parent The path segment preceding the id, or null if the id is the last segment
+     * @return The id, or -1 if the change concerns the whole collection
+     */
+    private static long getChangedId(Uri uri, String parent) {
+        if (uri == null) {
+            return -1;
+        }
+
+        final List<String> segments = uri.getPathSegments();
+        final int index = parent == null ? segments.size() - 1 : segments.indexOf(parent) + 1;
+        if (index <= 0 || index >= segments.size()) {
+            return -1;
+        }
+
         try {
-            fetchAlbums();
-            fetchArtists();
-            fetchSongs();
-            fetchPlaylists(null);
-            fetchGenres(MediaStore.Audio.Genres.EXTERNAL_CONTENT_URI);
-        } catch (SecurityException e) {
-            // This happened once on a Nexus Player.
-            Log.e(TAG, "Security exception when fetching local provider data! " + e.getMessage());
+            return Long.parseLong(segments.get(index));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String getIdSelection(String column, Set<Long> ids) {
+        final StringBuilder sb = new StringBuilder(column).append(" IN (");
+        boolean first = true;
+        for (Long id : ids) {
+            if (!first) {
+                sb.append(',');
+            }
+            sb.append(id);
+            first = false;
         }
+        return sb.append(')').toString();
     }
 
-    private void fetchAlbums() {
-        final String[] proj = {"*"};
+    /**
+     * Reads the albums table. Albums whose metadata changed are marked dirty, albums that are
+     * gone are dropped.
+     */
+    private void syncAlbums(Set<String> dirtyAlbums) {
+        final String[] proj = {
+                MediaStore.Audio.Albums._ID,
+                MediaStore.Audio.AlbumColumns.ALBUM,
+                MediaStore.Audio.AlbumColumns.ARTIST,
+                MediaStore.Audio.AlbumColumns.ALBUM_KEY,
+                MediaStore.Audio.AlbumColumns.LAST_YEAR
+        };
         final Cursor cur = mContentResolver.query(MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI, proj, null, null, null);
-        if (cur != null) {
-            if (cur.moveToFirst()) {
-                final int albumName = cur.getColumnIndex(MediaStore.Audio.AlbumColumns.ALBUM);
-                final int artistName = cur.getColumnIndex(MediaStore.Audio.AlbumColumns.ARTIST);
-                final int albumKey = cur.getColumnIndex(MediaStore.Audio.AlbumColumns.ALBUM_KEY);
-                final int yearKey = cur.getColumnIndex(MediaStore.Audio.AlbumColumns.LAST_YEAR);
-                final int idKey = cur.getColumnIndex(MediaStore.Audio.Albums._ID);
+        if (cur == null) {
+            return;
+        }
 
-                do {
-                    Album album = new Album(PREFIX_ALBUM + getAlbumUniqueName(cur.getString(albumKey), cur.getString(artistName)));
-                    album.setName(cur.getString(albumName));
+        final Set<String> seen = new HashSet<>();
+        try {
+            while (cur.moveToNext()) {
+                final String ref = PREFIX_ALBUM + getAlbumUniqueName(cur.getString(3), cur.getString(2));
+                final String name = cur.getString(1);
+                final int year = cur.getInt(4);
+                seen.add(ref);
+                mAlbumsId.put(ref, cur.getLong(0));
+
+                final Album existing = mAlbums.get(ref);
+                if (existing == null || existing.getYear() != year
+                        || !TextUtils.equals(existing.getName(), name)) {
+                    Album album = new Album(ref);
+                    album.setName(name);
                     album.setIsLoaded(true);
                     album.setSourceLogo(PluginService.LOGO_REF);
-                    album.setYear(cur.getInt(yearKey));
+                    album.setYear(year);
 
-                    // we get the contents of the album
-                    mAlbums.put(album.getRef(), album);
-                    mAlbumsId.put(album.getRef(), cur.getLong(idKey));
-                } while (cur.moveToNext());
+                    // The songs are added back when the album is published
+                    mAlbums.put(ref, album);
+                    dirtyAlbums.add(ref);
+                }
             }
+        } finally {
             cur.close();
         }
 
-        // first we poll all the musics
-        mContentResolver.registerContentObserver(mUri, true, mSongContentObserver);
-        mContentResolver.registerContentObserver(MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI, true, mSongContentObserver);
+        for (String ref : new ArrayList<>(mAlbums.keySet())) {
+            if (!seen.contains(ref)) {
+                mAlbums.remove(ref);
+                mAlbumsId.remove(ref);
+                mSearchIndex.remove(SearchIndex.TYPE_ALBUM, ref);
+                dirtyAlbums.remove(ref);
+            }
+        }
     }
 
-    public void fetchSongs() {
-        // First we poll all the songs
-        final Cursor cur = mContentResolver.query(mUri, null,
+    /**
+     * Reads the songs modified since the last sync or not indexed yet, and drops the songs that
+     * are gone
+     */
+    private void syncAllSongs(Set<String> dirtyAlbums, Set<String> dirtyArtists) {
+        // Compare the ids both ways: deletions don't leave any row behind, and files can be added
+        // with a modification date older than the watermark (e.g. copied while keeping it)
+        final Set<Long> unknown = new HashSet<>();
+        final Cursor ids = mContentResolver.query(mUri, new String[]{MediaStore.Audio.Media._ID},
                 MediaStore.Audio.Media.IS_MUSIC + " = 1", null, null);
+        if (ids != null) {
+            final Set<Long> present = new HashSet<>(ids.getCount());
+            try {
+                while (ids.moveToNext()) {
+                    final long id = ids.getLong(0);
+                    present.add(id);
+                    if (!mSongIdToRef.containsKey(id)) {
+                        unknown.add(id);
+                    }
+                }
+            } finally {
+                ids.close();
+            }
+
+            for (Long id : new ArrayList<>(mSongIdToRef.keySet())) {
+                if (!present.contains(id)) {
+                    removeSong(id, dirtyAlbums, dirtyArtists);
+                }
+            }
+        }
 
+        // DATE_MODIFIED has a one second resolution: songs modified during the second of the
+        // watermark are read again, and skipped if they didn't change
+        final Cursor cur = mContentResolver.query(mUri, SONG_PROJECTION,
+                MediaStore.Audio.Media.IS_MUSIC + " = 1 AND "
+                        + MediaStore.Audio.Media.DATE_MODIFIED + " >= ?",
+                new String[]{Long.toString(mSongWatermark)}, null);
         if (cur != null) {
-            if (cur.moveToFirst()) {
-                // Fetch all the columns we are interested in
-                int artistKey = cur.getColumnIndex(MediaStore.Audio.Media.ARTIST_KEY);
-                int albumKey = cur.getColumnIndex(MediaStore.Audio.Media.ALBUM_KEY);
-                int titleKey = cur.getColumnIndex(MediaStore.Audio.Media.TITLE_KEY);
-                int artistColumn = cur.getColumnIndex(MediaStore.Audio.Media.ARTIST);
-                int titleColumn = cur.getColumnIndex(MediaStore.Audio.Media.TITLE);
-                int albumIdColumn = cur.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID);
-                int durationColumn = cur.getColumnIndex(MediaStore.Audio.Media.DURATION);
-                int idColumn = cur.getColumnIndex(MediaStore.Audio.Media._ID);
-                int yearColumn = cur.getColumnIndex(MediaStore.Audio.Media.YEAR);
+            try {
+                while (cur.moveToNext()) {
+                    final LocalSong song = readSong(cur);
+                    unknown.remove(song.getId());
+                    applySong(song, dirtyAlbums, dirtyArtists);
+                }
+            } finally {
+                cur.close();
+            }
+        }
 
-                do {
-                    // We create the unique ID the song have
-                    final String uniquename = getSongUniqueName(cur.getString(artistKey), cur.getString(albumKey), cur.getString(titleKey));
+        // The new songs the watermark didn't catch are read by id
+        if (!unknown.isEmpty()) {
+            syncSongs(unknown, dirtyAlbums, dirtyArtists);
+        }
+    }
 
-                    Song s = new Song(PREFIX_SONG + uniquename);
-                    s.setAvailable(true);
-                    s.setTitle(cur.getString(titleColumn));
+    /**
+     * Reads the provided songs, and drops the ones that are gone
+     */
+    private void syncSongs(Set<Long> songIds, Set<String> dirtyAlbums, Set<String> dirtyArtists) {
+        final Cursor cur = mContentResolver.query(mUri, SONG_PROJECTION,
+                MediaStore.Audio.Media.IS_MUSIC + " = 1 AND "
+                        + getIdSelection(MediaStore.Audio.Media._ID, songIds), null, null);
+        if (cur == null) {
+            return;
+        }
 
-                    String artistSrc = cur.getString(artistKey);
-                    if (artistSrc != null) {
-                        s.setArtist(PREFIX_ARTIST + getArtistUniqueName(artistSrc));
-                    }
-                    s.setDuration((int) cur.getLong(durationColumn));
-                    s.setAlbum(PREFIX_ALBUM + getAlbumUniqueName(cur.getString(albumKey), cur.getString(artistColumn)));
+        final Set<Long> missing = new HashSet<>(songIds);
+        try {
+            while (cur.moveToNext()) {
+                final LocalSong song = readSong(cur);
+                missing.remove(song.getId());
+                applySong(song, dirtyAlbums, dirtyArtists);
+            }
+        } finally {
+            cur.close();
+        }
 
-                    Album album = mAlbums.get(s.getAlbum());
-                    if (album != null) {
-                        album.addSong(s.getRef());
-                    }
+        for (Long id : missing) {
+            removeSong(id, dirtyAlbums, dirtyArtists);
+        }
+    }
 
-                    s.setYear(cur.getInt(yearColumn));
-                    s.setIsLoaded(true); // Local songs are always fully loaded
-                    s.setOfflineStatus(BoundEntity.OFFLINE_STATUS_READY); // Local songs are always offline
-                    s.setSourceLogo(PluginService.LOGO_REF);
+    private LocalSong readSong(Cursor cur) {
+        // We create the unique ID the song have
+        final String artistKey = cur.getString(COLUMN_ARTIST_KEY);
+        final String albumKey = cur.getString(COLUMN_ALBUM_KEY);
+        final String uniquename = getSongUniqueName(artistKey, albumKey, cur.getString(COLUMN_TITLE_KEY));
 
-                    //we keep LocalSongs so we still have the id informations
-                    final Long id = cur.getLong(idColumn);
-                    final Long albumId = cur.getLong(albumIdColumn);
+        Song s = new Song(PREFIX_SONG + uniquename);
+        s.setAvailable(true);
+        s.setTitle(cur.getString(COLUMN_TITLE));
 
-                    mSongs.put(s.getRef(), new LocalSong(s, id, albumId));
-                    mCallback.songUpdated(s);
-                } while (cur.moveToNext());
-            }
-            cur.close();
+        if (artistKey != null) {
+            s.setArtist(PREFIX_ARTIST + getArtistUniqueName(artistKey));
         }
+        s.setDuration((int) cur.getLong(COLUMN_DURATION));
+        s.setAlbum(PREFIX_ALBUM + getAlbumUniqueName(albumKey, cur.getString(COLUMN_ARTIST)));
+        s.setYear(cur.getInt(COLUMN_YEAR));
+        s.setIsLoaded(true); // Local songs are always fully loaded
+        s.setOfflineStatus(BoundEntity.OFFLINE_STATUS_READY); // Local songs are always offline
+        s.setSourceLogo(PluginService.LOGO_REF);
+
+        //we keep LocalSongs so we still have the id informations
+        return new LocalSong(s, cur.getLong(COLUMN_ID), cur.getLong(COLUMN_ALBUM_ID),
+                cur.getLong(COLUMN_DATE_MODIFIED), cur.getString(COLUMN_ARTIST));
+    }
 
-        for (Album album : mAlbums.values()) {
-            mCallback.albumUpdated(album);
+    /**
+     * Indexes a song read from the media store and pushes it to the app, unless it didn't change
+     */
+    private void applySong(LocalSong song, Set<String> dirtyAlbums, Set<String> dirtyArtists) {
+        final long id = song.getId();
+        final String ref = song.getSong().getRef();
+        mSongWatermark = Math.max(mSongWatermark, song.getDateModified());
+
+        final String previousRef = mSongIdToRef.get(id);
+        final LocalSong previous = previousRef != null ? mSongs.get(previousRef) : null;
+        if (previous != null && previous.getId() == id && previousRef.equals(ref)
+                && previous.getDateModified() == song.getDateModified()) {
+            return;
+        }
+
+        if (previousRef != null && !previousRef.equals(ref)) {
+            // The tags changed the reference of the song: the old one is gone
+            removeSong(id, dirtyAlbums, dirtyArtists);
         }
+
+        // Another file with the same tags is replaced, as when all songs were fetched at once
+        final LocalSong replaced = mSongs.get(ref);
+        if (replaced != null) {
+            unlinkSong(replaced, dirtyAlbums, dirtyArtists);
+        }
+
+        mSongs.put(song);
+        mSongIdToRef.put(id, ref);
+        mSearchIndex.put(SearchIndex.TYPE_SONG, ref, song.getSong().getTitle());
+        linkSong(song, dirtyAlbums, dirtyArtists);
+        mCallback.songUpdated(song.getSong());
     }
 
-    public void fetchArtists() {
-        final String[] proj = {"*"};
+    /**
+     * Drops a song that is no longer in the media store, and pushes it as unavailable
+     */
+    private void removeSong(long id, Set<String> dirtyAlbums, Set<String> dirtyArtists) {
+        final String ref = mSongIdToRef.remove(id);
+        if (ref == null) {
+            return;
+        }
 
-        // we poll the artists
-        final Cursor cur = mContentResolver.query(MediaStore.Audio.Artists.EXTERNAL_CONTENT_URI, proj, null, null, null);
-        if (cur != null) {
-            if (cur.moveToFirst()) {
-                final int artistName = cur.getColumnIndex(MediaStore.Audio.ArtistColumns.ARTIST);
-                final int artistKey = cur.getColumnIndex(MediaStore.Audio.ArtistColumns.ARTIST_KEY);
-                final int artistId = cur.getColumnIndex(MediaStore.Audio.Artists._ID);
-                do {
-                    String artistKeyStr = cur.getString(artistKey);
-                    if (artistKeyStr == null || artistKeyStr.isEmpty()) {
-                        artistKeyStr = cur.getString(artistName);
-                    }
-                    if (artistKeyStr == null || artistKeyStr.isEmpty()) {
-                        artistKeyStr = String.valueOf(cur.getLong(artistId));
-                    }
+        final LocalSong song = mSongs.get(ref);
+        if (song == null || song.getId() != id) {
+            // The reference now belongs to another file
+            return;
+        }
 
-                    Artist artist = new Artist(PREFIX_ARTIST + getArtistUniqueName(artistKeyStr));
-                    artist.setName(cur.getString(artistName));
-                    artist.setIsLoaded(true);
+        mSongs.remove(ref);
+        mSearchIndex.remove(SearchIndex.TYPE_SONG, ref);
+        unlinkSong(song, dirtyAlbums, dirtyArtists);
 
-                    // we get the albums from this artist
-                    artist = getAlbumsArtists(artist, MediaStore.Audio.Artists.Albums.getContentUri("external", cur.getLong(artistId)));
-                    if (artist != null) {
-                        artist.setSourceLogo(PluginService.LOGO_REF);
-                        mArtists.put(artist.getRef(), artist);
-                        mCallback.artistUpdated(artist);
-                    }
-                } while (cur.moveToNext());
+        final Song s = song.getSong();
+        s.setAvailable(false);
+        mCallback.songUpdated(s);
+    }
+
+    private void linkSong(LocalSong song, Set<String> dirtyAlbums, Set<String> dirtyArtists) {
+        final Song s = song.getSong();
+
+        LinkedHashSet<String> albumSongs = mAlbumSongs.get(s.getAlbum());
+        if (albumSongs == null) {
+            albumSongs = new LinkedHashSet<>();
+            mAlbumSongs.put(s.getAlbum(), albumSongs);
+        }
+        albumSongs.add(s.getRef());
+        dirtyAlbums.add(s.getAlbum());
+
+        if (s.getArtist() != null) {
+            LinkedHashMap<String, Integer> artistAlbums = mArtistAlbums.get(s.getArtist());
+            if (artistAlbums == null) {
+                artistAlbums = new LinkedHashMap<>();
+                mArtistAlbums.put(s.getArtist(), artistAlbums);
             }
+            final Integer count = artistAlbums.get(s.getAlbum());
+            artistAlbums.put(s.getAlbum(), count == null ? 1 : count + 1);
+            mArtistNames.put(s.getArtist(), song.getArtistName());
+            dirtyArtists.add(s.getArtist());
+        }
+    }
 
-            cur.close();
+    private void unlinkSong(LocalSong song, Set<String> dirtyAlbums, Set<String> dirtyArtists) {
+        final Song s = song.getSong();
+
+        final LinkedHashSet<String> albumSongs = mAlbumSongs.get(s.getAlbum());
+        if (albumSongs != null && albumSongs.remove(s.getRef())) {
+            if (albumSongs.isEmpty()) {
+                mAlbumSongs.remove(s.getAlbum());
+            }
+            dirtyAlbums.add(s.getAlbum());
+        }
+
+        if (s.getArtist() != null) {
+            final LinkedHashMap<String, Integer> artistAlbums = mArtistAlbums.get(s.getArtist());
+            final Integer count = artistAlbums != null ? artistAlbums.get(s.getAlbum()) : null;
+            if (count != null) {
+                if (count > 1) {
+                    artistAlbums.put(s.getAlbum(), count - 1);
+                } else {
+                    artistAlbums.remove(s.getAlbum());
+                }
+                dirtyArtists.add(s.getArtist());
+            }
         }
     }
 
-    public void fetchPlaylists(String idPlaylist) {
-        Uri uri;
+    /**
+     * Rebuilds the albums and artists whose songs changed from the songs index, and pushes them.
+     * The relation between artists and albums comes from the songs themselves, instead of one
+     * query per artist.
+     */
+    private void publishAlbumsAndArtists(Set<String> dirtyAlbums, Set<String> dirtyArtists) {
+        for (String ref : dirtyAlbums) {
+            final Album current = mAlbums.get(ref);
+            if (current == null) {
+                // Not in the albums table (yet), songs keep pointing to it as before
+                continue;
+            }
+
+            Album album = new Album(ref);
+            album.setName(current.getName());
+            album.setYear(current.getYear());
+            album.setIsLoaded(true);
+            album.setSourceLogo(PluginService.LOGO_REF);
+            album.setProvider(current.getProvider());
+
+            final LinkedHashSet<String> songs = mAlbumSongs.get(ref);
+            if (songs != null) {
+                for (String songRef : songs) {
+                    album.addSong(songRef);
+                }
+            }
 
-        uri = MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI;
-        String request = null;
-        if (idPlaylist != null) {
-            request = MediaStore.Audio.Playlists._ID + " = " + idPlaylist;
+            mAlbums.put(ref, album);
+            mSearchIndex.put(SearchIndex.TYPE_ALBUM, ref, album.getName());
+            mCallback.albumUpdated(album);
         }
-        Cursor cur;
-        String[] proj = {"*"};
 
-        // We now poll the playlists
-        cur = mContentResolver.query(uri, proj,
-                request, null, null);
+        for (String ref : dirtyArtists) {
+            final LinkedHashMap<String, Integer> albums = mArtistAlbums.get(ref);
+            if (albums == null || albums.isEmpty()) {
+                mArtistAlbums.remove(ref);
+                mArtistNames.remove(ref);
+                mArtists.remove(ref);
+                mSearchIndex.remove(SearchIndex.TYPE_ARTIST, ref);
+                continue;
+            }
 
-        if (cur != null && cur.moveToFirst()) {
-            final int idKey = cur.getColumnIndex(MediaStore.Audio.Playlists._ID);
-            final int nameKey = cur.getColumnIndex(MediaStore.Audio.Playlists.NAME);
+            Artist artist = new Artist(ref);
+            artist.setName(mArtistNames.get(ref));
+            artist.setIsLoaded(true);
+            artist.setSourceLogo(PluginService.LOGO_REF);
+            for (String albumRef : albums.keySet()) {
+                artist.addAlbum(albumRef);
+            }
 
-            do {
-                Long id = cur.getLong(idKey);
-                String name = cur.getString(nameKey);
-                Playlist play = new Playlist(PREFIX_PLAYLIST + getPlaylistUniqueName(Long.toString(id)));
+            final Artist current = mArtists.get(ref);
+            if (current != null) {
+                artist.setProvider(current.getProvider());
+            }
+
+            mArtists.put(ref, artist);
+            mSearchIndex.put(SearchIndex.TYPE_ARTIST, ref, artist.getName());
+            mCallback.artistUpdated(artist);
+        }
+    }
+
+    /**
+     * Syncs playlists. The members of a playlist are only read again if it is new, if its
+     * modification date changed or if a change notification designated it.
+     * @param ids The ids of the playlists to read again, or null to check all the playlists
+     */
+    private void syncPlaylists(Set<Long> ids) {
+        final String[] proj = {
+                MediaStore.Audio.Playlists._ID,
+                MediaStore.Audio.Playlists.NAME,
+                MediaStore.Audio.Playlists.DATE_MODIFIED
+        };
+        final String selection = ids == null ? null : getIdSelection(MediaStore.Audio.Playlists._ID, ids);
+        final Cursor cur = mContentResolver.query(MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI,
+                proj, selection, null, null);
+        if (cur == null) {
+            return;
+        }
+
+        final Set<String> seen = new HashSet<>();
+        try {
+            while (cur.moveToNext()) {
+                final long id = cur.getLong(0);
+                final String name = cur.getString(1);
+                final long dateModified = cur.getLong(2);
+                final String ref = PREFIX_PLAYLIST + getPlaylistUniqueName(Long.toString(id));
+                seen.add(ref);
+
+                final Playlist existing = mPlaylists.get(ref);
+                final Long knownDate = mPlaylistDates.get(id);
+                if (ids == null && existing != null && knownDate != null
+                        && knownDate == dateModified && TextUtils.equals(existing.getName(), name)) {
+                    continue;
+                }
+
+                Playlist play = new Playlist(ref);
                 play.setName(name);
                 play.setIsLoaded(true);
 
                 // we get the content of the playlist
                 play = getPlaylist(MediaStore.Audio.Playlists.Members.getContentUri("external", id), play);
-                if (play != null) {
-                    mPlaylists.put(play.getRef(), play);
+                mPlaylistDates.put(id, dateModified);
 
-                    // we give to the app the new playlists when we finish polling it
+                if (existing == null || !TextUtils.equals(existing.getName(), name)
+                        || !existing.songsList().equals(play.songsList())) {
+                    if (existing != null) {
+                        play.setProvider(existing.getProvider());
+                    }
+                    mPlaylists.put(ref, play);
+                    mSearchIndex.put(SearchIndex.TYPE_PLAYLIST, ref, name);
                     mCallback.playlistUpdated(play);
                 }
-            } while (cur.moveToNext());
+            }
+        } finally {
+            cur.close();
         }
 
-        if (cur != null) {
-            cur.close();
+        // Playlists that were deleted
+        if (ids == null) {
+            for (String ref : new ArrayList<>(mPlaylists.keySet())) {
+                if (!seen.contains(ref)) {
+                    mPlaylists.remove(ref);
+                    mSearchIndex.remove(SearchIndex.TYPE_PLAYLIST, ref);
+                    mCallback.playlistRemoved(ref);
+                }
+            }
+        } else {
+            for (Long id : ids) {
+                final String ref = PREFIX_PLAYLIST + getPlaylistUniqueName(Long.toString(id));
+                if (!seen.contains(ref) && mPlaylists.remove(ref) != null) {
+                    mPlaylistDates.remove(id);
+                    mSearchIndex.remove(SearchIndex.TYPE_PLAYLIST, ref);
+                    mCallback.playlistRemoved(ref);
+                }
+            }
         }
     }
 
-    public void fetchGenres(Uri uri) {
-        if (uri == null)
-            uri = MediaStore.Audio.Genres.EXTERNAL_CONTENT_URI;
-        Cursor cur;
-        String[] proj = {"*"};
+    /**
+     * Syncs genres. Genres don't have a modification date, so the members are read again, but only
+     * the genres whose songs changed are pushed to the app.
+     * @param ids The ids of the genres to read again, or null to read all the genres
+     */
+    private void syncGenres(Set<Long> ids) {
+        final String[] proj = {MediaStore.Audio.Genres._ID, MediaStore.Audio.Genres.NAME};
+        final String selection = ids == null ? null : getIdSelection(MediaStore.Audio.Genres._ID, ids);
+        final Cursor cur = mContentResolver.query(MediaStore.Audio.Genres.EXTERNAL_CONTENT_URI,
+                proj, selection, null, null);
+        if (cur == null) {
+            return;
+        }
+
+        final HashMap<Long, Genre> genres = new HashMap<>();
+        try {
+            while (cur.moveToNext()) {
+                final String name = cur.getString(1);
+                Genre genre = new Genre("local:genre:" + MD5(name));
+                genre.setName(name);
+                genre.setIsLoaded(true);
+                genre.setSourceLogo(PluginService.LOGO_REF);
+                genres.put(cur.getLong(0), genre);
+            }
+        } finally {
+            cur.close();
+        }
 
-        // now we poll the genre
-        cur = mContentResolver.query(uri, proj, null, null, null);
+        HashMap<Long, List<String>> members = null;
+        if (ids == null || ids.size() > 1) {
+            members = getAllGenresSongs();
+        }
 
-        if (cur != null) {
-            if (cur.moveToFirst()) {
-                final int idKey = cur.getColumnIndex(MediaStore.Audio.Genres._ID);
-                final int nameKey = cur.getColumnIndex(MediaStore.Audio.Genres.NAME);
-                do {
-                    Long id = cur.getLong(idKey);
-                    String name = cur.getString(nameKey);
-                    Genre genre = new Genre("local:genre:" + MD5(name));
-                    genre.setName(name);
-                    genre.setIsLoaded(true);
-                    getGenreSongs(MediaStore.Audio.Genres.Members.getContentUri("external", id), genre);
-                    genre.setSourceLogo(PluginService.LOGO_REF);
-                    mGenres.put(genre.getRef(), genre);
-                    mCallback.genreUpdated(genre);
-                } while (cur.moveToNext());
+        for (Map.Entry<Long, Genre> entry : genres.entrySet()) {
+            final Genre genre = entry.getValue();
+            List<String> songs = members != null ? members.get(entry.getKey()) : null;
+            if (songs == null && members == null) {
+                songs = getGenreSongs(MediaStore.Audio.Genres.Members.getContentUri("external", entry.getKey()));
+            } else if (songs == null) {
+                songs = new ArrayList<>();
             }
 
-            cur.close();
+            if (mGenres.containsKey(genre.getRef()) && songs.equals(mGenreSongs.get(genre.getRef()))) {
+                continue;
+            }
+
+            for (String songRef : songs) {
+                genre.addSong(songRef);
+            }
+            final Genre current = mGenres.get(genre.getRef());
+            if (current != null) {
+                genre.setProvider(current.getProvider());
+            }
+
+            mGenreSongs.put(genre.getRef(), songs);
+            mGenres.put(genre.getRef(), genre);
+            mCallback.genreUpdated(genre);
+        }
+
+        // Genres that were deleted
+        if (ids == null) {
+            final Set<String> seen = new HashSet<>();
+            for (Genre genre : genres.values()) {
+                seen.add(genre.getRef());
+            }
+            for (String ref : new ArrayList<>(mGenres.keySet())) {
+                if (!seen.contains(ref)) {
+                    mGenres.remove(ref);
+                    mGenreSongs.remove(ref);
+                }
+            }
         }
     }
 
@@ -445,31 +923,6 @@ public class LocalProvider {
         }
     }
 
-    ContentObserver mSongContentObserver = new ContentObserver(mHandler) {
-        @Override
-        public void onChange(boolean self) {
-            fetchSongs();
-        }
-
-        @Override
-        public void onChange(boolean self, Uri uri) {
-            fetchSongs();
-        }
-    };
-
-    ContentObserver mPlaylistContentObserver = new ContentObserver(mHandler) {
-        @Override
-        public void onChange(boolean self) {
-            onChange(self, null);
-        }
-
-        @Override
-        public void onChange(boolean self, Uri uri) {
-            Log.d(TAG, uri.getPath());
-            fetchPlaylists(null);
-        }
-    };
-
     /**
      * @return if the provider finished polling the content
      */
@@ -500,31 +953,6 @@ public class LocalProvider {
         return MD5(playlistId);
     }
 
-    /**
-     * Get the albums by the given artist
-     *
-     * @param artist the artist
-     * @param uri    the uri of the artist
-     * @return the artist with all its albums
-     */
-    public Artist getAlbumsArtists(Artist artist, Uri uri) {
-        Cursor albums = mContentResolver.query(uri, null, null, null, null);
-
-        if (albums != null) {
-            // we only need the name of the album to generate the album local id
-            final int albumKey = albums.getColumnIndex(MediaStore.Audio.AlbumColumns.ALBUM_KEY);
-
-            if (albums.moveToFirst()) {
-                do {
-                    artist.addAlbum(PREFIX_ALBUM + getAlbumUniqueName(albums.getString(albumKey), artist.getName()));
-                } while (albums.moveToNext());
-            }
-
-            albums.close();
-        }
-        return artist;
-    }
-
     /**
      * Fetch the playlist content
      *
@@ -562,10 +990,11 @@ public class LocalProvider {
     /**
      * Get the songs of the genre given
      *
-     * @param uri   the uri of the genre
-     * @param genre the genre to add the songs to
+     * @param uri the uri of the genre
+     * @return the references of the songs of the genre
      */
-    public void getGenreSongs(Uri uri, Genre genre) {
+    public List<String> getGenreSongs(Uri uri) {
+        final List<String> songs = new ArrayList<>();
         String[] projection = {
                 MediaStore.Audio.Genres.Members.TITLE_KEY,
                 MediaStore.Audio.Genres.Members.ARTIST_KEY,
@@ -576,45 +1005,88 @@ public class LocalProvider {
             int titleKeyColumn = tracks.getColumnIndex(MediaStore.Audio.Genres.Members.TITLE_KEY);
             int artistKeyColumn = tracks.getColumnIndex(MediaStore.Audio.Genres.Members.ARTIST_KEY);
             int albumKeyColumn = tracks.getColumnIndex(MediaStore.Audio.Genres.Members.ALBUM_KEY);
-            if (tracks.moveToNext()) {
-                do {
-                    genre.addSong(PREFIX_SONG + getSongUniqueName(tracks.getString(artistKeyColumn),
-                            tracks.getString(albumKeyColumn),
-                            tracks.getString(titleKeyColumn)));
-                } while (tracks.moveToNext());
+            while (tracks.moveToNext()) {
+                songs.add(PREFIX_SONG + getSongUniqueName(tracks.getString(artistKeyColumn),
+                        tracks.getString(albumKeyColumn),
+                        tracks.getString(titleKeyColumn)));
             }
             tracks.close();
         }
+        return songs;
     }
 
     /**
-     * @return returns a list of the songs
+     * Get the songs of all the genres in a single query
+     *
+     * @return the references of the songs of each genre, by genre id, or null if the media
+     * provider doesn't support it
      */
-    public List<Song> getSongs(int offset, int range) {
-        final ArrayList<Song> songs = new ArrayList<Song>();
-        final Collection<LocalSong> localSongs = new ArrayList<>(mSongs.values());
+    private HashMap<Long, List<String>> getAllGenresSongs() {
+        String[] projection = {
+                MediaStore.Audio.Genres.Members.GENRE_ID,
+                MediaStore.Audio.Genres.Members.TITLE_KEY,
+                MediaStore.Audio.Genres.Members.ARTIST_KEY,
+                MediaStore.Audio.Genres.Members.ALBUM_KEY
+        };
 
-        int index = 0;
-        for (LocalSong song : localSongs) {
-            if (index < offset) {
-                ++index;
-                continue;
-            }
-            Song s = song.getSong();
-            if (s != null) {
-                s.setSourceLogo(PluginService.LOGO_REF);
-                songs.add(s);
-            }
+        final Cursor tracks;
+        try {
+            tracks = mContentResolver.query(GENRES_ALL_MEMBERS_URI, projection,
+                    MediaStore.Audio.Media.IS_MUSIC + " != 0 ", null, null);
+        } catch (IllegalArgumentException | UnsupportedOperationException e) {
+            Log.w(TAG, "Cannot query the members of all genres at once", e);
+            return null;
+        }
+        if (tracks == null) {
+            return null;
+        }
 
-            if (index >= offset + range) {
-                break;
+        final HashMap<Long, List<String>> members = new HashMap<>();
+        try {
+            while (tracks.moveToNext()) {
+                final long genreId = tracks.getLong(0);
+                List<String> songs = members.get(genreId);
+                if (songs == null) {
+                    songs = new ArrayList<>();
+                    members.put(genreId, songs);
+                }
+                songs.add(PREFIX_SONG + getSongUniqueName(tracks.getString(2),
+                        tracks.getString(3), tracks.getString(1)));
             }
+        } finally {
+            tracks.close();
+        }
+        return members;
+    }
 
-            ++index;
+    /**
+     * @param offset The position of the first song
+     * @param range The maximum number of songs
+     * @return returns a list of the songs
+     */
+    public List<Song> getSongs(int offset, int range) {
+        final List<Song> songs = mSongs.getRange(offset, range);
+        for (Song s : songs) {
+            s.setSourceLogo(PluginService.LOGO_REF);
         }
         return songs;
     }
 
+    /**
+     * Returns a page of songs. Unlike offsets, cursors keep pointing after the last song returned
+     * when songs are removed in-between pages.
+     * @param cursor The cursor of the previous page, or null for the first page
+     * @param range The maximum number of songs
+     * @return The page of songs, with the cursor of the next page
+     */
+    public LocalSongIndex.Page getSongs(String cursor, int range) {
+        final LocalSongIndex.Page page = mSongs.getPage(cursor, range);
+        for (Song s : page.songs) {
+            s.setSourceLogo(PluginService.LOGO_REF);
+        }
+        return page;
+    }
+
     /**
      * @return A list of all genres
      */
@@ -810,6 +1282,7 @@ public class LocalProvider {
         mContentResolver.delete(MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI, where, whereVal);
 
         mPlaylists.remove(playlistRef);
+        mSearchIndex.remove(SearchIndex.TYPE_PLAYLIST, playlistRef);
         mCallback.playlistRemoved(playlistRef);
 
         // Errors aren't supported for now
@@ -833,6 +1306,7 @@ public class LocalProvider {
 
         Playlist playlist = mPlaylists.get(playlistRef);
         playlist.setName(title);
+        mSearchIndex.put(SearchIndex.TYPE_PLAYLIST, playlistRef, title);
 
         mCallback.playlistUpdated(playlist);
 
@@ -931,6 +1405,7 @@ public class LocalProvider {
             pl.setName(playlistName);
             pl.setIsLoaded(true);
             mPlaylists.put(ref, pl);
+            mSearchIndex.put(SearchIndex.TYPE_PLAYLIST, ref, playlistName);
             mCallback.playlistUpdated(pl);
 
             return ref;
@@ -943,21 +1418,44 @@ public class LocalProvider {
      * @param ref the unique reference of the song
      */
     public void playSong(String ref) {
+        synchronized (this) {
+            if (mSwitchedGapless && mCurrentSong != null && mCurrentSong.getSong().getRef().equals(ref)) {
+                // The decoder already moved on to this song right after the previous one
+                mSwitchedGapless = false;
+                mCallback.songPlaying();
+                return;
+            }
+        }
+
         // Pause the current song (if any), without notifying the app
         pause(false);
 
-        mCurrentSong = null;
-        mChangeMusic = true;//we say that we change music
-        mCurrentSong = getLocalSong(ref);//we set the new song
+        final LocalSong song = getLocalSong(ref);
 
         synchronized (this) {
-            // We reset the decoder for this song
+            mSwitchedGapless = false;
+
+            // We reset the decoder for this song, reusing the pre-fetched one if it matches
             if (mDecoder != null) {
-                mDecoder.stop();
-                mDecoder.release();
+                releaseDecoder(mDecoder);
+                mDecoder = null;
+            }
+            if (isNextDecoderFor(song)) {
+                mDecoder = mNextDecoder;
+                mNextDecoder = null;
+            } else {
+                // The pre-fetched song isn't the one that plays, don't keep its codec open
+                if (mNextDecoder != null) {
+                    mNextDecoder.release();
+                    mNextDecoder = null;
+                }
+                mDecoder = openDecoder(song);
             }
-            getCurrentDecoder();
-            mPendingOutIndex = -1;
+            mCurrentSong = song;
+            mPendingSeekMs = -1;
+
+            // Drop the audio of the previous song that the app didn't get yet
+            mCallback.discardAudio();
         }
 
         mPaused = false;
@@ -966,7 +1464,6 @@ public class LocalProvider {
         // we resume the decoder thread
         synchronized (mAudioPushRunnable) {
             mAudioPushRunnable.notify();
-            mPendingOutIndex = -1;
         }
 
 
@@ -974,6 +1471,40 @@ public class LocalProvider {
 
     }
 
+    /**
+     * Prepares a decoder for the song that will likely play next, so that it starts right after
+     * the last sample of the current one
+     *
+     * @param ref the unique reference of the song
+     */
+    public void prefetchSong(String ref) {
+        final LocalSong song = getLocalSong(ref);
+        if (song == null) {
+            return;
+        }
+
+        synchronized (this) {
+            if (isNextDecoderFor(song)) {
+                return;
+            }
+        }
+
+        final TrackDecoder decoder = openDecoder(song);
+        if (decoder == null) {
+            return;
+        }
+        decoder.prime();
+
+        final TrackDecoder previous;
+        synchronized (this) {
+            previous = mNextDecoder;
+            mNextDecoder = decoder;
+        }
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
     public void pause(boolean notify) {
         if (mDecoder != null && !mPaused) {
             mPaused = true;
@@ -989,8 +1520,6 @@ public class LocalProvider {
             if (mIsEOS && mCurrentSong != null) {
                 playSong(mCurrentSong.getSong().getRef());
             } else if (mCurrentSong != null) {
-                mDecoder.flush();
-
                 synchronized (mAudioPushRunnable) {
                     mAudioPushRunnable.notifyAll();
                 }
@@ -999,249 +1528,152 @@ public class LocalProvider {
         }
     }
 
+    private boolean isNextDecoderFor(LocalSong song) {
+        return mNextDecoder != null && song != null
+                && mNextDecoder.getSong().getSong().getRef().equals(song.getSong().getRef());
+    }
+
     /**
-     * Sets a new decoder if the music changed
+     * @return A started decoder for the song, or null if the song cannot be decoded
      */
-    private void getCurrentDecoder() {
-        synchronized (this) {
-            if (mChangeMusic) {
-                mChangeMusic = false;
-                mExtractor = new MediaExtractor();
-                try {
-                    mExtractor.setDataSource(mContext, mCurrentSong.getURI(), null);
-                } catch (Exception e) {
-                    Log.d("LocalProvider", "Data source error", e);
-                    return;
-                }
-
-                // if there is a track to play, use it as format info
-                if (mExtractor.getTrackCount() > 0) {
-                    mFormat = mExtractor.getTrackFormat(0);
-                } else {
-                    Log.e(TAG, "No track in the source file");
-                    return;
-                }
-
-                // we setup the codec with the type we got
-                try {
-                    mDecoder = MediaCodec.createDecoderByType(mFormat.getString(MediaFormat.KEY_MIME));
-                } catch (Exception e) {
-                    // SDK > 19, an IOException might be thrown
-                    Log.e(TAG, "Unable to create decoder", e);
-                    return;
-                }
-                mDecoder.configure(mFormat, null, null, 0);
+    private TrackDecoder openDecoder(LocalSong song) {
+        if (song == null) {
+            return null;
+        }
 
-                // get the sample rate to configure AudioTrack
-                Log.d(TAG, "Sample rate: " + mFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE));
-                mExtractor.selectTrack(0);
+        try {
+            return new TrackDecoder(mContext, song);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to decode " + song.getURI(), e);
+            return null;
+        }
+    }
 
-                // we get the buffer information to get notified of changes
-                mInfo = new MediaCodec.BufferInfo();
+    /**
+     * Releases the decoder, or marks it to be released by the decoder thread if its output is
+     * being delivered. Must be called with the provider lock held.
+     */
+    private void releaseDecoder(TrackDecoder decoder) {
+        if (decoder == mDeliveringDecoder) {
+            mReleaseAfterDelivery = true;
+        } else {
+            decoder.release();
+        }
+    }
 
-                // we start decoding
-                mDecoder.start();
-                mInputBuffers = mDecoder.getInputBuffers();
-                mOutputBuffers = mDecoder.getOutputBuffers();
+    public void seekTo(long timeMs) {
+        synchronized (this) {
+            if (mDecoder != null) {
+                if (mDecoder == mDeliveringDecoder) {
+                    // The codec buffer is still being delivered, seek once the delivery is over
+                    mPendingSeekMs = timeMs;
+                } else {
+                    mDecoder.seekTo(timeMs);
+                }
+                mIsEOS = false;
             }
+
+            // Drop the audio decoded before the seek position
+            mCallback.discardAudio();
         }
     }
 
-    public void seekTo(long timeMs) {
-        mExtractor.seekTo(timeMs * 1000, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+    /**
+     * Called on the decoder thread once all the PCM of the current song was delivered. If the
+     * next song was pre-fetched, its decoder takes over right away and its first sample follows
+     * the last one of this song.
+     */
+    private void onDecoderFinished() {
+        if (mNextDecoder != null) {
+            mDecoder.release();
+            mDecoder = mNextDecoder;
+            mNextDecoder = null;
+            mCurrentSong = mDecoder.getSong();
+            mSwitchedGapless = true;
+        } else {
+            mIsEOS = true;
+        }
+
+        mCallback.songFinished();
     }
 
     private final Thread mAudioPushRunnable = new Thread() {
         public void run() {
             mIsEOS = false;
-            byte[] outArray = new byte[8192];
 
             while (!isInterrupted()) {
                 synchronized (mAudioPushRunnable) {
-                    if (mIsEOS || mCurrentSong == null || mPaused) {
+                    if (mIsEOS || mCurrentSong == null || mPaused || mDecoder == null) {
                         try {
                             mAudioPushRunnable.wait();
                         } catch (InterruptedException e) {
                             Log.e(TAG, e.getMessage());
+                            return;
+                        }
+                    }
+                }
+
+                TrackDecoder decoder = null;
+                ByteBuffer out = null;
+                synchronized (LocalProvider.this) {
+                    // if we did not finish the file
+                    if (!mIsEOS && !mPaused && mDecoder != null) {
+                        out = mDecoder.getOutput();
+                        if (out != null) {
+                            decoder = mDecoder;
+                            mDeliveringDecoder = decoder;
+                        } else if (mDecoder.isFinished()) {
+                            onDecoderFinished();
                         }
                     }
+                }
+
+                if (decoder != null) {
+                    // We deliver the decoded bytes straight from the codec buffer. The service
+                    // blocks while its buffer is full, which paces the decoder, so this runs
+                    // without the provider lock to let playSong and seekTo through meanwhile.
+                    mCallback.musicDelivery(out, decoder.getChannelCount(),
+                            decoder.getSampleRate());
 
                     synchronized (LocalProvider.this) {
-                        // if we did not finish the file
-                        if (!mIsEOS && !mPaused && mDecoder != null) {
-
-                            // Input decoding
-                            int inIndex = -2;
-                            try {
-                                // Try to dequeue an output buffer (timeout 30ms)
-                                inIndex = mDecoder.dequeueInputBuffer(TimeUnit.MILLISECONDS.toMicros(30));
-                            } catch (IllegalStateException ignored) {
-                            }
-
-                            // if we have a buffer available
-                            if (inIndex >= 0) {
-                                // we get the buffer
-                                ByteBuffer buffer = mInputBuffers[inIndex];
-
-                                // we retrieve the current encoded sample size
-                                int sampleSize = mExtractor.readSampleData(buffer, 0);
-                                if (sampleSize < 0) {
-                                    // we are at the end of the file
-                                    mDecoder.queueInputBuffer(inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                                    mIsEOS = true;
-                                    mCallback.songFinished();
-                                } else {
-                                    //we queue the encoded sample in the decoder
-                                    try {
-                                        mDecoder.queueInputBuffer(inIndex, 0, sampleSize, 0, 0);
-                                        mExtractor.advance();
-                                    } catch (Exception e) {
-                                        Log.d(TAG, e.toString());
-                                        continue;
-                                    }
-                                }
-                            }
-
-                            // Output processing
-                            int outIndex = -1;
-                            if (mPendingOutIndex >= 0) {
-                                // We have a pending buffer, we'll dequeue later, but for now try
-                                // to write the sample again
-                                outIndex = MediaCodec.INFO_TRY_AGAIN_LATER;
-                            } else {
-                                try {
-                                    // Try to dequeue an output buffer (timeout 30ms)
-                                    outIndex = mDecoder.dequeueOutputBuffer(mInfo, TimeUnit.MILLISECONDS.toMicros(30));
-                                } catch (IllegalStateException ignored) {
-                                }
-                            }
-
-                            switch (outIndex) {//we act according to the decoder output
-                                case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
-                                    mOutputBuffers = mDecoder.getOutputBuffers();
-                                    break;
-
-                                case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
-                                    mFormat = mDecoder.getOutputFormat();
-                                    break;
-
-                                case MediaCodec.INFO_TRY_AGAIN_LATER:
-                                    // No buffer is available. This might be due to the upstream
-                                    // app buffers being full and returning 0 on write operations.
-                                    // We ping it and retry to write what we had.
-                                    if (mPendingOutIndex >= 0) {
-                                        int written = mCallback.musicDelivery(outArray, mPendingSize,
-                                                mFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
-                                                mFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE));
-
-                                        if (written > 0 || written == -1) {
-                                            try {
-                                                // We don't need this buffer anymore
-                                                mDecoder.releaseOutputBuffer(mPendingOutIndex, true);
-                                            } catch (IllegalStateException ignored) {
-                                            }
-                                            mPendingOutIndex = -1;
-                                        }
-                                    }
-                                    break;
-
-                                default:
-                                    ByteBuffer out = mOutputBuffers[outIndex];
-                                    int size = mInfo.size;
-                                    if (size > 0) {
-                                        if (outArray.length < mInfo.offset + mInfo.size) {
-                                            outArray = new byte[mInfo.offset + mInfo.size];
-                                        }
-
-                                        out.position(mInfo.offset);
-                                        out.limit(mInfo.offset + mInfo.size);
-                                        out.get(outArray, 0, mInfo.size);
-
-                                        // We deliver the array
-                                        int written = mCallback.musicDelivery(outArray, size,
-                                                mFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
-                                                mFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE));
-
-                                        if (written > 0) {
-                                            try {
-                                                // We don't need this buffer anymore
-                                                mDecoder.releaseOutputBuffer(outIndex, true);
-                                            } catch (IllegalStateException ignored) {
-                                            }
-                                        } else {
-                                            mPendingOutIndex = outIndex;
-                                            mPendingSize = mInfo.size;
-                                        }
-                                    }
-                                    break;
-                            }
+                        mDeliveringDecoder = null;
+                        if (mReleaseAfterDelivery) {
+                            mReleaseAfterDelivery = false;
+                            decoder.release();
+                        } else if (mPendingSeekMs >= 0) {
+                            decoder.seekTo(mPendingSeekMs);
+                            mCallback.discardAudio();
                         }
+                        mPendingSeekMs = -1;
                     }
                 }
             }
         }
     };
 
+    /**
+     * Searches the songs, albums, artists and playlists. A newer search cancels this one if it
+     * didn't complete yet.
+     * @param query The query
+     */
     public void startSearch(final String query) {
         Log.d(TAG, "Starting search for " + query);
 
-        final Thread searchThread = new Thread() {
-            public void run() {
-                mSearchResult = new SearchResult(query);
-
-                final List<String> songsList = new ArrayList<String>();
-                final List<String> albumList = new ArrayList<String>();
-                final List<String> playlistList = new ArrayList<String>();
-                final List<String> artistList = new ArrayList<String>();
-
-                final String queryUpper = query.toUpperCase();
-
-                for (LocalSong song : mSongs.values()) {
-                    if (song.getSong().getTitle().equalsIgnoreCase(query)) {
-                        songsList.add(0, song.getSong().getRef());
-                    } else if (song.getSong().getTitle().toUpperCase().contains(queryUpper)) {
-                        songsList.add(song.getSong().getRef());
-                    }
-                }
-
-                for (Album album : mAlbums.values()) {
-                    if (album.getName().equalsIgnoreCase(query)) {
-                        albumList.add(0, album.getRef());
-                    } else if (album.getName().toUpperCase().contains(queryUpper)) {
-                        albumList.add(album.getRef());
-                    }
-                }
-                for (Playlist playlist : mPlaylists.values()) {
-                    if (playlist.getName().equalsIgnoreCase(query)) {
-                        playlistList.add(0, playlist.getRef());
-                    } else if (playlist.getName().toUpperCase().contains(queryUpper)) {
-                        playlistList.add(playlist.getRef());
-                    }
-                }
-                for (Artist artist : mArtists.values()) {
-                    if (artist.getName().equalsIgnoreCase(query)) {
-                        artistList.add(0, artist.getRef());
-                    } else if (artist.getName().toUpperCase().contains(queryUpper)) {
-                        artistList.add(artist.getRef());
-                    }
-                }
-
-                if (mSearchResult.getQuery().equals(query)) {
-                    Log.d(TAG, "Sending result size: "
-                            + (songsList.size() + albumList.size() + artistList.size() + playlistList.size()));
-
-                    mSearchResult.setSongsList(songsList);
-                    mSearchResult.setAlbumsList(albumList);
-                    mSearchResult.setArtistList(artistList);
-                    mSearchResult.setPlaylistList(playlistList);
-
-                    mCallback.searchFinished(mSearchResult);
-                } else {
-                    Log.d(TAG, "Query results dumped - outdated");
-                }
+        mSearchIndex.searchAsync(query, new SearchIndex.SearchListener() {
+            @Override
+            public void onSearchFinished(String query, SearchIndex.Results results) {
+                final SearchResult searchResult = new SearchResult(query);
+                searchResult.setSongsList(results.getRefs(SearchIndex.TYPE_SONG));
+                searchResult.setAlbumsList(results.getRefs(SearchIndex.TYPE_ALBUM));
+                searchResult.setArtistList(results.getRefs(SearchIndex.TYPE_ARTIST));
+                searchResult.setPlaylistList(results.getRefs(SearchIndex.TYPE_PLAYLIST));
+
+                Log.d(TAG, "Sending result size: " + (searchResult.getSongsList().size()
+                        + searchResult.getAlbumsList().size() + searchResult.getArtistList().size()
+                        + searchResult.getPlaylistList().size()));
+                mCallback.searchFinished(searchResult);
             }
-        };
-        searchThread.start();
+        });
     }
 
 
@@ -1253,12 +1685,21 @@ public class LocalProvider {
         private long mId;
         private long mAlbumId;
 
+        private long mDateModified;
+        private String mArtistName;
+
         public LocalSong(Song song, long id, long albumId) {
             mSong = song;
             mId = id;
             mAlbumId = albumId;
         }
 
+        public LocalSong(Song song, long id, long albumId, long dateModified, String artistName) {
+            this(song, id, albumId);
+            mDateModified = dateModified;
+            mArtistName = artistName;
+        }
+
         /**
          * @return the id of the song
          */
@@ -1270,6 +1711,20 @@ public class LocalProvider {
             return mAlbumId;
         }
 
+        /**
+         * @return the modification date of the file, in seconds
+         */
+        public long getDateModified() {
+            return mDateModified;
+        }
+
+        /**
+         * @return the name of the artist of the song
+         */
+        public String getArtistName() {
+            return mArtistName;
+        }
+
         /**
          * @return the Song
          */
@@ -1293,7 +1748,17 @@ public class LocalProvider {
      * Callback interface to communicate with the service
      */
     public interface LocalCallback {
-        int musicDelivery(byte[] data, int frames, int channels, int sampleRate);
+        /**
+         * Copies decoded PCM to the app, waiting for room if needed
+         * @param data The PCM data, whose position is moved past the bytes accepted
+         * @return The number of bytes accepted
+         */
+        int musicDelivery(ByteBuffer data, int channels, int sampleRate);
+
+        /**
+         * Drops the PCM that was delivered and not sent to the app yet
+         */
+        void discardAudio();
         void artistUpdated(final Artist artist);
         void albumUpdated(final Album album);
         void songUpdated(final Song song);
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers.localprovider;
+
+import com.fastbootmobile.encore.model.Song;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Ordered, random-access index of the local songs. Songs keep the position at which they were
+ * first seen, new songs are appended, and a page of songs is read in O(range) without copying the
+ * whole library.
+ * Removed songs leave an empty slot behind so that removing is O(1). The slots are compacted once
+ * they make up half of the index, or before songs are read by offset. Paging through
+ * {@link #getPage(String, int)} uses continuation cursors that remain valid across removals.
+ */
+public class LocalSongIndex {
+    // Empty slots tolerated before the index is compacted, whatever its size
+    private static final int COMPACTION_SLACK = 64;
+
+    private final ArrayList<LocalProvider.LocalSong> mSlots = new ArrayList<>();
+    private final HashMap<String, Integer> mPositions = new HashMap<>();
+    private int mRemoved;
+    private int mGeneration;
+
+    /**
+     * A page of songs, along with the cursor of the next page
+     */
+    public static class Page {
+        public final List<Song> songs;
+
+        /**
+         * Cursor of the next page, or null if this page is the last one
+         */
+        public final String nextCursor;
+
+        Page(List<Song> songs, String nextCursor) {
+            this.songs = songs;
+            this.nextCursor = nextCursor;
+        }
+    }
+
+    /**
+     * Adds a song at the end of the index, or replaces it in place if it is already indexed
+     * @param song The song to add
+     */
+    public synchronized void put(LocalProvider.LocalSong song) {
+        final String ref = song.getSong().getRef();
+        final Integer position = mPositions.get(ref);
+        if (position != null) {
+            mSlots.set(position, song);
+        } else {
+            mPositions.put(ref, mSlots.size());
+            mSlots.add(song);
+        }
+    }
+
+    /**
+     * @param ref The reference of the song
+     * @return The song, or null if it isn't indexed
+     */
+    public synchronized LocalProvider.LocalSong get(String ref) {
+        final Integer position = mPositions.get(ref);
+        return position != null ? mSlots.get(position) : null;
+    }
+
+    /**
+     * Removes a song from the index
+     * @param ref The reference of the song
+     * @return The removed song, or null if it wasn't indexed
+     */
+    public synchronized LocalProvider.LocalSong remove(String ref) {
+        final Integer position = mPositions.remove(ref);
+        if (position == null) {
+            return null;
+        }
+
+        final LocalProvider.LocalSong song = mSlots.set(position, null);
+        mRemoved++;
+        if (mRemoved > COMPACTION_SLACK && mRemoved * 2 > mSlots.size()) {
+            compact();
+        }
+        return song;
+    }
+
+    /**
+     * @return The number of indexed songs
+     */
+    public synchronized int size() {
+        return mSlots.size() - mRemoved;
+    }
+
+    /**
+     * @return A copy of the indexed songs, in order
+     */
+    public synchronized List<LocalProvider.LocalSong> getAll() {
+        final List<LocalProvider.LocalSong> songs = new ArrayList<>(size());
+        for (LocalProvider.LocalSong song : mSlots) {
+            if (song != null) {
+                songs.add(song);
+            }
+        }
+        return songs;
+    }
+
+    /**
+     * Returns the songs between offset and offset + range
+     * @param offset The position of the first song
+     * @param range The maximum number of songs
+     * @return The songs in the range
+     */
+    public synchronized List<Song> getRange(int offset, int range) {
+        // Offsets count the indexed songs only, which are only contiguous once compacted
+        if (mRemoved > 0) {
+            compact();
+        }
+
+        if (offset < 0 || offset >= mSlots.size() || range <= 0) {
+            return Collections.emptyList();
+        }
+
+        final int end = Math.min(mSlots.size(), offset + range);
+        final List<Song> songs = new ArrayList<>(end - offset);
+        for (int i = offset; i < end; ++i) {
+            songs.add(mSlots.get(i).getSong());
+        }
+        return songs;
+    }
+
+    /**
+     * Returns the page of songs following the provided cursor
+     * @param cursor The cursor returned with the previous page, or null for the first page
+     * @param range The maximum number of songs
+     * @return The page
+     */
+    public synchronized Page getPage(String cursor, int range) {
+        final List<Song> songs = new ArrayList<>();
+        int position = resolveCursor(cursor);
+        while (position < mSlots.size() && songs.size() < range) {
+            final LocalProvider.LocalSong song = mSlots.get(position++);
+            if (song != null) {
+                songs.add(song.getSong());
+            }
+        }
+
+        // Don't hand out a cursor to a page that would only hold removed songs
+        while (position < mSlots.size() && mSlots.get(position) == null) {
+            position++;
+        }
+
+        String nextCursor = null;
+        if (position < mSlots.size() && !songs.isEmpty()) {
+            nextCursor = mGeneration + ":" + position + ":" + songs.get(songs.size() - 1).getRef();
+        }
+        return new Page(songs, nextCursor);
+    }
+
+    /**
+     * @return The slot from which the cursor resumes
+     */
+    private int resolveCursor(String cursor) {
+        if (cursor == null) {
+            return 0;
+        }
+
+        final String[] parts = cursor.split(":", 3);
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+
+        final int generation = Integer.parseInt(parts[0]);
+        final int position = Integer.parseInt(parts[1]);
+        if (generation == mGeneration) {
+            return Math.min(position, mSlots.size());
+        }
+
+        // The index was compacted since the cursor was issued: resume after the last song
+        // returned, or at the same position if that song is gone too
+        final Integer lastPosition = mPositions.get(parts[2]);
+        if (lastPosition != null) {
+            return lastPosition + 1;
+        } else {
+            return Math.min(position, mSlots.size());
+        }
+    }
+
+    /**
+     * Drops the empty slots left by removed songs. Positions change, so the cursors issued
+     * before resume from the last song they returned.
+     */
+    private void compact() {
+        int write = 0;
+        final int size = mSlots.size();
+        for (int read = 0; read < size; ++read) {
+            final LocalProvider.LocalSong song = mSlots.get(read);
+            if (song != null) {
+                if (write != read) {
+                    mSlots.set(write, song);
+                    mPositions.put(song.getSong().getRef(), write);
+                }
+                write++;
+            }
+        }
+        mSlots.subList(write, size).clear();
+
+        mRemoved = 0;
+        mGeneration++;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers.localprovider;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-producer/single-consumer ring buffer of PCM bytes. The decoder thread copies
+ * decoded buffers in, and the socket thread sends the readable bytes straight from the backing
+ * array. Each side only moves its own index, and a side waiting for space or data is parked until
+ * the other one makes progress, which gives backpressure without locks.
+ * The time at which each buffer is written is kept, so that the consumer can measure how long
+ * audio stays in the pipeline.
+ */
+class PcmRingBuffer {
+    private static final int MARK_COUNT = 64;
+
+    private final byte[] mBuffer;
+    private final int mMask;
+
+    // Monotonic indexes, the write index is only moved by the producer and the read index by
+    // the consumer
+    private final AtomicLong mWriteIndex = new AtomicLong();
+    private final AtomicLong mReadIndex = new AtomicLong();
+
+    // Bytes before this index are dropped by the consumer instead of being sent
+    private final AtomicLong mDiscardIndex = new AtomicLong();
+
+    private volatile Thread mWaitingProducer;
+    private volatile Thread mWaitingConsumer;
+
+    // Write index and time of the latest buffers, in a ring of their own
+    private final long[] mMarkIndexes = new long[MARK_COUNT];
+    private final long[] mMarkTimes = new long[MARK_COUNT];
+    private volatile int mMarkHead;
+    private volatile int mMarkTail;
+
+    /**
+     * @param capacity The capacity in bytes, rounded up to a power of two
+     */
+    PcmRingBuffer(int capacity) {
+        final int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mBuffer = new byte[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Copies the remaining bytes of the buffer into the ring, waiting for space if needed.
+     * Producer side only.
+     * @param src The buffer to copy. Its position is moved past the bytes copied.
+     * @param timeoutMs The maximum time to wait for space
+     * @return The number of bytes copied
+     */
+    int write(ByteBuffer src, long timeoutMs) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        int total = 0;
+
+        while (src.hasRemaining()) {
+            final long write = mWriteIndex.get();
+            final int free = mBuffer.length - (int) (write - mReadIndex.get());
+            if (free == 0) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+
+                mWaitingProducer = Thread.currentThread();
+                if (mBuffer.length - (int) (write - mReadIndex.get()) == 0) {
+                    LockSupport.parkNanos(this, remaining);
+                }
+                mWaitingProducer = null;
+                continue;
+            }
+
+            final int offset = (int) (write & mMask);
+            final int length = Math.min(src.remaining(), free);
+            final int first = Math.min(length, mBuffer.length - offset);
+            src.get(mBuffer, offset, first);
+            if (first < length) {
+                src.get(mBuffer, 0, length - first);
+            }
+
+            mWriteIndex.set(write + length);
+            total += length;
+            unpark(mWaitingConsumer);
+        }
+
+        if (total > 0) {
+            addMark(mWriteIndex.get());
+        }
+        return total;
+    }
+
+    /**
+     * Waits until the ring is empty. Producer side only.
+     * @param timeoutMs The maximum time to wait
+     * @return true if the ring is empty
+     */
+    boolean awaitEmpty(long timeoutMs) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (getBufferedBytes() > 0) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+
+            mWaitingProducer = Thread.currentThread();
+            if (getBufferedBytes() > 0) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            mWaitingProducer = null;
+        }
+        return true;
+    }
+
+    /**
+     * Drops everything written so far. Can be called from any thread: the consumer skips the
+     * bytes the next time it reads.
+     */
+    void discardAll() {
+        mDiscardIndex.set(mWriteIndex.get());
+        unpark(mWaitingConsumer);
+        unpark(mWaitingProducer);
+    }
+
+    /**
+     * Waits until bytes can be read. Consumer side only.
+     * @param timeoutMs The maximum time to wait
+     * @return The number of bytes that can be read
+     */
+    int awaitReadable(long timeoutMs) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (true) {
+            applyDiscard();
+
+            final int readable = (int) (mWriteIndex.get() - mReadIndex.get());
+            final long remaining = deadline - System.nanoTime();
+            if (readable > 0 || remaining <= 0) {
+                return readable;
+            }
+
+            mWaitingConsumer = Thread.currentThread();
+            if (mWriteIndex.get() == mReadIndex.get()) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            mWaitingConsumer = null;
+        }
+    }
+
+    /**
+     * @return The backing array, from which the consumer sends the readable bytes
+     */
+    byte[] array() {
+        return mBuffer;
+    }
+
+    /**
+     * @return The offset of the first readable byte in the backing array. Consumer side only.
+     */
+    int getReadOffset() {
+        return (int) (mReadIndex.get() & mMask);
+    }
+
+    /**
+     * @return The number of readable bytes that follow each other in the backing array.
+     * Consumer side only.
+     */
+    int getContiguousReadable() {
+        final int readable = (int) (mWriteIndex.get() - mReadIndex.get());
+        return Math.min(readable, mBuffer.length - getReadOffset());
+    }
+
+    /**
+     * Marks bytes as read, which frees their space for the producer. Consumer side only.
+     * @param length The number of bytes read
+     * @return The time the latest fully read buffer spent in the ring, in nanoseconds, or -1 if
+     * no buffer was fully read
+     */
+    long advance(int length) {
+        mReadIndex.set(mReadIndex.get() + length);
+        final boolean discarded = applyDiscard();
+        unpark(mWaitingProducer);
+
+        final long read = mReadIndex.get();
+        final long now = System.nanoTime();
+        long latency = -1;
+        int tail = mMarkTail;
+        while (tail != mMarkHead && mMarkIndexes[tail & (MARK_COUNT - 1)] <= read) {
+            latency = now - mMarkTimes[tail & (MARK_COUNT - 1)];
+            ++tail;
+        }
+        mMarkTail = tail;
+        return discarded ? -1 : latency;
+    }
+
+    /**
+     * @return The number of bytes written and not read yet
+     */
+    int getBufferedBytes() {
+        return (int) (mWriteIndex.get() - Math.max(mReadIndex.get(), mDiscardIndex.get()));
+    }
+
+    private boolean applyDiscard() {
+        final long discard = mDiscardIndex.get();
+        if (discard > mReadIndex.get()) {
+            mReadIndex.set(discard);
+            unpark(mWaitingProducer);
+            return true;
+        }
+        return false;
+    }
+
+    private void addMark(long index) {
+        final int head = mMarkHead;
+        if (head - mMarkTail < MARK_COUNT) {
+            mMarkIndexes[head & (MARK_COUNT - 1)] = index;
+            mMarkTimes[head & (MARK_COUNT - 1)] = System.nanoTime();
+            mMarkHead = head + 1;
+        }
+    }
+
+    private static void unpark(Thread thread) {
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+}
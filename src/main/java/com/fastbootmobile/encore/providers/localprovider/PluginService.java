@@ -27,8 +27,12 @@ import com.fastbootmobile.encore.providers.IProviderCallback;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import omnimusic.Plugin;
 
@@ -44,34 +48,122 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
     private AudioClientSocket mAudioSocket;
     private LocalProvider mLocalProvider;
     private int mRate;
-    private int mAudioWritten;
-    private final Object mAudioWrittenLock = new Object();
-    private byte[] mAudioBuffer;
-    private int mAudioBufferIndex = 0;
+    private int mChannels;
+
+    /**
+     * Decoded audio waiting to be sent to the app, about 370ms of 44.1kHz stereo
+     */
+    private static final int RING_CAPACITY = 64 * 1024;
+
+    /**
+     * Maximum size of a write to the audio socket
+     */
+    private static final int MAX_CHUNK_SIZE = 8192;
+
+    private static final long RESPONSE_TIMEOUT = 500;
+    private static final long DELIVERY_TIMEOUT = 100;
+    private static final long SINK_FULL_RETRY_DELAY = 10;
+    private static final long STATS_INTERVAL = 10000;
+    private static final int NO_RESPONSE = -1;
+
+    private final PcmRingBuffer mAudioRing = new PcmRingBuffer(RING_CAPACITY);
+    private final AtomicLong mPendingFormat = new AtomicLong();
+    private volatile int mAudioWritten = NO_RESPONSE;
+    private volatile boolean mPlaying;
+    private volatile boolean mPaused;
+
+    private final Thread mWriteAudioThread = new Thread("LocalProvider audio") {
+        private int mUnderrunCount;
+        private long mLatencyAverage;
+        private long mLatencyMax;
+        private long mLastStats;
 
-    private final Thread mWriteAudioThread = new Thread() {
         @Override
         public void run() {
             android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            boolean hadData = false;
+
             while (!isInterrupted()) {
-                synchronized (mWriteAudioThread) {
-                    try {
-                        mWriteAudioThread.wait();
-                    } catch (InterruptedException e) {
-                        continue;
+                final AudioClientSocket socket = mAudioSocket;
+                if (socket == null || mPaused) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(DELIVERY_TIMEOUT));
+                    continue;
+                }
+
+                if (mAudioRing.awaitReadable(DELIVERY_TIMEOUT) == 0) {
+                    if (hadData && mPlaying) {
+                        // The decoder didn't keep up and the app might run out of audio
+                        mUnderrunCount++;
+                        Log.w(TAG, "Audio underrun (" + mUnderrunCount + " so far)");
                     }
-                    try {
-                        try {
-                            mAudioSocket.writeAudioData(mAudioBuffer, 0, mAudioBufferIndex);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error while writing audio data", e);
-                        mAudioSocket = null;
-                        mLocalProvider.pause(false);
+                    hadData = false;
+                    continue;
+                }
+                hadData = true;
+
+                try {
+                    final long format = mPendingFormat.getAndSet(0);
+                    if (format != 0) {
+                        socket.writeFormatData((int) (format >> 32), (int) format);
+                    }
+
+                    // Send straight from the ring, which is only advanced once the app took it
+                    final int length = Math.min(mAudioRing.getContiguousReadable(), MAX_CHUNK_SIZE);
+                    mAudioWritten = NO_RESPONSE;
+                    socket.writeAudioData(mAudioRing.array(), mAudioRing.getReadOffset(), length);
+
+                    final int written = awaitResponse();
+                    if (written > 0) {
+                        updateLatency(mAudioRing.advance(length));
+                    } else {
+                        // The app buffers are full, retry the same audio later
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(SINK_FULL_RETRY_DELAY));
                     }
+                } catch (Exception e) {
+                    Log.e(TAG, "Error while writing audio data", e);
+                    mAudioSocket = null;
+                    mAudioRing.discardAll();
+                    mLocalProvider.pause(false);
+                }
+
+                logStats();
+            }
+        }
+
+        private int awaitResponse() {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RESPONSE_TIMEOUT);
+            int written;
+            while ((written = mAudioWritten) == NO_RESPONSE) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    // No response in time, assume the audio wasn't written
+                    return 0;
                 }
+                LockSupport.parkNanos(remaining);
+            }
+            return written;
+        }
+
+        private void updateLatency(long latencyNs) {
+            if (latencyNs >= 0) {
+                final long latencyMs = TimeUnit.NANOSECONDS.toMillis(latencyNs);
+                mLatencyAverage = mLatencyAverage == 0 ? latencyMs : (mLatencyAverage * 7 + latencyMs) / 8;
+                mLatencyMax = Math.max(mLatencyMax, latencyMs);
+            }
+        }
+
+        private void logStats() {
+            final long now = SystemClock.elapsedRealtime();
+            if (now - mLastStats >= STATS_INTERVAL) {
+                mLastStats = now;
+
+                final int bytesPerSecond = mRate * Math.max(mChannels, 1) * 2;
+                final long bufferedMs = bytesPerSecond > 0
+                        ? mAudioRing.getBufferedBytes() * 1000L / bytesPerSecond : 0;
+                Log.d(TAG, "Audio pipeline: " + mUnderrunCount + " underruns, latency "
+                        + mLatencyAverage + "ms (max " + mLatencyMax + "ms), " + bufferedMs
+                        + "ms buffered");
+                mLatencyMax = 0;
             }
         }
     };
@@ -131,64 +223,31 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
 
     private LocalProvider.LocalCallback providerCallback = new LocalProvider.LocalCallback() {
         @Override
-        public int musicDelivery(byte[] data, int frames, int channels, int sampleRate) {
+        public int musicDelivery(ByteBuffer data, int channels, int sampleRate) {
             if (mAudioSocket == null) {
                 Log.w(TAG, "Got music delivery without an audio socket set!");
+                SystemClock.sleep(DELIVERY_TIMEOUT);
                 return 0;
             }
 
-            // If the sample rate changed, update it
-            if (mRate != sampleRate) {
-                mRate = sampleRate;
-
-                try {
-                    mAudioSocket.writeFormatData(channels, sampleRate);
-                } catch (IOException e) {
-                    Log.e(TAG, "IO error while pushing audio data", e);
-                    // Error while pushing audio to the socket, we stop the playback and
-                    // turn off the socket
-                    mAudioSocket = null;
+            // If the format changed, let the audio of the previous format go out first
+            if (mRate != sampleRate || mChannels != channels) {
+                if (!mAudioRing.awaitEmpty(DELIVERY_TIMEOUT)) {
                     return 0;
                 }
-            }
-
-
-            // First, we try to copy the frames to our local buffer. If the local buffer is full,
-            // try to send it and empty it - and retry to write the current frames into the buffer
-            // on next loop.
-            //if (mAudioBufferIndex + frames < mAudioBuffer.length) {
-            mAudioBuffer = data;
-            mAudioBufferIndex = frames;
-
-            // There's enough data in the buffer, try to send it over to the app
-            mAudioWritten = -1;
 
-            synchronized (mWriteAudioThread) {
-                mWriteAudioThread.notifyAll();
-            }
-
-            synchronized (mAudioWrittenLock) {
-                if (mAudioWritten == -1) {
-                    // Wait 500ms for a reply
-                    try {
-                        mAudioWrittenLock.wait(500);
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, "Interrupted while waiting for audio written response");
-                    }
-                }
-            }
-
-            // No response in time, assume the audio wasn't written
-            if (mAudioWritten == -1) {
-                mAudioWritten = 0;
+                mRate = sampleRate;
+                mChannels = channels;
+                mPendingFormat.set(((long) channels << 32) | sampleRate);
             }
 
-            if (mAudioWritten > 0) {
-                // We could write it, so reset our local buffer
-                mAudioBufferIndex = 0;
-            }
+            // Blocks while the ring is full, so that the decoder runs at the pace of the app
+            return mAudioRing.write(data, DELIVERY_TIMEOUT);
+        }
 
-            return mAudioWritten;
+        @Override
+        public void discardAudio() {
+            mAudioRing.discardAll();
         }
 
         @Override
@@ -362,6 +421,7 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
 
         @Override
         public void songFinished() {
+            mPlaying = false;
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
@@ -382,6 +442,8 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
 
         @Override
         public void songPlaying() {
+            mPlaying = true;
+            mPaused = false;
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
@@ -401,6 +463,8 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
         }
         @Override
         public void songPaused() {
+            mPlaying = false;
+            mPaused = true;
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
@@ -733,6 +797,8 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
                 }
                 mAudioSocket.connect(socketName);
                 mAudioSocket.writeFormatData(2, 44100);
+                mRate = 44100;
+                mChannels = 2;
                 mAudioSocket.setCallback(PluginService.this);
             } catch (IOException e) {
                 Log.e(TAG, "Unable to open the audio socket!", e);
@@ -761,7 +827,7 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
          */
         @Override
         public void prefetchSong(String ref) throws RemoteException {
-            // TODO
+            mLocalProvider.prefetchSong(ref);
         }
 
         /**
@@ -845,10 +911,8 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
 
     @Override
     public void onAudioResponse(AudioSocket socket, Plugin.AudioResponse.Builder message) {
-        synchronized (mAudioWrittenLock) {
-            mAudioWritten = message.getWritten();
-            mAudioWrittenLock.notifyAll();
-        }
+        mAudioWritten = message.getWritten();
+        LockSupport.unpark(mWriteAudioThread);
     }
 
     @Override
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers.localprovider;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes a song to 16-bit PCM. The samples that the encoder added at the start of the stream
+ * (encoder delay) and at its end (padding) are trimmed, so that the songs of an album follow each
+ * other without a gap when their decoders are chained.
+ */
+class TrackDecoder {
+    private static final String TAG = "TrackDecoder";
+
+    // Set by the extractor for the formats that carry them (e.g. MP3 with a LAME header, AAC)
+    private static final String KEY_ENCODER_DELAY = "encoder-delay";
+    private static final String KEY_ENCODER_PADDING = "encoder-padding";
+
+    private static final long OUTPUT_TIMEOUT_US = 10000;
+    private static final int PRIME_ATTEMPTS = 50;
+    private static final int BYTES_PER_SAMPLE = 2;
+
+    private final LocalProvider.LocalSong mSong;
+    private final MediaExtractor mExtractor;
+    private final MediaCodec mCodec;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+    private MediaFormat mFormat;
+
+    private boolean mInputDone;
+    private boolean mOutputDone;
+    private final int mDelayBytes;
+    private final int mPaddingBytes;
+    private int mSkipBytes;
+
+    // Output buffers ready to be read, oldest first
+    private final int[] mReady = new int[2];
+    private int mReadyCount;
+
+    // Output buffer kept until the next one is decoded, as the padding may span both
+    private int mHeldIndex = -1;
+
+    /**
+     * Opens and starts a decoder for the song
+     * @param context The context used to open the song
+     * @param song The song to decode
+     * @throws IOException if the song cannot be read or decoded
+     */
+    TrackDecoder(Context context, LocalProvider.LocalSong song) throws IOException {
+        mSong = song;
+        mExtractor = new MediaExtractor();
+        mExtractor.setDataSource(context, song.getURI(), null);
+        if (mExtractor.getTrackCount() == 0) {
+            mExtractor.release();
+            throw new IOException("No track in the source file");
+        }
+
+        mFormat = mExtractor.getTrackFormat(0);
+        mExtractor.selectTrack(0);
+
+        final int frameSize = mFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT) * BYTES_PER_SAMPLE;
+        mDelayBytes = getInteger(mFormat, KEY_ENCODER_DELAY) * frameSize;
+        mPaddingBytes = getInteger(mFormat, KEY_ENCODER_PADDING) * frameSize;
+        mSkipBytes = mDelayBytes;
+
+        try {
+            mCodec = MediaCodec.createDecoderByType(mFormat.getString(MediaFormat.KEY_MIME));
+            mCodec.configure(mFormat, null, null, 0);
+            mCodec.start();
+        } catch (Exception e) {
+            // SDK > 19, an IOException might be thrown
+            mExtractor.release();
+            throw new IOException("Unable to create decoder", e);
+        }
+
+        mInputBuffers = mCodec.getInputBuffers();
+        mOutputBuffers = mCodec.getOutputBuffers();
+        Log.d(TAG, "Sample rate: " + getSampleRate() + ", encoder delay: " + mDelayBytes
+                + " bytes, padding: " + mPaddingBytes + " bytes");
+    }
+
+    LocalProvider.LocalSong getSong() {
+        return mSong;
+    }
+
+    int getChannelCount() {
+        return mFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+    }
+
+    int getSampleRate() {
+        return mFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+    }
+
+    /**
+     * @return true if all the PCM of the song was read
+     */
+    boolean isFinished() {
+        return mOutputDone && mReadyCount == 0;
+    }
+
+    /**
+     * Decodes until the first PCM is available, so that the song starts right away once it is
+     * its turn
+     */
+    void prime() {
+        for (int i = 0; i < PRIME_ATTEMPTS && mReadyCount == 0 && !mOutputDone; ++i) {
+            getOutput();
+        }
+    }
+
+    /**
+     * Returns the next decoded PCM. The caller moves the position of the buffer past the bytes it
+     * consumed, and the buffer is given back to the codec once it was fully consumed.
+     * @return A buffer with remaining PCM, or null if none is available yet
+     */
+    ByteBuffer getOutput() {
+        try {
+            while (true) {
+                if (mReadyCount > 0) {
+                    final ByteBuffer out = mOutputBuffers[mReady[0]];
+                    if (out.hasRemaining()) {
+                        return out;
+                    }
+
+                    mCodec.releaseOutputBuffer(mReady[0], false);
+                    mReady[0] = mReady[1];
+                    mReadyCount--;
+                    continue;
+                }
+
+                if (mOutputDone) {
+                    return null;
+                }
+
+                feedInput();
+
+                final int index = mCodec.dequeueOutputBuffer(mInfo, OUTPUT_TIMEOUT_US);
+                if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    mOutputBuffers = mCodec.getOutputBuffers();
+                } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    mFormat = mCodec.getOutputFormat();
+                } else if (index >= 0) {
+                    onOutputBuffer(index);
+                } else {
+                    return null;
+                }
+            }
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Decoder error", e);
+            mOutputDone = true;
+            mReadyCount = 0;
+            return null;
+        }
+    }
+
+    /**
+     * Seeks to the provided position
+     * @param timeMs The position, in milliseconds
+     */
+    void seekTo(long timeMs) {
+        mExtractor.seekTo(timeMs * 1000, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        try {
+            // Flushing gives all the buffers back to the codec
+            mCodec.flush();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Cannot flush decoder", e);
+        }
+
+        mReadyCount = 0;
+        mHeldIndex = -1;
+        mInputDone = false;
+        mOutputDone = false;
+        mSkipBytes = timeMs == 0 ? mDelayBytes : 0;
+    }
+
+    /**
+     * Stops the decoder and releases its resources
+     */
+    void release() {
+        try {
+            mCodec.stop();
+        } catch (IllegalStateException ignored) {
+        }
+        mCodec.release();
+        mExtractor.release();
+    }
+
+    private void feedInput() {
+        if (mInputDone) {
+            return;
+        }
+
+        // The output side paces the decoding, so we don't wait for input buffers
+        final int index = mCodec.dequeueInputBuffer(0);
+        if (index >= 0) {
+            final int sampleSize = mExtractor.readSampleData(mInputBuffers[index], 0);
+            if (sampleSize < 0) {
+                mCodec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                mInputDone = true;
+            } else {
+                mCodec.queueInputBuffer(index, 0, sampleSize, mExtractor.getSampleTime(), 0);
+                mExtractor.advance();
+            }
+        }
+    }
+
+    private void onOutputBuffer(int index) {
+        int offset = mInfo.offset;
+        int size = mInfo.size;
+
+        // Trim the encoder delay at the start of the stream
+        final int skip = Math.min(mSkipBytes, size);
+        offset += skip;
+        size -= skip;
+        mSkipBytes -= skip;
+
+        final ByteBuffer out = mOutputBuffers[index];
+        out.clear();
+        out.position(offset);
+        out.limit(offset + size);
+
+        if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            mOutputDone = true;
+
+            // Trim the padding at the end of the stream, from this buffer then the held one
+            final int cut = Math.min(mPaddingBytes, size);
+            out.limit(offset + size - cut);
+            if (mHeldIndex >= 0) {
+                final ByteBuffer held = mOutputBuffers[mHeldIndex];
+                held.limit(Math.max(held.position(), held.limit() - (mPaddingBytes - cut)));
+                addReady(mHeldIndex);
+                mHeldIndex = -1;
+            }
+            addReady(index);
+        } else if (mPaddingBytes > 0 && size > 0) {
+            if (mHeldIndex >= 0) {
+                addReady(mHeldIndex);
+            }
+            mHeldIndex = index;
+        } else {
+            addReady(index);
+        }
+    }
+
+    private void addReady(int index) {
+        mReady[mReadyCount++] = index;
+    }
+
+    private static int getInteger(MediaFormat format, String key) {
+        return format.containsKey(key) ? format.getInteger(key) : 0;
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.service;
+
+import java.util.Arrays;
+
+/**
+ * Measures the level of the audio played by the sink. The RMS level, the peak level and a small
+ * spectrum are computed {@link #UPDATE_RATE} times per second from the audio mirror, and kept in
+ * a history ring that readers copy in batches. Everything is allocated upfront, as the audio is
+ * written from the audio thread.
+ * The audio thread is the only writer: it fills a history slot, then publishes it by moving the
+ * sequence number, so readers don't need any lock.
+ */
+public class AudioMeter {
+    /**
+     * Number of updates per second
+     */
+    public static final int UPDATE_RATE = 30;
+
+    /**
+     * Number of bands of the spectrum, spread logarithmically over the frequencies
+     */
+    public static final int BAND_COUNT = 16;
+
+    /**
+     * Maximum number of updates kept until they are read
+     */
+    public static final int HISTORY_SIZE = 32;
+
+    /**
+     * Number of updates after which the listener is notified
+     */
+    public static final int BATCH_SIZE = 4;
+
+    private static final int FFT_SIZE = 512;
+    private static final float SAMPLE_SCALE = 1.0f / 32768.0f;
+
+    /**
+     * Notified from the audio thread when a batch of updates is available
+     */
+    public interface Listener {
+        void onMeterBatch();
+    }
+
+    /**
+     * Updates copied out of the history. A batch keeps track of the updates it already read.
+     */
+    public static class Batch {
+        /**
+         * RMS levels, between 0 and 1
+         */
+        public final float[] rms = new float[HISTORY_SIZE];
+
+        /**
+         * Peak levels, between 0 and 1
+         */
+        public final float[] peaks = new float[HISTORY_SIZE];
+
+        /**
+         * Band levels, between 0 and 1, {@link #BAND_COUNT} per update
+         */
+        public final float[] bands = new float[HISTORY_SIZE * BAND_COUNT];
+
+        /**
+         * Number of updates copied by the latest read
+         */
+        public int count;
+
+        private long mNextSequence;
+    }
+
+    // History ring, written by the audio thread
+    private final float[] mRmsHistory = new float[HISTORY_SIZE];
+    private final float[] mPeakHistory = new float[HISTORY_SIZE];
+    private final float[] mBandHistory = new float[HISTORY_SIZE * BAND_COUNT];
+    private volatile long mSequence;
+
+    // Latest mono samples, analysed by the FFT
+    private final float[] mWindow = new float[FFT_SIZE];
+    private int mWindowPos;
+
+    private final float[] mFftReal = new float[FFT_SIZE];
+    private final float[] mFftImag = new float[FFT_SIZE];
+    private final float[] mHann = new float[FFT_SIZE];
+    private final float[] mCos = new float[FFT_SIZE / 2];
+    private final float[] mSin = new float[FFT_SIZE / 2];
+    private final int[] mBitReverse = new int[FFT_SIZE];
+    private final int[] mBandEdges = new int[BAND_COUNT + 1];
+
+    // Accumulators of the update in progress
+    private int mSampleRate;
+    private int mFramesPerUpdate;
+    private int mFrames;
+    private int mSamples;
+    private double mSumSquares;
+    private float mPeak;
+
+    private volatile Listener mListener;
+    private volatile boolean mSpectrumEnabled;
+
+    public AudioMeter() {
+        final int bits = Integer.numberOfTrailingZeros(FFT_SIZE);
+        for (int i = 0; i < FFT_SIZE; ++i) {
+            mHann[i] = (float) (0.5 - 0.5 * Math.cos(2.0 * Math.PI * i / (FFT_SIZE - 1)));
+            mBitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+
+        for (int i = 0; i < FFT_SIZE / 2; ++i) {
+            mCos[i] = (float) Math.cos(2.0 * Math.PI * i / FFT_SIZE);
+            mSin[i] = (float) -Math.sin(2.0 * Math.PI * i / FFT_SIZE);
+        }
+
+        // Bands are spread logarithmically over the bins, skipping DC, with at least one bin each
+        final int bins = FFT_SIZE / 2;
+        mBandEdges[0] = 1;
+        for (int i = 1; i <= BAND_COUNT; ++i) {
+            final int edge = (int) Math.round(Math.pow(bins, (double) i / BAND_COUNT));
+            mBandEdges[i] = Math.min(bins, Math.max(edge, mBandEdges[i - 1] + 1));
+        }
+    }
+
+    /**
+     * Sets the listener notified each {@link #BATCH_SIZE} updates while the spectrum is enabled.
+     * It is called from the audio thread, and should only schedule the read.
+     * @param listener The listener, or null
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Enables the spectrum analysis, which is the costly part of the measures. It should only
+     * run while someone reads the batches: the RMS and peak levels are measured either way, and
+     * the bands of the updates are zero while it is disabled.
+     * @param enabled Whether or not to compute the spectrum
+     */
+    public void setSpectrumEnabled(boolean enabled) {
+        mSpectrumEnabled = enabled;
+    }
+
+    /**
+     * Measures 16 bits PCM that was written to the sink. Audio thread only.
+     * @param pcm The audio data
+     * @param len The number of bytes
+     * @param sampleRate The sample rate of the audio
+     * @param channels The number of channels of the audio
+     */
+    public void write(byte[] pcm, int len, int sampleRate, int channels) {
+        if (channels <= 0 || sampleRate <= 0) {
+            return;
+        }
+
+        if (sampleRate != mSampleRate) {
+            mSampleRate = sampleRate;
+            mFramesPerUpdate = Math.max(1, sampleRate / UPDATE_RATE);
+        }
+
+        final boolean spectrum = mSpectrumEnabled;
+        final int frameSize = channels * 2;
+        final int end = len - len % frameSize;
+        for (int i = 0; i < end; i += frameSize) {
+            float mono = 0;
+            for (int c = 0; c < channels; ++c) {
+                final int offset = i + c * 2;
+                final float sample = ((short) ((pcm[offset] & 0xFF) | (pcm[offset + 1] << 8)))
+                        * SAMPLE_SCALE;
+                mSumSquares += sample * sample;
+                mPeak = Math.max(mPeak, Math.abs(sample));
+                mono += sample;
+            }
+
+            if (spectrum) {
+                mWindow[mWindowPos] = mono / channels;
+                mWindowPos = (mWindowPos + 1) & (FFT_SIZE - 1);
+            }
+            mSamples += channels;
+
+            if (++mFrames >= mFramesPerUpdate) {
+                publishUpdate(spectrum);
+            }
+        }
+    }
+
+    /**
+     * Copies the updates that the batch didn't read yet. If the reader fell behind, the oldest
+     * updates are skipped.
+     * @param batch The batch to fill
+     */
+    public void read(Batch batch) {
+        final long end = mSequence;
+        final long start = Math.max(batch.mNextSequence, end - HISTORY_SIZE + 1);
+
+        int count = 0;
+        for (long seq = start; seq < end; ++seq) {
+            final int slot = (int) (seq & (HISTORY_SIZE - 1));
+            batch.rms[count] = mRmsHistory[slot];
+            batch.peaks[count] = mPeakHistory[slot];
+            System.arraycopy(mBandHistory, slot * BAND_COUNT, batch.bands, count * BAND_COUNT,
+                    BAND_COUNT);
+            ++count;
+        }
+
+        // Drop the updates that were overwritten while we copied them
+        final long valid = mSequence - HISTORY_SIZE + 1;
+        final int overwritten = (int) Math.max(0, Math.min(count, valid - start));
+        if (overwritten > 0) {
+            count -= overwritten;
+            System.arraycopy(batch.rms, overwritten, batch.rms, 0, count);
+            System.arraycopy(batch.peaks, overwritten, batch.peaks, 0, count);
+            System.arraycopy(batch.bands, overwritten * BAND_COUNT, batch.bands, 0,
+                    count * BAND_COUNT);
+        }
+
+        batch.count = count;
+        batch.mNextSequence = end;
+    }
+
+    /**
+     * @return The latest RMS level, between 0 and 1
+     */
+    public float getRms() {
+        final long seq = mSequence;
+        return seq == 0 ? 0 : mRmsHistory[(int) ((seq - 1) & (HISTORY_SIZE - 1))];
+    }
+
+    /**
+     * @return The latest peak level, between 0 and 1
+     */
+    public float getPeak() {
+        final long seq = mSequence;
+        return seq == 0 ? 0 : mPeakHistory[(int) ((seq - 1) & (HISTORY_SIZE - 1))];
+    }
+
+    private void publishUpdate(boolean spectrum) {
+        final long seq = mSequence;
+        final int slot = (int) (seq & (HISTORY_SIZE - 1));
+
+        mRmsHistory[slot] = (float) Math.sqrt(mSumSquares / mSamples);
+        mPeakHistory[slot] = Math.min(1.0f, mPeak);
+        if (spectrum) {
+            computeBands(slot * BAND_COUNT);
+        } else {
+            Arrays.fill(mBandHistory, slot * BAND_COUNT, (slot + 1) * BAND_COUNT, 0);
+        }
+
+        mFrames = 0;
+        mSamples = 0;
+        mSumSquares = 0;
+        mPeak = 0;
+
+        // Publishes the slot to the readers
+        mSequence = seq + 1;
+
+        final Listener listener = mListener;
+        if (spectrum && listener != null && (seq + 1) % BATCH_SIZE == 0) {
+            listener.onMeterBatch();
+        }
+    }
+
+    private void computeBands(int offset) {
+        // Windowed copy of the latest samples, oldest first, in bit-reversed order
+        for (int i = 0; i < FFT_SIZE; ++i) {
+            final int target = mBitReverse[i];
+            mFftReal[target] = mWindow[(mWindowPos + i) & (FFT_SIZE - 1)] * mHann[i];
+            mFftImag[target] = 0;
+        }
+
+        // In-place radix-2 FFT
+        for (int size = 2; size <= FFT_SIZE; size <<= 1) {
+            final int half = size >> 1;
+            final int step = FFT_SIZE / size;
+            for (int start = 0; start < FFT_SIZE; start += size) {
+                for (int k = 0; k < half; ++k) {
+                    final float cos = mCos[k * step];
+                    final float sin = mSin[k * step];
+                    final int even = start + k;
+                    final int odd = even + half;
+                    final float real = mFftReal[odd] * cos - mFftImag[odd] * sin;
+                    final float imag = mFftReal[odd] * sin + mFftImag[odd] * cos;
+                    mFftReal[odd] = mFftReal[even] - real;
+                    mFftImag[odd] = mFftImag[even] - imag;
+                    mFftReal[even] += real;
+                    mFftImag[even] += imag;
+                }
+            }
+        }
+
+        // Highest amplitude of the bins of each band. A full scale sine has an amplitude of 1
+        // once the gain of the Hann window is compensated.
+        final float scale = 4.0f / FFT_SIZE;
+        for (int band = 0; band < BAND_COUNT; ++band) {
+            float max = 0;
+            for (int bin = mBandEdges[band]; bin < mBandEdges[band + 1]; ++bin) {
+                max = Math.max(max, mFftReal[bin] * mFftReal[bin] + mFftImag[bin] * mFftImag[bin]);
+            }
+            mBandHistory[offset + band] = Math.min(1.0f, (float) Math.sqrt(max) * scale);
+        }
+    }
+}
@@ -60,13 +60,6 @@ public interface AudioSink {
      */
     void flushSamples();
 
-    /**
-     * Returns a buffer of samples containing the most recent data that has been written to (drawable
-     * by) the sink to calculate the current RMS audio level.
-     * @return A short array of samples
-     */
-    short[] getRmsSamples();
-
     /**
      * Sets whether or not the playback should be paused
      * @param pause true to pause, false to resume
@@ -51,12 +51,11 @@ public class DSPProcessor {
     }
 
     /**
-     * Returns the current RMS level of the last 1/60 * sampleRate frames
-     * @return The RMS level
+     * Returns the current RMS level of the last 1/30 * sampleRate frames
+     * @return The RMS level, on the scale of 16 bits samples
      */
     public int getRms() {
-        // TODO: reimplement
-        return 0;
+        return (int) (mPlaybackService.getAudioMeter().getRms() * Short.MAX_VALUE);
     }
 
     /**
@@ -61,11 +61,6 @@ public class NativeAudioSink implements AudioSink {
         mPlayer.flush();
     }
 
-    @Override
-    public short[] getRmsSamples() {
-        return new short[0];
-    }
-
     @Override
     public void setPaused(boolean pause) {
         mPlayer.setPaused(pause);
@@ -179,6 +179,16 @@ public class NativeHub {
      */
     public void setDucking(boolean duck) { nativeSetDucking(duck); }
 
+    /**
+     * Crossfades the current provider with the next provider that starts writing audio. The
+     * audio of both providers is mixed with equal-power curves, and converted to the format of the
+     * sink if needed.
+     * @param durationMs The duration of the crossfade, or 0 to cancel a pending or running one
+     */
+    public void setCrossfade(int durationMs) {
+        nativeSetCrossfade(durationMs);
+    }
+
     /**
      * Sets the listener that will be called when samples are written to the sink
      * @param listener The listener to use
@@ -190,8 +200,12 @@ public class NativeHub {
     // Called from native code
     public void onAudioMirrorWritten(int len, int sampleRate, int channels) {
         if (mAudioMirrorBuffer != null) {
-            mStreamer.write(mAudioMirrorBuffer, len);
-            mInsecureStreamer.write(mAudioMirrorBuffer, len);
+            if (mStreamer.hasClients()) {
+                mStreamer.write(mAudioMirrorBuffer, len);
+            }
+            if (mInsecureStreamer.hasClients()) {
+                mInsecureStreamer.write(mAudioMirrorBuffer, len);
+            }
 
             // We use audio mirroring writing for tracking track elapsed time
             if (mWrittenListener != null) {
@@ -208,6 +222,7 @@ public class NativeHub {
     private native void nativeReleaseHostSocket(String name);
     private native void nativeSetSinkPointer(long handle);
     private native void nativeSetDucking(boolean duck);
+    private native void nativeSetCrossfade(int durationMs);
 
 
     public interface OnSampleWrittenListener {
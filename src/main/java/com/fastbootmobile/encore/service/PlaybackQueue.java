@@ -18,24 +18,80 @@ package com.fastbootmobile.encore.service;
 import android.content.SharedPreferences;
 import android.util.Log;
 
+import com.fastbootmobile.encore.framework.PluginsLookup;
 import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
+import com.fastbootmobile.encore.providers.ProviderConnection;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
- * Handles the playback of a list of songs
+ * Handles the playback of a list of songs.
+ * The queue is persisted in a binary journal: changes are recorded as they are made, and only the
+ * new records are appended to the file when the queue is saved. Provider identifiers are written
+ * once and referenced by index. Once the journal grows too large compared to the queue, it is
+ * rewritten as a snapshot of the queue.
+ * Restored songs are placeholders until they are resolved, either ahead of the playback position
+ * or in the background once a client of the service requested the queue.
  */
 public class PlaybackQueue extends ArrayList<Song> {
     private static final String TAG = "PlaybackQueue";
     private static final String KEY_SONGS = "songlist";
 
+    private static final int MAGIC = 0x454E5131; // "ENQ1"
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final byte OP_PROVIDER = 1;
+    private static final byte OP_ADD = 2;
+    private static final byte OP_REMOVE = 3;
+    private static final byte OP_SET = 4;
+    private static final byte OP_CLEAR = 5;
+
+    private static final int NO_PROVIDER = -1;
+
+    // The journal is compacted once it holds this many more records than the queue has songs
+    private static final int COMPACTION_SLACK = 512;
+
+    // Number of placeholders resolved ahead of the playback position
+    public static final int RESOLVE_AHEAD = 8;
+
+    // Records not written to the journal yet
+    private final ByteArrayOutputStream mPendingBytes = new ByteArrayOutputStream();
+    private final DataOutputStream mPending = new DataOutputStream(mPendingBytes);
+    private int mPendingRecords;
+
+    private final Map<String, Integer> mProviderIds = new HashMap<>();
+    private final List<String> mProviders = new ArrayList<>();
+    private int mJournalRecords;
+    private boolean mNeedsRewrite = true;
+
+    private final Set<Song> mPlaceholders =
+            Collections.newSetFromMap(new IdentityHashMap<Song, Boolean>());
+
     /**
      * Adds a song to the queue
      * @param s The song to add
@@ -49,62 +105,476 @@ public class PlaybackQueue extends ArrayList<Song> {
         }
     }
 
+    @Override
+    public synchronized boolean add(Song song) {
+        recordSong(OP_ADD, size(), song);
+        return super.add(song);
+    }
+
+    @Override
+    public synchronized void add(int index, Song song) {
+        recordSong(OP_ADD, index, song);
+        super.add(index, song);
+    }
+
+    @Override
+    public synchronized Song set(int index, Song song) {
+        final Song previous = super.set(index, song);
+        mPlaceholders.remove(previous);
+        recordSong(OP_SET, index, song);
+        return previous;
+    }
+
+    @Override
+    public synchronized Song remove(int index) {
+        final Song song = super.remove(index);
+        mPlaceholders.remove(song);
+        recordIndex(OP_REMOVE, index);
+        return song;
+    }
+
+    @Override
+    public synchronized boolean remove(Object o) {
+        final int index = indexOf(o);
+        if (index >= 0) {
+            remove(index);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void clear() {
+        super.clear();
+        mPlaceholders.clear();
+        recordIndex(OP_CLEAR, 0);
+    }
+
+    // Bulk operations don't go through the single item ones, the journal is rewritten instead
+
+    @Override
+    public synchronized boolean addAll(Collection<? extends Song> c) {
+        mNeedsRewrite = true;
+        return super.addAll(c);
+    }
+
+    @Override
+    public synchronized boolean addAll(int index, Collection<? extends Song> c) {
+        mNeedsRewrite = true;
+        return super.addAll(index, c);
+    }
+
+    @Override
+    public synchronized boolean removeAll(Collection<?> c) {
+        mNeedsRewrite = true;
+        return super.removeAll(c);
+    }
+
+    @Override
+    public synchronized boolean retainAll(Collection<?> c) {
+        mNeedsRewrite = true;
+        return super.retainAll(c);
+    }
+
+    @Override
+    protected synchronized void removeRange(int fromIndex, int toIndex) {
+        mNeedsRewrite = true;
+        super.removeRange(fromIndex, toIndex);
+    }
+
     /**
-     * Saves the playback queue into the specified SharedPreferences editor
+     * Writes the changes made to the queue since the previous save to the journal. The journal is
+     * rewritten from the queue when it grew too large, or if it cannot be appended to.
      *
-     * @param editor The editor in which write the data
+     * @param file The journal file
      */
-    public void save(SharedPreferences.Editor editor) {
-        // Avoid concurrent modification errors
-        List<Song> copy = new ArrayList<>(this);
-
-        // Save it!
-        JSONArray array = new JSONArray();
-        for (Song song : copy) {
-            if (song == null) continue;
+    public synchronized void save(File file) {
+        if (!mNeedsRewrite && mPendingRecords == 0) {
+            return;
+        }
 
-            JSONObject object = new JSONObject();
+        if (!mNeedsRewrite && file.exists()
+                && mJournalRecords + mPendingRecords <= size() * 2 + COMPACTION_SLACK) {
+            FileOutputStream out = null;
             try {
-                object.put("r", song.getRef());
-                object.put("p", song.getProvider().serialize());
-            } catch (NullPointerException | JSONException e) {
-                Log.e(TAG, "Cannot save playback queue entry", e);
+                out = new FileOutputStream(file, true);
+                mPendingBytes.writeTo(out);
+                out.close();
+                out = null;
+
+                mJournalRecords += mPendingRecords;
+                clearPending();
+                return;
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot append to playback queue journal, rewriting it", e);
+            } finally {
+                closeQuietly(out);
+            }
+        }
+
+        rewrite(file);
+    }
+
+    /**
+     * Reads and restores the playback queue from the journal. The songs are not retrieved from
+     * their provider until they are accessed.
+     *
+     * @param file The journal file
+     * @param prefs The preferences in which previous versions saved the queue, imported if there
+     *              is no journal yet
+     */
+    public synchronized void restore(File file, SharedPreferences prefs) {
+        final List<String> refs = new ArrayList<>();
+        final List<String> providers = new ArrayList<>();
+
+        if (file.exists()) {
+            readJournal(file, refs, providers);
+        } else {
+            readLegacyPreferences(prefs, refs, providers);
+        }
+
+        final Map<String, ProviderIdentifier> identifiers = new HashMap<>();
+        for (int i = 0; i < refs.size(); ++i) {
+            final String ref = refs.get(i);
+            final String provider = providers.get(i);
+            if (ref == null || provider == null) {
+                continue;
             }
 
-            array.put(object);
+            ProviderIdentifier identifier = identifiers.get(provider);
+            if (identifier == null) {
+                identifier = ProviderIdentifier.fromSerialized(provider);
+                identifiers.put(provider, identifier);
+            }
+
+            final Song placeholder = new Song(ref);
+            placeholder.setProvider(identifier);
+            mPlaceholders.add(placeholder);
+            super.add(placeholder);
         }
 
-        editor.putString(KEY_SONGS, array.toString());
-        editor.apply();
+        // The journal doesn't match the queue if entries were dropped
+        mNeedsRewrite = mNeedsRewrite || refs.size() != size();
+    }
+
+    private void readJournal(File file, List<String> refs, List<String> providers) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(TAG, "Discarding playback queue journal of an unknown version");
+                mNeedsRewrite = true;
+                return;
+            }
+
+            int records = 0;
+            while (true) {
+                final int op = in.read();
+                if (op < 0) {
+                    break;
+                }
+
+                switch (op) {
+                    case OP_PROVIDER:
+                        final String provider = in.readUTF();
+                        mProviderIds.put(provider, mProviders.size());
+                        mProviders.add(provider);
+                        break;
+
+                    case OP_ADD:
+                    case OP_SET:
+                        final int index = in.readInt();
+                        final int providerId = in.readShort();
+                        final String ref = in.readUTF();
+                        final String serialized = providerId == NO_PROVIDER
+                                ? null : mProviders.get(providerId);
+                        if (op == OP_ADD) {
+                            refs.add(index, providerId == NO_PROVIDER ? null : ref);
+                            providers.add(index, serialized);
+                        } else {
+                            refs.set(index, providerId == NO_PROVIDER ? null : ref);
+                            providers.set(index, serialized);
+                        }
+                        break;
+
+                    case OP_REMOVE:
+                        final int removed = in.readInt();
+                        refs.remove(removed);
+                        providers.remove(removed);
+                        break;
+
+                    case OP_CLEAR:
+                        in.readInt();
+                        refs.clear();
+                        providers.clear();
+                        break;
+
+                    default:
+                        throw new IOException("Unknown record type " + op);
+                }
+                ++records;
+            }
+
+            mJournalRecords = records;
+            mNeedsRewrite = false;
+        } catch (EOFException e) {
+            // The last record is incomplete, the queue is saved again without it
+            Log.w(TAG, "Playback queue journal is truncated");
+            mNeedsRewrite = true;
+        } catch (IOException | IndexOutOfBoundsException e) {
+            Log.e(TAG, "Cannot read playback queue journal", e);
+            mNeedsRewrite = true;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void readLegacyPreferences(SharedPreferences prefs, List<String> refs,
+                                       List<String> providers) {
+        final String entries = prefs.getString(KEY_SONGS, null);
+        if (entries == null) {
+            return;
+        }
+
+        try {
+            JSONArray array = new JSONArray(entries);
+            final int len = array.length();
+            for (int i = 0; i < len; ++i) {
+                JSONObject obj = array.getJSONObject(i);
+                refs.add(obj.getString("r"));
+                providers.add(obj.getString("p"));
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Cannot restore playback queue entry", e);
+        }
+
+        prefs.edit().remove(KEY_SONGS).apply();
+        mNeedsRewrite = true;
     }
 
     /**
-     * Reads and restores the playback queue from the specified SharedPreferences.
+     * Retrieves the placeholders in the provided range, grouped per provider. The songs are
+     * retrieved without holding the queue, as providers are called. Songs that a connected
+     * provider doesn't have anymore are replaced by null, which playback skips, and are dropped
+     * from the journal.
      *
-     * @param prefs The preferences to read from
+     * @param from The position of the first song to resolve
+     * @param count The number of songs to resolve
+     * @return true if songs of the queue were replaced, false otherwise
      */
-    public void restore(SharedPreferences prefs) {
-        String entries = prefs.getString(KEY_SONGS, null);
+    public boolean resolve(int from, int count) {
+        final List<Song> placeholders = new ArrayList<>();
+        final Map<String, ProviderIdentifier> refs = new HashMap<>();
+        synchronized (this) {
+            if (mPlaceholders.isEmpty()) {
+                return false;
+            }
 
-        if (entries != null) {
-            try {
-                JSONArray array = new JSONArray(entries);
-                final int len = array.length();
-                for (int i = 0; i < len; ++i) {
-                    JSONObject obj = array.getJSONObject(i);
-                    String ref = obj.getString("r");
-                    String provider = obj.getString("p");
-
-                    Song song = ProviderAggregator.getDefault().retrieveSong(ref,
-                            ProviderIdentifier.fromSerialized(provider));
-                    if (song != null) {
-                        addSong(song, false);
-                    } else {
-                        Log.e(TAG, "Cannot retrieve song " + ref + " from " + provider);
-                    }
+            final int end = (int) Math.min(size(), (long) from + count);
+            for (int i = Math.max(0, from); i < end; ++i) {
+                final Song song = super.get(i);
+                if (song != null && mPlaceholders.contains(song)) {
+                    placeholders.add(song);
+                    refs.put(song.getRef(), song.getProvider());
+                }
+            }
+        }
+
+        if (placeholders.isEmpty()) {
+            return false;
+        }
+
+        final Map<String, Song> songs = ProviderAggregator.getDefault().retrieveSongs(refs);
+
+        boolean changed = false;
+        synchronized (this) {
+            for (Song placeholder : placeholders) {
+                // The queue may have changed while the songs were retrieved
+                final int index = indexOfInstance(placeholder);
+                if (index < 0 || !mPlaceholders.contains(placeholder)) {
+                    continue;
+                }
+
+                final Song song = songs.get(placeholder.getRef());
+                if (song != null) {
+                    // Same reference and provider, the journal doesn't change
+                    mPlaceholders.remove(placeholder);
+                    super.set(index, song);
+                    changed = true;
+                } else if (isProviderConnected(placeholder.getProvider())) {
+                    Log.w(TAG, "Cannot retrieve song " + placeholder.getRef());
+                    set(index, null);
+                    changed = true;
                 }
-            } catch (JSONException e) {
-                Log.e(TAG, "Cannot restore playback queue entry", e);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return true if songs of the queue haven't been retrieved from their provider yet
+     */
+    public synchronized boolean hasPlaceholders() {
+        return !mPlaceholders.isEmpty();
+    }
+
+    /**
+     * Returns a copy of the queue for the clients of the service. Songs that are not resolved yet
+     * are returned as not loaded songs holding their reference and provider.
+     */
+    public synchronized List<Song> snapshot() {
+        return new ArrayList<>(this);
+    }
+
+    private int indexOfInstance(Song song) {
+        final int size = size();
+        for (int i = 0; i < size; ++i) {
+            if (super.get(i) == song) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isProviderConnected(ProviderIdentifier id) {
+        final ProviderConnection connection = id != null
+                ? PluginsLookup.getDefault().getProvider(id) : null;
+        return connection != null && connection.getBinder() != null;
+    }
+
+    private void recordIndex(byte op, int index) {
+        if (mNeedsRewrite) {
+            return;
+        }
+
+        try {
+            mPending.writeByte(op);
+            mPending.writeInt(index);
+            mPendingRecords++;
+        } catch (IOException e) {
+            mNeedsRewrite = true;
+        }
+    }
+
+    private void recordSong(byte op, int index, Song song) {
+        if (mNeedsRewrite) {
+            // Everything is written by the rewrite
+            return;
+        }
+
+        try {
+            final String ref = song != null ? song.getRef() : null;
+            final ProviderIdentifier provider = song != null ? song.getProvider() : null;
+            final int providerId = ref != null && provider != null
+                    ? internProvider(mPending, provider.serialize()) : NO_PROVIDER;
+
+            mPending.writeByte(op);
+            mPending.writeInt(index);
+            mPending.writeShort(providerId);
+            mPending.writeUTF(providerId == NO_PROVIDER ? "" : ref);
+            mPendingRecords++;
+        } catch (IOException e) {
+            mNeedsRewrite = true;
+        }
+    }
+
+    /**
+     * Returns the index of a provider, writing its identifier to the journal the first time
+     */
+    private int internProvider(DataOutputStream out, String provider) throws IOException {
+        Integer id = mProviderIds.get(provider);
+        if (id == null) {
+            id = mProviders.size();
+            mProviderIds.put(provider, id);
+            mProviders.add(provider);
+
+            out.writeByte(OP_PROVIDER);
+            out.writeUTF(provider);
+            if (out == mPending) {
+                mPendingRecords++;
+            }
+        }
+        return id;
+    }
+
+    private void clearPending() {
+        mPendingBytes.reset();
+        mPendingRecords = 0;
+    }
+
+    /**
+     * Writes a snapshot of the queue to a temporary file, then renames it over the journal
+     */
+    private void rewrite(File file) {
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        final File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            Log.e(TAG, "Unable to create directory " + dir);
+            return;
+        }
+
+        // Avoid concurrent modification errors
+        final List<Song> copy = new ArrayList<>(this);
+
+        // Stays set if the rewrite fails, as the provider indexes of the journal are reset
+        mNeedsRewrite = true;
+        mProviderIds.clear();
+        mProviders.clear();
+        clearPending();
+
+        DataOutputStream out = null;
+        int records = 0;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            int index = 0;
+            for (Song song : copy) {
+                if (song == null || song.getRef() == null || song.getProvider() == null) {
+                    // Not restorable, but keeps the positions of the following songs
+                    out.writeByte(OP_ADD);
+                    out.writeInt(index);
+                    out.writeShort(NO_PROVIDER);
+                    out.writeUTF("");
+                } else {
+                    final int providers = mProviders.size();
+                    final int providerId = internProvider(out, song.getProvider().serialize());
+                    records += mProviders.size() - providers;
+
+                    out.writeByte(OP_ADD);
+                    out.writeInt(index);
+                    out.writeShort(providerId);
+                    out.writeUTF(song.getRef());
+                }
+                ++records;
+                ++index;
+            }
+
+            out.close();
+            out = null;
+
+            if (!tmpFile.renameTo(file)) {
+                Log.e(TAG, "Unable to commit playback queue journal");
+                tmpFile.delete();
+                return;
+            }
+
+            mJournalRecords = records;
+            mNeedsRewrite = false;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write playback queue journal", e);
+            tmpFile.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignore) {
             }
         }
     }
@@ -28,6 +28,7 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.PowerManager;
+import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.support.v4.app.NotificationManagerCompat;
@@ -56,6 +57,7 @@ import com.fastbootmobile.encore.utils.SettingsKeys;
 import com.fastbootmobile.encore.utils.Utils;
 import com.squareup.leakcanary.RefWatcher;
 
+import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -78,8 +80,16 @@ public class PlaybackService extends Service
 
     private static final String SERVICE_SHARED_PREFS = "PlaybackServicePrefs";
     private static final String QUEUE_SHARED_PREFS = "PlaybackQueueMemory";
+    private static final String QUEUE_JOURNAL_FILE = "playback_queue.journal";
     private static final String PREF_KEY_REPEAT = "repeatMode";
     private static final String PREF_KEY_SHUFFLE = "shuffleMode";
+    private static final String PREF_KEY_CROSSFADE = "crossfadeDuration";
+
+    // Time left to the outgoing provider to send the end of its song during a crossfade
+    private static final int CROSSFADE_PAUSE_DELAY = 5000;
+
+    // Number of restored songs resolved at once in the background, between playback commands
+    private static final int QUEUE_RESOLVE_CHUNK = 50;
 
     public static final String ACTION_COMMAND = "command";
     public static final String EXTRA_COMMAND_NAME = "command_name";
@@ -127,6 +137,8 @@ public class PlaybackService extends Service
     private List<IPlaybackCallback> mCallbacks;
     private ServiceNotification mNotification;
     private int mCurrentTrack = -1;
+    private int mNextTrack = -1;
+    private Song mPrefetchedSong;
     private long mCurrentTrackElapsedMs;
     private int mState = STATE_STOPPED;
     private boolean mIsResuming;
@@ -150,6 +162,19 @@ public class PlaybackService extends Service
     private PlaybackServiceBinder mBinder = new PlaybackServiceBinder(new WeakReference<>(this));
     private PlaybackProviderCallback mProviderCallback = new PlaybackProviderCallback(new WeakReference<>(this));
     private boolean mShouldFlushBuffers = false;
+    private int mCrossfadeMs;
+    private boolean mCrossfadeStarted;
+    private ProviderIdentifier mCrossfadeOutgoing;
+    private final AudioMeter mAudioMeter = new AudioMeter();
+    private final AudioMeter.Batch mMeterBatch = new AudioMeter.Batch();
+    private int mMeterCallbackCount;
+    private final RemoteCallbackList<IMeterCallback> mMeterCallbacks =
+            new RemoteCallbackList<IMeterCallback>() {
+                @Override
+                public void onCallbackDied(IMeterCallback callback) {
+                    onMeterCallbacksChanged(-1);
+                }
+            };
 
     private static class CommandHandler extends Handler {
         private WeakReference<PlaybackService> mService;
@@ -158,6 +183,10 @@ public class PlaybackService extends Service
         private static final int MSG_RESUME_PLAYBACK = 3;
         private static final int MSG_FLUSH_BUFFERS = 4;
         private static final int MSG_STOP_SERVICE = 5;
+        private static final int MSG_START_CROSSFADE = 6;
+        private static final int MSG_PUBLISH_METER = 7;
+        private static final int MSG_RESOLVE_QUEUE = 8;
+        private static final int MSG_END_CROSSFADE = 9;
 
         public CommandHandler(PlaybackService service, HandlerThread looper) {
             super(looper.getLooper());
@@ -194,6 +223,10 @@ public class PlaybackService extends Service
                     }
                     break;
 
+                case MSG_END_CROSSFADE:
+                    service.endCrossfadeImpl(ProviderIdentifier.fromSerialized((String) msg.obj));
+                    break;
+
                 case MSG_RESUME_PLAYBACK:
                     service.playImplLocked();
                     break;
@@ -205,6 +238,18 @@ public class PlaybackService extends Service
                 case MSG_STOP_SERVICE:
                     service.stopImpl();
                     break;
+
+                case MSG_START_CROSSFADE:
+                    service.startCrossfadeImpl();
+                    break;
+
+                case MSG_PUBLISH_METER:
+                    service.publishMeterImpl();
+                    break;
+
+                case MSG_RESOLVE_QUEUE:
+                    service.resolveQueueImpl(msg.arg1, msg.arg2 != 0);
+                    break;
             }
         }
     }
@@ -229,6 +274,16 @@ public class PlaybackService extends Service
 
         mCommandsHandler = new CommandHandler(this, mCommandsHandlerThread);
 
+        // Levels are measured on the audio thread, and published from the commands thread
+        mAudioMeter.setListener(new AudioMeter.Listener() {
+            @Override
+            public void onMeterBatch() {
+                if (!mCommandsHandler.hasMessages(CommandHandler.MSG_PUBLISH_METER)) {
+                    mCommandsHandler.sendEmptyMessage(CommandHandler.MSG_PUBLISH_METER);
+                }
+            }
+        });
+
         // Register package manager to receive updates
         mPacManReceiver = new PacManReceiver();
         IntentFilter pacManFilter = new IntentFilter();
@@ -322,6 +377,7 @@ public class PlaybackService extends Service
         SharedPreferences prefs = getSharedPreferences(SERVICE_SHARED_PREFS, MODE_PRIVATE);
         mRepeatMode = prefs.getBoolean(PREF_KEY_REPEAT, false);
         mShuffleMode = prefs.getBoolean(PREF_KEY_SHUFFLE, false);
+        mCrossfadeMs = prefs.getInt(PREF_KEY_CROSSFADE, 0);
 
         // TODO: Use callbacks
         // Restore playback queue after one second - we have multiple things to wait here:
@@ -332,7 +388,7 @@ public class PlaybackService extends Service
             @Override
             public void run() {
                 SharedPreferences queuePrefs = getSharedPreferences(QUEUE_SHARED_PREFS, MODE_PRIVATE);
-                mPlaybackQueue.restore(queuePrefs);
+                mPlaybackQueue.restore(new File(getFilesDir(), QUEUE_JOURNAL_FILE), queuePrefs);
                 mCurrentTrack = queuePrefs.getInt("current", -1);
                 mCurrentTrackLoaded = false;
                 mNotification.setHasNext(mPlaybackQueue.size() > 1 || (mPlaybackQueue.size() > 0 && mRepeatMode));
@@ -355,6 +411,9 @@ public class PlaybackService extends Service
         mPrefetcher.cancel();
         mPrefetcher = null;
 
+        mAudioMeter.setListener(null);
+        mMeterCallbacks.kill();
+
         if (mHasAudioFocus) {
             abandonAudioFocus();
         }
@@ -540,7 +599,7 @@ public class PlaybackService extends Service
      */
     private void savePlaybackQueue() {
         SharedPreferences queuePrefs = getSharedPreferences(QUEUE_SHARED_PREFS, MODE_PRIVATE);
-        mPlaybackQueue.save(queuePrefs.edit());
+        mPlaybackQueue.save(new File(getFilesDir(), QUEUE_JOURNAL_FILE));
         queuePrefs.edit().putInt("current", mCurrentTrack).apply();
     }
 
@@ -635,6 +694,10 @@ public class PlaybackService extends Service
                 mCurrentTrack = 0;
             }
 
+            // Retrieve the restored songs ahead of the playback position on this thread, rather
+            // than from the threads reading the queue
+            mPlaybackQueue.resolve(mCurrentTrack, PlaybackQueue.RESOLVE_AHEAD);
+
             final Song next = mPlaybackQueue.get(mCurrentTrack);
             if (next == null) {
                 // Song got unavailable, retry the next one
@@ -648,7 +711,22 @@ public class PlaybackService extends Service
 
             final ProviderIdentifier providerId = next.getProvider();
 
-            if (mCurrentPlayingProvider != null && !next.getProvider().equals(mCurrentPlayingProvider)) {
+            // The native hub only mixes the providers when a crossfade was started for this track
+            final ProviderIdentifier crossfadeOutgoing = mCrossfadeOutgoing;
+            mCrossfadeOutgoing = null;
+            if (crossfadeOutgoing == null) {
+                mNativeHub.setCrossfade(0);
+            }
+
+            if (crossfadeOutgoing != null && crossfadeOutgoing.equals(mCurrentPlayingProvider)) {
+                // Let the previous provider send the end of its track while it fades out, it is
+                // paused once the fade is over
+                mCommandsHandler.sendMessageDelayed(
+                        mCommandsHandler.obtainMessage(CommandHandler.MSG_END_CROSSFADE,
+                                crossfadeOutgoing.serialize()),
+                        mCrossfadeMs + CROSSFADE_PAUSE_DELAY);
+                mCurrentPlayingProvider = null;
+            } else if (mCurrentPlayingProvider != null && !next.getProvider().equals(mCurrentPlayingProvider)) {
                 // Pause the previously playing track to avoid overlap if it's not the same provider
                 ProviderConnection prevConn = PluginsLookup.getDefault().getProvider(mCurrentPlayingProvider);
                 if (prevConn != null) {
@@ -788,11 +866,9 @@ public class PlaybackService extends Service
     void nextImpl() {
         boolean hasNext = mCurrentTrack < mPlaybackQueue.size() - 1;
         if (mPlaybackQueue.size() > 1 && mShuffleMode) {
-            // Shuffle mode is enabled, play any track but not the one we just played
-            int previousTrack = mCurrentTrack;
-            while (previousTrack == mCurrentTrack) {
-                mCurrentTrack = Utils.getRandom(mPlaybackQueue.size());
-            }
+            // Shuffle mode is enabled, play the track picked to follow this one
+            mCurrentTrack = getNextTrackIndex();
+            mNextTrack = -1;
 
             mNativeSink.setPaused(true);
             mShouldFlushBuffers = true;
@@ -998,18 +1074,173 @@ public class PlaybackService extends Service
         requestStartPlayback();
     }
 
+    /**
+     * Moves to the next track while the current one is still playing, so that the native hub
+     * mixes the end of the current track with the start of the next one. Tracks from the same
+     * provider follow each other gaplessly instead, as a provider only streams one track at a time.
+     */
+    private void startCrossfadeImpl() {
+        final Song current = getCurrentSong();
+        final Song next = getNextTrack();
+        if (mState != STATE_PLAYING || mShuffleMode || current == null || next == null
+                || current.getProvider() == null
+                || current.getProvider().equals(next.getProvider())) {
+            return;
+        }
+
+        Log.d(TAG, "Crossfading to " + next.getRef() + " over " + mCrossfadeMs + "ms");
+        if (mCurrentTrack < mPlaybackQueue.size() - 1) {
+            mCurrentTrack++;
+        } else {
+            mCurrentTrack = 0;
+        }
+
+        mCrossfadeOutgoing = current.getProvider();
+        mNativeHub.setCrossfade(mCrossfadeMs);
+        mShouldFlushBuffers = false;
+        startPlayingQueue();
+    }
+
+    /**
+     * Pauses the provider that faded out during a crossfade, unless it started playing again
+     * since (e.g. the next song of the queue is from the same provider)
+     *
+     * @param outgoing The provider that faded out
+     */
+    private void endCrossfadeImpl(ProviderIdentifier outgoing) {
+        if (outgoing.equals(mCurrentPlayingProvider)) {
+            return;
+        }
+
+        final ProviderConnection connection = PluginsLookup.getDefault().getProvider(outgoing);
+        final IMusicProvider provider = connection != null ? connection.getBinder() : null;
+        if (provider == null) {
+            return;
+        }
+
+        try {
+            provider.pause();
+        } catch (RemoteException e) {
+            Log.e(TAG, "Cannot pause the crossfaded provider", e);
+        }
+    }
+
+    /**
+     * @return The meter measuring the levels of the audio output
+     */
+    public AudioMeter getAudioMeter() {
+        return mAudioMeter;
+    }
+
+    /**
+     * Keeps track of the registered meter callbacks, as the spectrum is only computed while
+     * there are some
+     *
+     * @param delta The number of callbacks added, or removed if negative
+     */
+    private void onMeterCallbacksChanged(int delta) {
+        synchronized (mMeterCallbacks) {
+            mMeterCallbackCount += delta;
+            mAudioMeter.setSpectrumEnabled(mMeterCallbackCount > 0);
+        }
+    }
+
+    /**
+     * Sends the levels measured since the previous batch to the meter callbacks
+     */
+    private void publishMeterImpl() {
+        mAudioMeter.read(mMeterBatch);
+        if (mMeterBatch.count == 0) {
+            return;
+        }
+
+        final int count = mMeterCallbacks.beginBroadcast();
+        for (int i = 0; i < count; ++i) {
+            try {
+                mMeterCallbacks.getBroadcastItem(i).onMeterUpdate(mMeterBatch.count,
+                        mMeterBatch.rms, mMeterBatch.peaks, mMeterBatch.bands);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Cannot call meter callback", e);
+            }
+        }
+        mMeterCallbacks.finishBroadcast();
+    }
+
+    /**
+     * Starts retrieving the restored songs of the queue in the background, if any
+     */
+    private void requestResolveQueue() {
+        if (mPlaybackQueue.hasPlaceholders()
+                && !mCommandsHandler.hasMessages(CommandHandler.MSG_RESOLVE_QUEUE)) {
+            mCommandsHandler.obtainMessage(CommandHandler.MSG_RESOLVE_QUEUE, 0, 0).sendToTarget();
+        }
+    }
+
+    /**
+     * Resolves a chunk of the restored songs of the queue, then schedules the next one. The
+     * clients are notified once the whole queue went through, if songs were replaced.
+     *
+     * @param from The position of the first song of the chunk
+     * @param changed Whether songs were replaced by the previous chunks
+     */
+    private void resolveQueueImpl(int from, boolean changed) {
+        changed |= mPlaybackQueue.resolve(from, QUEUE_RESOLVE_CHUNK);
+
+        final int next = from + QUEUE_RESOLVE_CHUNK;
+        if (next < mPlaybackQueue.size()) {
+            mCommandsHandler.obtainMessage(CommandHandler.MSG_RESOLVE_QUEUE, next,
+                    changed ? 1 : 0).sendToTarget();
+        } else if (changed) {
+            mHandler.removeCallbacks(mNotifyQueueChangedRunnable);
+            mHandler.post(mNotifyQueueChangedRunnable);
+        }
+    }
+
     /**
      * @return The reference to the next track in the queue
      */
     public Song getNextTrack() {
-        if (mCurrentTrack < mPlaybackQueue.size() - 1) {
-            return mPlaybackQueue.get(mCurrentTrack + 1);
+        final int index = getNextTrackIndex();
+        if (index >= 0) {
+            return mPlaybackQueue.get(index);
         } else {
             // No more tracks
             return null;
         }
     }
 
+    /**
+     * Returns the index of the track that plays once the current one ended. In shuffle mode, the
+     * track is picked once and kept until it plays, so that the track pre-fetched by the provider
+     * is the one that actually follows.
+     * @return The index of the next track, or -1 if there is none
+     */
+    int getNextTrackIndex() {
+        final int size = mPlaybackQueue.size();
+        if (size > 1 && mShuffleMode) {
+            // Play any track but not the current one
+            while (mNextTrack < 0 || mNextTrack >= size || mNextTrack == mCurrentTrack) {
+                mNextTrack = Utils.getRandom(size);
+            }
+            return mNextTrack;
+        } else if (mCurrentTrack < size - 1) {
+            return mCurrentTrack + 1;
+        } else if (mRepeatMode && size > 0) {
+            // Repeating, the queue starts over once this track ended
+            return 0;
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * Called by the {@link Prefetcher} when it asks the provider to pre-fetch a song
+     * @param song The song pre-fetched
+     */
+    void setPrefetchedSong(Song song) {
+        mPrefetchedSong = song;
+    }
+
     public int getCurrentTrackPositionImpl() {
         return (int) mCurrentTrackElapsedMs;
     }
@@ -1288,7 +1519,10 @@ public class PlaybackService extends Service
             PlaybackService service = mParent.get();
 
             if (service != null) {
-                return service.mPlaybackQueue;
+                // Clients call this from their main thread: restored songs are retrieved in the
+                // background, and the clients are notified once they are
+                service.requestResolveQueue();
+                return service.mPlaybackQueue.snapshot();
             } else {
                 return new ArrayList<Song>();
             }
@@ -1305,6 +1539,24 @@ public class PlaybackService extends Service
             }
         }
 
+        @Override
+        public void addMeterCallback(IMeterCallback cb) throws RemoteException {
+            PlaybackService service = mParent.get();
+
+            if (service != null && service.mMeterCallbacks.register(cb)) {
+                service.onMeterCallbacksChanged(1);
+            }
+        }
+
+        @Override
+        public void removeMeterCallback(IMeterCallback cb) throws RemoteException {
+            PlaybackService service = mParent.get();
+
+            if (service != null && service.mMeterCallbacks.unregister(cb)) {
+                service.onMeterCallbacksChanged(-1);
+            }
+        }
+
         @Override
         public List<ProviderIdentifier> getDSPChain() throws RemoteException {
             PlaybackService service = mParent.get();
@@ -1400,6 +1652,7 @@ public class PlaybackService extends Service
 
             if (service != null) {
                 service.mShuffleMode = shuffle;
+                service.mNextTrack = -1;
                 SharedPreferences prefs = service.getSharedPreferences(SERVICE_SHARED_PREFS, MODE_PRIVATE);
                 SharedPreferences.Editor editor = prefs.edit();
                 editor.putBoolean(PREF_KEY_SHUFFLE, shuffle);
@@ -1407,6 +1660,30 @@ public class PlaybackService extends Service
             }
         }
 
+        @Override
+        public void setCrossfadeDuration(int durationMs) throws RemoteException {
+            PlaybackService service = mParent.get();
+
+            if (service != null) {
+                service.mCrossfadeMs = Math.max(0, durationMs);
+                SharedPreferences prefs = service.getSharedPreferences(SERVICE_SHARED_PREFS, MODE_PRIVATE);
+                SharedPreferences.Editor editor = prefs.edit();
+                editor.putInt(PREF_KEY_CROSSFADE, service.mCrossfadeMs);
+                editor.apply();
+            }
+        }
+
+        @Override
+        public int getCrossfadeDuration() throws RemoteException {
+            PlaybackService service = mParent.get();
+
+            if (service != null) {
+                return service.mCrossfadeMs;
+            } else {
+                return 0;
+            }
+        }
+
         @Override
         public boolean isShuffleMode() throws RemoteException {
             PlaybackService service = mParent.get();
@@ -1516,6 +1793,7 @@ public class PlaybackService extends Service
                     service.mIsResuming = false;
                 } else {
                     service.mCurrentTrackElapsedMs = 0;
+                    service.mCrossfadeStarted = false;
 
                     // Flush and unpause the sink to clear previous track data (if from user action)
                     if (service.mShouldFlushBuffers) {
@@ -1608,39 +1886,39 @@ public class PlaybackService extends Service
             PlaybackService service = mParent.get();
 
             if (service != null) {
+                // The provider we faded out from may still report the end of its track
+                final Song currentSong = service.getCurrentSong();
+                if (currentSong != null && !provider.equals(currentSong.getProvider())) {
+                    Log.d(TAG, "Ignoring end of track from " + provider);
+                    return;
+                }
+
                 // We restart the queue in an handler. In the case of the Spotify provider, the
                 // endOfTrack callback locks the main API thread, leading to a dead lock if we
                 // try to play a track here while still being in the callstack of the endOfTrack
                 // callback.
 
-                if (service.mPlaybackQueue.size() > 1 && service.mShuffleMode) {
-                    // Shuffle mode is enabled, play any track but not the one we just played
-                    int previousTrack = service.mCurrentTrack;
-                    while (previousTrack == service.mCurrentTrack) {
-                        service.mCurrentTrack = Utils.getRandom(service.mPlaybackQueue.size());
-                    }
-
-                    service.mShouldFlushBuffers = false;
-                    service.requestStartPlayback();
-                } else if (service.mPlaybackQueue.size() > 0 && service.mCurrentTrack < service.mPlaybackQueue.size() - 1) {
-                    // Regular sequential mode, not at the end, move to the next track
-                    service.mCurrentTrack++;
-
-                    service.mShouldFlushBuffers = false;
+                final int nextTrack = service.getNextTrackIndex();
+                if (nextTrack >= 0) {
+                    // Move to the next track (picked in advance in shuffle mode, and the first
+                    // one when repeating at the end of the queue). The provider may already be
+                    // playing the song it pre-fetched right after the one that ended: if another
+                    // song plays next (e.g. the queue changed since), that audio must be flushed.
+                    final Song nextSong = service.mPlaybackQueue.get(nextTrack);
+                    final Song prefetched = service.mPrefetchedSong;
+                    service.mShouldFlushBuffers = prefetched != null
+                            && provider.equals(prefetched.getProvider())
+                            && (nextSong == null || !prefetched.getRef().equals(nextSong.getRef()));
+
+                    service.mCurrentTrack = nextTrack;
+                    service.mNextTrack = -1;
+                    service.mPrefetchedSong = null;
                     service.requestStartPlayback();
                 } else if (service.mPlaybackQueue.size() > 0 && service.mCurrentTrack == service.mPlaybackQueue.size() - 1) {
-                    // Regular sequential mode, at the end of the queue
-                    if (service.mRepeatMode) {
-                        // We're repeating, go back to the first track and play it
-                        service.mCurrentTrack = 0;
-                        service.mShouldFlushBuffers = false;
-                        service.requestStartPlayback();
-                    } else {
-                        // Not repeating and at the end of the playlist, stop after a little while
-                        // to allow the buffers to empty
-                        service.mHandler.sendEmptyMessageDelayed(CommandHandler.MSG_STOP_SERVICE,
-                                2000);
-                    }
+                    // Not repeating and at the end of the playlist, stop after a little while
+                    // to allow the buffers to empty
+                    service.mHandler.sendEmptyMessageDelayed(CommandHandler.MSG_STOP_SERVICE,
+                            2000);
                 }
             }
         }
@@ -1684,8 +1962,24 @@ public class PlaybackService extends Service
 
     @Override
     public void onSampleWritten(byte[] bytes, int len, int sampleRate, int channels) {
+        mAudioMeter.write(bytes, len, sampleRate, channels);
+
         len = len / 2; // first, we want the number of samples, and we assume 16 bits audio
         len = len / channels; // then, we count "mono"
         mCurrentTrackElapsedMs += len * 1000 / sampleRate;
+
+        // Start the crossfade once the end of the track reaches the sink, taking into account
+        // what is already buffered
+        if (mCrossfadeMs > 0 && !mCrossfadeStarted && mState == STATE_PLAYING) {
+            final Song currentSong = getCurrentSong();
+            if (currentSong != null && currentSong.getDuration() > mCrossfadeMs) {
+                final long bufferedMs = (long) mNativeSink.getPlayer().getBufferedCount() * 1000
+                        / (sampleRate * channels * 2);
+                if (mCurrentTrackElapsedMs + bufferedMs >= currentSong.getDuration() - mCrossfadeMs) {
+                    mCrossfadeStarted = true;
+                    mCommandsHandler.sendEmptyMessage(CommandHandler.MSG_START_CROSSFADE);
+                }
+            }
+        }
     }
 }
@@ -23,12 +23,19 @@ import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.IMusicProvider;
 import com.fastbootmobile.encore.providers.ProviderConnection;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 /**
  * Runnable handling the pre-fetch of the next track
  */
 public class Prefetcher implements Runnable {
     private static final String TAG = "Prefetcher";
 
+    // Providers may block while preparing a song (e.g. priming a decoder), so they are called on
+    // a single worker thread instead of a new thread per song
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
     private PlaybackService mService;
 
 
@@ -49,8 +56,10 @@ public class Prefetcher implements Runnable {
             if (conn != null) {
                 final IMusicProvider provider = conn.getBinder();
                 if (provider != null) {
-                    // We prefetch in a thread, as if the provider blocks, this is blocking the UI
-                    new Thread() {
+                    mService.setPrefetchedSong(nextSong);
+
+                    // We prefetch in the background, as if the provider blocks, this is blocking the UI
+                    sExecutor.execute(new Runnable() {
                         public void run() {
                             try {
                                 provider.prefetchSong(nextSong.getRef());
@@ -58,7 +67,7 @@ public class Prefetcher implements Runnable {
                                 Log.e(TAG, "Cannot pre-fetch song", e);
                             }
                         }
-                    }.start();
+                    });
                 }
             }
         }
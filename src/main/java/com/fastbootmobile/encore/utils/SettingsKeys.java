@@ -15,6 +15,9 @@ public class SettingsKeys {
     // Album art
     public static final String KEY_FREE_ART = "cb_free_art";
 
+    // Playback
+    public static final String KEY_CROSSFADE_DURATION = "pref_crossfade_duration";
+
 
     // Playing bar behavior cache
     public static final String KEY_PLAYBAR_HIDDEN = "cache_playbar_hidden";
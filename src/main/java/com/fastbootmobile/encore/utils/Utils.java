@@ -684,6 +684,16 @@ public class Utils {
         return output;
     }
 
+    public static List<String> refIteratorToList(Iterator<String> it) {
+        List<String> output = new ArrayList<>();
+
+        while (it.hasNext()) {
+            output.add(it.next());
+        }
+
+        return output;
+    }
+
     public static int getEnclosingCircleRadius(View v, int cx, int cy) {
         int realCenterX = cx + v.getLeft();
         int realCenterY = cy + v.getTop();
@@ -219,6 +219,15 @@ public class VoiceActionHelper implements VoiceCommander.ResultListener {
     }
 
     public void onSearchResult(List<SearchResult> results) {
+        // Notifications only carry the new hits, match against all the results of the query
+        if (!results.isEmpty()) {
+            final List<SearchResult> allResults = ProviderAggregator.getDefault()
+                    .getCachedSearch(results.get(0).getQuery());
+            if (allResults != null) {
+                results = allResults;
+            }
+        }
+
         mPreviousSearchResults = results;
 
         // Match the result to one or multiple songs. We first try to look for an exact match,
@@ -7,6 +7,7 @@ PROVIDERLIB_JNI_PATH := $(PROVIDERLIB_PATH)/src/main/jni
 # Module name and files
 LOCAL_MODULE := libnativeplayerjni
 LOCAL_SRC_FILES := \
+    Crossfader.cpp \
     Glue.cpp \
     NativeHub.cpp \
     NativePlayer.cpp \
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+#include "Crossfader.h"
+#include <algorithm>
+#include <cmath>
+#include "Log.h"
+
+#define LOG_TAG "OM-Crossfader"
+
+// One second of audio at the highest supported output rate, per stream
+#define MAX_FRAMES 48000
+#define MAX_CHANNELS 2
+
+// Number of segments of the gain curve, which is interpolated in between
+#define CURVE_SEGMENTS 256
+
+// -------------------------------------------------------------------------------------
+Crossfader::Crossfader() : m_iSampleRate(44100), m_iChannels(2), m_iFadeFrames(1),
+        m_iFadePosition(1) {
+    for (int i = 0; i < 2; ++i) {
+        m_Streams[i].pSamples = new int16_t[MAX_FRAMES * MAX_CHANNELS];
+    }
+
+    // Equal-power curve: the incoming gain is sin(t * pi / 2) and the outgoing gain is
+    // cos(t * pi / 2) = sin((1 - t) * pi / 2), so that the summed power stays constant
+    m_pGainCurve = new float[CURVE_SEGMENTS + 1];
+    for (int i = 0; i <= CURVE_SEGMENTS; ++i) {
+        m_pGainCurve[i] = sinf(static_cast<float>(M_PI_2) * i / CURVE_SEGMENTS);
+    }
+
+    clear(STREAM_OUTGOING);
+    clear(STREAM_INCOMING);
+}
+// -------------------------------------------------------------------------------------
+Crossfader::~Crossfader() {
+    for (int i = 0; i < 2; ++i) {
+        delete[] m_Streams[i].pSamples;
+    }
+    delete[] m_pGainCurve;
+}
+// -------------------------------------------------------------------------------------
+bool Crossfader::start(int32_t out_sample_rate, int32_t out_channels, int32_t duration_ms) {
+    if (out_sample_rate <= 0 || out_sample_rate > MAX_FRAMES || out_channels < 1
+            || out_channels > MAX_CHANNELS) {
+        ALOGW("Cannot crossfade at %d Hz, %d channels", out_sample_rate, out_channels);
+        return false;
+    }
+
+    m_iSampleRate = out_sample_rate;
+    m_iChannels = out_channels;
+    m_iFadeFrames = std::max<uint64_t>(1, (uint64_t) m_iSampleRate * duration_ms / 1000);
+    m_iFadePosition = 0;
+
+    for (int i = 0; i < 2; ++i) {
+        clear(static_cast<Stream>(i));
+        setStreamFormat(static_cast<Stream>(i), m_iSampleRate, m_iChannels);
+    }
+
+    ALOGD("Starting %d ms crossfade at %d Hz, %d channels", duration_ms, m_iSampleRate,
+            m_iChannels);
+    return true;
+}
+// -------------------------------------------------------------------------------------
+void Crossfader::setStreamFormat(Stream stream, int32_t sample_rate, int32_t channels) {
+    Fifo& fifo = m_Streams[stream];
+    fifo.iSampleRate = sample_rate > 0 ? sample_rate : m_iSampleRate;
+    fifo.iChannels = std::max(1, std::min(channels, MAX_CHANNELS));
+    fifo.dPosition = 0;
+    fifo.iLastFrame[0] = fifo.iLastFrame[1] = 0;
+}
+// -------------------------------------------------------------------------------------
+bool Crossfader::push(Stream stream, const uint8_t* data, uint32_t len) {
+    Fifo& fifo = m_Streams[stream];
+    const int16_t* samples = reinterpret_cast<const int16_t*>(data);
+    const uint32_t in_frames = len / (2 * fifo.iChannels);
+    if (in_frames == 0) {
+        return true;
+    }
+
+    // Check for room upfront, so that a write is either fully queued or not at all
+    const double step = static_cast<double>(fifo.iSampleRate) / m_iSampleRate;
+    const uint32_t max_out_frames = static_cast<uint32_t>(in_frames / step) + 2;
+    if (MAX_FRAMES - fifo.iFrameCount < max_out_frames) {
+        return false;
+    }
+
+    // Linear interpolation between input frames, where frame 0 is the last frame of the
+    // previous push
+    uint32_t write_frame = (fifo.iReadFrame + fifo.iFrameCount) % MAX_FRAMES;
+    double position = fifo.dPosition;
+    while (position < in_frames) {
+        const uint32_t frame = static_cast<uint32_t>(position);
+        const float fraction = static_cast<float>(position - frame);
+        int16_t* out = fifo.pSamples + write_frame * MAX_CHANNELS;
+
+        for (int32_t c = 0; c < m_iChannels; ++c) {
+            const float a = getInputSample(fifo, samples, frame, c);
+            const float b = getInputSample(fifo, samples, frame + 1, c);
+            out[c] = static_cast<int16_t>(a + (b - a) * fraction);
+        }
+
+        write_frame = (write_frame + 1) % MAX_FRAMES;
+        fifo.iFrameCount++;
+        position += step;
+    }
+
+    fifo.dPosition = position - in_frames;
+    for (int32_t c = 0; c < fifo.iChannels; ++c) {
+        fifo.iLastFrame[c] = samples[(in_frames - 1) * fifo.iChannels + c];
+    }
+
+    return true;
+}
+// -------------------------------------------------------------------------------------
+void Crossfader::clear(Stream stream) {
+    Fifo& fifo = m_Streams[stream];
+    fifo.iReadFrame = 0;
+    fifo.iFrameCount = 0;
+    fifo.dPosition = 0;
+    fifo.iLastFrame[0] = fifo.iLastFrame[1] = 0;
+}
+// -------------------------------------------------------------------------------------
+uint32_t Crossfader::peek(int16_t* out, uint32_t max_frames) {
+    const Fifo& outgoing = m_Streams[STREAM_OUTGOING];
+    const Fifo& incoming = m_Streams[STREAM_INCOMING];
+    const bool fading = !isFadeComplete();
+
+    uint32_t frames;
+    if (!fading) {
+        frames = std::min(incoming.iFrameCount, max_frames);
+    } else if (outgoing.iFrameCount > 0) {
+        frames = std::min(std::min(outgoing.iFrameCount, incoming.iFrameCount), max_frames);
+    } else if (incoming.iFrameCount >= MAX_FRAMES / 2) {
+        // The outgoing stream stopped (it reached its end or got paused), fade from silence
+        frames = std::min(incoming.iFrameCount, max_frames);
+    } else {
+        // Wait for more audio from the outgoing stream
+        frames = 0;
+    }
+
+    if (fading) {
+        frames = static_cast<uint32_t>(std::min<uint64_t>(frames,
+                m_iFadeFrames - m_iFadePosition));
+    }
+
+    for (uint32_t i = 0; i < frames; ++i) {
+        const int16_t* in_frame = incoming.pSamples
+                + ((incoming.iReadFrame + i) % MAX_FRAMES) * MAX_CHANNELS;
+        int16_t* out_frame = out + i * m_iChannels;
+
+        if (!fading) {
+            for (int32_t c = 0; c < m_iChannels; ++c) {
+                out_frame[c] = in_frame[c];
+            }
+            continue;
+        }
+
+        const float in_gain = getGain(m_iFadePosition + i, true);
+        const float out_gain = getGain(m_iFadePosition + i, false);
+        const int16_t* out_stream_frame = i < outgoing.iFrameCount ? outgoing.pSamples
+                + ((outgoing.iReadFrame + i) % MAX_FRAMES) * MAX_CHANNELS : nullptr;
+
+        for (int32_t c = 0; c < m_iChannels; ++c) {
+            float mixed = in_frame[c] * in_gain;
+            if (out_stream_frame) {
+                mixed += out_stream_frame[c] * out_gain;
+            }
+            out_frame[c] = static_cast<int16_t>(std::max(-32768.f, std::min(32767.f, mixed)));
+        }
+    }
+
+    return frames;
+}
+// -------------------------------------------------------------------------------------
+void Crossfader::commit(uint32_t frames) {
+    Fifo& incoming = m_Streams[STREAM_INCOMING];
+    incoming.iReadFrame = (incoming.iReadFrame + frames) % MAX_FRAMES;
+    incoming.iFrameCount -= frames;
+
+    if (!isFadeComplete()) {
+        Fifo& outgoing = m_Streams[STREAM_OUTGOING];
+        const uint32_t out_frames = std::min(frames, outgoing.iFrameCount);
+        outgoing.iReadFrame = (outgoing.iReadFrame + out_frames) % MAX_FRAMES;
+        outgoing.iFrameCount -= out_frames;
+
+        m_iFadePosition = std::min(m_iFadeFrames, m_iFadePosition + frames);
+        if (isFadeComplete()) {
+            ALOGD("Crossfade complete");
+            clear(STREAM_OUTGOING);
+        }
+    }
+}
+// -------------------------------------------------------------------------------------
+bool Crossfader::isFadeComplete() const {
+    return m_iFadePosition >= m_iFadeFrames;
+}
+// -------------------------------------------------------------------------------------
+uint32_t Crossfader::getQueuedFrames(Stream stream) const {
+    return m_Streams[stream].iFrameCount;
+}
+// -------------------------------------------------------------------------------------
+int32_t Crossfader::getSampleRate() const {
+    return m_iSampleRate;
+}
+// -------------------------------------------------------------------------------------
+int32_t Crossfader::getChannels() const {
+    return m_iChannels;
+}
+// -------------------------------------------------------------------------------------
+int16_t Crossfader::getInputSample(const Fifo& fifo, const int16_t* data, uint32_t frame,
+        int32_t channel) const {
+    const int16_t* samples = frame == 0 ? fifo.iLastFrame : data + (frame - 1) * fifo.iChannels;
+    if (fifo.iChannels == m_iChannels) {
+        return samples[channel];
+    } else if (fifo.iChannels == 1) {
+        // Mono to stereo
+        return samples[0];
+    } else {
+        // Stereo to mono
+        return static_cast<int16_t>((samples[0] + samples[1]) / 2);
+    }
+}
+// -------------------------------------------------------------------------------------
+float Crossfader::getGain(uint64_t frame, bool incoming) const {
+    float t = static_cast<float>(frame) / m_iFadeFrames;
+    if (!incoming) {
+        t = 1.f - t;
+    }
+
+    const float position = std::max(0.f, std::min(1.f, t)) * CURVE_SEGMENTS;
+    const int index = std::min(static_cast<int>(position), CURVE_SEGMENTS - 1);
+    const float fraction = position - index;
+    return m_pGainCurve[index] + (m_pGainCurve[index + 1] - m_pGainCurve[index]) * fraction;
+}
+// -------------------------------------------------------------------------------------
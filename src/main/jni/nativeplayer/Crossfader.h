@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+#ifndef SRC_MAIN_JNI_NATIVEPLAYER_CROSSFADER_H_
+#define SRC_MAIN_JNI_NATIVEPLAYER_CROSSFADER_H_
+
+#include <cstdint>
+
+// Mixes the end of a stream with the start of another one, with equal-power gain curves. Both
+// streams are converted to the output format as they are pushed, so they may come from providers
+// with different sample rates and channel counts. All the buffers are allocated upfront.
+class Crossfader {
+ public:
+    enum Stream {
+        STREAM_OUTGOING = 0,
+        STREAM_INCOMING = 1
+    };
+
+    // ctor
+    Crossfader();
+
+    // dtor
+    ~Crossfader();
+
+    // Starts a crossfade, dropping anything left from a previous one
+    // @returns false if the output format isn't supported
+    bool start(int32_t out_sample_rate, int32_t out_channels, int32_t duration_ms);
+
+    // Sets the format of the PCM pushed to a stream
+    void setStreamFormat(Stream stream, int32_t sample_rate, int32_t channels);
+
+    // Converts and queues 16 bits PCM
+    // @returns false if there is not enough room, in which case nothing is queued
+    bool push(Stream stream, const uint8_t* data, uint32_t len);
+
+    // Drops the PCM queued in a stream
+    void clear(Stream stream);
+
+    // Mixes the queued PCM into the provided buffer, without consuming it
+    // @returns The number of frames mixed
+    uint32_t peek(int16_t* out, uint32_t max_frames);
+
+    // Consumes frames previously returned by peek()
+    void commit(uint32_t frames);
+
+    // Returns true once the outgoing stream is fully faded out
+    bool isFadeComplete() const;
+
+    // Returns the number of frames queued in a stream
+    uint32_t getQueuedFrames(Stream stream) const;
+
+    // Returns the output sample rate
+    int32_t getSampleRate() const;
+
+    // Returns the output number of channels
+    int32_t getChannels() const;
+
+ private:
+    struct Fifo {
+        int16_t* pSamples;
+        uint32_t iReadFrame;
+        uint32_t iFrameCount;
+        int32_t iSampleRate;
+        int32_t iChannels;
+        double dPosition;
+        int16_t iLastFrame[2];
+    };
+
+    int16_t getInputSample(const Fifo& fifo, const int16_t* data, uint32_t frame,
+            int32_t channel) const;
+    float getGain(uint64_t frame, bool incoming) const;
+
+ private:
+    Fifo m_Streams[2];
+    float* m_pGainCurve;
+    int32_t m_iSampleRate;
+    int32_t m_iChannels;
+    uint64_t m_iFadeFrames;
+    uint64_t m_iFadePosition;
+};
+
+#endif  // SRC_MAIN_JNI_NATIVEPLAYER_CROSSFADER_H_
@@ -59,6 +59,8 @@ static JNINativeMethod gMethodsNativeHub[] = {
             reinterpret_cast<void*>(om_NativeHub_setSinkPointer)},
     {"nativeSetDucking", "(Z)V",
             reinterpret_cast<void*>(om_NativeHub_setDucking)},
+    {"nativeSetCrossfade", "(I)V",
+            reinterpret_cast<void*>(om_NativeHub_setCrossfade)},
     {"nativeShutdown", "()V",
             reinterpret_cast<void*>(om_NativeHub_shutdown)},
 };
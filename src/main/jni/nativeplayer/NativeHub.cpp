@@ -23,9 +23,20 @@
 
 #define LOG_TAG "NativeHub"
 
+// Maximum number of provider writes in flight in the DSP chain
+#define MAX_DSP_OWNERS 64
+
+// Number of frames mixed at once during a crossfade
+#define MIX_FRAMES 2048
+
 // -------------------------------------------------------------------------------------
 NativeHub::NativeHub(void* userdata) : m_pSink(nullptr), m_pLastProviderSocket(nullptr),
-        m_iSampleRate(44100), m_iChannels(2), m_pUserData(userdata), m_iBuffersInDSP(0) {
+        m_iSampleRate(44100), m_iChannels(2), m_pUserData(userdata), m_iBuffersInDSP(0),
+        m_iDspOwnersHead(0), m_iDspOwnersCount(0), m_CrossfadeState(CROSSFADE_IDLE),
+        m_bCrossfadeRequested(false), m_iCrossfadeMs(0), m_pOutgoingSocket(nullptr),
+        m_pIncomingSocket(nullptr) {
+    m_pDspOwners = new SocketCommon*[MAX_DSP_OWNERS];
+    m_pMixBuffer = new int16_t[MIX_FRAMES * 2];
 }
 // -------------------------------------------------------------------------------------
 NativeHub::~NativeHub() {
@@ -47,6 +58,9 @@ NativeHub::~NativeHub() {
     }
 
     m_ProviderSockets.clear();
+
+    delete[] m_pDspOwners;
+    delete[] m_pMixBuffer;
 }
 // -------------------------------------------------------------------------------------
 void NativeHub::setSink(INativeSink* sink) {
@@ -92,6 +106,13 @@ void NativeHub::releaseHostSocket(const std::string& name) {
     }
 
     if (host) {
+        if (host == m_pOutgoingSocket || host == m_pIncomingSocket) {
+            endCrossfade();
+        }
+        if (host == m_pLastProviderSocket) {
+            m_pLastProviderSocket = nullptr;
+        }
+        m_SocketFormats.erase(host);
         delete host;
         if (is_dsp) {
             m_DSPSockets.erase(name);
@@ -113,6 +134,23 @@ void NativeHub::setDucking(bool duck) {
     }
 }
 // -------------------------------------------------------------------------------------
+void NativeHub::setCrossfade(int32_t duration_ms) {
+    std::lock_guard<std::recursive_mutex> lock(m_ChainMutex);
+    m_bCrossfadeRequested = duration_ms > 0;
+    m_iCrossfadeMs = duration_ms;
+
+    if (m_bCrossfadeRequested) {
+        // A crossfade that is still draining starts the new one once it's done
+        if (m_CrossfadeState == CROSSFADE_IDLE) {
+            m_CrossfadeState = CROSSFADE_PENDING;
+        }
+    } else if (m_CrossfadeState == CROSSFADE_PENDING) {
+        m_CrossfadeState = CROSSFADE_IDLE;
+    } else if (m_CrossfadeState != CROSSFADE_IDLE) {
+        endCrossfade();
+    }
+}
+// -------------------------------------------------------------------------------------
 SocketHost* NativeHub::findSocketByName(const std::string& name) {
     SocketHost* host = m_ProviderSockets[name];
     if (!host) {
@@ -120,15 +158,20 @@ SocketHost* NativeHub::findSocketByName(const std::string& name) {
     }
 }
 // -------------------------------------------------------------------------------------
-void NativeHub::writeAudioToDsp(int chain_index, const uint8_t* data, const uint32_t len) {
+uint32_t NativeHub::writeAudioToDsp(int chain_index, const uint8_t* data, const uint32_t len,
+        SocketCommon* owner) {
     std::lock_guard<std::recursive_mutex> lock(m_ChainMutex);
 
+    // Audio coming back from a DSP plugin belongs to the oldest write in the chain
+    const bool from_dsp = chain_index > 0;
+
     // Before even writing to DSP, we check if the sink has free space so that we don't
     // process it worthlessly (and avoid glitches because Biquad filters dislike having
     // unwanted data).
     uint32_t free_buffers = (uint32_t) m_pSink->getFreeBuffersCount() - (uint32_t) m_iBuffersInDSP;
     if (m_pSink && free_buffers < len) {
-        writeAudioResponse(0);
+        writeAudioResponse(from_dsp ? popDspOwner() : owner, 0);
+        return 0;
     } else {
         bool success = false;
         auto iter = m_DSPChain.begin();
@@ -144,30 +187,192 @@ void NativeHub::writeAudioToDsp(int chain_index, const uint8_t* data, const uint
             } else {
                 success = true;
                 m_iBuffersInDSP += len;
+                if (!from_dsp) {
+                    pushDspOwner(owner);
+                }
             }
         }
 
         // If we're weren't successful at feeding a DSP plugin, feed the sink directly
         if (!success) {
-            writeAudioToSink(data, len);
+            return writeAudioToSink(data, len, from_dsp ? popDspOwner() : owner);
         }
+
+        return len;
     }
 }
 // -------------------------------------------------------------------------------------
-void NativeHub::writeAudioToSink(const uint8_t* data, const uint32_t len) {
+uint32_t NativeHub::writeAudioToSink(const uint8_t* data, const uint32_t len,
+        SocketCommon* owner) {
+    uint32_t written = 0;
     if (m_pSink) {
-        writeAudioResponse(m_pSink->enqueue(data, len));
+        written = m_pSink->enqueue(data, len);
+    }
+
+    writeAudioResponse(owner, written);
+    return written;
+}
+// -------------------------------------------------------------------------------------
+void NativeHub::writeAudioResponse(SocketCommon* owner, const uint32_t written) {
+    // Audio mixed by the hub has no owner to respond to
+    if (owner) {
+        owner->writeAudioResponse(written);
+    }
+}
+// -------------------------------------------------------------------------------------
+void NativeHub::pushDspOwner(SocketCommon* owner) {
+    if (m_iDspOwnersCount < MAX_DSP_OWNERS) {
+        m_pDspOwners[(m_iDspOwnersHead + m_iDspOwnersCount) % MAX_DSP_OWNERS] = owner;
+        m_iDspOwnersCount++;
     } else {
-        writeAudioResponse(0);
+        ALOGW("Too many writes in the DSP chain, a provider will miss its audio response");
+    }
+}
+// -------------------------------------------------------------------------------------
+SocketCommon* NativeHub::popDspOwner() {
+    if (m_iDspOwnersCount == 0) {
+        return m_pLastProviderSocket;
     }
+
+    SocketCommon* owner = m_pDspOwners[m_iDspOwnersHead];
+    m_iDspOwnersHead = (m_iDspOwnersHead + 1) % MAX_DSP_OWNERS;
+    m_iDspOwnersCount--;
+    return owner;
 }
 // -------------------------------------------------------------------------------------
-void NativeHub::writeAudioResponse(const uint32_t written) {
-    if (m_pLastProviderSocket) {
-        m_pLastProviderSocket->writeAudioResponse(written);
+void NativeHub::applyAudioFormat(const int32_t sample_rate, const int32_t channels) {
+    m_iSampleRate = sample_rate;
+    m_iChannels = channels;
+
+    if (m_pSink) {
+        m_pSink->setAudioFormat(sample_rate, 16, channels);
+    }
+
+    // Notify DSP plugins of format info
+    for (auto it = m_DSPChain.begin(); it != m_DSPChain.end(); ++it) {
+        SocketCommon* socket = m_DSPSockets[*it];
+        if (m_pSink) {
+            socket->writeFormatInfo(m_pSink->getChannels(), m_pSink->getSampleRate());
+        } else {
+            // Default values
+            socket->writeFormatInfo(m_iChannels, m_iSampleRate);
+        }
+    }
+}
+// -------------------------------------------------------------------------------------
+bool NativeHub::writeCrossfadeAudio(SocketCommon* socket, const uint8_t* data,
+        const uint32_t len) {
+    if (m_CrossfadeState == CROSSFADE_PENDING) {
+        if (m_pLastProviderSocket == nullptr || socket == m_pLastProviderSocket) {
+            // Still the current provider
+            return false;
+        } else if (!startCrossfade(socket)) {
+            return false;
+        }
+    }
+
+    Crossfader::Stream stream;
+    if (socket == m_pIncomingSocket) {
+        stream = Crossfader::STREAM_INCOMING;
+    } else if (socket == m_pOutgoingSocket && m_CrossfadeState == CROSSFADE_FADING) {
+        stream = Crossfader::STREAM_OUTGOING;
+    } else if (socket == m_pOutgoingSocket) {
+        // Already faded out, drop the audio until the app pauses that provider
+        writeAudioResponse(socket, len);
+        return true;
     } else {
-        ALOGE("CANNOT WRITE AUDIO RESPONSE: NO LAST PROVIDER SOCKET!!!!");
+        // Another provider took over (e.g. the user skipped a track during the crossfade)
+        endCrossfade();
+        return false;
     }
+
+    if (len == 0) {
+        // A flush only concerns the stream of that provider
+        m_Crossfader.clear(stream);
+        writeAudioResponse(socket, 0);
+        return true;
+    }
+
+    writeAudioResponse(socket, m_Crossfader.push(stream, data, len) ? len : 0);
+    pumpCrossfade();
+    return true;
+}
+// -------------------------------------------------------------------------------------
+bool NativeHub::startCrossfade(SocketCommon* incoming) {
+    if (!m_Crossfader.start(m_iSampleRate, m_iChannels, m_iCrossfadeMs)) {
+        m_CrossfadeState = CROSSFADE_IDLE;
+        m_bCrossfadeRequested = false;
+        return false;
+    }
+
+    m_pOutgoingSocket = m_pLastProviderSocket;
+    m_pIncomingSocket = incoming;
+    m_CrossfadeState = CROSSFADE_FADING;
+    m_bCrossfadeRequested = false;
+
+    // The providers may use a different format than the sink, the crossfader converts it
+    auto format = m_SocketFormats.find(m_pOutgoingSocket);
+    if (format != m_SocketFormats.end()) {
+        m_Crossfader.setStreamFormat(Crossfader::STREAM_OUTGOING, format->second.first,
+                format->second.second);
+    }
+    format = m_SocketFormats.find(m_pIncomingSocket);
+    if (format != m_SocketFormats.end()) {
+        m_Crossfader.setStreamFormat(Crossfader::STREAM_INCOMING, format->second.first,
+                format->second.second);
+    }
+
+    return true;
+}
+// -------------------------------------------------------------------------------------
+void NativeHub::pumpCrossfade() {
+    const uint32_t frame_size = m_Crossfader.getChannels() * sizeof(int16_t);
+
+    while (true) {
+        const uint32_t frames = m_Crossfader.peek(m_pMixBuffer, MIX_FRAMES);
+        if (frames == 0) {
+            break;
+        }
+
+        const uint8_t* mix = reinterpret_cast<const uint8_t*>(m_pMixBuffer);
+        uint32_t written;
+        if (m_DSPChain.size() > 0) {
+            written = writeAudioToDsp(0, mix, frames * frame_size, nullptr);
+        } else {
+            written = writeAudioToSink(mix, frames * frame_size, nullptr);
+        }
+
+        if (written == 0) {
+            // The sink is full, the mix is retried on the next provider write
+            break;
+        }
+        m_Crossfader.commit(frames);
+    }
+
+    if (m_CrossfadeState == CROSSFADE_FADING && m_Crossfader.isFadeComplete()) {
+        m_CrossfadeState = CROSSFADE_DRAINING;
+    }
+
+    // Once the crossfade is over, the incoming provider writes to the sink directly, unless its
+    // format has to be converted until its next format change
+    if (m_CrossfadeState == CROSSFADE_DRAINING
+            && m_Crossfader.getQueuedFrames(Crossfader::STREAM_INCOMING) == 0) {
+        auto format = m_SocketFormats.find(m_pIncomingSocket);
+        if (format == m_SocketFormats.end() || (format->second.first == m_iSampleRate
+                && format->second.second == m_iChannels)) {
+            endCrossfade();
+        }
+    }
+}
+// -------------------------------------------------------------------------------------
+void NativeHub::endCrossfade() {
+    if (m_pIncomingSocket) {
+        m_pLastProviderSocket = m_pIncomingSocket;
+    }
+
+    m_pOutgoingSocket = nullptr;
+    m_pIncomingSocket = nullptr;
+    m_CrossfadeState = m_bCrossfadeRequested ? CROSSFADE_PENDING : CROSSFADE_IDLE;
 }
 // -------------------------------------------------------------------------------------
 void NativeHub::onRequest(SocketCommon* socket, const omnimusic::Request_RequestType type) {
@@ -196,23 +401,26 @@ void NativeHub::onBufferInfo(SocketCommon* socket, const int32_t samples, const
 // -------------------------------------------------------------------------------------
 void NativeHub::onFormatInfo(SocketCommon* socket, const int32_t sample_rate,
         const int32_t channels) {
-    m_iSampleRate = sample_rate;
-    m_iChannels = channels;
+    std::lock_guard<std::recursive_mutex> lock(m_ChainMutex);
+    m_SocketFormats[socket] = std::make_pair(sample_rate, channels);
 
-    if (m_pSink) {
-        m_pSink->setAudioFormat(sample_rate, 16, channels);
+    if (m_CrossfadeState == CROSSFADE_PENDING && m_pLastProviderSocket != nullptr
+            && socket != m_pLastProviderSocket) {
+        // Likely the next provider getting ready, the format is applied when its audio arrives
+        return;
+    } else if (m_CrossfadeState == CROSSFADE_FADING
+            && (socket == m_pOutgoingSocket || socket == m_pIncomingSocket)) {
+        m_Crossfader.setStreamFormat(socket == m_pOutgoingSocket ? Crossfader::STREAM_OUTGOING
+                : Crossfader::STREAM_INCOMING, sample_rate, channels);
+        return;
+    } else if (m_CrossfadeState == CROSSFADE_DRAINING && socket == m_pOutgoingSocket) {
+        return;
+    } else if (m_CrossfadeState == CROSSFADE_DRAINING && socket == m_pIncomingSocket) {
+        // The incoming provider moved on to another track, back to direct writes
+        endCrossfade();
     }
 
-    // Notify DSP plugins of format info
-    for (auto it = m_DSPChain.begin(); it != m_DSPChain.end(); ++it) {
-        SocketCommon* socket = m_DSPSockets[*it];
-        if (m_pSink) {
-            socket->writeFormatInfo(m_pSink->getChannels(), m_pSink->getSampleRate());
-        } else {
-            // Default values
-            socket->writeFormatInfo(m_iChannels, m_iSampleRate);
-        }
-    }
+    applyAudioFormat(sample_rate, channels);
 }
 // -------------------------------------------------------------------------------------
 void NativeHub::onAudioData(SocketCommon* socket, const uint8_t* data, const uint32_t len) {
@@ -224,6 +432,12 @@ void NativeHub::onAudioData(SocketCommon* socket, const uint8_t* data, const uin
         return;
     }
 
+    if (!is_dsp && m_CrossfadeState != CROSSFADE_IDLE
+            && writeCrossfadeAudio(socket, data, len)) {
+        // The crossfader mixes the audio of the providers
+        return;
+    }
+
     if (len > 0) {
         if (is_dsp) {
             // Audio from a DSP plugin, route it to the next element (or to the sink if no more)
@@ -231,20 +445,20 @@ void NativeHub::onAudioData(SocketCommon* socket, const uint8_t* data, const uin
                     std::find(m_DSPChain.begin(), m_DSPChain.end(), socket->getSocketName()));
             m_iBuffersInDSP -= len;
             if (index < m_DSPChain.size() - 1) {
-                writeAudioToDsp(index + 1, data, len);
+                writeAudioToDsp(index + 1, data, len, nullptr);
             } else {
                 // End of the chain, feed to sink
-                writeAudioToSink(data, len);
+                writeAudioToSink(data, len, popDspOwner());
             }
         } else {
             m_pLastProviderSocket = socket;
 
             // Audio from provider, route it to the first plugin in the DSP chain (or sink if none)
             if (m_DSPChain.size() > 0) {
-                writeAudioToDsp(0, data, len);
+                writeAudioToDsp(0, data, len, socket);
             } else {
                 // No DSP plugins, feed to sink
-                writeAudioToSink(data, len);
+                writeAudioToSink(data, len, socket);
             }
         }
     } else if (!is_dsp) {
@@ -254,8 +468,9 @@ void NativeHub::onAudioData(SocketCommon* socket, const uint8_t* data, const uin
         if (m_pSink) {
             m_pSink->flush();
             m_iBuffersInDSP = 0;
+            m_iDspOwnersCount = 0;
         }
-        writeAudioResponse(0);
+        writeAudioResponse(socket, 0);
     }
 }
 // -------------------------------------------------------------------------------------
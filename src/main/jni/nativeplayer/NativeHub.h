@@ -19,6 +19,8 @@
 #include <string>
 #include <unordered_map>
 #include <mutex>
+#include <utility>
+#include "Crossfader.h"
 #include "../nativesocket/SocketCallbacks.h"
 #include "../nativesocket/SocketCommon.h"
 #include "../nativesocket/SocketHost.h"
@@ -54,11 +56,23 @@ class NativeHub : public SocketCallbacks {
     // Sets ducking status
     void setDucking(bool duck);
 
+    // Crossfades the current provider with the next provider that starts writing audio, for the
+    // provided duration. A duration of 0 cancels a pending or running crossfade.
+    void setCrossfade(int32_t duration_ms);
+
  protected:
     SocketHost* findSocketByName(const std::string& name);
-    void writeAudioToDsp(int chain_index, const uint8_t* data, const uint32_t len);
-    void writeAudioToSink(const uint8_t* data, const uint32_t len);
-    void writeAudioResponse(const uint32_t written);
+    uint32_t writeAudioToDsp(int chain_index, const uint8_t* data, const uint32_t len,
+            SocketCommon* owner);
+    uint32_t writeAudioToSink(const uint8_t* data, const uint32_t len, SocketCommon* owner);
+    void writeAudioResponse(SocketCommon* owner, const uint32_t written);
+    void pushDspOwner(SocketCommon* owner);
+    SocketCommon* popDspOwner();
+    void applyAudioFormat(const int32_t sample_rate, const int32_t channels);
+    bool writeCrossfadeAudio(SocketCommon* socket, const uint8_t* data, const uint32_t len);
+    bool startCrossfade(SocketCommon* incoming);
+    void pumpCrossfade();
+    void endCrossfade();
 
  public:
     // SocketCallbacks implementation
@@ -114,6 +128,28 @@ class NativeHub : public SocketCallbacks {
     int32_t m_iBuffersInDSP;
     void* m_pUserData;
     std::recursive_mutex m_ChainMutex;
+
+    // Providers whose audio is in the DSP chain, in the order it was written. The response to a
+    // provider write is sent once its audio reached the sink.
+    SocketCommon** m_pDspOwners;
+    int32_t m_iDspOwnersHead;
+    int32_t m_iDspOwnersCount;
+
+    enum CrossfadeState {
+        CROSSFADE_IDLE,
+        CROSSFADE_PENDING,
+        CROSSFADE_FADING,
+        CROSSFADE_DRAINING
+    };
+
+    Crossfader m_Crossfader;
+    CrossfadeState m_CrossfadeState;
+    bool m_bCrossfadeRequested;
+    int32_t m_iCrossfadeMs;
+    SocketCommon* m_pOutgoingSocket;
+    SocketCommon* m_pIncomingSocket;
+    int16_t* m_pMixBuffer;
+    std::unordered_map<SocketCommon*, std::pair<int32_t, int32_t>> m_SocketFormats;
 };
 
 
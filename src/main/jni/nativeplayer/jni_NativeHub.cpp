@@ -135,6 +135,11 @@ void om_NativeHub_setDucking(JNIEnv* env, jobject thiz, jboolean duck) {
     hub->setDucking(duck);
 }
 // -------------------------------------------------------------------------------------
+void om_NativeHub_setCrossfade(JNIEnv* env, jobject thiz, jint duration_ms) {
+    NativeHub* hub = get_hub_from_object(env, thiz);
+    hub->setCrossfade(duration_ms);
+}
+// -------------------------------------------------------------------------------------
 void om_NativeHub_onAudioMirrorWritten(NativeHub* hub, const uint8_t* data, jint len,
         jint sampleRate, jint channels) {
     JNIEnv* env;
@@ -49,6 +49,9 @@ void om_NativeHub_setSinkPointer(JNIEnv* env, jobject thiz, jlong handle);
 // NativeHub.setDucking(boolean duck) ==> NativeHub::setDucking(bool duck)
 void om_NativeHub_setDucking(JNIEnv* env, jobject thiz, jboolean duck);
 
+// NativeHub.setCrossfade(int durationMs) ==> NativeHub::setCrossfade(int32_t duration_ms)
+void om_NativeHub_setCrossfade(JNIEnv* env, jobject thiz, jint duration_ms);
+
 // -----------------------------------------
 // Called from native code to Java
 // -----------------------------------------